@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2025 The Nameless-CLO Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.settings.fragment
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.content.pm.ApplicationInfo
+import android.content.pm.ApplicationInfo.FLAG_SYSTEM
+import android.content.pm.PackageManager
+import android.content.pm.PackageManager.NameNotFoundException
+import android.graphics.drawable.Drawable
+import android.util.Log
+import android.util.LruCache
+
+import com.android.internal.util.sun.HanziToPinyin
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.stream.Collectors
+
+import org.sun.settings.fragment.BasePerAppConfigFragment.AppData
+
+/**
+ * Installed apps shared by all per app config fragments of the process.
+ *
+ * Labels are resolved in parallel on first use and transliterated in one
+ * batch, both are kept until the package changes. Icons are loaded on demand.
+ * Package and locale broadcasts invalidate the affected entries.
+ */
+object AppCatalog {
+
+    private const val TAG = "AppCatalog"
+
+    private const val ICON_CACHE_SIZE = 128
+
+    val COMPARATOR = Comparator<AppData> { a, b ->
+        if (a.sortName != b.sortName) {
+            a.sortName.compareTo(b.sortName)
+        } else {
+            a.packageName.compareTo(b.packageName)
+        }
+    }
+
+    class Snapshot(
+        // Sorted apps of current user that are not system apps
+        val userApps: List<AppData>,
+        val launchableApps: Set<String>
+    )
+
+    private val hanziToPinyin by lazy { HanziToPinyin.getInstance() }
+
+    // Dropped only when the package changes
+    private val appDataCache = ConcurrentHashMap<String, AppData>()
+    private val iconCache = LruCache<String, Drawable.ConstantState>(ICON_CACHE_SIZE)
+
+    private val lock = Any()
+
+    // Bumped on every invalidation, snapshot is rebuilt if it doesn't match
+    private val generation = AtomicInteger()
+    @Volatile private var snapshot: Snapshot? = null
+    @Volatile private var snapshotGeneration = -1
+    @Volatile private var receiverRegistered = false
+
+    private val receiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            if (intent.action == Intent.ACTION_LOCALE_CHANGED) {
+                appDataCache.clear()
+                iconCache.evictAll()
+            } else {
+                intent.data?.schemeSpecificPart?.let {
+                    appDataCache.remove(it)
+                    iconCache.remove(it)
+                }
+            }
+            generation.incrementAndGet()
+        }
+    }
+
+    /**
+     * Blocking, don't call on main thread.
+     */
+    fun getSnapshot(context: Context): Snapshot {
+        registerReceiverIfNeeded(context)
+        synchronized(lock) {
+            val gen = generation.get()
+            snapshot?.takeIf { snapshotGeneration == gen }?.let { return it }
+
+            val start = System.currentTimeMillis()
+            val pm = context.packageManager
+            val appInfos = pm.getInstalledPackages(0)
+                .mapNotNull { pi -> pi.applicationInfo?.takeIf { (it.flags and FLAG_SYSTEM) == 0 } }
+            val missing = appInfos.filterNot { appDataCache.containsKey(it.packageName) }
+            // Labels need resources of each package, transliterator is not thread safe
+            val labels = missing.parallelStream()
+                .map { it.loadLabel(pm).toString() }
+                .collect(Collectors.toList())
+            val sortNames = hanziToPinyin.transliterate(labels)
+            missing.forEachIndexed { i, ai -> putAppData(ai, labels[i], sortNames[i]) }
+            val userApps = appInfos
+                .map { appDataCache[it.packageName] ?: getAppData(pm, it) }
+                .sortedWith(COMPARATOR)
+            val launchableApps = pm.queryIntentActivities(
+                Intent(Intent.ACTION_MAIN).apply {
+                    addCategory(Intent.CATEGORY_LAUNCHER)
+                }, 0
+            ).mapNotNull { it.activityInfo?.packageName }.toSet()
+            Log.d(TAG, "Loaded ${userApps.size} apps in ${System.currentTimeMillis() - start}ms")
+
+            return Snapshot(userApps, launchableApps).also {
+                snapshot = it
+                snapshotGeneration = gen
+            }
+        }
+    }
+
+    /**
+     * @return AppData of any installed package, null if not installed. Blocking.
+     */
+    fun getApp(context: Context, packageName: String): AppData? {
+        registerReceiverIfNeeded(context)
+        appDataCache[packageName]?.let { return it }
+        val pm = context.packageManager
+        return try {
+            pm.getPackageInfo(packageName, 0).applicationInfo?.let { getAppData(pm, it) }
+        } catch (e: NameNotFoundException) {
+            null
+        }
+    }
+
+    /**
+     * @return Cached icon of the package, null if it needs to be loaded by [getIcon].
+     */
+    fun peekIcon(packageName: String): Drawable? = iconCache.get(packageName)?.newDrawable()
+
+    /**
+     * Blocking if the icon is not cached, don't call on main thread.
+     */
+    fun getIcon(pm: PackageManager, packageName: String): Drawable {
+        peekIcon(packageName)?.let { return it }
+        val icon = try {
+            pm.getApplicationIcon(packageName)
+        } catch (e: NameNotFoundException) {
+            return pm.defaultActivityIcon
+        }
+        icon.constantState?.let { iconCache.put(packageName, it) }
+        return icon
+    }
+
+    private fun getAppData(pm: PackageManager, ai: ApplicationInfo): AppData {
+        appDataCache[ai.packageName]?.let { return it }
+        val label = ai.loadLabel(pm).toString()
+        val transliterated = synchronized(lock) {
+            hanziToPinyin.transliterate(label)
+        }
+        return putAppData(ai, label, transliterated)
+    }
+
+    private fun putAppData(ai: ApplicationInfo, label: String, transliterated: String?): AppData {
+        val sortName = if (label.isNotBlank()) {
+            transliterated ?: label
+        } else {
+            ai.packageName
+        }
+        val appData = AppData(label, ai.packageName, sortName, ai.uid)
+        return appDataCache.putIfAbsent(ai.packageName, appData) ?: appData
+    }
+
+    private fun registerReceiverIfNeeded(context: Context) {
+        if (receiverRegistered) {
+            return
+        }
+        synchronized(lock) {
+            if (receiverRegistered) {
+                return
+            }
+            val appContext = context.applicationContext
+            appContext.registerReceiver(receiver, IntentFilter().apply {
+                addAction(Intent.ACTION_PACKAGE_ADDED)
+                addAction(Intent.ACTION_PACKAGE_REMOVED)
+                addAction(Intent.ACTION_PACKAGE_CHANGED)
+                addAction(Intent.ACTION_PACKAGE_REPLACED)
+                addDataScheme("package")
+            })
+            appContext.registerReceiver(receiver, IntentFilter(Intent.ACTION_LOCALE_CHANGED))
+            receiverRegistered = true
+        }
+    }
+}
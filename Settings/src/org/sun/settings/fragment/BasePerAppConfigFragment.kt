@@ -7,14 +7,9 @@ package org.sun.settings.fragment
 
 import android.app.settings.SettingsEnums.PAGE_UNKNOWN
 import android.content.Context
-import android.content.Intent
-import android.content.pm.ApplicationInfo.FLAG_SYSTEM
-import android.content.pm.PackageManager.NameNotFoundException
-import android.graphics.drawable.Drawable
 import android.os.Bundle
 import android.os.Handler
 import android.os.HandlerThread
-import android.util.ArraySet
 import android.util.TypedValue
 import android.view.Gravity
 import android.view.Menu
@@ -33,8 +28,6 @@ import androidx.core.view.isVisible
 import androidx.fragment.app.Fragment
 import androidx.preference.Preference
 
-import com.android.internal.util.sun.HanziToPinyin
-
 import com.android.settings.R
 import com.android.settings.SettingsPreferenceFragment
 
@@ -42,6 +35,8 @@ import com.android.settingslib.widget.TopIntroPreference
 
 import com.google.android.material.appbar.AppBarLayout
 
+import org.sun.settings.widget.AppIconBinder
+
 abstract class BasePerAppConfigFragment : SettingsPreferenceFragment(), MenuItem.OnActionExpandListener {
 
     private val appBarLayout by lazy { requireActivity().findViewById<AppBarLayout>(R.id.app_bar)!! }
@@ -53,8 +48,6 @@ abstract class BasePerAppConfigFragment : SettingsPreferenceFragment(), MenuItem
     private var deselectAllItem: MenuItem? = null
     private var resetItem: MenuItem? = null
 
-    private val hanziToPinyin by lazy { HanziToPinyin.getInstance() }
-
     private val handlerThread by lazy {
         HandlerThread("BasePerAppConfigFragment-init").apply { start() }
     }
@@ -158,9 +151,9 @@ abstract class BasePerAppConfigFragment : SettingsPreferenceFragment(), MenuItem
             override fun onQueryTextSubmit(query: String) = false
             override fun onQueryTextChange(newText: String): Boolean {
                 var hasVisiblePref = false
+                val query = newText.lowercase()
                 allAppData.forEachIndexed { i, appData ->
-                    allPreference[i].isVisible = newText.isNullOrEmpty() ||
-                        appData.label.lowercase().contains(newText.lowercase())
+                    allPreference[i].isVisible = query.isEmpty() || appData.matches(query)
                     hasVisiblePref = hasVisiblePref || allPreference[i].isVisible
                 }
                 emptyTextView.apply {
@@ -215,74 +208,32 @@ abstract class BasePerAppConfigFragment : SettingsPreferenceFragment(), MenuItem
      * with extra system applications defined in R.array.config_perAppConfAllowedSystemApps.
      */
     private fun collectApps(): List<AppData> {
-        val apps = ArraySet<AppData>()
-        packageManager.getInstalledPackages(0)?.forEach { pi ->
-            pi.applicationInfo?.let { ai ->
-                if ((ai.flags and FLAG_SYSTEM) == 0) {
-                    val label = ai.loadLabel(packageManager).toString()
-                    apps.add(AppData(
-                        label,
-                        pi.packageName,
-                        if (label.isNotBlank()) hanziToPinyin.transliterate(label) else pi.packageName,
-                        ai.uid
-                    ))
-                }
-            }
-        }
-        if (getAllowedSystemAppListResId() > 0) {
-            requireContext().resources.getStringArray(getAllowedSystemAppListResId())
-                .forEach { app ->
-                    try {
-                        packageManager.getPackageInfo(app, 0).let { pi ->
-                            pi.applicationInfo?.let { ai ->
-                                val label = ai.loadLabel(packageManager).toString()
-                                apps.add(AppData(
-                                    label,
-                                    app,
-                                    if (label.isNotBlank()) hanziToPinyin.transliterate(label) else app,
-                                    ai.uid
-                                ))
-                            }
-                        }
-                    } catch (e: NameNotFoundException) {}
-                }
+        val context = requireContext()
+        val snapshot = AppCatalog.getSnapshot(context)
+        val allowedSystemApps = if (getAllowedSystemAppListResId() > 0) {
+            context.resources.getStringArray(getAllowedSystemAppListResId())
+                .mapNotNull { AppCatalog.getApp(context, it) }
+        } else {
+            emptyList()
         }
         val blacklistApps = if (getBlacklistAppListResId() > 0) {
-            requireContext().resources.getStringArray(getBlacklistAppListResId()).toSet()
+            context.resources.getStringArray(getBlacklistAppListResId()).toSet()
         } else {
             emptySet()
         }
-        val launchableApps = packageManager.queryIntentActivities(
-            Intent(Intent.ACTION_MAIN).apply {
-                addCategory(Intent.CATEGORY_LAUNCHER)
-            }, 0
-        ).map { it.activityInfo?.packageName }.toSet()
-        val appList = mutableListOf<AppData>().also {
-            it.addAll(apps.filter { app ->
-                launchableApps.contains(app.packageName)
-            }.filterNot { app ->
-                blacklistApps.contains(app.packageName)
-            })
-            it.sortWith { a, b ->
-                if (a.sortName != b.sortName) {
-                    a.sortName.compareTo(b.sortName)
-                } else {
-                    a.packageName.compareTo(b.packageName)
-                }
-            }
-        }
-        return appList
+        return (snapshot.userApps + allowedSystemApps)
+            .distinctBy { it.packageName }
+            .filter { snapshot.launchableApps.contains(it.packageName) }
+            .filterNot { blacklistApps.contains(it.packageName) }
+            .sortedWith(AppCatalog.COMPARATOR)
     }
 
-    protected fun getIcon(packageName: String): Drawable {
-        var icon: Drawable? = null
-        if (packageName != null) {
-            try {
-                icon = packageManager.getApplicationIcon(packageName)
-            } catch (e: NameNotFoundException) {
-            }
+    protected fun getIconLoader(packageName: String): AppIconBinder.IconLoader {
+        val pm = requireContext().packageManager
+        return object : AppIconBinder.IconLoader {
+            override fun peek() = AppCatalog.peekIcon(packageName)
+            override fun load() = AppCatalog.getIcon(pm, packageName)
         }
-        return icon ?: packageManager.defaultActivityIcon
     }
 
     override fun getMetricsCategory() = PAGE_UNKNOWN
@@ -314,5 +265,20 @@ abstract class BasePerAppConfigFragment : SettingsPreferenceFragment(), MenuItem
         val packageName: String,
         val sortName: String,
         val uid: Int
-    )
+    ) {
+        // Search keys are built once, so typing doesn't lowercase every label again
+        private val searchLabel = label.lowercase()
+        private val searchPinyin = sortName.replace(" ", "").lowercase()
+        private val searchInitials = sortName.split(' ')
+            .filter { it.isNotEmpty() }
+            .joinToString("") { it.substring(0, 1) }
+            .lowercase()
+
+        /**
+         * @param query Lowercase query.
+         * @return Whether label or its pinyin contains query, or pinyin initials start with it.
+         */
+        fun matches(query: String) = searchLabel.contains(query) ||
+            searchPinyin.contains(query) || searchInitials.startsWith(query)
+    }
 }
@@ -17,7 +17,7 @@ abstract class PerAppListConfigFragment : BasePerAppConfigFragment() {
 
     override fun createAppPreference(prefContext: Context, appData: AppData): Preference {
         return AppListPreference(prefContext).apply {
-            icon = getIcon(appData.packageName)
+            setIconLoader(getIconLoader(appData.packageName))
             title = appData.label
             dialogTitle = appData.label
 
@@ -20,7 +20,7 @@ abstract class PerAppSwitchConfigFragment : BasePerAppConfigFragment() {
 
     override fun createAppPreference(prefContext: Context, appData: AppData): Preference {
         return AppSwitchPreference(prefContext).apply {
-            icon = getIcon(appData.packageName)
+            setIconLoader(getIconLoader(appData.packageName))
             title = appData.label
             summary = appData.packageName
             isChecked = isChecked(appData.packageName, appData.uid)
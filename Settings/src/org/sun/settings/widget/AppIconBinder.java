@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.settings.widget;
+
+import android.graphics.drawable.Drawable;
+import android.view.View;
+import android.widget.ImageView;
+
+import androidx.preference.PreferenceViewHolder;
+
+import com.android.settingslib.utils.ThreadUtils;
+
+/**
+ * Binds the app icon of a preference row.
+ *
+ * The icon is loaded each time the row is bound instead of being held in the
+ * preference, so only icons of rows on screen need to stay in memory. Icons
+ * that aren't ready are loaded in background and set when they arrive, unless
+ * the row has been bound to another preference by then.
+ */
+public final class AppIconBinder {
+
+    /**
+     * Provides the icon of a single app.
+     */
+    public interface IconLoader {
+        /**
+         * @return The icon if it's available without blocking, null otherwise.
+         *         Called on main thread.
+         */
+        Drawable peek();
+
+        /**
+         * @return The icon. Called on a background thread.
+         */
+        Drawable load();
+    }
+
+    private IconLoader mLoader;
+
+    AppIconBinder() {}
+
+    /**
+     * @return Whether the loader changed and the row needs to be bound again.
+     */
+    boolean setLoader(IconLoader loader) {
+        if (mLoader == loader) {
+            return false;
+        }
+        mLoader = loader;
+        return true;
+    }
+
+    void bind(PreferenceViewHolder holder) {
+        final ImageView iconView = (ImageView) holder.findViewById(android.R.id.icon);
+        if (iconView == null) {
+            return;
+        }
+        final IconLoader loader = mLoader;
+        iconView.setTag(loader);
+        if (loader == null) {
+            return;
+        }
+        iconView.setVisibility(View.VISIBLE);
+        View iconFrame = holder.findViewById(androidx.preference.R.id.icon_frame);
+        if (iconFrame == null) {
+            iconFrame = holder.findViewById(android.R.id.icon_frame);
+        }
+        if (iconFrame != null) {
+            iconFrame.setVisibility(View.VISIBLE);
+        }
+
+        final Drawable icon = loader.peek();
+        iconView.setImageDrawable(icon);
+        if (icon != null) {
+            return;
+        }
+        ThreadUtils.postOnBackgroundThread(() -> {
+            final Drawable loaded = loader.load();
+            ThreadUtils.postOnMainThread(() -> {
+                // The row was recycled for another preference while loading
+                if (iconView.getTag() == loader) {
+                    iconView.setImageDrawable(loaded);
+                }
+            });
+        });
+    }
+}
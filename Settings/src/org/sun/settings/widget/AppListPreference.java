@@ -9,12 +9,15 @@ import android.content.Context;
 import android.util.AttributeSet;
 
 import androidx.preference.ListPreference;
+import androidx.preference.PreferenceViewHolder;
 
 /**
  * The ListPreference for the pages need to show apps icon.
 */
 public class AppListPreference extends ListPreference {
 
+    private final AppIconBinder mIconBinder = new AppIconBinder();
+
     public AppListPreference(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
         super(context, attrs, defStyleAttr, defStyleRes);
         setLayoutResource(com.android.settingslib.widget.preference.app.R.layout.preference_app);
@@ -34,4 +37,19 @@ public class AppListPreference extends ListPreference {
         super(context, attrs);
         setLayoutResource(com.android.settingslib.widget.preference.app.R.layout.preference_app);
     }
+
+    /**
+     * Show the icon of {@code iconLoader} on the row, see {@link AppIconBinder}.
+     */
+    public void setIconLoader(AppIconBinder.IconLoader iconLoader) {
+        if (mIconBinder.setLoader(iconLoader)) {
+            notifyChanged();
+        }
+    }
+
+    @Override
+    public void onBindViewHolder(PreferenceViewHolder holder) {
+        super.onBindViewHolder(holder);
+        mIconBinder.bind(holder);
+    }
 }
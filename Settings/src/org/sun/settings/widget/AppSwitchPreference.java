@@ -8,6 +8,8 @@ package org.sun.settings.widget;
 import android.content.Context;
 import android.util.AttributeSet;
 
+import androidx.preference.PreferenceViewHolder;
+
 import org.sun.custom.preference.SwitchPreferenceCompat;
 
 /**
@@ -15,6 +17,8 @@ import org.sun.custom.preference.SwitchPreferenceCompat;
 */
 public class AppSwitchPreference extends SwitchPreferenceCompat {
 
+    private final AppIconBinder mIconBinder = new AppIconBinder();
+
     public AppSwitchPreference(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
         super(context, attrs, defStyleAttr, defStyleRes);
         setLayoutResource(com.android.settingslib.widget.preference.app.R.layout.preference_app);
@@ -34,4 +38,19 @@ public class AppSwitchPreference extends SwitchPreferenceCompat {
         super(context, attrs);
         setLayoutResource(com.android.settingslib.widget.preference.app.R.layout.preference_app);
     }
+
+    /**
+     * Show the icon of {@code iconLoader} on the row, see {@link AppIconBinder}.
+     */
+    public void setIconLoader(AppIconBinder.IconLoader iconLoader) {
+        if (mIconBinder.setLoader(iconLoader)) {
+            notifyChanged();
+        }
+    }
+
+    @Override
+    public void onBindViewHolder(PreferenceViewHolder holder) {
+        super.onBindViewHolder(holder);
+        mIconBinder.bind(holder);
+    }
 }
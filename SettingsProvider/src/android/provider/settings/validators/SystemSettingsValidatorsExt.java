@@ -154,7 +154,8 @@ public class SystemSettingsValidatorsExt {
             final String[] datas = value.split(";");
             for (String data : datas) {
                 final String[] info = data.split(",");
-                if (info.length != 3) {
+                // package,uid,volume[,route]
+                if (info.length != 3 && info.length != 4) {
                     return false;
                 }
                 try {
@@ -163,6 +164,13 @@ public class SystemSettingsValidatorsExt {
                     if (uid < 0 || volume < 0 || volume > 100) {
                         return false;
                     }
+                    if (info.length == 4) {
+                        final int route = Integer.parseInt(info[3]);
+                        if (route < System.APP_VOLUME_ROUTE_SPEAKER
+                                || route > System.APP_VOLUME_ROUTE_BLUETOOTH) {
+                            return false;
+                        }
+                    }
                 } catch (NumberFormatException e) {
                     return false;
                 }
@@ -5,28 +5,39 @@
 
 package com.android.systemui.shared.system
 
-import android.app.ActivityTaskManager
 import android.app.ActivityTaskManager.INVALID_TASK_ID
-import android.app.IActivityTaskManager
-import android.app.WindowConfiguration.WINDOWING_MODE_FREEFORM
-import android.app.WindowConfiguration.WINDOWING_MODE_MINI_WINDOW_EXT
-import android.app.WindowConfiguration.WINDOWING_MODE_PINNED_WINDOW_EXT
 import android.content.Context
-import android.os.RemoteException
+import android.os.Handler
+import android.os.Looper
 import android.util.Log
 
+import org.sun.app.ITopTaskListener
+import org.sun.app.TopTaskInfo
+import org.sun.app.TopTaskManager
+
 /**
- * TaskStackChangeListener that ignores freeform / mini-window focuses change
+ * Top task listener that ignores freeform / mini-window focuses change.
+ * Snapshots are pushed by system server and handled on main thread.
 */
 open class FullscreenTaskStackChangeListener(
     private val context: Context,
     private val observeActivityChange: Boolean = false
-) : TaskStackChangeListener {
+) {
 
     var debug = false
     var debugTag = DEFAULT_TAG
 
-    private val iActivityTaskManager by lazy { ActivityTaskManager.getService() }
+    private val topTaskManager by lazy { context.getSystemService(TopTaskManager::class.java) }
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    private val topTaskListener = object : ITopTaskListener.Stub() {
+        override fun onTopTaskChanged(info: TopTaskInfo) {
+            mainHandler.post { handleTopTaskInfo(info) }
+        }
+    }
+
+    private var listening = false
+    private var lastSequence = -1L
 
     var topPackageName = String()
         private set
@@ -35,6 +46,30 @@ open class FullscreenTaskStackChangeListener(
     var topTaskId = INVALID_TASK_ID
         private set
 
+    fun setListening(listening: Boolean) {
+        if (this.listening == listening) {
+            return
+        }
+        this.listening = listening
+        if (listening) {
+            topTaskManager?.registerTopTaskListener(topTaskListener)
+        } else {
+            topTaskManager?.unregisterTopTaskListener(topTaskListener)
+        }
+    }
+
+    private fun handleTopTaskInfo(info: TopTaskInfo) {
+        if (info.sequence <= lastSequence) {
+            // Stale delivery
+            return
+        }
+        lastSequence = info.sequence
+        if (!info.isFullscreen) {
+            return
+        }
+        handleChange(info.packageName, info.activityName, info.taskId)
+    }
+
     private fun handleChange(newPackageName: String, newActivityName: String, newTaskId: Int) {
         if (topPackageName == newPackageName && topActivityName == newActivityName) {
             return
@@ -53,31 +88,8 @@ open class FullscreenTaskStackChangeListener(
         onFullscreenTaskChanged(topPackageName, topActivityName, topTaskId)
     }
 
-    override fun onTaskStackChanged() {
-        forceCheck()
-    }
-
-    override fun onTaskFocusChanged(taskId: Int, focused: Boolean) {
-        if (focused) {
-            forceCheck()
-        }
-    }
-
     fun forceCheck() {
-        try {
-            iActivityTaskManager.focusedRootTaskInfo?.let { info ->
-                info.windowingMode.let {
-                    if (it == WINDOWING_MODE_FREEFORM ||
-                            it == WINDOWING_MODE_MINI_WINDOW_EXT ||
-                            it == WINDOWING_MODE_PINNED_WINDOW_EXT) {
-                        return
-                    }
-                }
-                info.topActivity?.let {
-                    handleChange(it.packageName, it.className, info.taskId)
-                }
-            }
-        } catch (e: RemoteException) {}
+        topTaskManager?.topTaskInfo?.let { handleTopTaskInfo(it) }
     }
 
     open fun onFullscreenTaskChanged(packageName: String, activityName: String, taskId: Int) {}
@@ -26,11 +26,13 @@ import android.hardware.display.DisplayManager;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.os.SystemProperties;
+import android.os.Trace;
 import android.os.VibrationAttributes;
 import android.os.VibrationEffect;
 import android.os.VibrationExtInfo;
 import android.service.notification.StatusBarNotification;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewConfiguration;
@@ -69,11 +71,37 @@ class CentralSurfacesImplExt {
     private static final int BRIGHTNESS_CONTROL_LINGER_THRESHOLD = 20;
     private static final long BRIGHTNESS_CONTROL_LONG_PRESS_TIMEOUT = 750L;
 
+    private static final String TRACE_BRIGHTNESS_UPDATES = "StatusBarBrightnessUpdates";
+
     private static final VibrationAttributes HARDWARE_FEEDBACK_VIBRATION_ATTRIBUTES =
             VibrationAttributes.createForUsage(VibrationAttributes.USAGE_HARDWARE_FEEDBACK);
     private static final VibrationEffect EFFECT_HEAVY_CLICK =
             VibrationEffect.createPredefined(VibrationEffect.EFFECT_HEAVY_CLICK);
 
+    private static final VibrationExtInfo VIBRATION_LONG_PRESS = new VibrationExtInfo.Builder()
+            .setEffectId(UNIFIED_SUCCESS)
+            .setFallbackEffectId(HEAVY_CLICK)
+            .setVibrationAttributes(HARDWARE_FEEDBACK_VIBRATION_ATTRIBUTES)
+            .build();
+    private static final VibrationExtInfo VIBRATION_SLIDER_EDGE = new VibrationExtInfo.Builder()
+            .setEffectId(SLIDER_EDGE)
+            .setVibrationAttributes(VIBRATION_ATTRIBUTES_SLIDER)
+            .build();
+
+    // Slider step amplitude is quantized to prebuilt levels
+    private static final int SLIDER_STEP_LEVELS = 20;
+    private static final VibrationExtInfo[] VIBRATION_SLIDER_STEPS =
+            new VibrationExtInfo[SLIDER_STEP_LEVELS + 1];
+    static {
+        for (int i = 0; i <= SLIDER_STEP_LEVELS; i++) {
+            VIBRATION_SLIDER_STEPS[i] = new VibrationExtInfo.Builder()
+                    .setEffectId(SLIDER_STEP)
+                    .setAmplitude((float) i / SLIDER_STEP_LEVELS)
+                    .setVibrationAttributes(VIBRATION_ATTRIBUTES_SLIDER)
+                    .build();
+        }
+    }
+
     private static final long HAPTIC_MIN_INTERVAL =
             SystemProperties.getLong("sys.sun.haptic.slider_interval", 50L);
 
@@ -108,6 +136,18 @@ class CentralSurfacesImplExt {
     private float mMinimumBacklight;
     private float mMaximumBacklight;
     private int mBrightnessControlHeight;
+    private int mTouchSlop;
+
+    // Brightness of each x position, built for the current display width
+    private float[] mBrightnessLut;
+
+    private final Choreographer.FrameCallback mBrightnessFrameCallback = frameTimeNanos -> {
+        mBrightnessFramePending = false;
+        adjustBrightness(mPendingBrightnessX);
+    };
+    private boolean mBrightnessFramePending;
+    private int mPendingBrightnessX;
+    private int mBrightnessUpdateCount;
 
     private float mCurrentBrightness;
     private int mInitialTouchX;
@@ -174,56 +214,78 @@ class CentralSurfacesImplExt {
     void updateResources() {
         mBrightnessControlHeight = mStatusBarWindowController.getStatusBarHeight()
                 + BRIGHTNESS_CONTROL_EXTRA_HEIGHT;
+        mTouchSlop = ViewConfiguration.get(mContext).getScaledTouchSlop();
     }
 
     private void onLongPressBrightnessChange() {
-        mVibratorHelper.vibrateExt(new VibrationExtInfo.Builder()
-                .setEffectId(UNIFIED_SUCCESS)
-                .setFallbackEffectId(HEAVY_CLICK)
-                .setVibrationAttributes(HARDWARE_FEEDBACK_VIBRATION_ATTRIBUTES)
-                .build()
-        );
+        mVibratorHelper.vibrateExt(VIBRATION_LONG_PRESS);
         mInBrightnessControl = true;
         adjustBrightness(mInitialTouchX);
         mLinger = BRIGHTNESS_CONTROL_LINGER_THRESHOLD + 1;
     }
 
+    private float[] getBrightnessLut() {
+        final int width = mCentralSurfacesImpl.getDisplayWidth();
+        if (mBrightnessLut != null && mBrightnessLut.length == width + 1) {
+            return mBrightnessLut;
+        }
+        final float[] lut = new float[width + 1];
+        for (int x = 0; x <= width; x++) {
+            final float raw = (float) x / width;
+
+            // Add a padding to the brightness control on both sides to
+            // make it easier to reach min/max brightness
+            final float padded = Math.min(1.0f - BRIGHTNESS_CONTROL_PADDING,
+                    Math.max(BRIGHTNESS_CONTROL_PADDING, raw));
+            final float value = (padded - BRIGHTNESS_CONTROL_PADDING) /
+                    (1 - (2.0f * BRIGHTNESS_CONTROL_PADDING));
+            lut[x] = convertGammaToLinearFloat(
+                    Math.round(value * GAMMA_SPACE_MAX),
+                    mMinimumBacklight, mMaximumBacklight);
+        }
+        mBrightnessLut = lut;
+        return lut;
+    }
+
+    private void scheduleAdjustBrightness(int x) {
+        // Coalesce pointer samples to one update per frame
+        mPendingBrightnessX = x;
+        if (!mBrightnessFramePending) {
+            mBrightnessFramePending = true;
+            Choreographer.getInstance().postFrameCallback(mBrightnessFrameCallback);
+        }
+    }
+
+    private void flushPendingBrightness() {
+        if (mBrightnessFramePending) {
+            mBrightnessFramePending = false;
+            Choreographer.getInstance().removeFrameCallback(mBrightnessFrameCallback);
+            adjustBrightness(mPendingBrightnessX);
+        }
+    }
+
     private void adjustBrightness(int x) {
         mBrightnessChanged = true;
-        final float raw = (float) x / mCentralSurfacesImpl.getDisplayWidth();
-
-        // Add a padding to the brightness control on both sides to
-        // make it easier to reach min/max brightness
-        final float padded = Math.min(1.0f - BRIGHTNESS_CONTROL_PADDING,
-                Math.max(BRIGHTNESS_CONTROL_PADDING, raw));
-        final float value = (padded - BRIGHTNESS_CONTROL_PADDING) /
-                (1 - (2.0f * BRIGHTNESS_CONTROL_PADDING));
-        final float val = convertGammaToLinearFloat(
-                Math.round(value * GAMMA_SPACE_MAX),
-                mMinimumBacklight, mMaximumBacklight);
+        final float[] lut = getBrightnessLut();
+        final float val = lut[Math.max(0, Math.min(lut.length - 1, x))];
         if (mCurrentBrightness != val) {
             if (mCurrentBrightness != -1) {
                 final long now = SystemClock.uptimeMillis();
                 if (val == mMinimumBacklight || val == mMaximumBacklight) {
                     mLastHapticTimestamp = now;
-                    mVibratorHelper.vibrateExt(new VibrationExtInfo.Builder()
-                            .setEffectId(SLIDER_EDGE)
-                            .setVibrationAttributes(VIBRATION_ATTRIBUTES_SLIDER)
-                            .build()
-                    );
+                    mVibratorHelper.vibrateExt(VIBRATION_SLIDER_EDGE);
                 } else if (now - mLastHapticTimestamp > HAPTIC_MIN_INTERVAL) {
                     mLastHapticTimestamp = now;
-                    mVibratorHelper.vibrateExt(new VibrationExtInfo.Builder()
-                            .setEffectId(SLIDER_STEP)
-                            .setAmplitude((float) (val - mMinimumBacklight)
-                                        / (mMaximumBacklight - mMinimumBacklight))
-                            .setVibrationAttributes(VIBRATION_ATTRIBUTES_SLIDER)
-                            .build()
-                    );
+                    final float amplitude = (float) (val - mMinimumBacklight)
+                            / (mMaximumBacklight - mMinimumBacklight);
+                    mVibratorHelper.vibrateExt(VIBRATION_SLIDER_STEPS[
+                            Math.round(amplitude * SLIDER_STEP_LEVELS)]);
                 }
             }
             mCurrentBrightness = val;
             mDisplayManager.setTemporaryBrightness(mDisplayId, val);
+            Trace.traceCounter(Trace.TRACE_TAG_APP, TRACE_BRIGHTNESS_UPDATES,
+                    ++mBrightnessUpdateCount);
         }
     }
 
@@ -235,6 +297,7 @@ class CentralSurfacesImplExt {
             mInBrightnessControl = false;
             if (y < mBrightnessControlHeight) {
                 mCurrentBrightness = -1;
+                mBrightnessUpdateCount = 0;
                 mLinger = 0;
                 mInitialTouchX = x;
                 mInitialTouchY = y;
@@ -246,15 +309,14 @@ class CentralSurfacesImplExt {
         } else if (action == MotionEvent.ACTION_MOVE) {
             if (y < mBrightnessControlHeight && mJustPeeked) {
                 if (mLinger > BRIGHTNESS_CONTROL_LINGER_THRESHOLD) {
-                    adjustBrightness(x);
+                    scheduleAdjustBrightness(x);
                 } else {
                     final int xDiff = Math.abs(x - mInitialTouchX);
                     final int yDiff = Math.abs(y - mInitialTouchY);
-                    final int touchSlop = ViewConfiguration.get(mContext).getScaledTouchSlop();
                     if (xDiff > yDiff) {
                         mLinger++;
                     }
-                    if (xDiff > touchSlop || yDiff > touchSlop) {
+                    if (xDiff > mTouchSlop || yDiff > mTouchSlop) {
                         mMessageRouter.cancelMessages(MSG_LONG_PRESS_BRIGHTNESS_CHANGE);
                     }
                 }
@@ -266,13 +328,18 @@ class CentralSurfacesImplExt {
             }
         } else if (action == MotionEvent.ACTION_UP) {
             mMessageRouter.cancelMessages(MSG_LONG_PRESS_BRIGHTNESS_CHANGE);
+            flushPendingBrightness();
             mInBrightnessControl = false;
         } else if (action == MotionEvent.ACTION_CANCEL) {
             mMessageRouter.cancelMessages(MSG_LONG_PRESS_BRIGHTNESS_CHANGE);
+            flushPendingBrightness();
         }
     }
 
     void checkBrightnessChanged(boolean upOrCancel) {
+        if (upOrCancel) {
+            flushPendingBrightness();
+        }
         if (mBrightnessChanged && upOrCancel) {
             mBrightnessChanged = false;
             mDisplayManager.setBrightness(mDisplayId, mCurrentBrightness);
@@ -21,6 +21,8 @@ import android.content.Context;
 import android.util.AttributeSet;
 import android.view.View;
 
+import org.sun.systemui.statusbar.policy.BurnInExposureTracker;
+
 public class ClockCenter extends Clock {
 
     private boolean mClockVisibleByPolicy = true;
@@ -74,6 +76,8 @@ public class ClockCenter extends Clock {
             return;
         }
         super.setVisibility(visibility);
+        BurnInExposureTracker.setVisible(BurnInExposureTracker.SURFACE_CLOCK,
+                visibility == View.VISIBLE);
     }
 
     public boolean isCenterClock() {
@@ -22,13 +22,18 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.UserHandle;
 import android.provider.Settings;
-import android.view.KeyEvent;
 
+import com.android.systemui.Dependency;
+import com.android.systemui.Dumpable;
+import com.android.systemui.dump.DumpManager;
 import com.android.systemui.settings.UserTracker;
 
+import java.io.PrintWriter;
+
+import org.sun.systemui.volume.AdaptivePlaybackController;
 import org.sun.systemui.volume.AppVolumePersistHelper;
 
-class VolumeDialogControllerImplExt {
+class VolumeDialogControllerImplExt implements Dumpable {
 
     private static class InstanceHolder {
         private static VolumeDialogControllerImplExt INSTANCE = new VolumeDialogControllerImplExt();
@@ -38,8 +43,6 @@ class VolumeDialogControllerImplExt {
         return InstanceHolder.INSTANCE;
     }
 
-    private static final Object ADAPTIVE_PLAYBACK_TOKEN = new Object();
-
     private static final int POSITION_LEFT = 0;
     private static final int POSITION_RIGHT = 1;
 
@@ -50,9 +53,7 @@ class VolumeDialogControllerImplExt {
     private UserTracker mUserTracker;
     private VolumeDialogControllerImpl mImpl;
 
-    private boolean mAdaptivePlaybackEnabled;
-    private int mAdaptivePlaybackTimeout;
-    private boolean mAdaptivePlaybackResumable;
+    private AdaptivePlaybackController mAdaptivePlaybackController;
 
     private boolean mVolumePanelPortLeft;
     private boolean mVolumePanelLandLeft;
@@ -69,7 +70,11 @@ class VolumeDialogControllerImplExt {
         mUserTracker = userTracker;
         mResolver = context.getContentResolver();
 
-        mAppVolumePersistHelper = new AppVolumePersistHelper(context);
+        mAdaptivePlaybackController = new AdaptivePlaybackController(context, handler, userTracker);
+        mAppVolumePersistHelper = new AppVolumePersistHelper(context, handler);
+
+        ((DumpManager) Dependency.get(DumpManager.class)).registerDumpable(
+                "VolumeDialogControllerImplExt", this);
 
         mHandler.post(() -> {
             updateSettings();
@@ -117,27 +122,8 @@ class VolumeDialogControllerImplExt {
     }
 
     void onUpdateStreamLevel(int stream, int level) {
-        if (mAdaptivePlaybackEnabled && stream == AudioSystem.STREAM_MUSIC
-                && level == 0 && mAudioManager.isMusicActive()) {
-            mAudioManager.dispatchMediaKeyEvent(
-                    new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_MEDIA_PAUSE));
-            mAudioManager.dispatchMediaKeyEvent(
-                    new KeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_MEDIA_PAUSE));
-            mAdaptivePlaybackResumable = true;
-            mHandler.removeCallbacksAndMessages(ADAPTIVE_PLAYBACK_TOKEN);
-            if (mAdaptivePlaybackTimeout > 0) {
-                mHandler.postDelayed(() -> {
-                    mAdaptivePlaybackResumable = false;
-                }, ADAPTIVE_PLAYBACK_TOKEN, mAdaptivePlaybackTimeout);
-            }
-        } else if (stream == AudioSystem.STREAM_MUSIC && level > 0
-                && mAdaptivePlaybackResumable) {
-            mHandler.removeCallbacksAndMessages(ADAPTIVE_PLAYBACK_TOKEN);
-            mAudioManager.dispatchMediaKeyEvent(
-                    new KeyEvent(KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_MEDIA_PLAY));
-            mAudioManager.dispatchMediaKeyEvent(
-                    new KeyEvent(KeyEvent.ACTION_UP, KeyEvent.KEYCODE_MEDIA_PLAY));
-            mAdaptivePlaybackResumable = false;
+        if (stream == AudioSystem.STREAM_MUSIC) {
+            mAdaptivePlaybackController.onMusicLevelChanged(level);
         }
     }
 
@@ -153,6 +139,15 @@ class VolumeDialogControllerImplExt {
         mAppVolumePersistHelper.persistAppVolume(appVolume, volume);
     }
 
+    @Override
+    public void dump(PrintWriter pw, String[] args) {
+        pw.println("VolumeDialogControllerImplExt:");
+        pw.println("  mVolumePanelPortLeft=" + mVolumePanelPortLeft);
+        pw.println("  mVolumePanelLandLeft=" + mVolumePanelLandLeft);
+        pw.println("  mVolumePanelShowAppVolume=" + mVolumePanelShowAppVolume);
+        mAppVolumePersistHelper.dump(pw);
+    }
+
     private boolean isLandscape() {
         return mContext.getResources().getConfiguration().orientation ==
                 Configuration.ORIENTATION_LANDSCAPE;
@@ -166,12 +161,12 @@ class VolumeDialogControllerImplExt {
     }
 
     private void updateAdaptivePlayback() {
-        mAdaptivePlaybackEnabled = Settings.System.getIntForUser(
+        mAdaptivePlaybackController.setEnabled(Settings.System.getIntForUser(
                 mResolver, ADAPTIVE_PLAYBACK_ENABLED,
-                0, mUserTracker.getUserId()) == 1;
-        mAdaptivePlaybackTimeout = Settings.System.getIntForUser(
+                0, mUserTracker.getUserId()) == 1);
+        mAdaptivePlaybackController.setTimeout(Settings.System.getIntForUser(
                 mResolver, ADAPTIVE_PLAYBACK_TIMEOUT,
-                30000, mUserTracker.getUserId());
+                30000, mUserTracker.getUserId()));
     }
 
     private void updateVolumePanelPosition(boolean notify) {
@@ -194,7 +189,7 @@ class VolumeDialogControllerImplExt {
         mVolumePanelShowAppVolume = Settings.System.getIntForUser(
                 mResolver, VOLUME_PANEL_SHOW_APP_VOLUME,
                 1, mUserTracker.getUserId()) == 1;
-        mAppVolumePersistHelper.updateAllVolume(mAudioManager, mVolumePanelShowAppVolume);
+        mAppVolumePersistHelper.updateAllVolume(mVolumePanelShowAppVolume);
         if (notify) {
             notifyChange();
         }
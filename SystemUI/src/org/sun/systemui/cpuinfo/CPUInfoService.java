@@ -43,10 +43,8 @@ public class CPUInfoService extends Service {
     private static final String TAG = "CPUInfoService";
 
     private static final String NUM_OF_CPUS_PATH = "/sys/devices/system/cpu/present";
-    private static final String CURRENT_CPU = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_cur_freq";
-    private static final String CPU_ROOT = "/sys/devices/system/cpu/cpu";
-    private static final String CPU_CUR_TAIL = "/cpufreq/scaling_cur_freq";
-    private static final String CPU_GOV_TAIL = "/cpufreq/scaling_governor";
+
+    private static final long SAMPLE_INTERVAL_MS = 500L;
 
     private WindowManager mWindowManager;
 
@@ -60,8 +58,7 @@ public class CPUInfoService extends Service {
 
     private int mNumCpus = 2;
     private String[] mCpu = null;
-    private String[] mCurrFreq = null;
-    private String[] mCurrGov = null;
+    private int[] mCpuIds = null;
 
     @Override
     public void onCreate() {
@@ -74,8 +71,10 @@ public class CPUInfoService extends Service {
         mDisplayCpus = getResources().getString(R.string.config_displayCpus);
 
         mNumCpus = getCpus(mDisplayCpus);
-        mCurrFreq = new String[mNumCpus];
-        mCurrGov = new String[mNumCpus];
+        mCpuIds = new int[mNumCpus];
+        for (int i = 0; i < mNumCpus; i++) {
+            mCpuIds[i] = Integer.parseInt(mCpu[i]);
+        }
 
         mCpuTempAvail = FileUtils.readOneLine(mCpuTempSensor) != null;
 
@@ -187,7 +186,9 @@ public class CPUInfoService extends Service {
 
         private int mNeededWidth;
         private int mNeededHeight;
-        private String mCpuTemp;
+
+        private SysfsSampler.Snapshot mSnapshot;
+        private int mCpuTemp;
 
         private boolean mDataAvail;
 
@@ -198,28 +199,10 @@ public class CPUInfoService extends Service {
                     return;
                 }
                 if (msg.what == 1) {
-                    String msgData = (String) msg.obj;
-                    try {
-                        String[] parts = msgData.split(";");
-                        mCpuTemp = parts[0];
-
-                        String[] cpuParts=parts[1].split("\\|");
-                        for (int i = 0; i < cpuParts.length; i++) {
-                            String cpuInfo = cpuParts[i];
-                            String cpuInfoParts[] = cpuInfo.split(":");
-                            if (cpuInfoParts.length == 3) {
-                                mCurrFreq[i] = cpuInfoParts[1];
-                                mCurrGov[i] = cpuInfoParts[2];
-                            } else {
-                                mCurrFreq[i] = "0";
-                                mCurrGov[i] = "";
-                            }
-                        }
-                        mDataAvail = true;
-                        updateDisplay();
-                    } catch (ArrayIndexOutOfBoundsException e) {
-                        Log.e(TAG, "Illegal data " + msgData);
-                    }
+                    mSnapshot = (SysfsSampler.Snapshot) msg.obj;
+                    mCpuTemp = msg.arg1 >= 0 ? mSnapshot.mExtras[msg.arg1] : 0;
+                    mDataAvail = true;
+                    updateDisplay();
                 }
             }
         };
@@ -272,20 +255,25 @@ public class CPUInfoService extends Service {
 
         private String getCPUInfoString(int i) {
             String cpu = mCpu[i];
-            String freq = mCurrFreq[i];
-            String gov = mCurrGov[i];
+            int freq = mSnapshot.mFreqs[i];
+            String gov = mSnapshot.mGovernors[i];
             return "cpu" + cpu + ": " + gov + " " + String.format("%8s", toMHz(freq));
         }
 
-        private String getCpuTemp(String cpuTemp) {
+        private String getCpuTemp(int cpuTemp) {
             if (mCpuTempDivider > 1) {
-                return String.format("%s",
-                        Integer.parseInt(cpuTemp) / mCpuTempDivider);
+                return String.valueOf(cpuTemp / mCpuTempDivider);
             } else {
-                return cpuTemp;
+                return String.valueOf(cpuTemp);
             }
         }
 
+        private String getSelfCostString() {
+            final int cost = mSnapshot.getSelfCostBasisPoints();
+            return String.format("self: %d.%02d%% %4dus", cost / 100, cost % 100,
+                    mSnapshot.mSampleCpuNs / 1000L);
+        }
+
         @Override
         public void onDraw(Canvas canvas) {
             super.onDraw(canvas);
@@ -302,16 +290,15 @@ public class CPUInfoService extends Service {
 
             int y = mPaddingTop - (int) mAscent;
 
-            if (!mCpuTemp.equals("0")) {
+            if (mCpuTemp != 0 && mCpuTemp != SysfsSampler.INVALID) {
                 canvas.drawText("Temp: " + getCpuTemp(mCpuTemp) + "°C",
                         right - mPaddingRight - mMaxWidth, y - 1, mOnlinePaint);
                 y += mFH;
             }
 
-            for (int i = 0; i < mCurrFreq.length; i++) {
-                String s = getCPUInfoString(i);
-                String freq = mCurrFreq[i];
-                if (!freq.equals("0")) {
+            for (int i = 0; i < mNumCpus; i++) {
+                if (mSnapshot.mFreqs[i] != 0) {
+                    String s = getCPUInfoString(i);
                     canvas.drawText(s, right -mPaddingRight -mMaxWidth,
                             y - 1, mOnlinePaint);
                 } else {
@@ -320,6 +307,10 @@ public class CPUInfoService extends Service {
                 }
                 y += mFH;
             }
+
+            // Cost of sampling, so the overlay's own load can be told apart
+            canvas.drawText(getSelfCostString(), right - mPaddingRight - mMaxWidth,
+                    y - 1, mOnlinePaint);
         }
 
         private void updateDisplay() {
@@ -329,7 +320,7 @@ public class CPUInfoService extends Service {
             final int NW = mNumCpus;
 
             int neededWidth = mPaddingLeft + mPaddingRight + mMaxWidth;
-            int neededHeight = mPaddingTop + mPaddingBottom + (mFH * ((mCpuTempAvail ? 1 : 0) + NW));
+            int neededHeight = mPaddingTop + mPaddingBottom + (mFH * ((mCpuTempAvail ? 1 : 0) + NW + 1));
             if (neededWidth != mNeededWidth || neededHeight != mNeededHeight) {
                 mNeededWidth = neededWidth;
                 mNeededHeight = neededHeight;
@@ -339,8 +330,8 @@ public class CPUInfoService extends Service {
             }
         }
 
-        private String toMHz(String mhzString) {
-            return new StringBuilder().append(Integer.valueOf(mhzString) / 1000).append(" MHz").toString();
+        private String toMHz(int khz) {
+            return new StringBuilder().append(khz / 1000).append(" MHz").toString();
         }
 
         public Handler getHandler(){
@@ -363,30 +354,11 @@ public class CPUInfoService extends Service {
 
         @Override
         public void run() {
-            try {
+            try (SysfsSampler sampler = new SysfsSampler(mCpuIds)) {
+                final int tempIndex = mCpuTempAvail ? sampler.addNode(mCpuTempSensor) : -1;
                 while (!mInterrupt) {
-                    sleep(500);
-                    StringBuffer sb = new StringBuffer();
-                    String cpuTemp = FileUtils.readOneLine(mCpuTempSensor);
-                    sb.append(cpuTemp == null ? "0" : cpuTemp);
-                    sb.append(";");
-
-                    for (int i = 0; i < mNumCpus; i++) {
-                        final String currCpu = mCpu[i];
-                        final String freqFile = CPU_ROOT + mCpu[i] + CPU_CUR_TAIL;
-                        String currFreq = FileUtils.readOneLine(freqFile);
-                        final String govFile = CPU_ROOT + mCpu[i] + CPU_GOV_TAIL;
-                        String currGov = FileUtils.readOneLine(govFile);
-
-                        if (currFreq == null) {
-                            currFreq = "0";
-                            currGov = "";
-                        }
-
-                        sb.append(currCpu + ":" + currFreq + ":" + currGov + "|");
-                    }
-                    sb.deleteCharAt(sb.length() - 1);
-                    mHandler.sendMessage(mHandler.obtainMessage(1, sb.toString()));
+                    sleep(SAMPLE_INTERVAL_MS);
+                    mHandler.sendMessage(mHandler.obtainMessage(1, tempIndex, 0, sampler.sample()));
                 }
             } catch (InterruptedException e) {
                 return;
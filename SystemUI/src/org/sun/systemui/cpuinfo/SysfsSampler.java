@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.systemui.cpuinfo;
+
+import static android.system.OsConstants.O_CLOEXEC;
+import static android.system.OsConstants.O_RDONLY;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Sampler of cpu info nodes for {@link CPUInfoService}.
+ *
+ * Nodes are kept open and read with pread into preallocated buffers, numbers are
+ * parsed from raw bytes, so sampling doesn't create readers or strings. Results are
+ * handed out as an immutable {@link Snapshot}. Extra int nodes (gpu frequency,
+ * thermal zones) can be added with {@link #addNode(String)}, and per-core load from
+ * /proc/stat with {@link #setTrackLoad(boolean)}.
+ *
+ * Only accessed from the sampling thread.
+ */
+final class SysfsSampler implements AutoCloseable {
+
+    static final int INVALID = -1;
+
+    private static final String CPU_ROOT = "/sys/devices/system/cpu/cpu";
+    private static final String CPU_CUR_TAIL = "/cpufreq/scaling_cur_freq";
+    private static final String CPU_GOV_TAIL = "/cpufreq/scaling_governor";
+    private static final String PROC_STAT = "/proc/stat";
+
+    private static final int NODE_BUFFER_SIZE = 64;
+    // Only cpu lines at the head are needed
+    private static final int PROC_STAT_BUFFER_SIZE = 4096;
+
+    // Missing nodes (offline cores) are opened again every few samples
+    private static final int REOPEN_INTERVAL = 4;
+
+    /**
+     * Result of one sample.
+     */
+    static final class Snapshot {
+        // Frequency of each core in kHz, 0 if offline
+        final int[] mFreqs;
+        final String[] mGovernors;
+        // Load of each core in percent, null if not tracked
+        final int[] mLoads;
+        // Values of nodes added by addNode(), INVALID if not readable
+        final int[] mExtras;
+        // Cpu time spent by the sampler
+        final long mSampleCpuNs;
+        final long mTotalCpuNs;
+        final long mElapsedNs;
+
+        private Snapshot(int[] freqs, String[] governors, int[] loads, int[] extras,
+                long sampleCpuNs, long totalCpuNs, long elapsedNs) {
+            mFreqs = freqs;
+            mGovernors = governors;
+            mLoads = loads;
+            mExtras = extras;
+            mSampleCpuNs = sampleCpuNs;
+            mTotalCpuNs = totalCpuNs;
+            mElapsedNs = elapsedNs;
+        }
+
+        /**
+         * @return Share of cpu time used by the sampler since start, in 1/10000.
+         */
+        int getSelfCostBasisPoints() {
+            return mElapsedNs > 0 ? (int) (mTotalCpuNs * 10000L / mElapsedNs) : 0;
+        }
+    }
+
+    private static final class Node {
+        final String mPath;
+        FileDescriptor mFd;
+        int mRetryCountdown;
+
+        Node(String path) {
+            mPath = path;
+        }
+
+        /**
+         * @return Bytes read, -1 on failure.
+         */
+        int read(byte[] buffer) {
+            if (mFd == null) {
+                if (mRetryCountdown > 0) {
+                    mRetryCountdown--;
+                    return -1;
+                }
+                try {
+                    mFd = Os.open(mPath, O_RDONLY | O_CLOEXEC, 0);
+                } catch (ErrnoException e) {
+                    mRetryCountdown = REOPEN_INTERVAL;
+                    return -1;
+                }
+            }
+            try {
+                return Os.pread(mFd, buffer, 0, buffer.length, 0);
+            } catch (ErrnoException | InterruptedIOException e) {
+                close();
+                mRetryCountdown = REOPEN_INTERVAL;
+                return -1;
+            }
+        }
+
+        void close() {
+            if (mFd != null) {
+                try {
+                    Os.close(mFd);
+                } catch (ErrnoException e) {
+                    // ignore
+                }
+                mFd = null;
+            }
+        }
+    }
+
+    private final int[] mCoreIds;
+    private final Node[] mFreqNodes;
+    private final Node[] mGovNodes;
+    private final ArrayList<Node> mExtraNodes = new ArrayList<>();
+    private final Node mStatNode = new Node(PROC_STAT);
+
+    private final byte[] mBuffer = new byte[NODE_BUFFER_SIZE];
+    private final byte[] mStatBuffer = new byte[PROC_STAT_BUFFER_SIZE];
+
+    // Last read governor of each core, strings are only created when it changes
+    private final byte[][] mGovBytes;
+    private final int[] mGovLengths;
+    private final String[] mGovernors;
+
+    private final long[] mLastTotal;
+    private final long[] mLastIdle;
+
+    private boolean mTrackLoad;
+
+    private long mStartTimeNs;
+    private long mTotalCpuNs;
+
+    /**
+     * @param coreIds Ids of cores to sample.
+     */
+    SysfsSampler(int[] coreIds) {
+        final int n = coreIds.length;
+        mCoreIds = coreIds.clone();
+        mFreqNodes = new Node[n];
+        mGovNodes = new Node[n];
+        mGovBytes = new byte[n][NODE_BUFFER_SIZE];
+        mGovLengths = new int[n];
+        mGovernors = new String[n];
+        mLastTotal = new long[n];
+        mLastIdle = new long[n];
+        for (int i = 0; i < n; i++) {
+            mFreqNodes[i] = new Node(CPU_ROOT + coreIds[i] + CPU_CUR_TAIL);
+            mGovNodes[i] = new Node(CPU_ROOT + coreIds[i] + CPU_GOV_TAIL);
+            mGovernors[i] = "";
+        }
+    }
+
+    /**
+     * Add an int node, e.g. gpu frequency or a thermal zone.
+     *
+     * @return Index of its value in {@link Snapshot#mExtras}.
+     */
+    int addNode(String path) {
+        mExtraNodes.add(new Node(path));
+        return mExtraNodes.size() - 1;
+    }
+
+    void setTrackLoad(boolean track) {
+        mTrackLoad = track;
+    }
+
+    Snapshot sample() {
+        final long startCpu = Debug.threadCpuTimeNanos();
+        if (mStartTimeNs == 0) {
+            mStartTimeNs = SystemClock.elapsedRealtimeNanos();
+        }
+        final int n = mCoreIds.length;
+
+        final int[] freqs = new int[n];
+        final String[] governors = new String[n];
+        for (int i = 0; i < n; i++) {
+            final int freq = parseInt(mBuffer, mFreqNodes[i].read(mBuffer));
+            if (freq <= 0) {
+                freqs[i] = 0;
+                governors[i] = "";
+                continue;
+            }
+            freqs[i] = freq;
+            governors[i] = readGovernor(i);
+        }
+
+        final int[] extras = new int[mExtraNodes.size()];
+        for (int i = 0; i < extras.length; i++) {
+            extras[i] = parseInt(mBuffer, mExtraNodes.get(i).read(mBuffer));
+        }
+
+        final int[] loads = mTrackLoad ? readLoads() : null;
+
+        final long sampleCpuNs = Debug.threadCpuTimeNanos() - startCpu;
+        mTotalCpuNs += sampleCpuNs;
+        return new Snapshot(freqs, governors, loads, extras, sampleCpuNs, mTotalCpuNs,
+                SystemClock.elapsedRealtimeNanos() - mStartTimeNs);
+    }
+
+    private String readGovernor(int core) {
+        int len = mGovNodes[core].read(mBuffer);
+        if (len <= 0) {
+            return "";
+        }
+        while (len > 0 && (mBuffer[len - 1] == '\n' || mBuffer[len - 1] == ' ')) {
+            len--;
+        }
+        final byte[] last = mGovBytes[core];
+        boolean same = len == mGovLengths[core];
+        for (int i = 0; same && i < len; i++) {
+            same = last[i] == mBuffer[i];
+        }
+        if (!same) {
+            System.arraycopy(mBuffer, 0, last, 0, len);
+            mGovLengths[core] = len;
+            mGovernors[core] = new String(mBuffer, 0, len, StandardCharsets.US_ASCII);
+        }
+        return mGovernors[core];
+    }
+
+    private int[] readLoads() {
+        final int[] loads = new int[mCoreIds.length];
+        final int len = mStatNode.read(mStatBuffer);
+        int pos = 0;
+        while (pos + 3 < len) {
+            // Lines look like "cpuN user nice system idle iowait irq softirq steal ..."
+            if (mStatBuffer[pos] != 'c' || mStatBuffer[pos + 1] != 'p'
+                    || mStatBuffer[pos + 2] != 'u') {
+                break;
+            }
+            pos += 3;
+            int cpu = INVALID;
+            if (pos < len && isDigit(mStatBuffer[pos])) {
+                cpu = 0;
+                while (pos < len && isDigit(mStatBuffer[pos])) {
+                    cpu = cpu * 10 + (mStatBuffer[pos++] - '0');
+                }
+            }
+            long total = 0;
+            long idle = 0;
+            for (int field = 0; field < 8; field++) {
+                while (pos < len && mStatBuffer[pos] == ' ') {
+                    pos++;
+                }
+                long value = 0;
+                while (pos < len && isDigit(mStatBuffer[pos])) {
+                    value = value * 10 + (mStatBuffer[pos++] - '0');
+                }
+                total += value;
+                if (field == 3 || field == 4) {
+                    // idle, iowait
+                    idle += value;
+                }
+            }
+            while (pos < len && mStatBuffer[pos] != '\n') {
+                pos++;
+            }
+            pos++;
+
+            final int index = indexOfCore(cpu);
+            if (index < 0) {
+                continue;
+            }
+            final long deltaTotal = total - mLastTotal[index];
+            final long deltaIdle = idle - mLastIdle[index];
+            mLastTotal[index] = total;
+            mLastIdle[index] = idle;
+            loads[index] = deltaTotal > 0
+                    ? (int) ((deltaTotal - deltaIdle) * 100L / deltaTotal) : 0;
+        }
+        return loads;
+    }
+
+    private int indexOfCore(int cpu) {
+        if (cpu == INVALID) {
+            return -1;
+        }
+        for (int i = 0; i < mCoreIds.length; i++) {
+            if (mCoreIds[i] == cpu) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static int parseInt(byte[] buffer, int len) {
+        int pos = 0;
+        while (pos < len && (buffer[pos] == ' ' || buffer[pos] == '\t')) {
+            pos++;
+        }
+        boolean negative = false;
+        if (pos < len && buffer[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        if (pos >= len || !isDigit(buffer[pos])) {
+            return INVALID;
+        }
+        int value = 0;
+        while (pos < len && isDigit(buffer[pos])) {
+            value = value * 10 + (buffer[pos++] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    @Override
+    public void close() {
+        for (Node node : mFreqNodes) {
+            node.close();
+        }
+        for (Node node : mGovNodes) {
+            node.close();
+        }
+        for (Node node : mExtraNodes) {
+            node.close();
+        }
+        mStatNode.close();
+    }
+}
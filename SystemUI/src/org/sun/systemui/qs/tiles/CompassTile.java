@@ -51,6 +51,7 @@ public class CompassTile extends QSTileImpl<BooleanState> implements SensorEvent
     public static final String TILE_SPEC = "compass";
 
     private final static float ALPHA = 0.97f;
+    private final static int MAX_REPORT_LATENCY_US = 100000;
 
     private boolean mActive = false;
 
@@ -117,10 +118,11 @@ public class CompassTile extends QSTileImpl<BooleanState> implements SensorEvent
         if (listening == mListeningSensors) return;
         mListeningSensors = listening;
         if (mListeningSensors) {
-            mSensorManager.registerListener(
-                    this, mAccelerationSensor, SensorManager.SENSOR_DELAY_GAME);
-            mSensorManager.registerListener(
-                    this, mGeomagneticFieldSensor, SensorManager.SENSOR_DELAY_GAME);
+            // Keep the rate for the low-pass filter, the label can be updated in batches
+            mSensorManager.registerListener(this, mAccelerationSensor,
+                    SensorManager.SENSOR_DELAY_GAME, MAX_REPORT_LATENCY_US);
+            mSensorManager.registerListener(this, mGeomagneticFieldSensor,
+                    SensorManager.SENSOR_DELAY_GAME, MAX_REPORT_LATENCY_US);
         } else {
             mSensorManager.unregisterListener(this);
         }
@@ -17,7 +17,6 @@ import com.android.systemui.dagger.SysUISingleton
 import com.android.systemui.dagger.qualifiers.Main
 import com.android.systemui.settings.UserTracker
 import com.android.systemui.shared.system.FullscreenTaskStackChangeListener
-import com.android.systemui.shared.system.TaskStackChangeListeners
 import com.android.systemui.statusbar.VibratorHelper
 import com.android.systemui.util.settings.SystemSettings
 
@@ -36,7 +35,6 @@ class CustomScreenshotController @Inject constructor(
     @Main private val mainExecutor: Executor,
     @Main mainHandler: Handler,
     private val systemSettings: SystemSettings,
-    private val taskStackChangeListeners: TaskStackChangeListeners,
     private val userTracker: UserTracker,
     private val vibratorHelper: VibratorHelper
 ) {
@@ -56,7 +54,7 @@ class CustomScreenshotController @Inject constructor(
                 settingsObserver, UserHandle.USER_ALL)
         updateSettings()
 
-        taskStackChangeListeners.registerTaskStackListener(fullscreenTaskStackChangeListener)
+        fullscreenTaskStackChangeListener.setListening(true)
 
         userTracker.addCallback(object : UserTracker.Callback {
             override fun onUserChanged(newUser: Int, userContext: Context) {
@@ -29,7 +29,6 @@ import com.android.systemui.dagger.SysUISingleton
 import com.android.systemui.dagger.qualifiers.Main
 import com.android.systemui.settings.UserTracker
 import com.android.systemui.shared.system.FullscreenTaskStackChangeListener
-import com.android.systemui.shared.system.TaskStackChangeListeners
 import com.android.systemui.statusbar.policy.ConfigurationController
 import com.android.systemui.util.settings.SystemSettings
 
@@ -37,6 +36,7 @@ import java.util.concurrent.Executor
 
 import javax.inject.Inject
 
+import org.sun.app.GameModeInfo
 import org.sun.app.GameModeManager
 import org.sun.app.IGameModeInfoListener
 import org.sun.provider.SettingsExt.System.DISABLE_LANDSCAPE_HEADS_UP
@@ -52,7 +52,6 @@ class CustomHeadsUpController @Inject constructor(
     private val configurationController: ConfigurationController,
     private val roleManager: RoleManager,
     private val systemSettings: SystemSettings,
-    private val taskStackChangeListeners: TaskStackChangeListeners,
     private val userTracker: UserTracker
 ) {
 
@@ -65,6 +64,7 @@ class CustomHeadsUpController @Inject constructor(
     private var lessBoring = false
 
     private var disabledByGame = false
+    private var lastGameModeInfoSequence = -1L
 
     private var isLandscape: Boolean
 
@@ -93,7 +93,7 @@ class CustomHeadsUpController @Inject constructor(
                 settingsObserver, UserHandle.USER_ALL)
         updateSettings()
 
-        taskStackChangeListeners.registerTaskStackListener(fullscreenTaskStackChangeListener)
+        fullscreenTaskStackChangeListener.setListening(true)
 
         userTracker.addCallback(object : UserTracker.Callback {
             override fun onUserChanged(newUser: Int, userContext: Context) {
@@ -111,11 +111,13 @@ class CustomHeadsUpController @Inject constructor(
         context.getSystemService(GameModeManager::class.java)?.let {
             it.registerGameModeInfoListener(
                 object : IGameModeInfoListener.Stub() {
-                    override fun onGameModeInfoChanged() {
-                        it.gameModeInfo?.let { info ->
-                            disabledByGame = info.isDanmakuNotificationEnabled()
-                                    || info.shouldDisableHeadsUp()
+                    override fun onGameModeInfoChanged(info: GameModeInfo) {
+                        if (info.sequence <= lastGameModeInfoSequence) {
+                            return
                         }
+                        lastGameModeInfoSequence = info.sequence
+                        disabledByGame = info.isDanmakuNotificationEnabled()
+                                || info.shouldDisableHeadsUp()
                     }
                 }
             )
@@ -27,8 +27,6 @@ import android.service.notification.StatusBarNotification
 import android.util.Log
 import android.view.animation.Animation
 
-import androidx.annotation.GuardedBy
-
 import com.android.settingslib.Utils
 
 import com.android.systemui.dagger.SysUISingleton
@@ -48,9 +46,8 @@ import javax.inject.Inject
 
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
 
 import org.sun.provider.SettingsExt
@@ -81,58 +78,28 @@ class EdgeLightViewController @Inject constructor(
     private var edgeLightView: EdgeLightView? = null
     private var pulsing = false
 
-    private val settingsMutex = Mutex()
-
-    @GuardedBy("settingsMutex")
-    private var edgeLightEnabled = false
-
-    @GuardedBy("settingsMutex")
-    private var colorMode = ColorMode.THEME
-
-    // Whether to always trigger edge light on pulse even if it
-    // is not because notification was posted. For example: tap to wake
-    // for ambient display.
-    @GuardedBy("settingsMutex")
-    private var alwaysTriggerOnPulse = false
+    // Only touched on main thread, replaced as a whole by loadSettings
+    private var settings = EdgeLightSettings.DEFAULT
+    private var loadJob: Job? = null
 
     private val settingsObserver = object : ContentObserver(mainHandler) {
         override fun onChange(selfChange: Boolean, uri: Uri?) {
             logD {
                 "setting changed for ${uri?.lastPathSegment}"
             }
-            coroutineScope.launch {
-                settingsMutex.withLock {
-                    when (uri?.lastPathSegment) {
-                        SettingsExt.System.EDGE_LIGHT_ENABLED ->
-                            edgeLightEnabled = isEdgeLightEnabled()
-                        SettingsExt.System.EDGE_LIGHT_ALWAYS_TRIGGER_ON_PULSE ->
-                            alwaysTriggerOnPulse = alwaysTriggerOnPulse()
-                        SettingsExt.System.EDGE_LIGHT_REPEAT_ANIMATION ->
-                            edgeLightView?.setRepeatCount(getRepeatCount())
-                        SettingsExt.System.EDGE_LIGHT_COLOR_MODE -> {
-                            colorMode = getColorMode()
-                            edgeLightView?.setColor(getColorForMode(colorMode))
-                        }
-                        SettingsExt.System.EDGE_LIGHT_CUSTOM_COLOR ->
-                            edgeLightView?.setColor(getCustomColor())
-                    }
-                    return@withLock
-                }
-            }
+            loadSettings()
         }
     }
 
     init {
-        coroutineScope.launch {
-            loadSettings()
-            register(
-                SettingsExt.System.EDGE_LIGHT_ENABLED,
-                SettingsExt.System.EDGE_LIGHT_ALWAYS_TRIGGER_ON_PULSE,
-                SettingsExt.System.EDGE_LIGHT_REPEAT_ANIMATION,
-                SettingsExt.System.EDGE_LIGHT_COLOR_MODE,
-                SettingsExt.System.EDGE_LIGHT_CUSTOM_COLOR,
-            )
-        }
+        loadSettings()
+        register(
+            SettingsExt.System.EDGE_LIGHT_ENABLED,
+            SettingsExt.System.EDGE_LIGHT_ALWAYS_TRIGGER_ON_PULSE,
+            SettingsExt.System.EDGE_LIGHT_REPEAT_ANIMATION,
+            SettingsExt.System.EDGE_LIGHT_COLOR_MODE,
+            SettingsExt.System.EDGE_LIGHT_CUSTOM_COLOR,
+        )
         screenLifecycle.addObserver(this)
         configurationController.addCallback(this)
         keyguardStateController.addCallback(this)
@@ -153,88 +120,76 @@ class EdgeLightViewController @Inject constructor(
         }
     }
 
+    /**
+     * Read all settings in one IO pass and apply what changed on main thread.
+     * A newer load supersedes a pending one, so bursts of changes and
+     * user switches end up with a single apply.
+     */
     private fun loadSettings() {
-        coroutineScope.launch {
-            settingsMutex.withLock {
-                edgeLightEnabled = isEdgeLightEnabled()
-                alwaysTriggerOnPulse = alwaysTriggerOnPulse()
-                edgeLightView?.let {
-                    it.setRepeatCount(getRepeatCount())
-                    it.setColor(getColorForMode(getColorMode()))
-                }
+        loadJob?.cancel()
+        loadJob = coroutineScope.launch {
+            val userId = userTracker.userId
+            val newSettings = withContext(Dispatchers.IO) {
+                readSettings(userId)
             }
+            applySettings(newSettings)
         }
     }
 
-    private fun canPulse(): Boolean {
-        return sysuiStatusBarStateController.isDozing() &&
-                sysuiStatusBarStateController.getState() == StatusBarState.KEYGUARD &&
-                !keyguardStateController.isUnlocked
+    private fun readSettings(userId: Int): EdgeLightSettings {
+        val enabled = systemSettings.getIntForUser(
+            SettingsExt.System.EDGE_LIGHT_ENABLED, 0, userId) == 1
+        val alwaysTriggerOnPulse = systemSettings.getIntForUser(
+            SettingsExt.System.EDGE_LIGHT_ALWAYS_TRIGGER_ON_PULSE, 0, userId) == 1
+        val repeat = systemSettings.getIntForUser(
+            SettingsExt.System.EDGE_LIGHT_REPEAT_ANIMATION, 0, userId) == 1
+        val colorModeInt = systemSettings.getIntForUser(
+            SettingsExt.System.EDGE_LIGHT_COLOR_MODE, 0, userId)
+        val colorString = systemSettings.getStringForUser(
+            SettingsExt.System.EDGE_LIGHT_CUSTOM_COLOR, userId)
+        return EdgeLightSettings(
+            enabled = enabled,
+            alwaysTriggerOnPulse = alwaysTriggerOnPulse,
+            repeatCount = if (repeat) Animation.INFINITE else 0,
+            colorMode = ColorMode.values().find { it.ordinal == colorModeInt } ?: ColorMode.THEME,
+            customColor = parseColor(colorString)
+        )
     }
 
-    private suspend fun isEdgeLightEnabled(): Boolean {
-        return withContext(Dispatchers.IO) {
-            systemSettings.getIntForUser(SettingsExt.System.EDGE_LIGHT_ENABLED, 0, userTracker.userId) == 1
-        }
-    }
-
-    private suspend fun alwaysTriggerOnPulse(): Boolean {
-        return withContext(Dispatchers.IO) {
-            systemSettings.getIntForUser(
-                SettingsExt.System.EDGE_LIGHT_ALWAYS_TRIGGER_ON_PULSE,
-                0,
-                userTracker.userId
-            ) == 1
-        }
-    }
-
-    private suspend fun getRepeatCount(): Int {
-        val repeat = withContext(Dispatchers.IO) {
-            systemSettings.getIntForUser(
-                SettingsExt.System.EDGE_LIGHT_REPEAT_ANIMATION,
-                0,
-                userTracker.userId
-            ) == 1
+    private fun applySettings(newSettings: EdgeLightSettings) {
+        val oldSettings = settings
+        if (newSettings == oldSettings) return
+        logD {
+            "applySettings: $newSettings"
         }
-        return if (repeat) Animation.INFINITE else 0
-    }
-
-    private suspend fun getColorMode(): ColorMode {
-        val colorModeInt = withContext(Dispatchers.IO) {
-            systemSettings.getIntForUser(
-                SettingsExt.System.EDGE_LIGHT_COLOR_MODE,
-                0,
-                userTracker.userId
-            )
+        settings = newSettings
+        edgeLightView?.let {
+            if (newSettings.repeatCount != oldSettings.repeatCount) {
+                it.setRepeatCount(newSettings.repeatCount)
+            }
+            if (newSettings.colorMode != oldSettings.colorMode ||
+                    newSettings.customColor != oldSettings.customColor) {
+                it.setColor(getColorForMode(newSettings))
+            }
         }
-        return ColorMode.values().find { it.ordinal == colorModeInt } ?: ColorMode.THEME
     }
 
-    private suspend fun getCustomColor(): Int {
-        val colorString = withContext(Dispatchers.IO) {
-            systemSettings.getStringForUser(
-                SettingsExt.System.EDGE_LIGHT_CUSTOM_COLOR,
-                userTracker.userId
-            )
-        } ?: return Color.WHITE
-        return try {
-            Color.parseColor(colorString)
-        } catch (_: IllegalArgumentException) {
-            Log.e(TAG, "Custom color $colorString is invalid")
-            Color.WHITE
-        }
+    private fun canPulse(): Boolean {
+        return sysuiStatusBarStateController.isDozing() &&
+                sysuiStatusBarStateController.getState() == StatusBarState.KEYGUARD &&
+                !keyguardStateController.isUnlocked
     }
 
-    private suspend fun getThemeColor(): Int {
+    private fun getThemeColor(): Int {
         return Utils.getColorAttrDefaultColor(context,
                 com.android.internal.R.attr.colorAccentPrimary)
     }
 
     // Theme color is returned for notification color mode
     // as well since the color is set when notification is posted.
-    private suspend fun getColorForMode(mode: ColorMode): Int =
-        when (mode) {
-            ColorMode.CUSTOM -> getCustomColor()
+    private fun getColorForMode(settings: EdgeLightSettings): Int =
+        when (settings.colorMode) {
+            ColorMode.CUSTOM -> settings.customColor
             else -> getThemeColor()
         }
 
@@ -266,14 +221,10 @@ class EdgeLightViewController @Inject constructor(
         logD {
             "onNotificationPosted, sbn = $sbn"
         }
-        coroutineScope.launch {
-            settingsMutex.withLock {
-                if (colorMode == ColorMode.NOTIFICATION) {
-                    edgeLightView?.setColor(sbn.notification.color)
-                }
-                if (screenOn && pulsing) show()
-            }
+        if (settings.colorMode == ColorMode.NOTIFICATION) {
+            edgeLightView?.setColor(sbn.notification.color)
         }
+        if (screenOn && pulsing) show()
     }
 
     override fun onNotificationRemoved(sbn: StatusBarNotification, rankingMap: RankingMap) {
@@ -290,11 +241,7 @@ class EdgeLightViewController @Inject constructor(
 
     override fun onUiModeChanged() {
         // Reload theme color
-        coroutineScope.launch {
-            settingsMutex.withLock {
-                edgeLightView?.setColor(getColorForMode(colorMode))
-            }
-        }
+        edgeLightView?.setColor(getColorForMode(settings))
     }
 
     override fun onKeyguardGoingAwayChanged() {
@@ -321,12 +268,8 @@ class EdgeLightViewController @Inject constructor(
     }
 
     fun updateColor() {
-        coroutineScope.launch {
-            settingsMutex.withLock {
-                if (colorMode == ColorMode.THEME) {
-                    edgeLightView?.setColor(getColorForMode(colorMode))
-                }
-            }
+        if (settings.colorMode == ColorMode.THEME) {
+            edgeLightView?.setColor(getColorForMode(settings))
         }
     }
 
@@ -334,48 +277,36 @@ class EdgeLightViewController @Inject constructor(
         this.edgeLightView = edgeLightView.apply {
             setExpandAnimationDuration(animationDuration)
             setCollapseAnimationDuration(COLLAPSE_ANIMATION_DURATION)
-        }.also {
-            coroutineScope.launch {
-                settingsMutex.withLock {
-                    it.setRepeatCount(getRepeatCount())
-                    it.setColor(getColorForMode(colorMode))
-                }
-            }
+            setRepeatCount(settings.repeatCount)
+            setColor(getColorForMode(settings))
         }
     }
 
     fun setPulsing(pulsing: Boolean, reason: Int) {
-        coroutineScope.launch {
-            settingsMutex.withLock {
-                if (pulsing && (alwaysTriggerOnPulse ||
-                        reason == DozeLog.PULSE_REASON_NOTIFICATION)) {
-                    this@EdgeLightViewController.pulsing = true
-                    // Use theme color if color mode is set to notification color
-                    // and pulse is not because of notification.
-                    if (colorMode == ColorMode.NOTIFICATION && reason != DozeLog.PULSE_REASON_NOTIFICATION) {
-                        edgeLightView?.setColor(getThemeColor())
-                    }
-                    if (screenOn) {
-                        logD {
-                            "setPulsing: screenOn: show()"
-                        }
-                        show()
-                    }
-                } else {
-                    this@EdgeLightViewController.pulsing = false
-                    hide()
+        if (pulsing && (settings.alwaysTriggerOnPulse ||
+                reason == DozeLog.PULSE_REASON_NOTIFICATION)) {
+            this.pulsing = true
+            // Use theme color if color mode is set to notification color
+            // and pulse is not because of notification.
+            if (settings.colorMode == ColorMode.NOTIFICATION &&
+                    reason != DozeLog.PULSE_REASON_NOTIFICATION) {
+                edgeLightView?.setColor(getThemeColor())
+            }
+            if (screenOn) {
+                logD {
+                    "setPulsing: screenOn: show()"
                 }
+                show()
             }
+        } else {
+            this.pulsing = false
+            hide()
         }
     }
 
     private fun show() {
-        if (canPulse()) {
-            coroutineScope.launch {
-                settingsMutex.withLock {
-                    if (edgeLightEnabled) edgeLightView?.show()
-                }
-            }
+        if (canPulse() && settings.enabled) {
+            edgeLightView?.show()
         }
     }
 
@@ -393,6 +324,38 @@ class EdgeLightViewController @Inject constructor(
                 Log.d(TAG, msg())
             }
         }
+
+        private fun parseColor(colorString: String?): Int {
+            if (colorString == null) return Color.WHITE
+            return try {
+                Color.parseColor(colorString)
+            } catch (_: IllegalArgumentException) {
+                Log.e(TAG, "Custom color $colorString is invalid")
+                Color.WHITE
+            }
+        }
+    }
+}
+
+private data class EdgeLightSettings(
+    val enabled: Boolean,
+    // Whether to always trigger edge light on pulse even if it
+    // is not because notification was posted. For example: tap to wake
+    // for ambient display.
+    val alwaysTriggerOnPulse: Boolean,
+    val repeatCount: Int,
+    val colorMode: ColorMode,
+    // Parsed and validated on load
+    val customColor: Int
+) {
+    companion object {
+        val DEFAULT = EdgeLightSettings(
+            enabled = false,
+            alwaysTriggerOnPulse = false,
+            repeatCount = 0,
+            colorMode = ColorMode.THEME,
+            customColor = Color.WHITE
+        )
     }
 }
 
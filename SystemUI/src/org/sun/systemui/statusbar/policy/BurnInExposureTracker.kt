@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.systemui.statusbar.policy
+
+import android.os.SystemClock
+
+import java.io.PrintWriter
+
+/**
+ * Tracks how long static surfaces have been on screen.
+ *
+ * Exposure only grows while tracking is running (screen on), the surface is
+ * visible and the bar holding it is shown. Clock is the center clock, status
+ * bar contents hold the other clocks. Static exposure is reset when the surface
+ * is shifted, cumulative exposure is kept for validation. Main thread only.
+ */
+object BurnInExposureTracker {
+
+    const val SURFACE_STATUS_BAR = 0
+    const val SURFACE_NAV_BAR = 1
+    const val SURFACE_CLOCK = 2
+    const val SURFACE_TICKER = 3
+
+    private val SURFACE_NAMES = arrayOf("status_bar", "nav_bar", "clock", "ticker")
+
+    // Center clock reports itself once it is shown
+    private val visible = booleanArrayOf(true, true, false, false)
+    private val staticExposure = LongArray(SURFACE_NAMES.size)
+    private val cumulativeExposure = LongArray(SURFACE_NAMES.size)
+    private val shiftCount = IntArray(SURFACE_NAMES.size)
+
+    private var statusBarShown = true
+    private var navBarShown = true
+
+    private var running = false
+    private var lastUpdateTime = 0L
+
+    @JvmStatic
+    fun setVisible(surface: Int, isVisible: Boolean) {
+        if (visible[surface] == isVisible) return
+        update()
+        visible[surface] = isVisible
+    }
+
+    /**
+     * Whether status bar and navigation bar are on screen, e.g. false when hidden
+     * by an immersive app.
+     */
+    fun setBarsShown(statusBar: Boolean, navBar: Boolean) {
+        if (statusBarShown == statusBar && navBarShown == navBar) return
+        update()
+        statusBarShown = statusBar
+        navBarShown = navBar
+    }
+
+    fun start() {
+        if (running) return
+        lastUpdateTime = SystemClock.elapsedRealtime()
+        running = true
+    }
+
+    fun stop() {
+        if (!running) return
+        update()
+        running = false
+    }
+
+    /**
+     * @return How long the surface has been visible since it was last shifted.
+     */
+    fun getStaticExposure(surface: Int): Long {
+        update()
+        return staticExposure[surface]
+    }
+
+    fun onShifted(surface: Int) {
+        update()
+        staticExposure[surface] = 0L
+        shiftCount[surface]++
+    }
+
+    private fun update() {
+        if (!running) return
+        val now = SystemClock.elapsedRealtime()
+        val delta = now - lastUpdateTime
+        lastUpdateTime = now
+        for (i in visible.indices) {
+            if (isExposed(i)) {
+                staticExposure[i] += delta
+                cumulativeExposure[i] += delta
+            }
+        }
+    }
+
+    private fun isExposed(surface: Int): Boolean {
+        val barShown = if (surface == SURFACE_NAV_BAR) navBarShown else statusBarShown
+        return barShown && visible[surface]
+    }
+
+    fun dump(pw: PrintWriter) {
+        update()
+        pw.println("BurnInExposureTracker: running=$running" +
+                ", statusBarShown=$statusBarShown, navBarShown=$navBarShown")
+        SURFACE_NAMES.forEachIndexed { i, name ->
+            pw.println("  $name: visible=${visible[i]}" +
+                    ", static=${staticExposure[i] / 1000}s" +
+                    ", cumulative=${cumulativeExposure[i] / 1000}s" +
+                    ", shifts=${shiftCount[i]}")
+        }
+    }
+}
@@ -17,31 +17,40 @@
 
 package org.sun.systemui.statusbar.policy
 
+import android.content.BroadcastReceiver
 import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
 import android.util.Log
+import android.view.WindowInsets
 
+import com.android.internal.statusbar.LetterboxDetails
+import com.android.internal.view.AppearanceRegion
+import com.android.systemui.Dumpable
 import com.android.systemui.dagger.SysUISingleton
 import com.android.systemui.doze.util.getBurnInOffset
+import com.android.systemui.dump.DumpManager
 import com.android.systemui.navigationbar.NavigationModeController
 import com.android.systemui.res.R
 import com.android.systemui.shared.system.QuickStepContract.isGesturalMode
+import com.android.systemui.statusbar.CommandQueue
 import com.android.systemui.statusbar.phone.CentralSurfaces
 import com.android.systemui.statusbar.phone.PhoneStatusBarView
 import com.android.systemui.statusbar.policy.ConfigurationController
 import com.android.systemui.statusbar.policy.ConfigurationController.ConfigurationListener
 
+import java.io.PrintWriter
+
 import javax.inject.Inject
 
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.Job
-import kotlinx.coroutines.cancelAndJoin
-import kotlinx.coroutines.delay
-import kotlinx.coroutines.isActive
-import kotlinx.coroutines.launch
+import org.sun.systemui.statusbar.policy.BurnInExposureTracker.SURFACE_CLOCK
+import org.sun.systemui.statusbar.policy.BurnInExposureTracker.SURFACE_NAV_BAR
+import org.sun.systemui.statusbar.policy.BurnInExposureTracker.SURFACE_STATUS_BAR
+import org.sun.systemui.statusbar.policy.BurnInExposureTracker.SURFACE_TICKER
 
 private const val BURN_IN_PREVENTION_PERIOD = 83f
-private const val UPDATE_INTERVAL = 1000 * 10L
+// Shift a surface on minute tick only if it has been static for this long
+private const val SHIFT_EXPOSURE_THRESHOLD = 1000 * 30L
 
 private val TAG = BurnInProtectionController::class.simpleName
 
@@ -50,10 +59,12 @@ class BurnInProtectionController @Inject constructor(
     private val context: Context,
     configurationController: ConfigurationController,
     navigationModeController: NavigationModeController,
+    commandQueue: CommandQueue,
+    dumpManager: DumpManager,
 ) : NavigationModeController.ModeChangedListener,
-    ConfigurationListener {
-
-    private val coroutineScope = CoroutineScope(Dispatchers.Main)
+    ConfigurationListener,
+    CommandQueue.Callbacks,
+    Dumpable {
 
     private val shiftEnabled = context.resources.getBoolean(R.bool.config_statusBarBurnInProtection)
 
@@ -62,7 +73,18 @@ class BurnInProtectionController @Inject constructor(
     private var centralSurfaces: CentralSurfaces? = null
     private var phoneStatusBarView: PhoneStatusBarView? = null
 
-    private var shiftJob: Job? = null
+    // Offsets only change once a minute, follow the tick clocks are redrawn on
+    // instead of waking up on our own
+    private val timeTickReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            updateShift()
+        }
+    }
+    private var shifting = false
+
+    // Bars requested by the top app, plus bars revealed by a swipe while immersive
+    private var requestedVisibleTypes = WindowInsets.Type.defaultVisible()
+    private var transientTypes = 0
 
     private var maxStatusBarOffsetX = 0
     private var maxStatusBarOffsetY = 0
@@ -77,6 +99,8 @@ class BurnInProtectionController @Inject constructor(
             "shiftEnabled = $shiftEnabled, isGesturalMode = ${isGesturalMode()}"
         }
         configurationController.addCallback(this)
+        commandQueue.addCallback(this)
+        dumpManager.registerDumpable("BurnInProtectionController", this)
         loadResources()
     }
 
@@ -123,28 +147,51 @@ class BurnInProtectionController @Inject constructor(
     }
 
     fun startShiftTimer() {
-        if (!shiftEnabled || (shiftJob?.isActive == true)) return
-        shiftJob = coroutineScope.launch {
-            while (isActive) {
-                val sbOffset = Offset(
-                    getBurnInOffsetX(maxStatusBarOffsetX),
-                    getBurnInOffsetY(maxStatusBarOffsetY)
-                )
-                val nbOffset = if (isGesturalMode()) {
-                    Offset(0, getBurnInOffsetY(maxNavBarShiftY))
-                } else {
-                    Offset(getBurnInOffsetX(maxNavBarShiftX), getBurnInOffsetY(maxNavBarShiftY))
-                }
-                logD {
-                    "new offsets: sbOffset = $sbOffset, nbOffset = $nbOffset"
-                }
-                updateViews(sbOffset, nbOffset)
-                delay(UPDATE_INTERVAL)
+        if (!shiftEnabled || shifting) return
+        shifting = true
+        BurnInExposureTracker.start()
+        context.registerReceiver(timeTickReceiver, IntentFilter(Intent.ACTION_TIME_TICK))
+        logD {
+            "Started shift timer"
+        }
+    }
+
+    private fun updateShift() {
+        // Ticker and clock are part of status bar
+        val statusBarExposure = maxOf(
+            BurnInExposureTracker.getStaticExposure(SURFACE_STATUS_BAR),
+            BurnInExposureTracker.getStaticExposure(SURFACE_CLOCK),
+            BurnInExposureTracker.getStaticExposure(SURFACE_TICKER)
+        )
+        val navBarExposure = BurnInExposureTracker.getStaticExposure(SURFACE_NAV_BAR)
+        logD {
+            "updateShift: statusBarExposure = $statusBarExposure, navBarExposure = $navBarExposure"
+        }
+        val sbOffset = if (statusBarExposure >= SHIFT_EXPOSURE_THRESHOLD) {
+            BurnInExposureTracker.onShifted(SURFACE_STATUS_BAR)
+            BurnInExposureTracker.onShifted(SURFACE_CLOCK)
+            BurnInExposureTracker.onShifted(SURFACE_TICKER)
+            Offset(
+                getBurnInOffsetX(maxStatusBarOffsetX),
+                getBurnInOffsetY(maxStatusBarOffsetY)
+            )
+        } else {
+            statusBarOffset
+        }
+        val nbOffset = if (navBarExposure >= SHIFT_EXPOSURE_THRESHOLD) {
+            BurnInExposureTracker.onShifted(SURFACE_NAV_BAR)
+            if (isGesturalMode()) {
+                Offset(0, getBurnInOffsetY(maxNavBarShiftY))
+            } else {
+                Offset(getBurnInOffsetX(maxNavBarShiftX), getBurnInOffsetY(maxNavBarShiftY))
             }
+        } else {
+            navBarOffset
         }
         logD {
-            "Started shift job"
+            "new offsets: sbOffset = $sbOffset, nbOffset = $nbOffset"
         }
+        updateViews(sbOffset, nbOffset)
     }
 
     private fun updateViews(sbOffset: Offset, nbOffset: Offset) {
@@ -165,16 +212,13 @@ class BurnInProtectionController @Inject constructor(
     }
 
     fun stopShiftTimer() {
-        if (!shiftEnabled || (shiftJob?.isActive != true)) return
+        if (!shiftEnabled || !shifting) return
+        shifting = false
+        context.unregisterReceiver(timeTickReceiver)
+        BurnInExposureTracker.stop()
+        updateViews(Offset.Zero, Offset.Zero)
         logD {
-            "Cancelling shift job"
-        }
-        coroutineScope.launch {
-            shiftJob?.cancelAndJoin()
-            updateViews(Offset.Zero, Offset.Zero)
-            logD {
-                "Cancelled shift job"
-            }
+            "Stopped shift timer"
         }
     }
 
@@ -187,6 +231,45 @@ class BurnInProtectionController @Inject constructor(
         calculateNavBarMaxOffset()
     }
 
+    override fun onSystemBarAttributesChanged(
+        displayId: Int,
+        appearance: Int,
+        appearanceRegions: Array<AppearanceRegion>?,
+        navbarColorManagedByIme: Boolean,
+        behavior: Int,
+        requestedVisibleTypes: Int,
+        packageName: String?,
+        letterboxDetails: Array<LetterboxDetails>?
+    ) {
+        if (displayId != context.displayId) return
+        this.requestedVisibleTypes = requestedVisibleTypes
+        updateBarsShown()
+    }
+
+    override fun showTransient(displayId: Int, types: Int, isGestureOnSystemBar: Boolean) {
+        if (displayId != context.displayId) return
+        transientTypes = transientTypes or types
+        updateBarsShown()
+    }
+
+    override fun abortTransient(displayId: Int, types: Int) {
+        if (displayId != context.displayId) return
+        transientTypes = transientTypes and types.inv()
+        updateBarsShown()
+    }
+
+    private fun updateBarsShown() {
+        val shownTypes = requestedVisibleTypes or transientTypes
+        logD {
+            "updateBarsShown: requested = $requestedVisibleTypes, transient = $transientTypes"
+        }
+        // Gesture handle is drawn and shifted like buttons, so nav bar counts in both modes
+        BurnInExposureTracker.setBarsShown(
+            statusBar = (shownTypes and WindowInsets.Type.statusBars()) != 0,
+            navBar = (shownTypes and WindowInsets.Type.navigationBars()) != 0
+        )
+    }
+
     override fun onDensityOrFontScaleChanged() {
         logD {
             "onDensityOrFontScaleChanged"
@@ -195,6 +278,12 @@ class BurnInProtectionController @Inject constructor(
     }
 
     private fun isGesturalMode() = isGesturalMode(navigationMode)
+
+    override fun dump(pw: PrintWriter, args: Array<out String>) {
+        pw.println("BurnInProtectionController: shiftEnabled=$shiftEnabled, shifting=$shifting")
+        pw.println("  statusBarOffset=$statusBarOffset, navBarOffset=$navBarOffset")
+        BurnInExposureTracker.dump(pw)
+    }
 }
 
 private fun getBurnInOffsetX(maxOffset: Int): Int {
@@ -31,7 +31,6 @@ import com.android.systemui.plugins.DarkIconDispatcher;
 import com.android.systemui.res.R;
 
 import java.util.ArrayList;
-import java.util.List;
 
 public abstract class MarqueeTicker implements DarkIconDispatcher.DarkReceiver {
 
@@ -41,8 +40,6 @@ public abstract class MarqueeTicker implements DarkIconDispatcher.DarkReceiver {
     private static final long TICKER_RUNNING_CHECK_DELAY = 100L;
     private static final long TICKER_SHOW_TIME = 5000L;
 
-    private static final int LEFT_FULL_LOOP_COUNT = 10;
-
     private static final float TICKER_HOLE_SPACE = 4.0f;
 
     private final Handler mHandler = new Handler();
@@ -54,7 +51,6 @@ public abstract class MarqueeTicker implements DarkIconDispatcher.DarkReceiver {
     public TextSwitcher mTextSwitcher;
 
     private int mLeftPadding;
-    private int mLeftSpace;
     private int mPorDisplayCutoutLeft;
     private int mPorDisplayCutoutRight;
     private int mPorScreenWidth = FHD_WIDTH;
@@ -67,21 +63,16 @@ public abstract class MarqueeTicker implements DarkIconDispatcher.DarkReceiver {
     private int mCurrentColor;
     private int mSymbolLength;
 
-    private boolean mInDisplay = false;
-    private boolean mIsLeftFull = false;
     private boolean mIsPortrait = true;
     private boolean mIsCurved = false;
     private boolean mIsCenterDisplayCutout = false;
 
     protected boolean mTicking;
 
-    private final StringBuilder mToShowContentString = new StringBuilder();
-    private final StringBuilder mTempString = new StringBuilder();
-
     private final ArrayList<Segment> mSegments = new ArrayList<>();
-    private final List<String> mTickerList = new ArrayList();
 
-    private List<String> mUnfinishTickerList;
+    private TickerLayout mTickerLayout;
+    private int mTickerPage;
 
     private final Runnable mShowUnfinishTicker = () -> showNextTicker();
     private final Runnable mHideLastTicker = () -> tickerDone();
@@ -220,98 +211,50 @@ public abstract class MarqueeTicker implements DarkIconDispatcher.DarkReceiver {
     }
 
     public void setNewData(String text) {
-        mTickerList.clear();
-        for (int i = 0; i < text.length(); i++) {
-            mTickerList.add(text.substring(i, i + 1));
-        }
         mHandler.removeCallbacks(mShowUnfinishTicker);
         mHandler.removeCallbacks(mHideLastTicker);
-        fillTickerContent(mTickerList);
-    }
 
-    public void fillTickerContent(List<String> tickerList) {
-        mToShowContentString.setLength(0);
-        mTempString.setLength(0);
-        mRect = new Rect();
-        int iconWidth;
-        int screenWidth;
-        int displayCutoutLeft;
-        int displayCutoutRight;
-        mIsLeftFull = false;
+        int iconWidth = 0;
         if (mIconSwitcher.getVisibility() == View.VISIBLE) {
             iconWidth = mIconSwitcher.getWidth();
             final LinearLayout.LayoutParams lp = (LinearLayout.LayoutParams) mIconSwitcher.getLayoutParams();
             if (lp != null) {
                 iconWidth += lp.rightMargin;
             }
-        } else {
-            iconWidth = 0;
         }
+        final int screenWidth;
+        final int displayCutoutLeft;
+        final int displayCutoutRight;
         if (mIsPortrait) {
-            screenWidth = mPorScreenWidth - iconWidth;
-            displayCutoutLeft = (mPorDisplayCutoutLeft - iconWidth) - dip2px(TICKER_HOLE_SPACE);
-            displayCutoutRight = (mPorDisplayCutoutRight - iconWidth) + dip2px(TICKER_HOLE_SPACE);
+            screenWidth = mPorScreenWidth;
+            displayCutoutLeft = mPorDisplayCutoutLeft - dip2px(TICKER_HOLE_SPACE);
+            displayCutoutRight = mPorDisplayCutoutRight + dip2px(TICKER_HOLE_SPACE);
         } else {
-            screenWidth = mHorScreenWidth - iconWidth;
+            screenWidth = mHorScreenWidth;
             if (mIsCurved) {
-                displayCutoutLeft = -1;
-                displayCutoutRight = -1;
+                displayCutoutLeft = TickerLayout.NO_CUTOUT;
+                displayCutoutRight = TickerLayout.NO_CUTOUT;
             } else {
-                displayCutoutLeft = (mHorDisplayCutoutLeft - iconWidth) - dip2px(TICKER_HOLE_SPACE);
-                displayCutoutRight = (mHorDisplayCutoutRight - iconWidth) - dip2px(TICKER_HOLE_SPACE);
+                displayCutoutLeft = mHorDisplayCutoutLeft - dip2px(TICKER_HOLE_SPACE);
+                displayCutoutRight = mHorDisplayCutoutRight - dip2px(TICKER_HOLE_SPACE);
             }
         }
 
-        for (int i = 0; i < tickerList.size(); i++) {
-            if (mRect.width() < displayCutoutLeft && !mIsLeftFull) {
-                mTempString.append(tickerList.get(i));
-                mPaint.getTextBounds(mTempString.toString(), 0, mTempString.toString().length(), mRect);
-                if (mRect.width() >= displayCutoutLeft) {
-                    mIsLeftFull = true;
-                    i--;
-                    mPaint.getTextBounds(mToShowContentString.toString(), 0, mToShowContentString.toString().length(), mRect);
-                    mLeftSpace = displayCutoutLeft - mRect.width();
-                } else {
-                    mToShowContentString.setLength(0);
-                    mToShowContentString.append(mTempString.toString());
-                }
-            } else if (mRect.width() >= displayCutoutRight) {
-                mTempString.append(tickerList.get(i));
-                mPaint.getTextBounds(mTempString.toString(), 0, mTempString.toString().length(), mRect);
-                if (mRect.width() > screenWidth) {
-                    mTextSwitcher.setText(mToShowContentString.toString());
-                    mUnfinishTickerList = tickerList.subList(i, tickerList.size());
-                    mHandler.postDelayed(mShowUnfinishTicker, TICKER_SHOW_TIME);
-                    return;
-                }
-                mToShowContentString.setLength(0);
-                mToShowContentString.append((CharSequence) mTempString);
-            } else if (mIsLeftFull) {
-                mInDisplay = true;
-                final int shouldShowTickerRight = mLeftSpace + displayCutoutRight;
-                int loopCnts = LEFT_FULL_LOOP_COUNT;
-                while (mInDisplay) {
-                    mToShowContentString.append(" ").append("!");
-                    final int lastWidth = mRect.width();
-                    mPaint.getTextBounds(mToShowContentString.toString(), 0, mToShowContentString.toString().length(), mRect);
-                    mToShowContentString.deleteCharAt(mToShowContentString.length() - 1);
-                    if (mRect.width() >= shouldShowTickerRight || loopCnts <= 0) {
-                        if (loopCnts <= 0) {
-                            Log.w(TAG, "oops, loopCnts max, skip the loop!");
-                        }
-                        mToShowContentString.append(tickerList.get(i));
-                        mInDisplay = false;
-                        mTempString.setLength(0);
-                        mTempString.append((CharSequence) mToShowContentString);
-                    } else if (mRect.width() <= lastWidth) {
-                        loopCnts--;
-                    }
-                }
-            }
-            if (i == tickerList.size() - 1) {
-                mTextSwitcher.setText(mTempString);
-                mHandler.postDelayed(mHideLastTicker, TICKER_SHOW_TIME);
-            }
+        mTickerLayout = TickerLayout.obtain(text, mPaint, mSymbolLength, iconWidth,
+                screenWidth, displayCutoutLeft, displayCutoutRight);
+        mTickerPage = 0;
+        fillTickerContent();
+    }
+
+    private void fillTickerContent() {
+        if (mTickerLayout == null || mTickerPage >= mTickerLayout.getPageCount()) {
+            return;
+        }
+        mTextSwitcher.setText(mTickerLayout.getPage(mTickerPage));
+        if (mTickerPage < mTickerLayout.getPageCount() - 1) {
+            mHandler.postDelayed(mShowUnfinishTicker, TICKER_SHOW_TIME);
+        } else {
+            mHandler.postDelayed(mHideLastTicker, TICKER_SHOW_TIME);
         }
     }
 
@@ -326,7 +269,8 @@ public abstract class MarqueeTicker implements DarkIconDispatcher.DarkReceiver {
     public void showNextTicker() {
         mIconSwitcher.post(() -> {
             mIconSwitcher.setVisibility(View.GONE);
-            fillTickerContent(mUnfinishTickerList);
+            mTickerPage++;
+            fillTickerContent();
         });
         if (mCurrentTicker != null) {
             mCurrentTicker.setTextColor(mCurrentColor);
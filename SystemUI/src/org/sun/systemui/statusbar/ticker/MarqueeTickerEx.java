@@ -6,6 +6,8 @@
 package org.sun.systemui.statusbar.ticker;
 
 import static org.sun.os.DebugConstants.DEBUG_TICKER;
+import static org.sun.systemui.statusbar.policy.BurnInExposureTracker.SURFACE_STATUS_BAR;
+import static org.sun.systemui.statusbar.policy.BurnInExposureTracker.SURFACE_TICKER;
 
 import android.content.Context;
 import android.util.Log;
@@ -18,6 +20,8 @@ import com.android.systemui.plugins.DarkIconDispatcher;
 import com.android.systemui.res.R;
 import com.android.systemui.statusbar.policy.ClockCenter;
 
+import org.sun.systemui.statusbar.policy.BurnInExposureTracker;
+
 public class MarqueeTickerEx extends MarqueeTicker implements Animation.AnimationListener {
 
     private static final String TAG = "Ticker::MarqueeTickerEx";
@@ -79,6 +83,7 @@ public class MarqueeTickerEx extends MarqueeTicker implements Animation.Animatio
             mCenterClockView.startAnimation(loadAnim(R.anim.marquee_fade_out, null));
         }
         mCenterClockView.setVisibilityLocked(true);
+        updateExposure(true);
     }
 
     @Override
@@ -97,6 +102,7 @@ public class MarqueeTickerEx extends MarqueeTicker implements Animation.Animatio
             mCenterClockView.setVisibility(View.VISIBLE);
             mCenterClockView.startAnimation(loadAnim(R.anim.marquee_fade_in, null));
         }
+        updateExposure(false);
     }
 
     @Override
@@ -115,9 +121,16 @@ public class MarqueeTickerEx extends MarqueeTicker implements Animation.Animatio
                 mCenterClockView.setVisibility(View.VISIBLE);
                 mCenterClockView.startAnimation(loadAnim(R.anim.marquee_fade_in, null));
             }
+            updateExposure(false);
         }
     }
 
+    private void updateExposure(boolean ticking) {
+        // Ticker replaces status bar contents, center clock reports itself
+        BurnInExposureTracker.setVisible(SURFACE_TICKER, ticking);
+        BurnInExposureTracker.setVisible(SURFACE_STATUS_BAR, !ticking);
+    }
+
     public Animation loadAnim(int id, Animation.AnimationListener listener) {
         final Animation anim = AnimationUtils.loadAnimation(mContext, id);
         if (listener != null) {
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.systemui.statusbar.ticker;
+
+import static org.sun.os.DebugConstants.DEBUG_TICKER;
+
+import android.graphics.Paint;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * Pagination of ticker text around a center display cutout.
+ *
+ * Glyph advances are measured once per text and pages are cut with prefix sums.
+ * The left part of a page ends before the cutout, followed by spaces up to the
+ * right edge of the cutout and the right part. The first page is laid out next
+ * to the icon, the others use full width since the icon is hidden by then.
+ *
+ * Results are cached by text and geometry, so ticking the same text again
+ * doesn't measure anything.
+ */
+final class TickerLayout {
+
+    private static final String TAG = "Ticker::TickerLayout";
+
+    static final int NO_CUTOUT = Integer.MIN_VALUE;
+
+    private static final int CACHE_SIZE = 8;
+
+    // Pad with at most this many spaces if space has no advance
+    private static final int MAX_PADDING_COUNT = 10;
+
+    private static final LruCache<Key, TickerLayout> sCache = new LruCache<>(CACHE_SIZE);
+
+    private static int sHitCount;
+    private static int sMissCount;
+
+    private static final class Key {
+        final String mText;
+        final float mTextSize;
+        final int mIconWidth;
+        final int mScreenWidth;
+        final int mCutoutLeft;
+        final int mCutoutRight;
+
+        Key(String text, float textSize, int iconWidth,
+                int screenWidth, int cutoutLeft, int cutoutRight) {
+            mText = text;
+            mTextSize = textSize;
+            mIconWidth = iconWidth;
+            mScreenWidth = screenWidth;
+            mCutoutLeft = cutoutLeft;
+            mCutoutRight = cutoutRight;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mTextSize == other.mTextSize
+                    && mIconWidth == other.mIconWidth
+                    && mScreenWidth == other.mScreenWidth
+                    && mCutoutLeft == other.mCutoutLeft
+                    && mCutoutRight == other.mCutoutRight
+                    && mText.equals(other.mText);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mText, mTextSize, mIconWidth,
+                    mScreenWidth, mCutoutLeft, mCutoutRight);
+        }
+    }
+
+    private final String[] mPages;
+
+    private TickerLayout(String[] pages) {
+        mPages = pages;
+    }
+
+    int getPageCount() {
+        return mPages.length;
+    }
+
+    String getPage(int index) {
+        return mPages[index];
+    }
+
+    /**
+     * Get the layout of {@code text}, from cache if it was laid out with the same geometry.
+     *
+     * @param paint Paint to measure with, only its text size is taken into account.
+     * @param symbolWidth Width of the symbol closing the padding.
+     * @param iconWidth Width taken by the icon on the first page.
+     * @param screenWidth Width available without icon.
+     * @param cutoutLeft Left edge of the cutout without icon, or {@link #NO_CUTOUT}.
+     * @param cutoutRight Right edge of the cutout without icon.
+     */
+    static TickerLayout obtain(String text, Paint paint, int symbolWidth, int iconWidth,
+            int screenWidth, int cutoutLeft, int cutoutRight) {
+        final Key key = new Key(text, paint.getTextSize(), iconWidth,
+                screenWidth, cutoutLeft, cutoutRight);
+        TickerLayout layout = sCache.get(key);
+        if (layout != null) {
+            sHitCount++;
+            return layout;
+        }
+        sMissCount++;
+        layout = new TickerLayout(paginate(text, paint, symbolWidth, iconWidth,
+                screenWidth, cutoutLeft, cutoutRight));
+        sCache.put(key, layout);
+        if (DEBUG_TICKER) {
+            Log.d(TAG, "laid out " + layout.mPages.length + " pages, hit=" + sHitCount
+                    + ", miss=" + sMissCount);
+        }
+        return layout;
+    }
+
+    private static String[] paginate(String text, Paint paint, int symbolWidth,
+            int iconWidth, int screenWidth, int cutoutLeft, int cutoutRight) {
+        final int length = text.length();
+        final float[] widths = new float[length];
+        paint.getTextWidths(text, widths);
+        final float[] prefix = new float[length + 1];
+        for (int i = 0; i < length; i++) {
+            prefix[i + 1] = prefix[i] + widths[i];
+        }
+        final float spaceWidth = paint.measureText(" ");
+
+        final ArrayList<String> pages = new ArrayList<>();
+        final StringBuilder sb = new StringBuilder();
+        int start = 0;
+        int offset = iconWidth;
+        while (start < length) {
+            sb.setLength(0);
+            final float width = screenWidth - offset;
+            final float left = cutoutLeft == NO_CUTOUT ? 0 : cutoutLeft - offset;
+            final float right = cutoutRight - offset;
+
+            int pos = start;
+            float x = 0;
+            if (left > 0) {
+                final int leftEnd = lastFitting(text, prefix, start, left, false);
+                sb.append(text, start, leftEnd);
+                pos = leftEnd;
+                if (leftEnd < length) {
+                    x = prefix[leftEnd] - prefix[start];
+                    final float target = (left - x) + right - symbolWidth;
+                    int padding = 0;
+                    if (spaceWidth > 0) {
+                        padding = Math.max(0, (int) Math.ceil((target - x) / spaceWidth));
+                    } else if (target > x) {
+                        padding = MAX_PADDING_COUNT;
+                    }
+                    for (int i = 0; i < padding; i++) {
+                        sb.append(' ');
+                    }
+                    x += padding * spaceWidth;
+                }
+            }
+            if (pos < length) {
+                // Right part, or the whole page without cutout
+                int end = lastFitting(text, prefix, pos, width - x, true);
+                if (end == start) {
+                    // A single glyph wider than the page, show it anyway
+                    end = nextBoundary(text, start);
+                }
+                sb.append(text, pos, end);
+                pos = end;
+            }
+            pages.add(sb.toString());
+            start = pos;
+            offset = 0;
+        }
+        return pages.toArray(new String[0]);
+    }
+
+    /**
+     * @return End of the longest run from {@code start} that is narrower than
+     *         {@code limit}, or not wider if {@code inclusive}.
+     */
+    private static int lastFitting(String text, float[] prefix, int start,
+            float limit, boolean inclusive) {
+        int lo = start;
+        int hi = prefix.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            final float w = prefix[mid] - prefix[start];
+            if (inclusive ? w <= limit : w < limit) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        // Don't split surrogate pairs
+        if (lo > start && lo < text.length() && Character.isLowSurrogate(text.charAt(lo))) {
+            lo--;
+        }
+        return lo;
+    }
+
+    private static int nextBoundary(String text, int index) {
+        return Math.min(text.length(), index + Character.charCount(text.codePointAt(index)));
+    }
+}
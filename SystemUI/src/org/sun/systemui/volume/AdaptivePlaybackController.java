@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.systemui.volume;
+
+import android.content.Context;
+import android.media.session.MediaController;
+import android.media.session.MediaSession;
+import android.media.session.MediaSessionManager;
+import android.media.session.PlaybackState;
+import android.os.Handler;
+import android.os.HandlerExecutor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.systemui.settings.UserTracker;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * Pauses media when music volume reaches zero, and resumes it if volume is
+ * raised again before the timeout.
+ *
+ * IDLE -> PAUSE_PENDING: volume reached zero while media is playing.
+ * PAUSE_PENDING -> PAUSED: volume stayed at zero for SETTLE_DELAY, media is paused.
+ * PAUSED -> RESUME_PENDING: volume raised before the timeout.
+ * RESUME_PENDING -> IDLE: volume stayed up for SETTLE_DELAY, media is resumed.
+ * Pending states fall back to where they came from if volume flips back in time,
+ * so bursts of volume keys don't pause and resume media repeatedly.
+ * PAUSED -> IDLE: timeout, or media was started by someone else.
+ * PAUSED / RESUME_PENDING -> IDLE: the paused session is gone or no longer on top,
+ * only the session that was paused is ever resumed.
+ *
+ * All methods must be called on the handler passed in.
+ */
+public class AdaptivePlaybackController {
+
+    private static final String TAG = "AdaptivePlaybackController";
+    private static final boolean DEBUG = false;
+
+    private static final long SETTLE_DELAY = 300L;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_PAUSE_PENDING = 1;
+    private static final int STATE_PAUSED = 2;
+    private static final int STATE_RESUME_PENDING = 3;
+
+    /**
+     * The media to control.
+     */
+    interface Player {
+        /**
+         * @return Identity of the current session, compared with equals, null if none.
+         */
+        Object getSession();
+        boolean isPlaying();
+        void pause();
+        void play();
+        void setOnPlaybackStateChanged(Runnable callback);
+    }
+
+    private final Handler mHandler;
+    private final Player mPlayer;
+    private final LongSupplier mClock;
+
+    private final Runnable mSettleRunnable = this::onSettled;
+
+    private boolean mEnabled;
+    private long mTimeout;
+
+    private int mState = STATE_IDLE;
+    private long mPausedTime;
+    private Object mPausedSession;
+
+    public AdaptivePlaybackController(Context context, Handler handler, UserTracker userTracker) {
+        this(handler, new SessionPlayer(context, handler, userTracker), SystemClock::uptimeMillis);
+    }
+
+    AdaptivePlaybackController(Handler handler, Player player, LongSupplier clock) {
+        mHandler = handler;
+        mPlayer = player;
+        mClock = clock;
+        mPlayer.setOnPlaybackStateChanged(this::onPlaybackStateChanged);
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            setState(STATE_IDLE);
+        }
+    }
+
+    /**
+     * @param timeout How long paused media can be resumed, 0 for no limit.
+     */
+    public void setTimeout(long timeout) {
+        mTimeout = timeout;
+    }
+
+    public void onMusicLevelChanged(int level) {
+        if (!mEnabled) {
+            return;
+        }
+        switch (mState) {
+            case STATE_IDLE:
+                if (level == 0 && mPlayer.isPlaying()) {
+                    setState(STATE_PAUSE_PENDING);
+                }
+                break;
+            case STATE_PAUSE_PENDING:
+                if (level > 0) {
+                    setState(STATE_IDLE);
+                }
+                break;
+            case STATE_PAUSED:
+                if (level > 0) {
+                    setState(isExpired() ? STATE_IDLE : STATE_RESUME_PENDING);
+                }
+                break;
+            case STATE_RESUME_PENDING:
+                if (level == 0) {
+                    setState(STATE_PAUSED);
+                }
+                break;
+        }
+    }
+
+    private void onSettled() {
+        if (mState == STATE_PAUSE_PENDING) {
+            mPausedSession = mPlayer.getSession();
+            if (mPausedSession == null) {
+                setState(STATE_IDLE);
+                return;
+            }
+            mPlayer.pause();
+            mPausedTime = mClock.getAsLong();
+            setState(STATE_PAUSED);
+        } else if (mState == STATE_RESUME_PENDING) {
+            if (!isExpired() && isPausedSessionCurrent() && !mPlayer.isPlaying()) {
+                mPlayer.play();
+            }
+            setState(STATE_IDLE);
+        }
+    }
+
+    private void onPlaybackStateChanged() {
+        if (mState != STATE_PAUSED && mState != STATE_RESUME_PENDING) {
+            return;
+        }
+        // Gone, replaced by another session, or started by user or another app,
+        // it's no longer ours to resume
+        if (!isPausedSessionCurrent() || (mState == STATE_PAUSED && mPlayer.isPlaying())) {
+            setState(STATE_IDLE);
+        }
+    }
+
+    private boolean isPausedSessionCurrent() {
+        return mPausedSession != null && mPausedSession.equals(mPlayer.getSession());
+    }
+
+    private boolean isExpired() {
+        return mTimeout > 0 && mClock.getAsLong() - mPausedTime > mTimeout;
+    }
+
+    private void setState(int state) {
+        if (DEBUG) {
+            Log.d(TAG, "setState, " + mState + " -> " + state);
+        }
+        mState = state;
+        if (state == STATE_IDLE) {
+            mPausedSession = null;
+        }
+        mHandler.removeCallbacks(mSettleRunnable);
+        if (state == STATE_PAUSE_PENDING || state == STATE_RESUME_PENDING) {
+            mHandler.postDelayed(mSettleRunnable, SETTLE_DELAY);
+        }
+    }
+
+    /**
+     * Controls the top active media session of current user,
+     * playback state is cached from session callbacks.
+     */
+    private static final class SessionPlayer extends MediaController.Callback
+            implements Player, MediaSessionManager.OnActiveSessionsChangedListener {
+
+        private final Handler mHandler;
+        private final HandlerExecutor mExecutor;
+        private final MediaSessionManager mSessionManager;
+        private final UserTracker mUserTracker;
+
+        private final UserTracker.Callback mUserChangedCallback = new UserTracker.Callback() {
+            @Override
+            public void onUserChanged(int newUser, Context userContext) {
+                registerSessionListener();
+            }
+        };
+
+        private MediaController mController;
+        private PlaybackState mPlaybackState;
+        private Runnable mCallback;
+
+        SessionPlayer(Context context, Handler handler, UserTracker userTracker) {
+            mHandler = handler;
+            mExecutor = new HandlerExecutor(handler);
+            mSessionManager = context.getSystemService(MediaSessionManager.class);
+            mUserTracker = userTracker;
+            userTracker.addCallback(mUserChangedCallback, mExecutor);
+            handler.post(this::registerSessionListener);
+        }
+
+        private void registerSessionListener() {
+            mSessionManager.removeOnActiveSessionsChangedListener(this);
+            mSessionManager.addOnActiveSessionsChangedListener(
+                    null, mUserTracker.getUserHandle(), mExecutor, this);
+            onActiveSessionsChanged(mSessionManager.getActiveSessionsForUser(
+                    null, mUserTracker.getUserHandle()));
+        }
+
+        @Override
+        public void onActiveSessionsChanged(List<MediaController> controllers) {
+            MediaController top = null;
+            if (controllers != null) {
+                for (MediaController controller : controllers) {
+                    final PlaybackState state = controller.getPlaybackState();
+                    if (state != null && state.getState() == PlaybackState.STATE_PLAYING) {
+                        top = controller;
+                        break;
+                    }
+                }
+                if (top == null && !controllers.isEmpty()) {
+                    top = controllers.get(0);
+                }
+            }
+            final MediaSession.Token oldToken =
+                    mController != null ? mController.getSessionToken() : null;
+            final MediaSession.Token newToken = top != null ? top.getSessionToken() : null;
+            if (Objects.equals(oldToken, newToken)) {
+                return;
+            }
+            if (mController != null) {
+                mController.unregisterCallback(this);
+            }
+            mController = top;
+            mPlaybackState = top != null ? top.getPlaybackState() : null;
+            if (top != null) {
+                top.registerCallback(this, mHandler);
+            }
+            notifyChanged();
+        }
+
+        @Override
+        public void onPlaybackStateChanged(PlaybackState state) {
+            mPlaybackState = state;
+            notifyChanged();
+        }
+
+        @Override
+        public void onSessionDestroyed() {
+            if (mController != null) {
+                mController.unregisterCallback(this);
+            }
+            mController = null;
+            mPlaybackState = null;
+            notifyChanged();
+        }
+
+        @Override
+        public Object getSession() {
+            return mController != null ? mController.getSessionToken() : null;
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return mPlaybackState != null
+                    && mPlaybackState.getState() == PlaybackState.STATE_PLAYING;
+        }
+
+        @Override
+        public void pause() {
+            if (mController != null) {
+                mController.getTransportControls().pause();
+            }
+        }
+
+        @Override
+        public void play() {
+            if (mController != null) {
+                mController.getTransportControls().play();
+            }
+        }
+
+        @Override
+        public void setOnPlaybackStateChanged(Runnable callback) {
+            mCallback = callback;
+        }
+
+        private void notifyChanged() {
+            if (mCallback != null) {
+                mCallback.run();
+            }
+        }
+    }
+}
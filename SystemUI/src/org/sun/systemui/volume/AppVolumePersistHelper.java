@@ -5,30 +5,133 @@
 
 package org.sun.systemui.volume;
 
+import static org.sun.provider.SettingsExt.System.APP_VOLUME_ROUTE_BLUETOOTH;
+import static org.sun.provider.SettingsExt.System.APP_VOLUME_ROUTE_SPEAKER;
+import static org.sun.provider.SettingsExt.System.APP_VOLUME_ROUTE_WIRED;
 import static org.sun.provider.SettingsExt.System.PERSISTED_APP_VOLUME_DATA;
 
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.media.AppVolume;
+import android.media.AudioAttributes;
+import android.media.AudioDeviceAttributes;
+import android.media.AudioDeviceInfo;
 import android.media.AudioManager;
+import android.media.AudioSystem;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Log;
 
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Store of per app volumes.
+ *
+ * Volumes are kept per output route class (speaker, wired, bluetooth). A route
+ * without its own entry uses the speaker entry. When the music route changes,
+ * only apps whose effective volume differs between the two routes are updated.
+ *
+ * Volume changes are kept in memory and written once the slider settles,
+ * entries of removed packages are pruned, and stored volumes are only
+ * applied to AudioManager when they actually need to change.
+ */
 public class AppVolumePersistHelper {
 
     private static final String TAG = "AppVolumePersistHelper";
     private static final boolean DEBUG = false;
 
+    // Write once no change came in for this long
+    private static final long WRITE_DEBOUNCE_MS = 500L;
+    // But don't hold a change back longer than this while dragging
+    private static final long WRITE_MAX_DELAY_MS = 2000L;
+
+    private static final int DEFAULT_VOLUME = 100;
+
+    // Route classes, speaker entries are persisted without route for compatibility
+    public static final int ROUTE_SPEAKER = APP_VOLUME_ROUTE_SPEAKER;
+    public static final int ROUTE_WIRED = APP_VOLUME_ROUTE_WIRED;
+    public static final int ROUTE_BLUETOOTH = APP_VOLUME_ROUTE_BLUETOOTH;
+
+    private static final AudioAttributes MEDIA_ATTRIBUTES = new AudioAttributes.Builder()
+            .setUsage(AudioAttributes.USAGE_MEDIA)
+            .build();
+
+    private final Object mLock = new Object();
+
+    // Stored volume of each (package, uid, route)
     private final ArrayMap<AppInfo, Integer> mAppVolumeMap = new ArrayMap<>();
+    // Volume last set to AudioManager of each (package, uid), route is always ROUTE_SPEAKER
+    private final ArrayMap<AppInfo, Integer> mAppliedVolumeMap = new ArrayMap<>();
 
+    private final AudioManager mAudioManager;
     private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    private final Runnable mWriteRunnable = this::writeIfNeeded;
+
+    private final BroadcastReceiver mPackageRemovedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)
+                    || intent.getData() == null) {
+                return;
+            }
+            onPackageRemoved(intent.getData().getSchemeSpecificPart(),
+                    intent.getIntExtra(Intent.EXTRA_UID, -1));
+        }
+    };
+
+    private final BroadcastReceiver mStreamDevicesReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getIntExtra(AudioManager.EXTRA_VOLUME_STREAM_TYPE, -1)
+                    == AudioSystem.STREAM_MUSIC) {
+                updateRoute();
+            }
+        }
+    };
+
+    // Last string read from / written to settings
+    private String mPersistedData;
+    private long mFirstPendingChangeTime;
+
+    private int mRoute = ROUTE_SPEAKER;
+    private boolean mApplyAppVolume;
+    private boolean mApplied;
 
-    public AppVolumePersistHelper(Context context) {
+    private int mChangeCount;
+    private int mWriteCount;
+    private int mSkippedWriteCount;
+    private int mAudioCallCount;
+    private long mLastWriteLatencyMs;
+    private long mMaxWriteLatencyMs;
+
+    private int mRouteSwitchCount;
+    private int mLastRouteSwitchCalls;
+    private long mLastRouteSwitchLatencyUs;
+    private long mMaxRouteSwitchLatencyUs;
+
+    public AppVolumePersistHelper(Context context, Handler handler) {
+        mAudioManager = context.getSystemService(AudioManager.class);
         mResolver = context.getContentResolver();
+        mHandler = handler;
         initAppVolumeMap();
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiverAsUser(mPackageRemovedReceiver, UserHandle.ALL,
+                filter, null, mHandler);
+        context.registerReceiver(mStreamDevicesReceiver,
+                new IntentFilter(AudioManager.STREAM_DEVICES_CHANGED_ACTION), null, mHandler);
+        mHandler.post(this::updateRoute);
     }
 
     private void initAppVolumeMap() {
@@ -37,6 +140,7 @@ public class AppVolumePersistHelper {
         }
         final String persistedData = Settings.System.getStringForUser(mResolver,
                 PERSISTED_APP_VOLUME_DATA, UserHandle.USER_SYSTEM);
+        mPersistedData = persistedData;
         if (TextUtils.isEmpty(persistedData)) {
             if (DEBUG) {
                 Log.d(TAG, "Persisted data is empty. Skip initAppVolumeMap");
@@ -49,7 +153,8 @@ public class AppVolumePersistHelper {
             final String packageName = volumeInfo[0];
             final int uid = Integer.parseInt(volumeInfo[1]);
             final int volume = Integer.parseInt(volumeInfo[2]);
-            final AppInfo ai = new AppInfo(packageName, uid);
+            final int route = volumeInfo.length > 3 ? Integer.parseInt(volumeInfo[3]) : ROUTE_SPEAKER;
+            final AppInfo ai = new AppInfo(packageName, uid, route);
             mAppVolumeMap.put(ai, volume);
             if (DEBUG) {
                 Log.d(TAG, "Added " + ai + ", volume: " + volume);
@@ -61,39 +166,219 @@ public class AppVolumePersistHelper {
         if (DEBUG) {
             Log.d(TAG, "persistAppVolume, " + appVolumeToString(av, newVolume));
         }
-        final AppInfo ai = new AppInfo(av.getPackageName(), av.getUid());
         final int volume = (int) (newVolume * 100);
-        if (mAppVolumeMap.getOrDefault(ai, 100) == volume) {
-            if (DEBUG) {
-                Log.d(TAG, "Skip persist data due to same volume");
+        synchronized (mLock) {
+            final AppInfo ai = new AppInfo(av.getPackageName(), av.getUid(), mRoute);
+            // Volume panel already set it to AudioManager
+            mAppliedVolumeMap.put(ai.withRoute(ROUTE_SPEAKER), volume);
+            if (getVolumeLocked(ai.packageName, ai.uid, mRoute) == volume) {
+                if (DEBUG) {
+                    Log.d(TAG, "Skip persist data due to same volume");
+                }
+                return;
             }
-            return;
+            mAppVolumeMap.put(ai, volume);
+            mChangeCount++;
+            scheduleWriteLocked();
         }
-        mAppVolumeMap.put(ai, volume);
-        Settings.System.putStringForUser(mResolver, PERSISTED_APP_VOLUME_DATA,
-                generateSettingsString(), UserHandle.USER_SYSTEM);
     }
 
-    public void updateAllVolume(AudioManager audioManager, boolean applyAppVolume) {
+    /**
+     * Apply stored volumes of current route to AudioManager,
+     * or reset them if {@code applyAppVolume} is false.
+     * Only apps whose volume changes are updated.
+     */
+    public void updateAllVolume(boolean applyAppVolume) {
         if (DEBUG) {
             Log.d(TAG, "updateAllVolume, applyAppVolume: " + applyAppVolume);
         }
-        for (AppInfo ai : mAppVolumeMap.keySet()) {
-            audioManager.setAppVolume(ai.packageName, ai.uid,
-                    applyAppVolume ? mAppVolumeMap.get(ai) / 100.0f : 1f);
+        synchronized (mLock) {
+            if (mApplied && mApplyAppVolume == applyAppVolume) {
+                return;
+            }
+            mApplyAppVolume = applyAppVolume;
+            mApplied = true;
+            applyLocked();
+        }
+    }
+
+    private void updateRoute() {
+        final int route = getMusicRoute();
+        synchronized (mLock) {
+            if (route == mRoute) {
+                return;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Route changed, " + mRoute + " -> " + route);
+            }
+            mRoute = route;
+            if (!mApplied) {
+                return;
+            }
+            final long start = SystemClock.elapsedRealtimeNanos();
+            final int calls = applyLocked();
+            final long latency = (SystemClock.elapsedRealtimeNanos() - start) / 1000L;
+            mRouteSwitchCount++;
+            mLastRouteSwitchCalls = calls;
+            mLastRouteSwitchLatencyUs = latency;
+            mMaxRouteSwitchLatencyUs = Math.max(mMaxRouteSwitchLatencyUs, latency);
+        }
+    }
+
+    // Same device classes as AudioServiceExt.onOutputDeviceChanged
+    private int getMusicRoute() {
+        final List<AudioDeviceAttributes> devices =
+                mAudioManager.getDevicesForAttributes(MEDIA_ATTRIBUTES);
+        int route = ROUTE_SPEAKER;
+        for (AudioDeviceAttributes device : devices) {
+            switch (device.getType()) {
+                case AudioDeviceInfo.TYPE_BLUETOOTH_A2DP:
+                case AudioDeviceInfo.TYPE_BLE_HEADSET:
+                    return ROUTE_BLUETOOTH;
+                case AudioDeviceInfo.TYPE_USB_HEADSET:
+                case AudioDeviceInfo.TYPE_WIRED_HEADPHONES:
+                case AudioDeviceInfo.TYPE_WIRED_HEADSET:
+                    route = ROUTE_WIRED;
+                    break;
+            }
+        }
+        return route;
+    }
+
+    /**
+     * Set volumes of current route to AudioManager, skipping apps already at that volume.
+     *
+     * @return Number of AudioManager calls.
+     */
+    private int applyLocked() {
+        final ArrayMap<AppInfo, Integer> target = new ArrayMap<>();
+        for (int i = 0; i < mAppVolumeMap.size(); i++) {
+            final AppInfo ai = mAppVolumeMap.keyAt(i);
+            final AppInfo app = ai.withRoute(ROUTE_SPEAKER);
+            if (!target.containsKey(app)) {
+                target.put(app, mApplyAppVolume
+                        ? getVolumeLocked(ai.packageName, ai.uid, mRoute) : DEFAULT_VOLUME);
+            }
+        }
+        int calls = 0;
+        for (int i = 0; i < target.size(); i++) {
+            final AppInfo app = target.keyAt(i);
+            final int volume = target.valueAt(i);
+            if (mAppliedVolumeMap.getOrDefault(app, DEFAULT_VOLUME) == volume) {
+                continue;
+            }
+            mAudioManager.setAppVolume(app.packageName, app.uid, volume / 100.0f);
+            mAppliedVolumeMap.put(app, volume);
+            calls++;
+        }
+        mAudioCallCount += calls;
+        return calls;
+    }
+
+    private int getVolumeLocked(String packageName, int uid, int route) {
+        final Integer volume = mAppVolumeMap.get(new AppInfo(packageName, uid, route));
+        if (volume != null) {
+            return volume;
+        }
+        if (route != ROUTE_SPEAKER) {
+            return getVolumeLocked(packageName, uid, ROUTE_SPEAKER);
+        }
+        return DEFAULT_VOLUME;
+    }
+
+    private void onPackageRemoved(String packageName, int uid) {
+        synchronized (mLock) {
+            boolean changed = false;
+            for (int i = mAppVolumeMap.size() - 1; i >= 0; i--) {
+                final AppInfo ai = mAppVolumeMap.keyAt(i);
+                if (ai.packageName.equals(packageName) && (uid == -1 || ai.uid == uid)) {
+                    if (DEBUG) {
+                        Log.d(TAG, "Prune " + ai);
+                    }
+                    mAppVolumeMap.removeAt(i);
+                    changed = true;
+                }
+            }
+            for (int i = mAppliedVolumeMap.size() - 1; i >= 0; i--) {
+                final AppInfo ai = mAppliedVolumeMap.keyAt(i);
+                if (ai.packageName.equals(packageName) && (uid == -1 || ai.uid == uid)) {
+                    mAppliedVolumeMap.removeAt(i);
+                }
+            }
+            if (changed) {
+                scheduleWriteLocked();
+            }
+        }
+    }
+
+    private void scheduleWriteLocked() {
+        final long now = SystemClock.uptimeMillis();
+        if (!mHandler.hasCallbacks(mWriteRunnable)) {
+            mFirstPendingChangeTime = now;
+        }
+        mHandler.removeCallbacks(mWriteRunnable);
+        final long deadline = mFirstPendingChangeTime + WRITE_MAX_DELAY_MS;
+        mHandler.postAtTime(mWriteRunnable, Math.min(now + WRITE_DEBOUNCE_MS, deadline));
+    }
+
+    private void writeIfNeeded() {
+        final String data;
+        synchronized (mLock) {
+            data = generateSettingsString();
+            if (data.equals(mPersistedData == null ? "" : mPersistedData)) {
+                mSkippedWriteCount++;
+                return;
+            }
+            mPersistedData = data;
+        }
+        final long start = SystemClock.uptimeMillis();
+        Settings.System.putStringForUser(mResolver, PERSISTED_APP_VOLUME_DATA,
+                data, UserHandle.USER_SYSTEM);
+        final long latency = SystemClock.uptimeMillis() - start;
+        synchronized (mLock) {
+            mWriteCount++;
+            mLastWriteLatencyMs = latency;
+            mMaxWriteLatencyMs = Math.max(mMaxWriteLatencyMs, latency);
+            if (DEBUG) {
+                Log.d(TAG, "Persisted " + mAppVolumeMap.size() + " entries in " + latency
+                        + "ms, changes=" + mChangeCount + ", writes=" + mWriteCount);
+            }
         }
     }
 
     private String generateSettingsString() {
         StringBuilder sb = new StringBuilder();
-        for (AppInfo ai : mAppVolumeMap.keySet()) {
+        for (int i = 0; i < mAppVolumeMap.size(); i++) {
+            final AppInfo ai = mAppVolumeMap.keyAt(i);
             sb.append(ai.packageName).append(",");
             sb.append(ai.uid).append(",");
-            sb.append(mAppVolumeMap.get(ai)).append(";");
+            sb.append(mAppVolumeMap.valueAt(i));
+            if (ai.route != ROUTE_SPEAKER) {
+                sb.append(",").append(ai.route);
+            }
+            sb.append(";");
         }
         return sb.toString();
     }
 
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(TAG + ": entries=" + mAppVolumeMap.size()
+                    + ", route=" + mRoute
+                    + ", changes=" + mChangeCount
+                    + ", writes=" + mWriteCount
+                    + ", skippedWrites=" + mSkippedWriteCount
+                    + ", lastWriteLatency=" + mLastWriteLatencyMs + "ms"
+                    + ", maxWriteLatency=" + mMaxWriteLatencyMs + "ms"
+                    + ", audioCalls=" + mAudioCallCount
+                    + ", applyAppVolume=" + mApplyAppVolume);
+            pw.println("  routeSwitches=" + mRouteSwitchCount
+                    + ", lastSwitchCalls=" + mLastRouteSwitchCalls
+                    + ", lastSwitchLatency=" + mLastRouteSwitchLatencyUs + "us"
+                    + ", maxSwitchLatency=" + mMaxRouteSwitchLatencyUs + "us");
+        }
+    }
+
     private String appVolumeToString(AppVolume av, float newVolume) {
         StringBuilder sb = new StringBuilder();
         sb.append(av.getPackageName()).append(",");
@@ -105,17 +390,24 @@ public class AppVolumePersistHelper {
     private final class AppInfo {
         public String packageName;
         public int uid;
+        public int route;
 
-        public AppInfo(String packageName, int uid) {
+        public AppInfo(String packageName, int uid, int route) {
             this.packageName = packageName;
             this.uid = uid;
+            this.route = route;
+        }
+
+        public AppInfo withRoute(int route) {
+            return route == this.route ? this : new AppInfo(packageName, uid, route);
         }
 
         @Override
         public boolean equals(Object obj) {
             if (obj instanceof AppInfo) {
                 final AppInfo other = (AppInfo) obj;
-                return packageName.equals(other.packageName) && uid == other.uid;
+                return packageName.equals(other.packageName) && uid == other.uid
+                        && route == other.route;
             }
             return false;
         }
@@ -124,12 +416,13 @@ public class AppVolumePersistHelper {
         public int hashCode() {
             int result = packageName.hashCode();
             result = 31 * result + uid;
+            result = 31 * result + route;
             return result;
         }
 
         @Override
         public String toString() {
-            return "packageName: " + packageName + ", uid: " + uid;
+            return "packageName: " + packageName + ", uid: " + uid + ", route: " + route;
         }
     }
 }
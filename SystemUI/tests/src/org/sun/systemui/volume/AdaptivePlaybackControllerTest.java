@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.systemui.volume;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Handler;
+import android.testing.AndroidTestingRunner;
+import android.testing.TestableLooper;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.systemui.SysuiTestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidTestingRunner.class)
+@TestableLooper.RunWithLooper
+public class AdaptivePlaybackControllerTest extends SysuiTestCase {
+
+    private static final long SETTLE_DELAY = 300L;
+
+    private final FakePlayer mPlayer = new FakePlayer();
+
+    private TestableLooper mTestableLooper;
+    private AdaptivePlaybackController mController;
+    private long mNow = 1000L;
+
+    @Before
+    public void setUp() {
+        mTestableLooper = TestableLooper.get(this);
+        mController = new AdaptivePlaybackController(
+                new Handler(mTestableLooper.getLooper()), mPlayer, () -> mNow);
+        mController.setEnabled(true);
+        mController.setTimeout(0);
+        mPlayer.mPlaying = true;
+    }
+
+    @Test
+    public void idle_volumeZeroWhilePlaying_pausesAfterSettle() {
+        mController.onMusicLevelChanged(0);
+        advance(SETTLE_DELAY - 1);
+        assertEquals(0, mPlayer.mPauseCount);
+
+        advance(1);
+        assertEquals(1, mPlayer.mPauseCount);
+    }
+
+    @Test
+    public void idle_volumeZeroWhileNotPlaying_staysIdle() {
+        mPlayer.mPlaying = false;
+        mController.onMusicLevelChanged(0);
+        advance(SETTLE_DELAY);
+
+        assertEquals(0, mPlayer.mPauseCount);
+    }
+
+    @Test
+    public void pausePending_volumeRaised_backToIdle() {
+        mController.onMusicLevelChanged(0);
+        advance(SETTLE_DELAY / 2);
+        mController.onMusicLevelChanged(3);
+        advance(SETTLE_DELAY * 2);
+
+        assertEquals(0, mPlayer.mPauseCount);
+    }
+
+    @Test
+    public void paused_volumeRaised_resumesAfterSettle() {
+        pause();
+        advance(5000);
+
+        mController.onMusicLevelChanged(3);
+        advance(SETTLE_DELAY - 1);
+        assertEquals(0, mPlayer.mPlayCount);
+
+        advance(1);
+        assertEquals(1, mPlayer.mPlayCount);
+    }
+
+    @Test
+    public void resumePending_volumeZeroAgain_backToPaused() {
+        pause();
+
+        mController.onMusicLevelChanged(3);
+        advance(SETTLE_DELAY / 2);
+        mController.onMusicLevelChanged(0);
+        advance(SETTLE_DELAY * 2);
+        assertEquals(0, mPlayer.mPlayCount);
+
+        // Still paused, so raising volume resumes
+        mController.onMusicLevelChanged(3);
+        advance(SETTLE_DELAY);
+        assertEquals(1, mPlayer.mPlayCount);
+    }
+
+    @Test
+    public void paused_timeoutExpired_doesNotResume() {
+        mController.setTimeout(5000);
+        pause();
+        advance(5001);
+
+        mController.onMusicLevelChanged(3);
+        advance(SETTLE_DELAY);
+
+        assertEquals(0, mPlayer.mPlayCount);
+    }
+
+    @Test
+    public void resumePending_timeoutExpiresDuringSettle_doesNotResume() {
+        mController.setTimeout(5000);
+        pause();
+        advance(5000 - SETTLE_DELAY / 2);
+
+        mController.onMusicLevelChanged(3);
+        advance(SETTLE_DELAY);
+
+        assertEquals(0, mPlayer.mPlayCount);
+    }
+
+    @Test
+    public void paused_startedBySomeoneElse_backToIdle() {
+        pause();
+        mPlayer.setPlaying(true);
+        mPlayer.setPlaying(false);
+
+        mController.onMusicLevelChanged(3);
+        advance(SETTLE_DELAY);
+
+        assertEquals(0, mPlayer.mPlayCount);
+    }
+
+    @Test
+    public void paused_sessionReplaced_doesNotResumeOtherSession() {
+        pause();
+        mPlayer.setSession("other");
+
+        // Paused session is back on top, but it's no longer ours to resume
+        mPlayer.setSession("music");
+        mController.onMusicLevelChanged(3);
+        advance(SETTLE_DELAY);
+
+        assertEquals(0, mPlayer.mPlayCount);
+    }
+
+    @Test
+    public void resumePending_sessionGone_doesNotResume() {
+        pause();
+        mController.onMusicLevelChanged(3);
+        advance(SETTLE_DELAY / 2);
+
+        mPlayer.setSession(null);
+        advance(SETTLE_DELAY);
+
+        assertEquals(0, mPlayer.mPlayCount);
+    }
+
+    @Test
+    public void disabled_whilePaused_doesNotResume() {
+        pause();
+        mController.setEnabled(false);
+
+        mController.onMusicLevelChanged(3);
+        advance(SETTLE_DELAY);
+
+        assertEquals(0, mPlayer.mPlayCount);
+    }
+
+    private void pause() {
+        mController.onMusicLevelChanged(0);
+        advance(SETTLE_DELAY);
+        assertEquals(1, mPlayer.mPauseCount);
+    }
+
+    private void advance(long millis) {
+        mNow += millis;
+        mTestableLooper.moveTimeForward(millis);
+        mTestableLooper.processAllMessages();
+    }
+
+    private static final class FakePlayer implements AdaptivePlaybackController.Player {
+
+        Object mSession = "music";
+        boolean mPlaying;
+        int mPauseCount;
+        int mPlayCount;
+
+        private Runnable mCallback;
+
+        void setSession(Object session) {
+            mSession = session;
+            mPlaying = false;
+            mCallback.run();
+        }
+
+        void setPlaying(boolean playing) {
+            mPlaying = playing;
+            mCallback.run();
+        }
+
+        @Override
+        public Object getSession() {
+            return mSession;
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return mPlaying;
+        }
+
+        @Override
+        public void pause() {
+            mPauseCount++;
+            mPlaying = false;
+        }
+
+        @Override
+        public void play() {
+            mPlayCount++;
+            mPlaying = true;
+        }
+
+        @Override
+        public void setOnPlaybackStateChanged(Runnable callback) {
+            mCallback = callback;
+        }
+    }
+}
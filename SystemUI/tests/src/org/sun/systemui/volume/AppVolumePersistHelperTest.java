@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.systemui.volume;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyFloat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import static org.sun.provider.SettingsExt.System.PERSISTED_APP_VOLUME_DATA;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.AppVolume;
+import android.media.AudioDeviceAttributes;
+import android.media.AudioDeviceInfo;
+import android.media.AudioManager;
+import android.media.AudioSystem;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.testing.AndroidTestingRunner;
+import android.testing.TestableLooper;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.systemui.SysuiTestCase;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+
+@SmallTest
+@RunWith(AndroidTestingRunner.class)
+@TestableLooper.RunWithLooper
+public class AppVolumePersistHelperTest extends SysuiTestCase {
+
+    private final AudioManager mAudioManager = mock(AudioManager.class);
+
+    private TestableLooper mTestableLooper;
+    private Context mSpyContext;
+    private AppVolumePersistHelper mHelper;
+    private BroadcastReceiver mStreamDevicesReceiver;
+
+    @Before
+    public void setUp() {
+        mTestableLooper = TestableLooper.get(this);
+        mContext.addMockSystemService(AudioManager.class, mAudioManager);
+        mSpyContext = spy(mContext);
+        setRoute(AudioDeviceInfo.TYPE_BUILTIN_SPEAKER);
+    }
+
+    @Test
+    public void routeSwitch_appliesEntryOfNewRoute() {
+        createHelper("a,1,40;a,1,80,2;");
+        mHelper.updateAllVolume(true);
+        verify(mAudioManager).setAppVolume("a", 1, 0.4f);
+
+        switchRoute(AudioDeviceInfo.TYPE_BLUETOOTH_A2DP);
+        verify(mAudioManager).setAppVolume("a", 1, 0.8f);
+
+        switchRoute(AudioDeviceInfo.TYPE_BUILTIN_SPEAKER);
+        verify(mAudioManager, times(2)).setAppVolume("a", 1, 0.4f);
+    }
+
+    @Test
+    public void routeWithoutEntry_fallsBackToSpeaker() {
+        createHelper("a,1,40;b,2,50,2;");
+        mHelper.updateAllVolume(true);
+        verify(mAudioManager).setAppVolume("a", 1, 0.4f);
+
+        // Neither app has a wired entry, effective volumes don't change
+        switchRoute(AudioDeviceInfo.TYPE_WIRED_HEADPHONES);
+        verify(mAudioManager, times(1)).setAppVolume(eq("a"), anyInt(), anyFloat());
+        verify(mAudioManager, never()).setAppVolume(eq("b"), anyInt(), anyFloat());
+
+        switchRoute(AudioDeviceInfo.TYPE_BLUETOOTH_A2DP);
+        verify(mAudioManager, times(1)).setAppVolume(eq("a"), anyInt(), anyFloat());
+        verify(mAudioManager).setAppVolume("b", 2, 0.5f);
+    }
+
+    @Test
+    public void routeSwitch_50Apps_onlyAppsWithRouteEntryUpdated() {
+        final StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            data.append("app").append(i).append(',').append(i).append(",40;");
+            // Every other app has its own bluetooth volume
+            if (i % 2 == 0) {
+                data.append("app").append(i).append(',').append(i).append(",80,2;");
+            }
+        }
+        createHelper(data.toString());
+        mHelper.updateAllVolume(true);
+        verify(mAudioManager, times(50)).setAppVolume(anyString(), anyInt(), eq(0.4f));
+        clearInvocations(mAudioManager);
+
+        switchRoute(AudioDeviceInfo.TYPE_BLUETOOTH_A2DP);
+        verify(mAudioManager, times(25)).setAppVolume(anyString(), anyInt(), anyFloat());
+        verify(mAudioManager, times(25)).setAppVolume(anyString(), anyInt(), eq(0.8f));
+        clearInvocations(mAudioManager);
+
+        switchRoute(AudioDeviceInfo.TYPE_BUILTIN_SPEAKER);
+        verify(mAudioManager, times(25)).setAppVolume(anyString(), anyInt(), anyFloat());
+        verify(mAudioManager, times(25)).setAppVolume(anyString(), anyInt(), eq(0.4f));
+    }
+
+    @Test
+    public void persistAppVolume_keyedByCurrentRoute() {
+        setRoute(AudioDeviceInfo.TYPE_BLUETOOTH_A2DP);
+        createHelper("a,1,40;");
+
+        mHelper.persistAppVolume(appVolume("a", 1), 0.6f);
+        mTestableLooper.moveTimeForward(2000L);
+        mTestableLooper.processAllMessages();
+
+        final String data = Settings.System.getStringForUser(mContext.getContentResolver(),
+                PERSISTED_APP_VOLUME_DATA, UserHandle.USER_SYSTEM);
+        assertTrue(data, data.contains("a,1,40;"));
+        assertTrue(data, data.contains("a,1,60,2;"));
+
+        // Volume panel already set the new volume
+        mHelper.updateAllVolume(true);
+        verify(mAudioManager, never()).setAppVolume(eq("a"), anyInt(), anyFloat());
+
+        switchRoute(AudioDeviceInfo.TYPE_BUILTIN_SPEAKER);
+        verify(mAudioManager).setAppVolume("a", 1, 0.4f);
+    }
+
+    private void createHelper(String persistedData) {
+        Settings.System.putStringForUser(mContext.getContentResolver(),
+                PERSISTED_APP_VOLUME_DATA, persistedData, UserHandle.USER_SYSTEM);
+        mHelper = new AppVolumePersistHelper(mSpyContext,
+                new Handler(mTestableLooper.getLooper()));
+        mTestableLooper.processAllMessages();
+
+        final ArgumentCaptor<BroadcastReceiver> captor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mSpyContext).registerReceiver(captor.capture(), any(IntentFilter.class),
+                isNull(), any(Handler.class));
+        mStreamDevicesReceiver = captor.getValue();
+    }
+
+    private void setRoute(int deviceType) {
+        when(mAudioManager.getDevicesForAttributes(any())).thenReturn(List.of(
+                new AudioDeviceAttributes(AudioDeviceAttributes.ROLE_OUTPUT, deviceType, "")));
+    }
+
+    private void switchRoute(int deviceType) {
+        setRoute(deviceType);
+        mStreamDevicesReceiver.onReceive(mSpyContext,
+                new Intent(AudioManager.STREAM_DEVICES_CHANGED_ACTION)
+                        .putExtra(AudioManager.EXTRA_VOLUME_STREAM_TYPE,
+                                AudioSystem.STREAM_MUSIC));
+        mTestableLooper.processAllMessages();
+    }
+
+    private static AppVolume appVolume(String packageName, int uid) {
+        final AppVolume av = mock(AppVolume.class);
+        when(av.getPackageName()).thenReturn(packageName);
+        when(av.getUid()).thenReturn(uid);
+        return av;
+    }
+}
@@ -18,6 +18,8 @@ import org.sun.app.AppPropsManager;
 import org.sun.app.IAppPropsManagerService;
 import org.sun.app.GameModeManager;
 import org.sun.app.IGameModeManagerService;
+import org.sun.app.ITopTaskManagerService;
+import org.sun.app.TopTaskManager;
 import org.sun.content.ContextExt;
 import org.sun.content.IOnlineConfigManagerService;
 import org.sun.content.OnlineConfigManager;
@@ -107,5 +109,14 @@ class SystemServiceRegistryExt {
                 ISensorBlockService service = ISensorBlockService.Stub.asInterface(binder);
                 return new SensorBlockManager(ctx.getOuterContext(), service);
             }});
+
+        registerService(ContextExt.TOP_TASK_SERVICE, TopTaskManager.class,
+                new CachedServiceFetcher<TopTaskManager>() {
+            @Override
+            public TopTaskManager createService(ContextImpl ctx) {
+                IBinder binder = ServiceManager.getService(ContextExt.TOP_TASK_SERVICE);
+                ITopTaskManagerService service = ITopTaskManagerService.Stub.asInterface(binder);
+                return new TopTaskManager(ctx.getOuterContext(), service);
+            }});
     }
 }
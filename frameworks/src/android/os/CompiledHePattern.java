@@ -0,0 +1,716 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package android.os;
+
+import static android.os.HapticPlayer.CONTINUOUS_EVENT;
+import static android.os.HapticPlayer.EVENT_KEY_DURATION;
+import static android.os.HapticPlayer.EVENT_KEY_EVENT;
+import static android.os.HapticPlayer.EVENT_KEY_HE_CURVE;
+import static android.os.HapticPlayer.EVENT_KEY_HE_CURVE_POINT_TIME;
+import static android.os.HapticPlayer.EVENT_KEY_HE_FREQUENCY;
+import static android.os.HapticPlayer.EVENT_KEY_HE_INTENSITY;
+import static android.os.HapticPlayer.EVENT_KEY_HE_PARAMETERS;
+import static android.os.HapticPlayer.EVENT_KEY_HE_TYPE;
+import static android.os.HapticPlayer.EVENT_KEY_RELATIVE_TIME;
+import static android.os.HapticPlayer.EVENT_TYPE_HE_CONTINUOUS_NAME;
+import static android.os.HapticPlayer.EVENT_TYPE_HE_TRANSIENT_NAME;
+import static android.os.HapticPlayer.FORMAT_VERSION;
+import static android.os.HapticPlayer.HE2_0_PATTERN_WRAP_NUM;
+import static android.os.HapticPlayer.HE_CURVE_POINT_0_FREQUENCY;
+import static android.os.HapticPlayer.HE_CURVE_POINT_0_INTENSITY;
+import static android.os.HapticPlayer.HE_CURVE_POINT_0_TIME;
+import static android.os.HapticPlayer.HE_DEFAULT_DURATION;
+import static android.os.HapticPlayer.HE_DEFAULT_RELATIVE_TIME;
+import static android.os.HapticPlayer.HE_DURATION;
+import static android.os.HapticPlayer.HE_FREQUENCY;
+import static android.os.HapticPlayer.HE_INTENSITY;
+import static android.os.HapticPlayer.HE_META_DATA_KEY;
+import static android.os.HapticPlayer.HE_POINT_COUNT;
+import static android.os.HapticPlayer.HE_RELATIVE_TIME;
+import static android.os.HapticPlayer.HE_TYPE;
+import static android.os.HapticPlayer.HE_VALUE_LENGTH;
+import static android.os.HapticPlayer.HE_VERSION_KEY;
+import static android.os.HapticPlayer.HE_VIB_INDEX;
+import static android.os.HapticPlayer.MAX_EVENT_COUNT;
+import static android.os.HapticPlayer.MAX_POINT_COUNT;
+import static android.os.HapticPlayer.PATTERN_KEY_EVENT_VIB_ID;
+import static android.os.HapticPlayer.PATTERN_KEY_PATTERN;
+import static android.os.HapticPlayer.PATTERN_KEY_PATTERN_ABS_TIME;
+import static android.os.HapticPlayer.PATTERN_KEY_PATTERN_LIST;
+import static android.os.HapticPlayer.TRANSIENT_EVENT;
+
+import android.util.JsonReader;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * HE pattern compiled into the payloads sent to RichTap.
+ *
+ * Pattern strings are read with a streaming {@link JsonReader} instead of a JSON tree,
+ * checked with the same rules as before and kept in an LRU keyed by the SHA-256 of the
+ * pattern string, so starting an effect again only costs hashing and a lookup. The
+ * cache is bounded by payload bytes and doesn't keep the pattern string.
+ */
+final class CompiledHePattern {
+
+    private static final String TAG = "HapticPlayer";
+
+    // Payload bytes, a few large HE 2.0 files or many short 1.0 effects
+    private static final int CACHE_SIZE_BYTES = 256 * 1024;
+
+    private static final int HE_1_0_HEADER = 0x3; // HE1.0 which support 16 curve points
+    private static final int HE_2_0_HEADER_LEN = 5;
+    private static final int HE_2_0_SEQ_INDEX = 3;
+
+    private static final int TRANSIENT_EVENT_LEN = 7;
+    private static final int CONTINUOUS_EVENT_LEN = 8;
+    private static final int PATTERN_HEADER_LEN = 3;
+
+    private static final LruCache<Key, CompiledHePattern> sCache =
+            new LruCache<Key, CompiledHePattern>(CACHE_SIZE_BYTES) {
+                @Override
+                protected int sizeOf(Key key, CompiledHePattern value) {
+                    return value.getPayloadBytes();
+                }
+            };
+
+    /**
+     * SHA-256 of a pattern string.
+     */
+    static final class Key {
+        private final byte[] mDigest;
+        private final int mHashCode;
+
+        private Key(byte[] digest) {
+            mDigest = digest;
+            mHashCode = Arrays.hashCode(digest);
+        }
+
+        static Key of(String patternString) {
+            final MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            return new Key(md.digest(patternString.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(mDigest, ((Key) obj).mDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private static final class RawEvent {
+        String mType;
+        boolean mHasRelativeTime;
+        int mRelativeTime;
+        boolean mHasDuration;
+        int mDuration;
+        boolean mHasIndex;
+        int mIndex;
+        boolean mHasParameters;
+        boolean mHasIntensity;
+        int mIntensity;
+        boolean mHasFrequency;
+        int mFrequency;
+        // (time, intensity * 100, frequency) for each point, null if there is no curve
+        int[] mCurve;
+        int mPointNum;
+    }
+
+    private static final class RawPattern {
+        boolean mHasAbsoluteTime;
+        int mAbsoluteTime;
+        RawEvent[] mEvents;
+    }
+
+    final Key mKey;
+    final int mHeVersion;
+    final int mPatternNum;
+    final long mCompileTimeNs;
+
+    // HE 1.0: a single payload. HE 2.0: one payload per wrapper, seq is filled on send.
+    private final int[][] mPayloads;
+
+    private Boolean mSdkSupported;
+
+    private CompiledHePattern(Key key, int heVersion, int patternNum,
+            int[][] payloads, long compileTimeNs) {
+        mKey = key;
+        mHeVersion = heVersion;
+        mPatternNum = patternNum;
+        mPayloads = payloads;
+        mCompileTimeNs = compileTimeNs;
+    }
+
+    /**
+     * @param key {@link Key#of} {@code patternString}.
+     * @return Compiled pattern of {@code patternString}, null if it's not a valid HE.
+     */
+    static CompiledHePattern obtain(Key key, String patternString) {
+        CompiledHePattern pattern = sCache.get(key);
+        if (pattern == null) {
+            pattern = compile(key, patternString);
+            if (pattern != null) {
+                sCache.put(key, pattern);
+            }
+        }
+        return pattern;
+    }
+
+    static int getCacheHitCount() {
+        return sCache.hitCount();
+    }
+
+    static int getCacheMissCount() {
+        return sCache.missCount();
+    }
+
+    int getPayloadCount() {
+        return mPayloads.length;
+    }
+
+    private int getPayloadBytes() {
+        int bytes = 0;
+        for (int[] payload : mPayloads) {
+            bytes += payload.length * Integer.BYTES;
+        }
+        // Empty payloads of unsupported versions still take an entry
+        return Math.max(bytes, Integer.BYTES);
+    }
+
+    /**
+     * @return Payload to send, HE 2.0 payloads are copied with {@code seq} filled in.
+     */
+    int[] getPayload(int index, int seq) {
+        if (mHeVersion != 2) {
+            return mPayloads[index];
+        }
+        final int[] payload = mPayloads[index].clone();
+        payload[HE_2_0_SEQ_INDEX] = seq;
+        return payload;
+    }
+
+    /**
+     * Result of the RichTap version check, null if not checked yet.
+     */
+    Boolean getSdkSupported() {
+        return mSdkSupported;
+    }
+
+    void setSdkSupported(boolean supported) {
+        mSdkSupported = supported;
+    }
+
+    private static CompiledHePattern compile(Key key, String patternString) {
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+        int heVersion = 0;
+        RawEvent[] he1Events = null;
+        RawPattern[] he2Patterns = null;
+        try (JsonReader reader = new JsonReader(new StringReader(patternString))) {
+            // Be as tolerant as org.json
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case HE_META_DATA_KEY:
+                        heVersion = readVersion(reader);
+                        break;
+                    case PATTERN_KEY_PATTERN:
+                        he1Events = readEvents(reader);
+                        break;
+                    case PATTERN_KEY_PATTERN_LIST:
+                        he2Patterns = readPatterns(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "failed to parse he", e);
+            return null;
+        }
+
+        final int[][] payloads;
+        final int patternNum;
+        if (heVersion == 1) {
+            final int[] payload = compileHe_1_0(he1Events);
+            if (payload == null) {
+                return null;
+            }
+            payloads = new int[][] { payload };
+            patternNum = 1;
+        } else if (heVersion == 2) {
+            payloads = compileHe_2_0(he2Patterns);
+            if (payloads == null) {
+                return null;
+            }
+            patternNum = he2Patterns.length;
+        } else {
+            // Let the caller report the version
+            payloads = new int[0][];
+            patternNum = 0;
+        }
+        return new CompiledHePattern(key, heVersion, patternNum, payloads,
+                SystemClock.elapsedRealtimeNanos() - startTime);
+    }
+
+    private static int[] compileHe_1_0(RawEvent[] events) {
+        if (events == null || events.length == 0) {
+            Log.e(TAG, "he 1.0 doesn't have any event");
+            return null;
+        }
+        final int eventNum = Math.min(events.length, MAX_EVENT_COUNT);
+        final int[] data = new int[1 + eventNum * HE_VALUE_LENGTH];
+        data[0] = HE_1_0_HEADER;
+
+        for (int ind = 0; ind < eventNum; ind++) {
+            final RawEvent event = events[ind];
+            final int base = 1 + ind * HE_VALUE_LENGTH;
+
+            final int type = getEventType(event);
+            if (type == 0) {
+                return notCompliance();
+            }
+            int relativeTime;
+            if (!event.mHasRelativeTime) {
+                Log.e(TAG, "event: " + ind + ", don't have relativeTime parameters, set default: "
+                        + (ind * HE_DEFAULT_RELATIVE_TIME));
+                relativeTime = ind * HE_DEFAULT_RELATIVE_TIME;
+            } else {
+                relativeTime = event.mRelativeTime;
+            }
+            if (!isInTheInterval(relativeTime, 0, 50000)) {
+                Log.e(TAG, "relativeTime must between 0 and 50000");
+                return notCompliance();
+            }
+            if (!checkParameters(event)) {
+                return notCompliance();
+            }
+            data[base + HE_TYPE] = type;
+            data[base + HE_RELATIVE_TIME] = relativeTime;
+            data[base + HE_INTENSITY] = event.mIntensity;
+            data[base + HE_FREQUENCY] = event.mFrequency;
+
+            if (type != CONTINUOUS_EVENT) {
+                continue;
+            }
+            int duration;
+            if (!event.mHasDuration) {
+                Log.e(TAG, "event: " + ind + ", don't have duration parameters, set default: "
+                        + HE_DEFAULT_DURATION);
+                duration = HE_DEFAULT_DURATION;
+            } else {
+                duration = event.mDuration;
+            }
+            if (!isInTheInterval(duration, 0, 5000)) {
+                Log.e(TAG, "duration must be less than 5000");
+                return notCompliance();
+            }
+            if (event.mCurve == null) {
+                Log.e(TAG, "event: " + ind + ", don't have curve");
+                return notCompliance();
+            }
+            data[base + HE_DURATION] = duration;
+            data[base + HE_VIB_INDEX] = 0;
+
+            final int pointCount = Math.min(event.mPointNum, MAX_POINT_COUNT);
+            data[base + HE_POINT_COUNT] = pointCount;
+            for (int i = 0; i < pointCount; i++) {
+                final int pointTime = event.mCurve[i * 3];
+                final int pointIntensity = event.mCurve[i * 3 + 1];
+                final int pointFrequency = event.mCurve[i * 3 + 2];
+                if (i == 0 && (pointTime != 0 || pointIntensity != 0 ||
+                        !isInTheInterval(pointFrequency, -100, 100))) {
+                    Log.e(TAG, "first point's time, intensity must be 0, frequency must between -100 and 100");
+                    return notCompliance();
+                } else if (i > 0 && i < pointCount - 1 && (!isInTheInterval(pointTime, 0, 5000) ||
+                        !isInTheInterval(pointIntensity, 0, 100) ||
+                        !isInTheInterval(pointFrequency, -100, 100))) {
+                    // intensity value has multi 100, so interval is 0 ~ 100
+                    Log.e(TAG,
+                            "point's time must be less than 5000, intensity must between 0 and 1, frequency must between -100 and 100");
+                    return notCompliance();
+                } else if (i == pointCount - 1 && (pointTime != duration || pointIntensity != 0 ||
+                        !isInTheInterval(pointFrequency, -100, 100))) {
+                    Log.e(TAG,
+                            "last point's time must equal with duration, and intensity must be 0, frequency must between -100 and 100");
+                    return notCompliance();
+                }
+                data[base + HE_CURVE_POINT_0_TIME + i * 3] = pointTime;
+                data[base + HE_CURVE_POINT_0_INTENSITY + i * 3] = pointIntensity;
+                data[base + HE_CURVE_POINT_0_FREQUENCY + i * 3] = pointFrequency;
+            }
+        }
+        return data;
+    }
+
+    private static int[][] compileHe_2_0(RawPattern[] patterns) {
+        if (patterns == null) {
+            Log.e(TAG, "he 2.0 doesn't have pattern list");
+            return null;
+        }
+        final int patternNum = patterns.length;
+        final int[][] patternData = new int[patternNum][];
+        int relativeTimeLast = 0;
+        int durationLast = 0;
+
+        for (int ind = 0; ind < patternNum; ind++) {
+            final RawPattern pattern = patterns[ind];
+            if (!pattern.mHasAbsoluteTime || pattern.mEvents == null) {
+                Log.e(TAG, "pattern: " + ind + ", don't have absolute time or events");
+                return null;
+            }
+            final int patternDurationTime = relativeTimeLast + durationLast;
+            if (ind > 0 && pattern.mAbsoluteTime < patternDurationTime) {
+                Log.e(TAG, "Bad pattern relative time in int: " + ind);
+                return null;
+            }
+
+            final RawEvent[] events = pattern.mEvents;
+            int dataLen = PATTERN_HEADER_LEN;
+            int eventRelativeTime = -1;
+            for (int i = 0; i < events.length; i++) {
+                final RawEvent event = events[i];
+                final int type = getEventType(event);
+                if (type == 0) {
+                    return notCompliance();
+                }
+                if (!event.mHasIndex) {
+                    Log.e(TAG, "pattern ind: " + ind + ", event: " + i + ", don't have index");
+                    return null;
+                }
+                if (!event.mHasRelativeTime) {
+                    Log.e(TAG, "event: " + ind + ", don't have relativeTime parameters, BAD he!");
+                    return null;
+                }
+                relativeTimeLast = event.mRelativeTime;
+                if (i > 0 && relativeTimeLast < eventRelativeTime) {
+                    Log.e(TAG, "pattern ind: " + ind + ", event: " + i + ", relative time is not right!");
+                    return null;
+                }
+                eventRelativeTime = relativeTimeLast;
+                if (!isInTheInterval(relativeTimeLast, 0, 50000)) {
+                    Log.e(TAG, "relativeTime must between 0 and 50000");
+                    return notCompliance();
+                }
+                if (!checkParameters(event)) {
+                    return notCompliance();
+                }
+                if (type != CONTINUOUS_EVENT) {
+                    dataLen += TRANSIENT_EVENT_LEN;
+                    continue;
+                }
+                if (!event.mHasDuration) {
+                    Log.e(TAG, "event: " + ind + ", don't have duration parameters");
+                    return null;
+                }
+                durationLast = event.mDuration;
+                if (!isInTheInterval(durationLast, 0, 5000)) {
+                    Log.e(TAG, "duration must be less than 5000");
+                    return notCompliance();
+                }
+                if (event.mCurve == null) {
+                    Log.e(TAG, "event: " + ind + ", don't have curve");
+                    return notCompliance();
+                }
+                int prevPointTime = -1;
+                int pointLastTime = 0;
+                for (int p = 0; p < event.mPointNum; p++) {
+                    final int pointTime = event.mCurve[p * 3];
+                    if (p == 0 && pointTime != 0) {
+                        Log.d(TAG, "time of first point is not 0, bad he!");
+                        return null;
+                    }
+                    if (p > 0 && pointTime < prevPointTime) {
+                        Log.d(TAG, "point times did not arrange in order, bad he!");
+                        return null;
+                    }
+                    prevPointTime = pointTime;
+                    pointLastTime = pointTime;
+                }
+                if (pointLastTime != durationLast) {
+                    Log.e(TAG, "event: " + ind + ", point last time do not match duration parameter");
+                    return null;
+                }
+                if (event.mPointNum == 0) {
+                    Log.d(TAG, "continuous event has nothing in point");
+                    return notCompliance();
+                }
+                dataLen += CONTINUOUS_EVENT_LEN + event.mPointNum * 3;
+            }
+            patternData[ind] = serializePattern(ind, pattern, dataLen);
+        }
+
+        // Split into wrappers of HE2_0_PATTERN_WRAP_NUM patterns
+        final int wrapperNum = (patternNum + HE2_0_PATTERN_WRAP_NUM - 1) / HE2_0_PATTERN_WRAP_NUM;
+        final int[][] payloads = new int[wrapperNum][];
+        final int pid = Process.myPid();
+        for (int w = 0; w < wrapperNum; w++) {
+            final int start = w * HE2_0_PATTERN_WRAP_NUM;
+            final int end = Math.min(patternNum, start + HE2_0_PATTERN_WRAP_NUM);
+            int len = HE_2_0_HEADER_LEN;
+            for (int i = start; i < end; i++) {
+                len += patternData[i].length;
+            }
+            final int[] data = new int[len];
+            data[0] = FORMAT_VERSION;
+            data[1] = 2;
+            data[2] = pid;
+            data[4] = (patternNum & 0x0000FFFF) | (((end - start) << 16) & 0xFFFF0000);
+            int offset = HE_2_0_HEADER_LEN;
+            for (int i = start; i < end; i++) {
+                System.arraycopy(patternData[i], 0, data, offset, patternData[i].length);
+                offset += patternData[i].length;
+            }
+            payloads[w] = data;
+        }
+        return payloads;
+    }
+
+    private static int[] serializePattern(int index, RawPattern pattern, int dataLen) {
+        final int[] data = new int[dataLen];
+        data[0] = index;
+        data[1] = pattern.mAbsoluteTime;
+        data[2] = pattern.mEvents.length;
+        int offset = PATTERN_HEADER_LEN;
+        for (RawEvent event : pattern.mEvents) {
+            final boolean continuous = getEventType(event) == CONTINUOUS_EVENT;
+            final int len = continuous
+                    ? CONTINUOUS_EVENT_LEN + event.mPointNum * 3 : TRANSIENT_EVENT_LEN;
+            data[offset] = continuous ? CONTINUOUS_EVENT : TRANSIENT_EVENT;
+            data[offset + 1] = len - 2;
+            data[offset + 2] = (byte) event.mIndex;
+            data[offset + 3] = event.mRelativeTime;
+            data[offset + 4] = event.mIntensity;
+            data[offset + 5] = event.mFrequency;
+            if (continuous) {
+                data[offset + 6] = event.mDuration;
+                data[offset + 7] = event.mPointNum;
+                System.arraycopy(event.mCurve, 0, data, offset + CONTINUOUS_EVENT_LEN,
+                        event.mPointNum * 3);
+            }
+            offset += len;
+        }
+        return data;
+    }
+
+    private static int getEventType(RawEvent event) {
+        if (EVENT_TYPE_HE_CONTINUOUS_NAME.equals(event.mType)) {
+            return CONTINUOUS_EVENT;
+        }
+        if (EVENT_TYPE_HE_TRANSIENT_NAME.equals(event.mType)) {
+            return TRANSIENT_EVENT;
+        }
+        Log.e(TAG, "haven't get type value");
+        return 0;
+    }
+
+    private static boolean checkParameters(RawEvent event) {
+        if (!event.mHasParameters || !event.mHasIntensity || !event.mHasFrequency) {
+            Log.e(TAG, "haven't get parameters value");
+            return false;
+        }
+        if (!isInTheInterval(event.mIntensity, 0, 100) || !isInTheInterval(event.mFrequency, 0, 100)) {
+            Log.e(TAG, "intensity or frequency must between 0 and 100");
+            return false;
+        }
+        return true;
+    }
+
+    private static <T> T notCompliance() {
+        Log.e(TAG, "current he file data, isn't compliance!");
+        return null;
+    }
+
+    private static boolean isInTheInterval(int data, int a, int b) {
+        return data >= a && data <= b;
+    }
+
+    private static int readVersion(JsonReader reader) throws IOException {
+        int version = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (HE_VERSION_KEY.equals(reader.nextName())) {
+                version = readInt(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return version;
+    }
+
+    private static RawPattern[] readPatterns(JsonReader reader) throws IOException {
+        final ArrayList<RawPattern> patterns = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            final RawPattern pattern = new RawPattern();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case PATTERN_KEY_PATTERN_ABS_TIME:
+                        pattern.mHasAbsoluteTime = true;
+                        pattern.mAbsoluteTime = readInt(reader);
+                        break;
+                    case PATTERN_KEY_PATTERN:
+                        pattern.mEvents = readEvents(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            patterns.add(pattern);
+        }
+        reader.endArray();
+        return patterns.toArray(new RawPattern[0]);
+    }
+
+    private static RawEvent[] readEvents(JsonReader reader) throws IOException {
+        final ArrayList<RawEvent> events = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            RawEvent event = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (EVENT_KEY_EVENT.equals(reader.nextName())) {
+                    event = readEvent(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (event == null) {
+                throw new IOException("missing " + EVENT_KEY_EVENT);
+            }
+            events.add(event);
+        }
+        reader.endArray();
+        return events.toArray(new RawEvent[0]);
+    }
+
+    private static RawEvent readEvent(JsonReader reader) throws IOException {
+        final RawEvent event = new RawEvent();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case EVENT_KEY_HE_TYPE:
+                    event.mType = reader.nextString();
+                    break;
+                case EVENT_KEY_RELATIVE_TIME:
+                    event.mHasRelativeTime = true;
+                    event.mRelativeTime = readInt(reader);
+                    break;
+                case EVENT_KEY_DURATION:
+                    event.mHasDuration = true;
+                    event.mDuration = readInt(reader);
+                    break;
+                case PATTERN_KEY_EVENT_VIB_ID:
+                    event.mHasIndex = true;
+                    event.mIndex = readInt(reader);
+                    break;
+                case EVENT_KEY_HE_PARAMETERS:
+                    readParameters(reader, event);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return event;
+    }
+
+    private static void readParameters(JsonReader reader, RawEvent event) throws IOException {
+        event.mHasParameters = true;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case EVENT_KEY_HE_INTENSITY:
+                    event.mHasIntensity = true;
+                    event.mIntensity = readInt(reader);
+                    break;
+                case EVENT_KEY_HE_FREQUENCY:
+                    event.mHasFrequency = true;
+                    event.mFrequency = readInt(reader);
+                    break;
+                case EVENT_KEY_HE_CURVE:
+                    readCurve(reader, event);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readCurve(JsonReader reader, RawEvent event) throws IOException {
+        int[] curve = new int[MAX_POINT_COUNT * 3];
+        int pointNum = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if ((pointNum + 1) * 3 > curve.length) {
+                final int[] newCurve = new int[curve.length * 2];
+                System.arraycopy(curve, 0, newCurve, 0, curve.length);
+                curve = newCurve;
+            }
+            boolean hasTime = false, hasIntensity = false, hasFrequency = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case EVENT_KEY_HE_CURVE_POINT_TIME:
+                        hasTime = true;
+                        curve[pointNum * 3] = readInt(reader);
+                        break;
+                    case EVENT_KEY_HE_INTENSITY:
+                        hasIntensity = true;
+                        curve[pointNum * 3 + 1] = (int) (reader.nextDouble() * 100); // * 100
+                        break;
+                    case EVENT_KEY_HE_FREQUENCY:
+                        hasFrequency = true;
+                        curve[pointNum * 3 + 2] = readInt(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            if (!hasTime || !hasIntensity || !hasFrequency) {
+                throw new IOException("curve point " + pointNum + " is incomplete");
+            }
+            pointNum++;
+        }
+        reader.endArray();
+        event.mCurve = curve;
+        event.mPointNum = pointNum;
+    }
+
+    private static int readInt(JsonReader reader) throws IOException {
+        // Same as JSONObject.getInt(), accept doubles and truncate them
+        return (int) reader.nextDouble();
+    }
+}
@@ -7,17 +7,12 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.text.TextUtils;
 import android.util.Log;
 
-import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 @SuppressLint("NotCloseable")
 public class HapticPlayer {
 
@@ -65,13 +60,13 @@ public class HapticPlayer {
     private static final int MAX_INTENSITY = 100;
     private static final int MAX_FREQ = 100;
 
-    private static final int MAX_EVENT_COUNT = 16;
-    private static final int MAX_POINT_COUNT = 16;
+    static final int MAX_EVENT_COUNT = 16;
+    static final int MAX_POINT_COUNT = 16;
 
-    private static final String PATTERN_KEY_PATTERN_LIST = "PatternList";
+    static final String PATTERN_KEY_PATTERN_LIST = "PatternList";
 
-    private static final String HE_META_DATA_KEY = "Metadata";
-    private static final String HE_VERSION_KEY = "Version";
+    static final String HE_META_DATA_KEY = "Metadata";
+    static final String HE_VERSION_KEY = "Version";
 
     public static final String PATTERN_KEY_PATTERN_ABS_TIME = "AbsoluteTime";
     public static final String PATTERN_KEY_EVENT_VIB_ID = "Index";
@@ -88,6 +83,21 @@ public class HapticPlayer {
     private DynamicEffect mEffect = null;
     private boolean mStarted = false;
 
+    // Last started pattern, parameter updates and restarts don't need to parse it again
+    private volatile CompiledHePattern mPattern;
+
+    // Bumped by stop(), starts still queued from before are dropped
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    // Updates queued on EXCUTOR are merged, only the latest values are sent.
+    // -1 means not changed, same as applyPatternHeParam.
+    private final Object mPendingLock = new Object();
+    private boolean mParamPending = false;
+    private int mPendingInterval = -1;
+    private int mPendingAmplitude = -1;
+    private int mPendingFreq = -1;
+    private boolean mStopPending = false;
+
     private HapticPlayer() {
         mPackageName = ActivityThread.currentPackageName();
         Context ctx = ActivityThread.currentActivityThread().getSystemContext();
@@ -99,10 +109,6 @@ public class HapticPlayer {
         mEffect = effect;
     }
 
-    private static boolean isInTheInterval(int data, int a, int b) {
-        return data >= a && data <= b;
-    }
-
     private static boolean isSupportRichtap() {
         return RichTapVibrationEffect.checkIfRichTapSupport() != VIBRATION_EFFECT_SUPPORT_NO;
     }
@@ -164,381 +170,6 @@ public class HapticPlayer {
         return true;
     }
 
-    private int[] getSerializationDataHe_1_0(String patternString) {
-        int totalDuration;
-        int relativeTimeLast = 0;
-        int durationLast = 0;
-        int[] patternHeInfo = null;
-        try {
-            JSONObject hapticObject = new JSONObject(patternString);
-            JSONArray pattern = hapticObject.getJSONArray(PATTERN_KEY_PATTERN);
-            int eventNumberTmp = Math.min(pattern.length(), MAX_EVENT_COUNT);
-            int len = eventNumberTmp * HE_VALUE_LENGTH;
-            patternHeInfo = new int[len];
-
-            boolean isCompliance = true;
-
-            for (int ind = 0; ind < eventNumberTmp; ind++) {
-                JSONObject patternObject = pattern.getJSONObject(ind);
-                JSONObject eventObject = patternObject.getJSONObject(EVENT_KEY_EVENT);
-
-                // get type
-                String name = eventObject.getString(EVENT_KEY_HE_TYPE);
-                int type;
-                if (TextUtils.equals(EVENT_TYPE_HE_CONTINUOUS_NAME, name)) {
-                    type = CONTINUOUS_EVENT;
-                } else if (TextUtils.equals(EVENT_TYPE_HE_TRANSIENT_NAME, name)) {
-                    type = TRANSIENT_EVENT;
-                } else {
-                    // err data
-                    Log.e(TAG, "haven't get type value");
-                    isCompliance = false;
-                    break;
-                }
-                // get RelativeTime
-                if (!eventObject.has(EVENT_KEY_RELATIVE_TIME)) {
-                    Log.e(TAG, "event: " + ind + ", don't have relativeTime parameters, set default: "
-                            + (ind * HE_DEFAULT_RELATIVE_TIME));
-                    relativeTimeLast = ind * HE_DEFAULT_RELATIVE_TIME;
-                } else {
-                    relativeTimeLast = eventObject.getInt(EVENT_KEY_RELATIVE_TIME);
-                }
-                if (!isInTheInterval(relativeTimeLast, 0, 50000)) {
-                    Log.e(TAG, "relativeTime must between 0 and 50000");
-                    isCompliance = false;
-                    break;
-                }
-                // get Parameters
-                JSONObject parametersObject = eventObject.getJSONObject(EVENT_KEY_HE_PARAMETERS);
-                int intensity = parametersObject.getInt(EVENT_KEY_HE_INTENSITY);
-                int frequency = parametersObject.getInt(EVENT_KEY_HE_FREQUENCY);
-                if (!isInTheInterval(intensity, 0, 100) || !isInTheInterval(frequency, 0, 100)) {
-                    Log.e(TAG, "intensity or frequency must between 0 and 100");
-                    isCompliance = false;
-                    break;
-                }
-                patternHeInfo[ind * HE_VALUE_LENGTH + HE_TYPE] = type;
-                patternHeInfo[ind * HE_VALUE_LENGTH + HE_RELATIVE_TIME] = relativeTimeLast;
-                patternHeInfo[ind * HE_VALUE_LENGTH + HE_INTENSITY] = intensity;
-                patternHeInfo[ind * HE_VALUE_LENGTH + HE_FREQUENCY] = frequency;
-
-                if (type == CONTINUOUS_EVENT) {
-                    // get Duration
-                    if (!eventObject.has(EVENT_KEY_DURATION)) {
-                        Log.e(TAG, "event: " + ind + ", don't have duration parameters, set default: "
-                                + HE_DEFAULT_DURATION);
-                        durationLast = HE_DEFAULT_DURATION;
-                    } else {
-                        durationLast = eventObject.getInt(EVENT_KEY_DURATION);
-                    }
-                    if (!isInTheInterval(durationLast, 0, 5000)) {
-                        Log.e(TAG, "duration must be less than 5000");
-                        isCompliance = false;
-                        break;
-                    }
-                    patternHeInfo[ind * HE_VALUE_LENGTH + HE_DURATION] = durationLast;
-                    patternHeInfo[ind * HE_VALUE_LENGTH + HE_VIB_INDEX] = 0;
-
-                    JSONArray curve = parametersObject.getJSONArray(EVENT_KEY_HE_CURVE);
-                    int pointCount = Math.min(curve.length(), MAX_POINT_COUNT);
-                    patternHeInfo[ind * HE_VALUE_LENGTH + HE_POINT_COUNT] = pointCount;
-
-                    // points data
-                    for (int i = 0; i < pointCount; i++) {
-                        JSONObject curveObject = curve.getJSONObject(i);
-                        // get curve points data
-                        int pointTime = curveObject.getInt(EVENT_KEY_HE_CURVE_POINT_TIME);
-                        int pointIntensity = (int) (curveObject.getDouble(EVENT_KEY_HE_INTENSITY) * 100); // * 100
-                        int pointFrequency = curveObject.getInt(EVENT_KEY_HE_FREQUENCY);
-                        if (i == 0 && (pointTime != 0 || pointIntensity != 0 ||
-                                !isInTheInterval(pointFrequency, -100, 100))) {
-                            Log.e(TAG, "first point's time, intensity must be 0, frequency must between -100 and 100");
-                            isCompliance = false;
-                            break;
-                        } else if (i > 0 && i < pointCount - 1 && (!isInTheInterval(pointTime, 0, 5000) ||
-                                !isInTheInterval(pointIntensity, 0, 100) ||
-                                !isInTheInterval(pointFrequency, -100, 100))) {
-                            // intensity value has multi 100, so interval is 0 ~ 100
-                            Log.e(TAG,
-                                    "point's time must be less than 5000, intensity must between 0 and 1, frequency must between -100 and 100");
-                            isCompliance = false;
-                            break;
-                        } else if (i == pointCount - 1 && (pointTime != durationLast || pointIntensity != 0 ||
-                                !isInTheInterval(pointFrequency, -100, 100))) {
-                            Log.e(TAG,
-                                    "last point's time must equal with duration, and intensity must be 0, frequency must between -100 and 100");
-                            isCompliance = false;
-                            break;
-                        }
-
-                        patternHeInfo[ind * HE_VALUE_LENGTH + (HE_CURVE_POINT_0_TIME + i * 3)] = pointTime;
-                        patternHeInfo[ind * HE_VALUE_LENGTH + (HE_CURVE_POINT_0_INTENSITY + i * 3)] = pointIntensity;
-                        patternHeInfo[ind * HE_VALUE_LENGTH + (HE_CURVE_POINT_0_FREQUENCY + i * 3)] = pointFrequency;
-                    }
-                }
-                if (!isCompliance) {
-                    break;
-                }
-                if (DEBUG_RICHTAP) {
-                    for (int i = 0; i < HE_VALUE_LENGTH; i++) {
-                        Log.d(TAG,
-                                "patternHeInfo[" + ind + "][" + i + "]: " + patternHeInfo[ind * HE_VALUE_LENGTH + i]);
-                    }
-                }
-            }
-            // Compliance check
-            if (!isCompliance) {
-                Log.e(TAG, "current he file data, isn't compliance!");
-                return null;
-            }
-
-            int lastEventIndex = (eventNumberTmp - 1) * HE_VALUE_LENGTH + HE_TYPE;
-            if (patternHeInfo[lastEventIndex] == CONTINUOUS_EVENT) {
-                totalDuration = relativeTimeLast + durationLast;
-                Log.d(TAG, "last event type is continuous, totalDuration: " + totalDuration);
-            } else {
-                totalDuration = relativeTimeLast + 80;
-                Log.d(TAG, "last event type is transient, totalDuration: " + totalDuration);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-        return patternHeInfo;
-    }
-
-    int[] generateSerializationDataHe_2_0(int formatVersion, int heVersion, int totalPattern,
-            int pid, int seq, int indexBase, Pattern[] pattern) {
-        int totalPatternLen = 0;
-        int patternOffset = 5;
-        for (Pattern patternTmp : pattern) {
-            totalPatternLen += patternTmp.getPatternDataLen();
-        }
-        int[] data = new int[patternOffset + totalPatternLen];
-        Arrays.fill(data, 0);
-
-        data[0] = formatVersion;
-        data[1] = heVersion;
-        data[2] = pid;
-        data[3] = seq;
-        data[4] |= totalPattern & 0x0000FFFF;
-        int patternNum = pattern.length;
-        data[4] |= ((patternNum << 16) & 0xFFFF0000);
-
-        int index = indexBase;
-        int[] patternData = null;
-
-        for (Pattern patternTmp : pattern) {
-            patternData = patternTmp.generateSerializationPatternData(indexBase);
-            System.arraycopy(patternData, 0, data, patternOffset, patternData.length);
-            patternOffset += patternData.length;
-            indexBase++;
-        }
-        return data;
-    }
-
-    void sendPatternWrapper(int seq, int pid, int heVersion, int loop, int interval,
-            int amplitude, int freq, int totalPatternNum,
-            int patternIndexOffset, Pattern[] list) {
-        int[] patternHe = generateSerializationDataHe_2_0(FORMAT_VERSION, heVersion,
-                totalPatternNum, pid, seq, patternIndexOffset, list);
-        try {
-            VibrationEffect createPatternHe = RichTapVibrationEffect.createPatternHeWithParam(
-                    patternHe, loop, interval, amplitude, freq);
-            VibrationAttributes atr = new VibrationAttributes.Builder().build();
-            CombinedVibration combinedEffect = CombinedVibration.createParallel(createPatternHe);
-            mVibratorManager.vibrate(Process.myUid(), mPackageName, combinedEffect, VIBRATE_REASON, atr);
-        } catch (Exception e) {
-            e.printStackTrace();
-            Log.w(TAG, "for createPatternHe, The system doesn't integrate richTap software");
-        }
-    }
-
-    private void parseAndSendDataHe_2_0(int seq, int pid, int heVersion, int loop, int interval,
-            int amplitude, int freq, String patternString) {
-        int relativeTimeLast = 0;
-        int durationLast = 0;
-        byte[] patternHeInfo = null;
-        Pattern[] patternList = null;
-        try {
-            JSONObject hapticObject = new JSONObject(patternString);
-            JSONArray patternArray = hapticObject.getJSONArray(PATTERN_KEY_PATTERN_LIST);
-            int patternNum = patternArray.length();
-            patternHeInfo = new byte[patternNum * 64];
-
-            boolean isCompliance = true;
-            patternList = new Pattern[patternNum];
-            int wrapperOffset = 0, wrapperIndex = 0;
-            for (int ind = 0; ind < patternNum;) {
-                Pattern pattern = new Pattern();
-                JSONObject patternObject = patternArray.getJSONObject(ind);
-                int patternRelativeTime = patternObject.getInt(PATTERN_KEY_PATTERN_ABS_TIME);
-                pattern.mRelativeTime = patternRelativeTime;
-
-                int patternDurationTime = relativeTimeLast + durationLast;
-                if (ind > 0 && patternRelativeTime < patternDurationTime) {
-                    Log.e(TAG, "Bad pattern relative time in int: " + ind);
-                    return;
-                }
-
-                JSONArray eventArray = patternObject.getJSONArray(PATTERN_KEY_PATTERN);
-                pattern.mEvent = new Event[eventArray.length()];
-
-                int eventRelativeTime = -1;
-                for (int event = 0; event < eventArray.length(); event++) {
-                    JSONObject eventObject = eventArray.getJSONObject(event);
-                    JSONObject eventTemp = eventObject.getJSONObject(EVENT_KEY_EVENT);
-                    // get type
-                    String name = eventTemp.getString(EVENT_KEY_HE_TYPE);
-                    int type;
-                    if (TextUtils.equals(EVENT_TYPE_HE_CONTINUOUS_NAME, name)) {
-                        type = CONTINUOUS_EVENT;
-                        pattern.mEvent[event] = new ContinuousEvent();
-                    } else if (TextUtils.equals(EVENT_TYPE_HE_TRANSIENT_NAME, name)) {
-                        type = TRANSIENT_EVENT;
-                        pattern.mEvent[event] = new TransientEvent();
-                    } else {
-                        // err data
-                        Log.e(TAG, "haven't get type value");
-                        isCompliance = false;
-                        break;
-                    }
-
-                    int vibId = eventTemp.getInt(PATTERN_KEY_EVENT_VIB_ID);
-                    pattern.mEvent[event].mVibId = (byte) vibId;
-                    // get RelativeTime
-                    if (!eventTemp.has(EVENT_KEY_RELATIVE_TIME)) {
-                        Log.e(TAG, "event: " + ind + ", don't have relativeTime parameters, BAD he!");
-                        // relativeTimeLast = ind * HE_DEFAULT_RELATIVE_TIME;
-                        return;
-                    } else {
-                        relativeTimeLast = eventTemp.getInt(EVENT_KEY_RELATIVE_TIME);
-                        if (event > 0 && relativeTimeLast < eventRelativeTime) {
-                            Log.e(TAG, "pattern ind: " + ind + ", event: " + event + ", relative time is not right!");
-                            return;
-                        }
-                        eventRelativeTime = relativeTimeLast;
-                    }
-                    if (!isInTheInterval(relativeTimeLast, 0, 50000)) {
-                        Log.e(TAG, "relativeTime must between 0 and 50000");
-                        isCompliance = false;
-                        break;
-                    }
-                    // get Parameters
-                    JSONObject parametersObject = eventTemp.getJSONObject(EVENT_KEY_HE_PARAMETERS);
-                    int intensity = parametersObject.getInt(EVENT_KEY_HE_INTENSITY);
-                    int frequency = parametersObject.getInt(EVENT_KEY_HE_FREQUENCY);
-                    if (!isInTheInterval(intensity, 0, 100) || !isInTheInterval(frequency, 0, 100)) {
-                        Log.e(TAG, "intensity or frequency must between 0 and 100");
-                        isCompliance = false;
-                        break;
-                    }
-                    pattern.mEvent[event].mType = type;
-                    pattern.mEvent[event].mRelativeTime = relativeTimeLast;
-                    pattern.mEvent[event].mIntensity = intensity;
-                    pattern.mEvent[event].mFreq = frequency;
-
-                    if (type == CONTINUOUS_EVENT) {
-                        // get Duration
-                        if (!eventTemp.has(EVENT_KEY_DURATION)) {
-                            Log.e(TAG, "event: " + ind + ", don't have duration parameters");
-                            // durationLast = HE_DEFAULT_DURATION;
-                            return;
-                        } else {
-                            durationLast = eventTemp.getInt(EVENT_KEY_DURATION);
-                        }
-                        if (!isInTheInterval(durationLast, 0, 5000)) {
-                            Log.e(TAG, "duration must be less than 5000");
-                            isCompliance = false;
-                            break;
-                        }
-                        // patternHeInfo[ind * HE_VALUE_LENGTH + HE_DURATION] = durationLast;
-                        pattern.mEvent[event].mDuration = durationLast;
-
-                        JSONArray curve = parametersObject.getJSONArray(EVENT_KEY_HE_CURVE);
-                        ((ContinuousEvent) pattern.mEvent[event]).mPointNum = (byte) curve.length();
-                        Point[] piontArray = new Point[curve.length()];
-                        // points data
-                        int prevPointTime = -1;
-                        int i = 0;
-                        int pointLastTime = 0;
-                        for (; i < curve.length(); i++) {
-                            JSONObject curveObject = curve.getJSONObject(i);
-                            piontArray[i] = new Point();
-                            // get curve points data
-                            int pointTime = curveObject.getInt(EVENT_KEY_HE_CURVE_POINT_TIME);
-                            int pointIntensity = (int) (curveObject.getDouble(EVENT_KEY_HE_INTENSITY) * 100);// * 100
-                            int pointFrequency = curveObject.getInt(EVENT_KEY_HE_FREQUENCY);
-
-                            if (i == 0 && pointTime != 0) {
-                                Log.d(TAG, "time of first point is not 0, bad he!");
-                                return;
-                            }
-                            if (i > 0 && pointTime < prevPointTime) {
-                                Log.d(TAG, "point times did not arrange in order, bad he!");
-                                return;
-                            }
-                            prevPointTime = pointTime;
-                            piontArray[i].mTime = pointTime;
-                            piontArray[i].mIntensity = pointIntensity;
-                            piontArray[i].mFreq = pointFrequency;
-                            pointLastTime = pointTime;
-                        }
-                        if (pointLastTime != durationLast) {
-                            Log.e(TAG, "event: " + ind + ", point last time do not match duration parameter");
-                            return;
-                        }
-                        if (piontArray.length > 0) {
-                            ((ContinuousEvent) pattern.mEvent[event]).mPoint = piontArray;
-                        } else {
-                            Log.d(TAG, "continuous event has nothing in point");
-                            isCompliance = false;
-                        }
-                    }
-                    if (!isCompliance) {
-                        break;
-                    }
-
-                    if (DEBUG_RICHTAP) {
-                        for (int i = 0; i < HE_VALUE_LENGTH; i++) {
-                            Log.d(TAG, "patternHeInfo[" + ind + "][" + i + "]: "
-                                    + patternHeInfo[ind * HE_VALUE_LENGTH + i]);
-                        }
-                    }
-                }
-                // Compliance check
-                if (!isCompliance) {
-                    Log.e(TAG, "current he file data, isn't compliance!!!!!!!");
-                    return;
-                }
-                patternList[ind] = pattern;
-                ind++;
-                if (ind >= HE2_0_PATTERN_WRAP_NUM * (wrapperIndex + 1)) {
-                    Pattern[] patternWrapper = new Pattern[HE2_0_PATTERN_WRAP_NUM];
-                    for (int i = 0; i < HE2_0_PATTERN_WRAP_NUM; i++) {
-                        patternWrapper[i] = patternList[wrapperOffset + i];
-                    }
-                    sendPatternWrapper(seq, pid, heVersion, loop, interval, amplitude,
-                            freq, patternNum, wrapperOffset, patternWrapper);
-                    wrapperIndex++;
-                    wrapperOffset = HE2_0_PATTERN_WRAP_NUM * wrapperIndex;
-                }
-
-            }
-            if (wrapperOffset < patternList.length) {
-                int endWapperNum = patternList.length - wrapperOffset;
-                Pattern[] patternWrapper = new Pattern[endWapperNum];
-                for (int i = 0; i < patternWrapper.length; i++) {
-                    patternWrapper[i] = patternList[wrapperOffset + i];
-                }
-                sendPatternWrapper(seq, pid, heVersion, loop, interval, amplitude,
-                        freq, patternNum, wrapperOffset, patternWrapper);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
     public void applyPatternHeWithString(@Nullable String patternString,
             int loop, int interval, int amplitude, int freq) {
         Log.d(TAG, "play new he api");
@@ -546,58 +177,81 @@ public class HapticPlayer {
             Log.e(TAG, "The minimum count of loop pattern is 1");
             return;
         }
-        try {
-            JSONObject hapticObject = new JSONObject(patternString);
-            int heVersion = 0;
-            if (AVAILABLE) {
-                JSONObject metaData = hapticObject.getJSONObject(HE_META_DATA_KEY);
-                heVersion = metaData.getInt(HE_VERSION_KEY);
+        if (patternString == null) {
+            Log.e(TAG, "pattern is null");
+            return;
+        }
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+        final CompiledHePattern pattern = obtainPattern(patternString);
+        if (pattern == null) {
+            Log.e(TAG, "serialize he failed");
+            return;
+        }
+        final long dispatchTime = SystemClock.elapsedRealtimeNanos();
+
+        int heVersion = 0;
+        if (AVAILABLE) {
+            heVersion = pattern.mHeVersion;
+            Boolean checkPass = pattern.getSdkSupported();
+            if (checkPass == null) {
                 int richTapMajorVersion = getMajorVersion();
                 int richTapMinorVersion = getMinorVersion();
-                boolean checkPass = checkSdkSupport(richTapMajorVersion, richTapMinorVersion, heVersion);
-
+                checkPass = checkSdkSupport(richTapMajorVersion, richTapMinorVersion, heVersion);
+                pattern.setSdkSupported(checkPass);
                 if (!checkPass) {
                     Log.e(TAG, "richtap version check failed, richTapMajorVersion: " +
                             String.format("%x02", richTapMajorVersion) + ", heVersion:" + heVersion);
-                    return;
                 }
             }
+            if (!checkPass) {
+                return;
+            }
+        }
 
-            int[] patternHeInfo = null;
-            Pattern[] patternList = null;
-            int[] patternHe = null;
+        if (heVersion != 1 && heVersion != 2) {
+            Log.e(TAG, "unsupport he version heVersion: " + heVersion);
+            return;
+        }
+        final int seq = heVersion == 2 ? SEQ.getAndIncrement() : 0;
+        for (int i = 0; i < pattern.getPayloadCount(); i++) {
+            sendPattern(pattern.getPayload(i, seq), loop, interval, amplitude, freq);
+        }
 
-            if (heVersion == 1) {
-                patternHeInfo = getSerializationDataHe_1_0(patternString);
-                if (patternHeInfo == null) {
-                    Log.e(TAG, "serialize he failed, heVersion: " + heVersion);
-                    return;
-                }
-                int len = patternHeInfo.length;
-                try {
-                    int[] realPatternHeInfo = null;
-                    realPatternHeInfo = new int[len + 1];
-                    realPatternHeInfo[0] = 0x3; // 0x3: HE1.0 which support 16 curve points
-                    System.arraycopy(patternHeInfo, 0, realPatternHeInfo, 1, patternHeInfo.length);
-
-                    VibrationEffect createPatternHe = RichTapVibrationEffect.createPatternHeWithParam(
-                            realPatternHeInfo, loop, interval, amplitude, freq);
-                    VibrationAttributes atr = new VibrationAttributes.Builder().build();
-                    CombinedVibration combinedEffect = CombinedVibration.createParallel(createPatternHe);
-                    mVibratorManager.vibrate(Process.myUid(), mPackageName, combinedEffect, VIBRATE_REASON, atr);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Log.w(TAG, "for createPatternHe, The system doesn't integrate richTap software");
-                }
-            } else if (heVersion == 2) {
-                int seq = SEQ.getAndIncrement();
-                int pid = Process.myPid();
-                parseAndSendDataHe_2_0(seq, pid, heVersion, loop, interval, amplitude, freq, patternString);
-            } else {
-                Log.e(TAG, "unsupport he version heVersion: " + heVersion);
-            }
+        if (DEBUG_RICHTAP) {
+            final long endTime = SystemClock.elapsedRealtimeNanos();
+            Log.d(TAG, "he " + heVersion + ", patterns: " + pattern.mPatternNum
+                    + ", lookup: " + (dispatchTime - startTime) / 1000L + "us"
+                    + ", compile: " + pattern.mCompileTimeNs / 1000L + "us"
+                    + ", dispatch: " + (endTime - dispatchTime) / 1000L + "us"
+                    + ", cache hits: " + CompiledHePattern.getCacheHitCount()
+                    + ", misses: " + CompiledHePattern.getCacheMissCount());
+        }
+    }
+
+    private CompiledHePattern obtainPattern(String patternString) {
+        // Keep the last pattern of this player, so it survives cache eviction
+        final CompiledHePattern.Key key = CompiledHePattern.Key.of(patternString);
+        final CompiledHePattern last = mPattern;
+        if (last != null && key.equals(last.mKey)) {
+            return last;
+        }
+        final CompiledHePattern pattern = CompiledHePattern.obtain(key, patternString);
+        if (pattern != null) {
+            mPattern = pattern;
+        }
+        return pattern;
+    }
+
+    private void sendPattern(int[] patternHe, int loop, int interval, int amplitude, int freq) {
+        try {
+            VibrationEffect createPatternHe = RichTapVibrationEffect.createPatternHeWithParam(
+                    patternHe, loop, interval, amplitude, freq);
+            VibrationAttributes atr = new VibrationAttributes.Builder().build();
+            CombinedVibration combinedEffect = CombinedVibration.createParallel(createPatternHe);
+            mVibratorManager.vibrate(Process.myUid(), mPackageName, combinedEffect, VIBRATE_REASON, atr);
         } catch (Exception e) {
             e.printStackTrace();
+            Log.w(TAG, "for createPatternHe, The system doesn't integrate richTap software");
         }
     }
 
@@ -626,7 +280,12 @@ public class HapticPlayer {
             Log.e(TAG, "looper is not correct realLooper: " + realLooper);
             return;
         }
+        final int generation = mGeneration.get();
         EXCUTOR.execute(() -> {
+            if (generation != mGeneration.get()) {
+                Log.d(TAG, "haptic play cancelled by stop");
+                return;
+            }
             Log.d(TAG, "haptic play start!");
             long startRunTime = System.currentTimeMillis();
             try {
@@ -671,7 +330,12 @@ public class HapticPlayer {
             Log.e(TAG, "looper is not correct realLooper: " + realLooper);
             return;
         }
+        final int generation = mGeneration.get();
         EXCUTOR.execute(() -> {
+            if (generation != mGeneration.get()) {
+                Log.d(TAG, "haptic play cancelled by stop");
+                return;
+            }
             Log.d(TAG, "haptic play start!");
             long startRunTime = System.currentTimeMillis();
             try {
@@ -718,7 +382,12 @@ public class HapticPlayer {
             Log.e(TAG, "looper is not correct realLooper: " + realLooper);
             return;
         }
+        final int generation = mGeneration.get();
         EXCUTOR.execute(() -> {
+            if (generation != mGeneration.get()) {
+                Log.d(TAG, "haptic play cancelled by stop");
+                return;
+            }
             Log.d(TAG, "haptic play start!");
             long startRunTime = System.currentTimeMillis();
             try {
@@ -764,29 +433,60 @@ public class HapticPlayer {
             return;
         }
 
-        try {
-            if (mStarted) {
-                EXCUTOR.execute(() -> {
-                    try {
-                        VibrationEffect createPatternHe = RichTapVibrationEffect.createPatternHeParameter(interval,
-                                amplitude, freq);
-                        CombinedVibration combinedEffect = CombinedVibration.createParallel(createPatternHe);
-                        mVibratorManager.vibrate(Process.myUid(), mPackageName, combinedEffect, VIBRATE_REASON, null);
-                        Log.d(TAG, "haptic apply param");
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        Log.w(TAG, "for createPatternHe, The system doesn't integrate richTap software");
-                    }
-                });
-            } else {
-                Log.d(TAG, "haptic player has not started");
+        if (!mStarted) {
+            Log.d(TAG, "haptic player has not started");
+            return;
+        }
+        synchronized (mPendingLock) {
+            if (interval != -1) {
+                mPendingInterval = interval;
+            }
+            if (amplitude != -1) {
+                mPendingAmplitude = amplitude;
+            }
+            if (freq != -1) {
+                mPendingFreq = freq;
+            }
+            if (mParamPending) {
+                // Merged into the update still queued
+                return;
+            }
+            mParamPending = true;
+        }
+        EXCUTOR.execute(this::sendPendingParam);
+    }
+
+    private void sendPendingParam() {
+        final int interval, amplitude, freq;
+        synchronized (mPendingLock) {
+            if (!mParamPending) {
+                // Sent by an earlier task or dropped by stop
+                return;
             }
+            interval = mPendingInterval;
+            amplitude = mPendingAmplitude;
+            freq = mPendingFreq;
+            clearPendingParamLocked();
+        }
+        try {
+            VibrationEffect createPatternHe = RichTapVibrationEffect.createPatternHeParameter(interval,
+                    amplitude, freq);
+            CombinedVibration combinedEffect = CombinedVibration.createParallel(createPatternHe);
+            mVibratorManager.vibrate(Process.myUid(), mPackageName, combinedEffect, VIBRATE_REASON, null);
+            Log.d(TAG, "haptic apply param");
         } catch (Exception e) {
             e.printStackTrace();
-            Log.w(TAG, "The system doesn't integrate richTap software");
+            Log.w(TAG, "for createPatternHe, The system doesn't integrate richTap software");
         }
     }
 
+    private void clearPendingParamLocked() {
+        mParamPending = false;
+        mPendingInterval = -1;
+        mPendingAmplitude = -1;
+        mPendingFreq = -1;
+    }
+
     /**
      * 更新播放效果循环的时间间隔
      *
@@ -828,8 +528,21 @@ public class HapticPlayer {
 
     // 必须实现，停止播放振动效果
     public void stop() {
+        mGeneration.incrementAndGet();
+        synchronized (mPendingLock) {
+            // Queued updates would only apply to the effect being stopped
+            clearPendingParamLocked();
+            if (mStarted && mStopPending) {
+                // Stop still queued
+                return;
+            }
+            mStopPending = mStarted;
+        }
         if (mStarted) {
             EXCUTOR.execute(() -> {
+                synchronized (mPendingLock) {
+                    mStopPending = false;
+                }
                 try {
                     VibrationEffect createPatternHe = RichTapVibrationEffect.createPatternHeParameter(0, 0, 0);
                     CombinedVibration combinedEffect = CombinedVibration.createParallel(createPatternHe);
@@ -844,142 +557,4 @@ public class HapticPlayer {
             Log.d(TAG, "haptic player has not started");
         }
     }
-
-    abstract class Event {
-        int mType;
-        int mLen;
-        int mVibId;
-        int mRelativeTime;
-        int mIntensity;
-        int mFreq;
-        int mDuration;
-
-        abstract int[] generateData();
-
-        @Override
-        public String toString() {
-            return "Event{" +
-                    "mType=" + mType +
-                    ", mVibId=" + mVibId +
-                    ", mRelativeTime=" + mRelativeTime +
-                    ", mIntensity=" + mIntensity +
-                    ", mFreq=" + mFreq +
-                    ", mDuration=" + mDuration +
-                    '}';
-        }
-    }
-
-    class TransientEvent extends Event {
-        TransientEvent() {
-            mLen = 7;
-        }
-
-        @Override
-        int[] generateData() {
-            int[] data = new int[mLen];
-            Arrays.fill(data, 0);
-            data[0] = mType;
-            data[1] = mLen - 2;
-            data[2] = mVibId;
-            data[3] = mRelativeTime;
-            data[4] = mIntensity;
-            data[5] = mFreq;
-            data[6] = mDuration;
-            return data;
-        }
-    }
-
-    class Point {
-        int mTime;
-        int mIntensity;
-        int mFreq;
-    }
-
-    class ContinuousEvent extends Event {
-        int mPointNum; // max 16
-        Point[] mPoint;
-
-        ContinuousEvent() {
-        }
-
-        @Override
-        int[] generateData() {
-            int pointOffset = 8;
-            int[] data = new int[pointOffset + mPointNum * 3];
-            Arrays.fill(data, 0);
-
-            data[0] = mType;
-            data[1] = pointOffset + mPointNum * 3 - 2;
-            data[2] = mVibId;
-            data[3] = mRelativeTime;
-            data[4] = mIntensity;
-            data[5] = mFreq;
-            data[6] = mDuration;
-            data[7] = mPointNum;
-
-            int offset = pointOffset;
-            for (int i = 0; i < mPointNum; i++) {
-                data[offset] = mPoint[i].mTime;
-                offset += 1;
-
-                data[offset] = mPoint[i].mIntensity;
-                offset += 1;
-
-                data[offset] = mPoint[i].mFreq;
-                offset += 1;
-            }
-
-            return data;
-        }
-
-        @Override
-        public String toString() {
-            return "Continuous{" +
-                    "mPointNum=" + mPointNum +
-                    ", mPoint=" + Arrays.toString(mPoint) +
-                    '}';
-        }
-    }
-
-    class Pattern {
-        int mRelativeTime;
-        Event[] mEvent;
-
-        int getPatternEventLen() {
-            int len = 0;
-            for (Event event : mEvent) {
-                if (event.mType == CONTINUOUS_EVENT) {
-                    len += 8 + ((ContinuousEvent) event).mPointNum * 3;
-                } else if (event.mType == TRANSIENT_EVENT) {
-                    len += 7;
-                }
-            }
-            return len;
-        }
-
-        int getPatternDataLen() {
-            int eventLen = getPatternEventLen();
-            return 3 + eventLen;
-        }
-
-        int[] generateSerializationPatternData(int index) {
-            int dataLen = getPatternDataLen();
-            int[] data = new int[dataLen];
-            Arrays.fill(data, 0);
-
-            data[0] = index;
-            data[1] = mRelativeTime;
-            data[2] = mEvent.length;
-
-            int[] eventData = null;
-            int offset = 3;
-            for (Event event : mEvent) {
-                eventData = event.generateData();
-                System.arraycopy(eventData, 0, data, offset, eventData.length);
-                offset += eventData.length;
-            }
-
-            return data;
-        }
-    }
 }
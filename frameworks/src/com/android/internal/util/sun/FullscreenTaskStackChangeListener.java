@@ -6,39 +6,46 @@
 package com.android.internal.util.sun;
 
 import static android.app.ActivityTaskManager.INVALID_TASK_ID;
-import static android.app.WindowConfiguration.WINDOWING_MODE_FREEFORM;
-import static android.app.WindowConfiguration.WINDOWING_MODE_MINI_WINDOW_EXT;
-import static android.app.WindowConfiguration.WINDOWING_MODE_PINNED_WINDOW_EXT;
-
-import android.app.ActivityManager;
-import android.app.ActivityTaskManager;
-import android.app.IActivityTaskManager;
-import android.app.TaskStackListener;
-import android.content.ComponentName;
+
 import android.content.Context;
-import android.os.RemoteException;
 import android.util.Log;
 
+import org.sun.app.ITopTaskListener;
+import org.sun.app.TopTaskInfo;
+import org.sun.app.TopTaskManager;
+
 /**
- * TaskStackListener that ignores freeform / mini-window focuses change
+ * Top task listener that ignores freeform / mini-window focuses change.
+ * Top task snapshots are pushed by system server, no binder call is made on task change.
  *
  * @hide
  */
-public abstract class FullscreenTaskStackChangeListener extends TaskStackListener {
+public abstract class FullscreenTaskStackChangeListener {
 
     private static final String DEFAULT_TAG = "FullscreenTaskStackChangeListener";
 
-    private final ActivityManager mActivityManager;
-    private final ActivityTaskManager mActivityTaskManager;
-    private final IActivityTaskManager mIActivityTaskManager;
+    private final Object mLock = new Object();
+
+    private final Context mContext;
 
     private final boolean mObserveActivityChange;
 
+    private final ITopTaskListener.Stub mTopTaskListener = new ITopTaskListener.Stub() {
+        @Override
+        public void onTopTaskChanged(TopTaskInfo info) {
+            handleTopTaskInfo(info);
+        }
+    };
+
+    private TopTaskManager mTopTaskManager;
+
     private boolean mDebug = false;
     private String mDebugTag = DEFAULT_TAG;
 
     private boolean mListening = false;
 
+    private long mLastSequence = -1L;
+
     private String mTopPackage = "";
     private String mTopActivity = "";
     private int mTopTaskId = INVALID_TASK_ID;
@@ -48,9 +55,7 @@ public abstract class FullscreenTaskStackChangeListener extends TaskStackListene
     }
 
     public FullscreenTaskStackChangeListener(Context context, boolean observeActivity) {
-        mActivityManager = context.getSystemService(ActivityManager.class);
-        mActivityTaskManager = ActivityTaskManager.getInstance();
-        mIActivityTaskManager = ActivityTaskManager.getService();
+        mContext = context;
         mObserveActivityChange = observeActivity;
     }
 
@@ -64,75 +69,80 @@ public abstract class FullscreenTaskStackChangeListener extends TaskStackListene
 
     public void setListening(boolean listening) {
         if (mListening != listening) {
+            if (mTopTaskManager == null) {
+                mTopTaskManager = mContext.getSystemService(TopTaskManager.class);
+            }
             if (listening) {
-                mActivityTaskManager.registerTaskStackListener(this);
+                mTopTaskManager.registerTopTaskListener(mTopTaskListener);
                 mListening = true;
             } else {
-                mActivityTaskManager.unregisterTaskStackListener(this);
+                mTopTaskManager.unregisterTopTaskListener(mTopTaskListener);
                 mListening = false;
             }
         }
     }
 
-    private void handleChange(String newPackageName, String newActivityName, int newTaskId) {
-        if (mTopPackage.equals(newPackageName) && mTopActivity.equals(newActivityName)) {
+    private void handleTopTaskInfo(TopTaskInfo info) {
+        if (info == null) {
             return;
         }
-        mTopActivity = newActivityName;
-        if (!mObserveActivityChange && mTopPackage.equals(newPackageName)) {
-            return;
-        }
-        mTopPackage = newPackageName;
-        mTopTaskId = newTaskId;
-        if (mDebug) {
-            Log.d(mDebugTag, "Change: mTopPackage=" + mTopPackage
-                    + ", mTopActivity=" + mTopActivity
-                    + ", mTopTaskId=" + mTopTaskId);
-        }
-        onFullscreenTaskChanged(mTopPackage, mTopActivity, mTopTaskId);
-    }
-
-    @Override
-    public void onTaskStackChanged() {
-        forceCheck();
-    }
-
-    @Override
-    public void onTaskFocusChanged(int taskId, boolean focused) {
-        if (focused) {
-            forceCheck();
-        }
-    }
-
-    public void forceCheck() {
-        try {
-            final ActivityTaskManager.RootTaskInfo info = mIActivityTaskManager.getFocusedRootTaskInfo();
-            if (info == null) {
+        final String packageName;
+        final String activityName;
+        final int taskId;
+        synchronized (mLock) {
+            if (info.getSequence() <= mLastSequence) {
+                // Stale delivery
                 return;
             }
-            if (info.getWindowingMode() == WINDOWING_MODE_FREEFORM ||
-                    info.getWindowingMode() == WINDOWING_MODE_MINI_WINDOW_EXT ||
-                    info.getWindowingMode() == WINDOWING_MODE_PINNED_WINDOW_EXT) {
+            mLastSequence = info.getSequence();
+            if (!info.isFullscreen()) {
                 return;
             }
-            final ComponentName topActivity = info.topActivity;
-            if (topActivity == null) {
+            if (mTopPackage.equals(info.getPackageName())
+                    && mTopActivity.equals(info.getActivityName())) {
                 return;
             }
-            handleChange(topActivity.getPackageName(), topActivity.getClassName(), info.taskId);
-        } catch (RemoteException e) {}
+            mTopActivity = info.getActivityName();
+            if (!mObserveActivityChange && mTopPackage.equals(info.getPackageName())) {
+                return;
+            }
+            mTopPackage = info.getPackageName();
+            mTopTaskId = info.getTaskId();
+            packageName = mTopPackage;
+            activityName = mTopActivity;
+            taskId = mTopTaskId;
+        }
+        if (mDebug) {
+            Log.d(mDebugTag, "Change: mTopPackage=" + packageName
+                    + ", mTopActivity=" + activityName
+                    + ", mTopTaskId=" + taskId);
+        }
+        onFullscreenTaskChanged(packageName, activityName, taskId);
+    }
+
+    public void forceCheck() {
+        if (mTopTaskManager == null) {
+            mTopTaskManager = mContext.getSystemService(TopTaskManager.class);
+        }
+        handleTopTaskInfo(mTopTaskManager.getTopTaskInfo());
     }
 
     public String getTopPackageName() {
-        return mTopPackage;
+        synchronized (mLock) {
+            return mTopPackage;
+        }
     }
 
     public String getTopActivityName() {
-        return mTopActivity;
+        synchronized (mLock) {
+            return mTopActivity;
+        }
     }
 
     public int getTopTaskId() {
-        return mTopTaskId;
+        synchronized (mLock) {
+            return mTopTaskId;
+        }
     }
 
     public abstract void onFullscreenTaskChanged(
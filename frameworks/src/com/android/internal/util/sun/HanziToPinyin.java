@@ -18,9 +18,11 @@ package com.android.internal.util.sun;
 
 import android.icu.text.Transliterator;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -28,14 +30,34 @@ import java.util.Locale;
  * For characters with multiple possible pinyin string, only one is selected
  * according to ICU Transliterator class. Polyphone is not supported in this
  * implementation.
+ *
+ * Not thread safe: the ICU transliterators and the lookup tables are used
+ * without locking, so callers sharing the instance must serialize their calls.
  */
 public class HanziToPinyin {
     private static final String TAG = "HanziToPinyin";
 
-    private static HanziToPinyin sInstance;
+    // CJK Unified Ideographs, where almost all Hanzi in use are
+    private static final char HAN_FIRST = 0x4e00;
+    private static final char HAN_LAST = 0x9fff;
+
+    private static final char LATIN_EXTENDED_LAST = 0x250;
+    private static final char LATIN_ADDITIONAL_FIRST = 0x1e00;
+    private static final char LATIN_ADDITIONAL_LAST = 0x1eff;
+
+    private static class InstanceHolder {
+        private static final HanziToPinyin INSTANCE = new HanziToPinyin();
+    }
+
     private Transliterator mPinyinTransliterator;
     private Transliterator mAsciiTransliterator;
 
+    // Per character results of the transliterators, filled on first lookup
+    private final String[] mHanTable = new String[HAN_LAST - HAN_FIRST + 1];
+    private final String[] mLatinTable = new String[LATIN_EXTENDED_LAST];
+    private final String[] mLatinAdditionalTable =
+            new String[LATIN_ADDITIONAL_LAST - LATIN_ADDITIONAL_FIRST];
+
     public static class Token {
         /**
          * Separator between target string for each source char
@@ -86,34 +108,39 @@ public class HanziToPinyin {
     }
 
     public static HanziToPinyin getInstance() {
-        synchronized (HanziToPinyin.class) {
-            if (sInstance == null) {
-                sInstance = new HanziToPinyin();
-            }
-            return sInstance;
-        }
+        return InstanceHolder.INSTANCE;
     }
 
     private void tokenize(char character, Token token) {
-        token.source = Character.toString(character);
-
         // ASCII
         if (character < 128) {
             token.type = Token.LATIN;
-            token.target = token.source;
+            token.source = null;
+            token.target = null;
             return;
         }
 
+        token.source = Character.toString(character);
+
         // Extended Latin. Transcode these to ASCII equivalents
-        if (character < 0x250 || (0x1e00 <= character && character < 0x1eff)) {
+        if (character < LATIN_EXTENDED_LAST) {
             token.type = Token.LATIN;
-            token.target = mAsciiTransliterator == null ? token.source :
-                mAsciiTransliterator.transliterate(token.source);
+            token.target = lookup(mLatinTable, character, 0, mAsciiTransliterator);
+            return;
+        }
+        if (LATIN_ADDITIONAL_FIRST <= character && character < LATIN_ADDITIONAL_LAST) {
+            token.type = Token.LATIN;
+            token.target = lookup(mLatinAdditionalTable, character,
+                    LATIN_ADDITIONAL_FIRST, mAsciiTransliterator);
             return;
         }
 
         token.type = Token.PINYIN;
-        token.target = mPinyinTransliterator.transliterate(token.source);
+        if (HAN_FIRST <= character && character <= HAN_LAST) {
+            token.target = lookup(mHanTable, character, HAN_FIRST, mPinyinTransliterator);
+        } else {
+            token.target = mPinyinTransliterator.transliterate(token.source);
+        }
         if (TextUtils.isEmpty(token.target) ||
             TextUtils.equals(token.source, token.target)) {
             token.type = Token.UNKNOWN;
@@ -121,13 +148,66 @@ public class HanziToPinyin {
         }
     }
 
+    private static String lookup(String[] table, char character, char first,
+            Transliterator transliterator) {
+        final int index = character - first;
+        String target = table[index];
+        if (target == null) {
+            final String source = Character.toString(character);
+            target = transliterator == null ? source : transliterator.transliterate(source);
+            table[index] = target;
+        }
+        return target;
+    }
+
     public String transliterate(final String input) {
         if (!hasChineseTransliterator() || TextUtils.isEmpty(input)) {
             return null;
         }
+        if (isAscii(input)) {
+            // Han-Latin and Latin-Ascii don't touch ASCII, only Any-Upper applies
+            return input.toUpperCase(Locale.ROOT);
+        }
+        // Whole input goes to ICU, Han-Latin/Names picks readings from context
         return mPinyinTransliterator.transliterate(input);
     }
 
+    /**
+     * Transliterate a list of inputs, e.g. app labels, in one call.
+     * Duplicate inputs are only transliterated once.
+     *
+     * @return Results in the order of inputs, see {@link #transliterate(String)}.
+     */
+    public String[] transliterate(final List<String> inputs) {
+        final String[] results = new String[inputs.size()];
+        if (!hasChineseTransliterator()) {
+            return results;
+        }
+        final ArrayMap<String, String> seen = new ArrayMap<>();
+        for (int i = 0; i < results.length; i++) {
+            final String input = inputs.get(i);
+            if (TextUtils.isEmpty(input)) {
+                continue;
+            }
+            String result = seen.get(input);
+            if (result == null) {
+                result = transliterate(input);
+                seen.put(input, result);
+            }
+            results[i] = result;
+        }
+        return results;
+    }
+
+    private static boolean isAscii(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            if (input.charAt(i) >= 128) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Convert the input to a array of tokens. The sequence of ASCII or Unknown characters without
      * space will be put into a Token, One Hanzi character which has pinyin will be treated as a
@@ -167,7 +247,12 @@ public class HanziToPinyin {
                     if (tokenType != token.type && sb.length() > 0) {
                         addToken(sb, tokens, tokenType);
                     }
-                    sb.append(token.target);
+                    if (token.target != null) {
+                        sb.append(token.target);
+                    } else {
+                        // ASCII is kept as is
+                        sb.append(character);
+                    }
                 }
                 tokenType = token.type;
             }
@@ -12,7 +12,12 @@ import android.os.Parcelable;
 
 import org.sun.app.GameModeManager;
 
-/** @hide */
+/**
+ * Snapshot of game mode state. Snapshots are ordered by sequence,
+ * clients should drop any snapshot whose sequence is not newer than the last one they handled.
+ *
+ * @hide
+ */
 public class GameModeInfo implements Parcelable {
 
     public static final Parcelable.Creator<GameModeInfo> CREATOR =
@@ -28,6 +33,7 @@ public class GameModeInfo implements Parcelable {
         }
     };
 
+    private long mSequence;
     private boolean mInGame;
     private String mGamePackage;
     private int mGameTaskId;
@@ -42,6 +48,7 @@ public class GameModeInfo implements Parcelable {
     private int mCallAction;
 
     private GameModeInfo() {
+        mSequence = 0L;
         mInGame = false;
         mGamePackage = "";
         mGameTaskId = INVALID_TASK_ID;
@@ -57,6 +64,7 @@ public class GameModeInfo implements Parcelable {
     }
 
     private GameModeInfo(Parcel in) {
+        mSequence = in.readLong();
         mInGame = in.readBoolean();
         mGamePackage = in.readString();
         mGameTaskId = in.readInt();
@@ -71,6 +79,10 @@ public class GameModeInfo implements Parcelable {
         mCallAction = in.readInt();
     }
 
+    public long getSequence() {
+        return mSequence;
+    }
+
     public boolean isInGame() {
         return mInGame;
     }
@@ -123,6 +135,7 @@ public class GameModeInfo implements Parcelable {
     }
 
     public static class Builder {
+        private long mSequence;
         private boolean mInGame;
         private String mGamePackage;
         private int mGameTaskId;
@@ -137,6 +150,7 @@ public class GameModeInfo implements Parcelable {
         private int mCallAction;
 
         public Builder() {
+            mSequence = 0L;
             mInGame = false;
             mGamePackage = "";
             mGameTaskId = INVALID_TASK_ID;
@@ -152,6 +166,7 @@ public class GameModeInfo implements Parcelable {
         }
 
         public Builder(GameModeInfo info) {
+            mSequence = info.mSequence;
             mInGame = info.mInGame;
             mGamePackage = info.mGamePackage;
             mGameTaskId = info.mGameTaskId;
@@ -168,6 +183,7 @@ public class GameModeInfo implements Parcelable {
 
         public GameModeInfo build() {
             GameModeInfo info = new GameModeInfo();
+            info.mSequence = mSequence;
             info.mInGame = mInGame;
             info.mGamePackage = mGamePackage;
             info.mGameTaskId = mGameTaskId;
@@ -183,6 +199,11 @@ public class GameModeInfo implements Parcelable {
             return info;
         }
 
+        public Builder setSequence(long sequence) {
+            mSequence = sequence;
+            return this;
+        }
+
         public Builder setInGame(boolean inGame) {
             mInGame = inGame;
             return this;
@@ -251,6 +272,7 @@ public class GameModeInfo implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mSequence);
         dest.writeBoolean(mInGame);
         dest.writeString(mGamePackage);
         dest.writeInt(mGameTaskId);
@@ -267,7 +289,8 @@ public class GameModeInfo implements Parcelable {
 
     @Override
     public String toString() {
-        return "{mInGame=" + mInGame
+        return "{mSequence=" + mSequence
+                + ", mInGame=" + mInGame
                 + ", mGamePackage=" + mGamePackage
                 + ", mGameTaskId=" + mGameTaskId
                 + ", mDanmakuNotification=" + mDanmakuNotification
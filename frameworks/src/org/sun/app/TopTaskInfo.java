@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.app;
+
+import static android.app.ActivityTaskManager.INVALID_TASK_ID;
+import static android.app.WindowConfiguration.WINDOWING_MODE_UNDEFINED;
+
+import android.app.WindowConfiguration;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Immutable snapshot of the focused task, published by system server.
+ * Snapshots are ordered by sequence, clients should drop any snapshot
+ * whose sequence is not newer than the last one they handled.
+ *
+ * @hide
+ */
+public class TopTaskInfo implements Parcelable {
+
+    public static final Parcelable.Creator<TopTaskInfo> CREATOR =
+            new Parcelable.Creator<TopTaskInfo>() {
+        @Override
+        public TopTaskInfo createFromParcel(Parcel in) {
+            return new TopTaskInfo(in);
+        }
+
+        @Override
+        public TopTaskInfo[] newArray(int size) {
+            return new TopTaskInfo[size];
+        }
+    };
+
+    public static final TopTaskInfo EMPTY = new TopTaskInfo(0L, "", "",
+            INVALID_TASK_ID, WINDOWING_MODE_UNDEFINED);
+
+    private final long mSequence;
+    private final String mPackageName;
+    private final String mActivityName;
+    private final int mTaskId;
+    private final int mWindowingMode;
+
+    public TopTaskInfo(long sequence, String packageName, String activityName,
+            int taskId, int windowingMode) {
+        mSequence = sequence;
+        mPackageName = packageName;
+        mActivityName = activityName;
+        mTaskId = taskId;
+        mWindowingMode = windowingMode;
+    }
+
+    private TopTaskInfo(Parcel in) {
+        mSequence = in.readLong();
+        mPackageName = in.readString();
+        mActivityName = in.readString();
+        mTaskId = in.readInt();
+        mWindowingMode = in.readInt();
+    }
+
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public String getPackageName() {
+        return mPackageName;
+    }
+
+    public String getActivityName() {
+        return mActivityName;
+    }
+
+    public int getTaskId() {
+        return mTaskId;
+    }
+
+    public int getWindowingMode() {
+        return mWindowingMode;
+    }
+
+    /**
+     * @return Whether the task is not freeform, mini-window or pinned-window.
+     *         Split-screen and other multi-window tasks count as fullscreen.
+     */
+    public boolean isFullscreen() {
+        return mWindowingMode != WindowConfiguration.WINDOWING_MODE_FREEFORM
+                && mWindowingMode != WindowConfiguration.WINDOWING_MODE_MINI_WINDOW_EXT
+                && mWindowingMode != WindowConfiguration.WINDOWING_MODE_PINNED_WINDOW_EXT;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mSequence);
+        dest.writeString(mPackageName);
+        dest.writeString(mActivityName);
+        dest.writeInt(mTaskId);
+        dest.writeInt(mWindowingMode);
+    }
+
+    @Override
+    public String toString() {
+        return "{mSequence=" + mSequence
+                + ", mPackageName=" + mPackageName
+                + ", mActivityName=" + mActivityName
+                + ", mTaskId=" + mTaskId
+                + ", mWindowingMode=" + WindowConfiguration.windowingModeToString(mWindowingMode)
+                + "}";
+    }
+}
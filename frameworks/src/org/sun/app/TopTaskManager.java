@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.app;
+
+import android.annotation.SystemService;
+import android.content.Context;
+import android.os.RemoteException;
+import android.util.Slog;
+
+import org.sun.content.ContextExt;
+
+/** @hide */
+@SystemService(ContextExt.TOP_TASK_SERVICE)
+public class TopTaskManager {
+
+    private static final String TAG = "TopTaskManager";
+
+    private final ITopTaskManagerService mService;
+
+    public TopTaskManager(Context context, ITopTaskManagerService service) {
+        mService = service;
+    }
+
+    public TopTaskInfo getTopTaskInfo() {
+        if (mService == null) {
+            Slog.e(TAG, "Failed to get top task info. Service is null");
+            return null;
+        }
+        try {
+            return mService.getTopTaskInfo();
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
+    public boolean registerTopTaskListener(ITopTaskListener.Stub listener) {
+        if (mService == null) {
+            Slog.e(TAG, "Failed to register top task listener. Service is null");
+            return false;
+        }
+        try {
+            return mService.registerTopTaskListener(listener);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
+    public boolean unregisterTopTaskListener(ITopTaskListener.Stub listener) {
+        if (mService == null) {
+            Slog.e(TAG, "Failed to unregister top task listener. Service is null");
+            return false;
+        }
+        try {
+            return mService.unregisterTopTaskListener(listener);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+}
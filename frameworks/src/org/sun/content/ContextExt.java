@@ -89,4 +89,14 @@ public class ContextExt {
      * @see org.sun.hardware.SensorBlockManager
      */
     public static final String SENSOR_BLOCK_MANAGER_SERVICE = "sensor_block";
+
+    /**
+     * Use with {@link #getSystemService} to retrieve a
+     * {@link org.sun.app.TopTaskManager} for observing top task changes.
+     *
+     * @hide
+     * @see #getSystemService
+     * @see org.sun.app.TopTaskManager
+     */
+    public static final String TOP_TASK_SERVICE = "top_task_ext";
 }
@@ -6,6 +6,7 @@
 package org.sun.hardware;
 
 import android.annotation.SystemService;
+import android.app.PropertyInvalidatedCache;
 import android.content.Context;
 import android.hardware.Sensor;
 import android.os.RemoteException;
@@ -34,6 +35,12 @@ public class SensorBlockManager {
         Sensor.TYPE_GYROSCOPE_UNCALIBRATED
     );
 
+    private static final int BLOCK_CACHE_MAX_ENTRIES = 32;
+    private static final String BLOCK_CACHE_API = "shouldBlockShakeSensorsNow";
+    private static final String BLOCK_CACHE_NAME = "sun_shake_sensors_block";
+
+    private static volatile PropertyInvalidatedCache<String, Boolean> sBlockCache;
+
     private final Context mContext;
     private final ISensorBlockService mService;
 
@@ -42,6 +49,39 @@ public class SensorBlockManager {
         mService = service;
     }
 
+    private static PropertyInvalidatedCache<String, Boolean> getBlockCache(
+            ISensorBlockService service) {
+        if (sBlockCache == null) {
+            synchronized (SensorBlockManager.class) {
+                if (sBlockCache == null) {
+                    sBlockCache = new PropertyInvalidatedCache<>(BLOCK_CACHE_MAX_ENTRIES,
+                            PropertyInvalidatedCache.MODULE_SYSTEM, BLOCK_CACHE_API,
+                            BLOCK_CACHE_NAME,
+                            new PropertyInvalidatedCache.QueryHandler<String, Boolean>() {
+                                @Override
+                                public Boolean apply(String packageName) {
+                                    try {
+                                        return service.shouldBlockShakeSensorsNow(packageName);
+                                    } catch (RemoteException e) {
+                                        throw e.rethrowFromSystemServer();
+                                    }
+                                }
+                            });
+                }
+            }
+        }
+        return sBlockCache;
+    }
+
+    /**
+     * Called by system server whenever the blocking packages change,
+     * cached results in all processes are dropped.
+     */
+    public static void invalidateShakeSensorsBlockCache() {
+        PropertyInvalidatedCache.invalidateCache(
+                PropertyInvalidatedCache.MODULE_SYSTEM, BLOCK_CACHE_API);
+    }
+
     public int getShakeSensorsConfigForPackage(String packageName) {
         if (mService == null) {
             Slog.e(TAG, "Failed to get shake sensors config. Service is null");
@@ -74,11 +114,8 @@ public class SensorBlockManager {
             Slog.e(TAG, "Failed to get shake sensors block state. Service is null");
             return false;
         }
-        try {
-            return mService.shouldBlockShakeSensorsNow(packageName);
-        } catch (RemoteException e) {
-            throw e.rethrowFromSystemServer();
-        }
+        // Local read until system server invalidates the cache
+        return getBlockCache(mService).query(packageName);
     }
 
     public static boolean isShakeSensor(int sensor) {
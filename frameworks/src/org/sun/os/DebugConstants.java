@@ -29,6 +29,7 @@ public class DebugConstants {
         CONSTANTS_MAP.put("DEBUG_GAME", "persist.sys.sun.game.debug");
         CONSTANTS_MAP.put("DEBUG_NR_MODE", "persist.sys.sun.radio.nrmode.debug");
         CONSTANTS_MAP.put("DEBUG_OP_LM", "persist.sys.sun.vibrator.oplm.debug");
+        CONSTANTS_MAP.put("DEBUG_PER_APP_CONFIG", "persist.sys.sun.per_app_config.debug");
         CONSTANTS_MAP.put("DEBUG_PHONE_WINDOW_MANAGER", "persist.sys.sun.policy.debug");
         CONSTANTS_MAP.put("DEBUG_PMS", "persist.sys.sun.pm.debug");
         CONSTANTS_MAP.put("DEBUG_POCKET", "persist.sys.sun.pocket.debug");
@@ -116,6 +117,13 @@ public class DebugConstants {
         "persist.sys.sun.vibrator.oplm.debug", false
     );
 
+    // Enable this to debug per-app config store
+    // Package: org.sun.server.PerAppConfigStore
+    // Key: PerAppConfigStore
+    public static final boolean DEBUG_PER_APP_CONFIG = DEBUG_GLOBAL || SystemProperties.getBoolean(
+        "persist.sys.sun.per_app_config.debug", false
+    );
+
     // Enable this to debug PhoneWindowManagerExt (Include system gestures feature)
     // Package: com.android.server.policy.PhoneWindowManagerExt
     // Key: PhoneWindowManagerExt, GestureListenerBase, SystemGesture
@@ -664,6 +664,16 @@ public class SettingsExt {
          */
         public static final String PERSISTED_APP_VOLUME_DATA = "persisted_app_volume_data";
 
+        /**
+         * Output route classes of {@link #PERSISTED_APP_VOLUME_DATA} entries
+         * @hide
+         */
+        public static final int APP_VOLUME_ROUTE_SPEAKER = 0;
+        /** @hide */
+        public static final int APP_VOLUME_ROUTE_WIRED = 1;
+        /** @hide */
+        public static final int APP_VOLUME_ROUTE_BLUETOOTH = 2;
+
         /**
          * Whether to show or hide the arrow for back gesture
          * @hide
@@ -67,6 +67,8 @@ public class PhoneWindowManagerExt {
 
     private WindowState mWindowState = null;
 
+    private long mLastGameModeInfoSequence = -1L;
+
     private boolean mHasAlertSlider;
     private boolean mClickPartialScreenshot;
     private boolean mPowerTorchGesture;
@@ -95,12 +97,13 @@ public class PhoneWindowManagerExt {
     private final IGameModeInfoListener.Stub mGameModeInfoListener =
             new IGameModeInfoListener.Stub() {
         @Override
-        public void onGameModeInfoChanged() {
-            final GameModeInfo info = mGameModeManager.getGameModeInfo();
-            if (info != null) {
-                mSystemGesture.onGameModeInfoChanged(info);
-                ThreeFingerGestureController.getInstance().onGameModeInfoChanged(info);
+        public void onGameModeInfoChanged(GameModeInfo info) {
+            if (info == null || info.getSequence() <= mLastGameModeInfoSequence) {
+                return;
             }
+            mLastGameModeInfoSequence = info.getSequence();
+            mSystemGesture.onGameModeInfoChanged(info);
+            ThreeFingerGestureController.getInstance().onGameModeInfoChanged(info);
         }
     };
 
@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.android.server.vibrator;
+
+import static android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY;
+
+import static org.sun.os.DebugConstants.DEBUG_RICHTAP;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Slog;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import org.sun.server.SystemExScheduler;
+
+import vendor.aac.hardware.richtap.vibrator.IRichtapCallback;
+import vendor.aac.hardware.richtap.vibrator.IRichtapVibrator;
+
+/**
+ * Serial dispatch stage for RichTap HAL calls.
+ *
+ * Calls are queued and executed on a dedicated lane, so a slow HAL call doesn't
+ * block the vibrator thread. Pending parameter / amplitude updates are replaced
+ * by newer ones, stop drops everything still queued except config calls, and the
+ * queue is bounded by dropping the oldest queued call that isn't a stop or config.
+ */
+final class RichTapDispatcher {
+
+    private static final String TAG = "RichTapDispatcher";
+
+    private static final int MAX_QUEUE_DEPTH = 32;
+    private static final long SYNC_CALL_TIMEOUT_MS = 100L;
+
+    private static final int TYPE_EFFECT = 0;
+    private static final int TYPE_HE_PARAM = 1;
+    private static final int TYPE_AMPLITUDE = 2;
+    private static final int TYPE_STOP = 3;
+    private static final int TYPE_CONFIG = 4;
+
+    /**
+     * Provides the HAL service, called on the dispatch lane.
+     * A local fake can be passed here to drive the queue without the HAL.
+     */
+    interface ServiceProvider {
+        IRichtapVibrator getService();
+    }
+
+    /**
+     * A single HAL call.
+     */
+    interface Call {
+        void run(IRichtapVibrator service) throws RemoteException;
+    }
+
+    /**
+     * A HAL call that returns a value.
+     */
+    interface SyncCall {
+        int run(IRichtapVibrator service) throws RemoteException;
+    }
+
+    private static final class Op {
+        final int mType;
+        final String mName;
+        final long mEnqueueTimeNs;
+        Call mCall;
+        // Pending values of a TYPE_HE_PARAM op, -1 means not changed
+        int mInterval = -1;
+        int mAmplitude = -1;
+        int mFreq = -1;
+
+        Op(int type, String name, Call call) {
+            mType = type;
+            mName = name;
+            mCall = call;
+            mEnqueueTimeNs = SystemClock.elapsedRealtimeNanos();
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    private final ServiceProvider mProvider;
+    private final Handler mHandler;
+
+    private final ArrayDeque<Op> mQueue = new ArrayDeque<>();
+
+    private final Runnable mDrainRunnable = this::drain;
+
+    private long mEnqueuedCount;
+    private long mCoalescedCount;
+    private long mCancelledCount;
+    private long mDroppedCount;
+    private int mMaxDepth;
+
+    private long mCallCount;
+    private long mFailedCount;
+    private long mTotalCallNs;
+    private long mMaxCallNs;
+    private long mMaxWaitNs;
+    private long mSyncTimeoutCount;
+
+    RichTapDispatcher(ServiceProvider provider) {
+        this(provider, SystemExScheduler.getInstance().createDedicatedLane(
+                TAG, THREAD_PRIORITY_URGENT_DISPLAY, null));
+    }
+
+    RichTapDispatcher(ServiceProvider provider, Handler handler) {
+        mProvider = provider;
+        mHandler = handler;
+    }
+
+    /**
+     * Queue an effect, effects are never merged.
+     */
+    void enqueueEffect(String name, Call call) {
+        synchronized (mLock) {
+            addLocked(new Op(TYPE_EFFECT, name, call));
+        }
+    }
+
+    /**
+     * Queue a performHeParam update, merged into a pending update
+     * that isn't followed by another call. -1 means not changed.
+     */
+    void enqueueHeParam(int interval, int amplitude, int freq, IRichtapCallback callback) {
+        synchronized (mLock) {
+            final Op pending = findMergeableLocked(TYPE_HE_PARAM);
+            final Op op = pending != null ? pending : new Op(TYPE_HE_PARAM, "performHeParam", null);
+            if (interval != -1) {
+                op.mInterval = interval;
+            }
+            if (amplitude != -1) {
+                op.mAmplitude = amplitude;
+            }
+            if (freq != -1) {
+                op.mFreq = freq;
+            }
+            final int mergedInterval = op.mInterval;
+            final int mergedAmplitude = op.mAmplitude;
+            final int mergedFreq = op.mFreq;
+            op.mCall = service -> service.performHeParam(
+                    mergedInterval, mergedAmplitude, mergedFreq, callback);
+            if (pending != null) {
+                mCoalescedCount++;
+                return;
+            }
+            addLocked(op);
+        }
+    }
+
+    /**
+     * Queue an amplitude update, replaces a pending one that isn't followed by another call.
+     */
+    void enqueueAmplitude(Call call) {
+        synchronized (mLock) {
+            final Op pending = findMergeableLocked(TYPE_AMPLITUDE);
+            if (pending != null) {
+                pending.mCall = call;
+                mCoalescedCount++;
+                return;
+            }
+            addLocked(new Op(TYPE_AMPLITUDE, "setAmplitude", call));
+        }
+    }
+
+    /**
+     * Queue a config call, it changes HAL state that outlives the current effect,
+     * so like a stop it's never cancelled or dropped.
+     */
+    void enqueueConfig(String name, Call call) {
+        synchronized (mLock) {
+            addLocked(new Op(TYPE_CONFIG, name, call));
+        }
+    }
+
+    /**
+     * Queue a stop, everything still queued except config calls is cancelled.
+     */
+    void enqueueStop(String name, Call call) {
+        synchronized (mLock) {
+            final Iterator<Op> it = mQueue.iterator();
+            while (it.hasNext()) {
+                if (it.next().mType != TYPE_CONFIG) {
+                    it.remove();
+                    mCancelledCount++;
+                }
+            }
+            addLocked(new Op(TYPE_STOP, name, call));
+        }
+    }
+
+    /**
+     * Run a call whose result is needed after the queued calls.
+     * Returns {@code fallback} if the lane doesn't get to it in time, the call is
+     * then cancelled so the HAL never sees it. A call that already reached the
+     * HAL is waited for, since its result is what actually happened.
+     */
+    int call(String name, SyncCall call, int fallback) {
+        final SyncOp op = new SyncOp(name, call, fallback);
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            op.run();
+        } else {
+            mHandler.post(op);
+        }
+        if (!op.await(SYNC_CALL_TIMEOUT_MS)) {
+            mHandler.removeCallbacks(op);
+            synchronized (mLock) {
+                mSyncTimeoutCount++;
+            }
+            Slog.w(TAG, name + " timed out, cancelled");
+            return fallback;
+        }
+        return op.mResult;
+    }
+
+    private final class SyncOp implements Runnable {
+        private static final int STATE_PENDING = 0;
+        private static final int STATE_RUNNING = 1;
+        private static final int STATE_DONE = 2;
+        private static final int STATE_CANCELLED = 3;
+
+        private final String mName;
+        private final SyncCall mCall;
+
+        // Guarded by this
+        private int mState = STATE_PENDING;
+        private int mResult;
+
+        SyncOp(String name, SyncCall call, int fallback) {
+            mName = name;
+            mCall = call;
+            mResult = fallback;
+        }
+
+        @Override
+        public void run() {
+            drain();
+            synchronized (this) {
+                if (mState == STATE_CANCELLED) {
+                    return;
+                }
+                mState = STATE_RUNNING;
+            }
+            int result = mResult;
+            final IRichtapVibrator service = mProvider.getService();
+            if (service != null) {
+                final long startTime = SystemClock.elapsedRealtimeNanos();
+                boolean failed = false;
+                try {
+                    result = mCall.run(service);
+                } catch (RemoteException | RuntimeException e) {
+                    Slog.e(TAG, "aac richtap " + mName + " failed", e);
+                    failed = true;
+                }
+                onCallDone(startTime, startTime, failed);
+            }
+            synchronized (this) {
+                mResult = result;
+                mState = STATE_DONE;
+                notifyAll();
+            }
+        }
+
+        /**
+         * @return Whether the call ran, false if it was cancelled before reaching the HAL.
+         */
+        synchronized boolean await(long timeoutMs) {
+            final long deadline = SystemClock.uptimeMillis() + timeoutMs;
+            while (mState == STATE_PENDING) {
+                final long delay = deadline - SystemClock.uptimeMillis();
+                if (delay <= 0) {
+                    mState = STATE_CANCELLED;
+                    return false;
+                }
+                try {
+                    wait(delay);
+                } catch (InterruptedException e) {
+                    // Keep waiting like runWithScissors does
+                }
+            }
+            while (mState == STATE_RUNNING) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Keep waiting
+                }
+            }
+            return true;
+        }
+    }
+
+    private Op findMergeableLocked(int type) {
+        // Only merge with the tail, so calls keep their order
+        final Op last = mQueue.peekLast();
+        return last != null && last.mType == type ? last : null;
+    }
+
+    private void addLocked(Op op) {
+        if (mQueue.size() >= MAX_QUEUE_DEPTH) {
+            dropOldestLocked();
+        }
+        mQueue.addLast(op);
+        mEnqueuedCount++;
+        mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+        if (!mHandler.hasCallbacks(mDrainRunnable)) {
+            mHandler.post(mDrainRunnable);
+        }
+    }
+
+    private void dropOldestLocked() {
+        // Stops and config calls are never dropped
+        final Iterator<Op> it = mQueue.iterator();
+        while (it.hasNext()) {
+            final Op op = it.next();
+            if (op.mType != TYPE_STOP && op.mType != TYPE_CONFIG) {
+                it.remove();
+                mDroppedCount++;
+                if (DEBUG_RICHTAP) {
+                    Slog.d(TAG, "queue full, drop " + op.mName);
+                }
+                return;
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final Op op;
+            synchronized (mLock) {
+                op = mQueue.pollFirst();
+            }
+            if (op == null) {
+                return;
+            }
+            execute(op);
+        }
+    }
+
+    private void execute(Op op) {
+        final IRichtapVibrator service = mProvider.getService();
+        if (service == null) {
+            return;
+        }
+        if (DEBUG_RICHTAP) {
+            Slog.d(TAG, "aac richtap " + op.mName);
+        }
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+        boolean failed = false;
+        try {
+            op.mCall.run(service);
+        } catch (RemoteException | RuntimeException e) {
+            Slog.e(TAG, "aac richtap " + op.mName + " failed", e);
+            failed = true;
+        }
+        onCallDone(op.mEnqueueTimeNs, startTime, failed);
+    }
+
+    private void onCallDone(long enqueueTimeNs, long startTimeNs, boolean failed) {
+        final long endTime = SystemClock.elapsedRealtimeNanos();
+        synchronized (mLock) {
+            if (failed) {
+                mFailedCount++;
+                return;
+            }
+            final long callTime = endTime - startTimeNs;
+            mCallCount++;
+            mTotalCallNs += callTime;
+            mMaxCallNs = Math.max(mMaxCallNs, callTime);
+            mMaxWaitNs = Math.max(mMaxWaitNs, startTimeNs - enqueueTimeNs);
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + TAG + ": depth=" + mQueue.size()
+                    + ", maxDepth=" + mMaxDepth
+                    + ", enqueued=" + mEnqueuedCount
+                    + ", coalesced=" + mCoalescedCount
+                    + ", cancelled=" + mCancelledCount
+                    + ", dropped=" + mDroppedCount);
+            pw.println(prefix + "  halCalls=" + mCallCount
+                    + ", failed=" + mFailedCount
+                    + ", avgLatency=" + (mCallCount > 0 ? mTotalCallNs / mCallCount / 1000L : 0) + "us"
+                    + ", maxLatency=" + mMaxCallNs / 1000L + "us"
+                    + ", maxQueueWait=" + mMaxWaitNs / 1000L + "us"
+                    + ", syncTimeouts=" + mSyncTimeoutCount);
+        }
+    }
+}
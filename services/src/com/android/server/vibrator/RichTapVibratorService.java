@@ -16,6 +16,8 @@ import android.os.Vibrator;
 import android.telephony.TelephonyManager;
 import android.util.Slog;
 
+import java.io.PrintWriter;
+
 import vendor.aac.hardware.richtap.vibrator.IRichtapVibrator;
 import vendor.aac.hardware.richtap.vibrator.IRichtapCallback;
 
@@ -33,7 +35,11 @@ public class RichTapVibratorService {
 
     static final SenderId mCurrentSenderId = new SenderId(0, 0);
 
-    private boolean mLastRichTapEffect = false;
+    private static volatile RichTapDispatcher sDispatcher;
+
+    private final RichTapDispatcher mDispatcher;
+
+    private volatile boolean mLastRichTapEffect = false;
 
     public enum HapticParamType {
         HAPTIC_DRC(0x01);
@@ -90,6 +96,8 @@ public class RichTapVibratorService {
 
     RichTapVibratorService(IRichtapCallback callback) {
         mCallback = callback;
+        mDispatcher = new RichTapDispatcher(this::getRichtapService);
+        sDispatcher = mDispatcher;
     }
 
     /*
@@ -124,18 +132,8 @@ public class RichTapVibratorService {
             if (DEBUG_RICHTAP) {
                 Slog.d(TAG, "recive data, interval: " + interval + ", amplitude: " + amplitude + ", freq: " + freq);
             }
-            try {
-                IRichtapVibrator service = getRichtapService();
-                if (service != null) {
-                    if (DEBUG_RICHTAP) {
-                        Slog.d(TAG, "aac richtap performHeParam");
-                    }
-                    mLastRichTapEffect = true;
-                    service.performHeParam(interval, amplitude, freq, mCallback);
-                }
-            } catch (Exception e) {
-                Slog.e(TAG, "aac richtap performHeParam failed", e);
-            }
+            mLastRichTapEffect = true;
+            mDispatcher.enqueueHeParam(interval, amplitude, freq, mCallback);
             return true;
         } else if (effect instanceof RichTapVibrationEffect.HapticParameter) {
             RichTapVibrationEffect.HapticParameter parameter = (RichTapVibrationEffect.HapticParameter) effect;
@@ -154,48 +152,22 @@ public class RichTapVibratorService {
     }
 
     public void richTapVibratorOn(long millis) {
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (service != null) {
-                if (DEBUG_RICHTAP) {
-                    Slog.d(TAG, "aac richtap doVibratorOn");
-                }
-                mLastRichTapEffect = true;
-                service.on((int) millis, mCallback);
-            }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap doVibratorOn failed", e);
-        }
+        mLastRichTapEffect = true;
+        mDispatcher.enqueueEffect("doVibratorOn", service -> service.on((int) millis, mCallback));
     }
 
     public void richTapVibratorOff() {
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (service != null) {
-                if (DEBUG_RICHTAP) {
-                    Slog.d(TAG, "aac richtap doVibratorOff");
-                }
-                service.off(mCallback);
-                mLastRichTapEffect = false;
-            }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap doVibratorOff failed", e);
-        }
+        mLastRichTapEffect = false;
+        mDispatcher.enqueueStop("doVibratorOff", service -> service.off(mCallback));
     }
 
     private void setHapticParam(int[] data, int length) {
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (service != null) {
-                if (DEBUG_RICHTAP) {
-                    Slog.d(TAG, "aac richtap setHapticParam, data length: " + length);
-                }
-                mLastRichTapEffect = true;
-                service.setHapticParam(data, length, mCallback);
-            }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap setHapticParam failed", e);
+        if (DEBUG_RICHTAP) {
+            Slog.d(TAG, "aac richtap setHapticParam, data length: " + length);
         }
+        mLastRichTapEffect = true;
+        mDispatcher.enqueueConfig("setHapticParam",
+                service -> service.setHapticParam(data, length, mCallback));
     }
 
     public void richTapSetVibrationMode(int mode) {
@@ -209,37 +181,19 @@ public class RichTapVibratorService {
     }
 
     public void richTapVibratorSetAmplitude(int amplitude) {
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (service != null) {
-                if (DEBUG_RICHTAP) {
-                    Slog.d(TAG, "aac richtap doVibratorSetAmplitude");
-                }
-                mLastRichTapEffect = true;
-                service.setAmplitude((int) (amplitude), mCallback);
-            }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap doVibratorSetAmplitude failed", e);
-        }
+        mLastRichTapEffect = true;
+        mDispatcher.enqueueAmplitude(service -> service.setAmplitude(amplitude, mCallback));
     }
 
     public int richTapVibratorPerform(int id, byte scale) {
-        int timeout = 0;
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (service != null) {
-                if (DEBUG_RICHTAP) {
-                    Slog.d(TAG, "perform richtap vibrator");
-                }
-                mLastRichTapEffect = true;
-                timeout = service.perform(id, scale, mCallback);
-                Slog.d(TAG, "aac richtap perform timeout: " + timeout);
-                return timeout;
-
-            }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap perform failed", e);
+        if (DEBUG_RICHTAP) {
+            Slog.d(TAG, "perform richtap vibrator");
         }
+        mLastRichTapEffect = true;
+        // Caller needs the timeout, wait for it behind the queued calls
+        final int timeout = mDispatcher.call("perform",
+                service -> service.perform(id, scale, mCallback), 0);
+        Slog.d(TAG, "aac richtap perform timeout: " + timeout);
         return timeout;
     }
 
@@ -281,18 +235,9 @@ public class RichTapVibratorService {
             Slog.d(TAG, "vibrator perform envelope");
         }
         richTapVibratorSetAmplitude(amplitude);
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (service != null) {
-                if (DEBUG_RICHTAP) {
-                    Slog.d(TAG, "aac richtap performEnvelope");
-                }
-                mLastRichTapEffect = true;
-                service.performEnvelope(params, steepMode, mCallback);
-            }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap performEnvelope failed", e);
-        }
+        mLastRichTapEffect = true;
+        mDispatcher.enqueueEffect("performEnvelope",
+                service -> service.performEnvelope(params, steepMode, mCallback));
     }
 
     public void richTapVibratorOnPatternHe(VibrationEffect effect) {
@@ -304,45 +249,29 @@ public class RichTapVibratorService {
         int amplitude = newEffect.getAmplitude();
         int freq = newEffect.getFreq();
 
-        long patternId = -1;
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (service != null) {
-                mLastRichTapEffect = true;
-                service.performHe(looper, interval, amplitude, freq, pattern, mCallback);
-            }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap doVibratorOnPatternHe failed", e);
-        }
+        mLastRichTapEffect = true;
+        mDispatcher.enqueueEffect("doVibratorOnPatternHe",
+                service -> service.performHe(looper, interval, amplitude, freq, pattern, mCallback));
     }
 
     public void richTapVibratorOnRawPattern(int[] pattern, int amplitude, int freq) {
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (service != null) {
-                mLastRichTapEffect = true;
-                service.performHe(1, 0, amplitude, freq, pattern, mCallback);
-            }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap doVibratorOnPatternHe failed", e);
-        }
+        mLastRichTapEffect = true;
+        mDispatcher.enqueueEffect("doVibratorOnPatternHe",
+                service -> service.performHe(1, 0, amplitude, freq, pattern, mCallback));
     }
 
     public void richTapVibratorStop(boolean force) {
         if (!mLastRichTapEffect && !force) {
             return;
         }
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (service != null) {
-                if (DEBUG_RICHTAP) {
-                    Slog.d(TAG, "aac richtap doVibratorStop");
-                }
-                service.stop(mCallback);
-                mLastRichTapEffect = false;
-            }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap doVibratorStop failed", e);
+        mLastRichTapEffect = false;
+        mDispatcher.enqueueStop("doVibratorStop", service -> service.stop(mCallback));
+    }
+
+    public static void dump(PrintWriter pw, String prefix) {
+        final RichTapDispatcher dispatcher = sDispatcher;
+        if (dispatcher != null) {
+            dispatcher.dump(pw, prefix);
         }
     }
 
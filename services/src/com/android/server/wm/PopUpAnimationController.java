@@ -155,6 +155,7 @@ class PopUpAnimationController {
                         .setScale(leash, scale, scale)
                         .show(leash);
             }
+            invalidateTaskSurfaceState();
         }
     }
 
@@ -578,5 +579,13 @@ class PopUpAnimationController {
                     .setScale(leash, scale, scale)
                     .show(leash).apply();
         }
+        invalidateTaskSurfaceState();
+    }
+
+    private void invalidateTaskSurfaceState() {
+        final TaskWindowSurfaceInfo info = mTask.mWindowContainerExt.getTaskWindowSurfaceInfo();
+        if (info != null) {
+            info.invalidateSurfaceState();
+        }
     }
 }
@@ -59,6 +59,7 @@ import com.android.server.wm.Transition.ChangeInfo;
 
 import com.google.android.collect.Sets;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 import org.sun.view.DisplayResolutionManager;
@@ -913,6 +914,11 @@ public class PopUpWindowController {
         }
     }
 
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + TAG + ":");
+        WindowPositioner.dump(pw, prefix + "  ");
+    }
+
     private String reasonToString(int reason) {
         switch (reason) {
             case MOVE_TO_BACK_TOUCH_OUTSIDE:
@@ -63,6 +63,28 @@ class TaskWindowSurfaceInfo {
     private float mWindowSurfaceScale;
     private float mWindowSurfaceScaleFactor;
 
+    // Scratch objects for surface placement, only touched with global lock held
+    private final Rect mTmpBounds = new Rect();
+    private final Rect mTmpDisplayBound = new Rect();
+    private final Rect mTmpSurfaceBounds = new Rect();
+    private final Rect mTmpBoundaryGap = new Rect();
+    private final Point mTmpPos = new Point();
+    private final Rect mTmpCalcDisplayBound = new Rect();
+    private final Point mTmpCalcPos = new Point();
+
+    // Last surface state written in onPrepareSurfaces
+    private SurfaceControl mLastAppliedSurface;
+    private final Rect mLastAppliedBounds = new Rect();
+    private final Rect mLastAppliedDisplayBound = new Rect();
+    private final Point mLastAppliedPos = new Point();
+    private float mLastAppliedScale;
+    private float mLastAppliedCornerRadius;
+    private boolean mLastAppliedShowing;
+    private volatile boolean mSurfaceStateDirty = true;
+
+    private long mPrepareAppliedCount;
+    private long mPrepareSkippedCount;
+
     final WindowManagerService mService;
     final Task mTask;
 
@@ -237,43 +259,51 @@ class TaskWindowSurfaceInfo {
     }
 
     Rect getTaskWindowSurfaceBounds() {
+        final Rect result = new Rect();
+        getTaskWindowSurfaceBounds(result);
+        return result;
+    }
+
+    private void getTaskWindowSurfaceBounds(Rect outResult) {
         int windowingMode = mFreezedWindowingMode;
         if (windowingMode == WINDOWING_MODE_UNDEFINED) {
             windowingMode = mTask.getConfiguration().windowConfiguration.getWindowingMode();
         }
-        final Rect result = new Rect();
+        outResult.setEmpty();
+        final Rect bound = mTask.getBounds();
         if (WindowConfiguration.isPinnedExtWindowMode(windowingMode)) {
-            final Rect bounds = new Rect();
-            mTask.getBounds(bounds);
-            final Rect displayBound = new Rect();
-            if (mTask.mDisplayContent != null) {
-                final InsetsState state = mTask.mDisplayContent.getInsetsStateController().getRawInsetsState();
-                displayBound.set(state.getDisplayFrame());
-                displayBound.inset(state.calculateInsets(displayBound,
-                        WindowInsets.Type.systemBars() | WindowInsets.Type.displayCutout(), true));
-            }
-            final Point pos = new Point();
+            getStableDisplayBound(mTmpCalcDisplayBound);
             WindowResizingAlgorithm.getCenterByBoundaryGap(
-                    bounds, displayBound, getWindowBoundaryGap(),
-                    getPinnedWindowVerticalPosRatio(displayBound),
-                    getWindowCenterPosition(), getWindowSurfaceScale(), pos);
-            setWindowCenterPosition(pos);
+                    bound, mTmpCalcDisplayBound, mWindowBoundaryGap,
+                    getPinnedWindowVerticalPosRatio(mTmpCalcDisplayBound),
+                    mWindowCenterPosition, getWindowSurfaceScale(), mTmpCalcPos);
+            setWindowCenterPosition(mTmpCalcPos);
         }
         if (WindowConfiguration.isPopUpWindowMode(windowingMode)) {
-            final Rect displayBound = new Rect();
+            mTmpCalcDisplayBound.setEmpty();
             if (mTask.mDisplayContent != null) {
-                mTask.mDisplayContent.getBounds(displayBound);
+                mTask.mDisplayContent.getBounds(mTmpCalcDisplayBound);
             }
-            final Point pos = new Point();
-            final Rect bound = mTask.getBounds();
             mWindowSurfaceScaleFactor = WindowResizingAlgorithm.getPositionAndScaleFactorForTask(
-                    bound, displayBound, mWindowCenterPosition, mWindowSurfaceScale,
-                    WindowConfiguration.isPinnedExtWindowMode(windowingMode), pos);
-            result.set(0, 0, bound.width(), bound.height());
-            result.scale(getWindowSurfaceRealScale());
-            result.offsetTo(pos.x, pos.y);
+                    bound, mTmpCalcDisplayBound, mWindowCenterPosition, mWindowSurfaceScale,
+                    WindowConfiguration.isPinnedExtWindowMode(windowingMode), mTmpCalcPos);
+            outResult.set(0, 0, bound.width(), bound.height());
+            outResult.scale(getWindowSurfaceRealScale());
+            outResult.offsetTo(mTmpCalcPos.x, mTmpCalcPos.y);
+        }
+    }
+
+    /**
+     * Display frame excluding system bars and display cutout.
+     */
+    private void getStableDisplayBound(Rect outBound) {
+        outBound.setEmpty();
+        if (mTask.mDisplayContent != null) {
+            final InsetsState state = mTask.mDisplayContent.getInsetsStateController().getRawInsetsState();
+            outBound.set(state.getDisplayFrame());
+            outBound.inset(state.calculateInsets(outBound,
+                    WindowInsets.Type.systemBars() | WindowInsets.Type.displayCutout(), true));
         }
-        return result;
     }
 
     Rect getTaskWindowSurfaceBoundsOnDrag(Rect displayBound) {
@@ -345,6 +375,7 @@ class TaskWindowSurfaceInfo {
             }
             updateDensityIfNeed(isPrevPopUpWindow && !isPopUpWindow);
         }
+        invalidateSurfaceState();
     }
 
     private void updateDensityIfNeed(boolean isExitPopUpView) {
@@ -383,6 +414,7 @@ class TaskWindowSurfaceInfo {
                     mTask.getConfiguration().orientation, mTask.mDisplayContent.getRotation()));
             setWindowCenterPosition(pos);
         }
+        invalidateSurfaceState();
     }
 
     void onConfigurationChanged() {
@@ -408,26 +440,21 @@ class TaskWindowSurfaceInfo {
         if (winConfig.isPinnedExtWindowMode() && !mPopUpAnimationController.isAnimating()
                 && !mTask.mTransitionController.inPlayingTransition(mTask)
                 && !mService.mTaskPositioningController.isWindowPositioningLocked()) {
-            final Rect surfaceBounds = getTaskWindowSurfaceBounds();
-            final Rect bounds = new Rect();
-            mTask.getBounds(bounds);
-            final Rect displayBound = new Rect();
-            if (mTask.mDisplayContent != null) {
-                final InsetsState state = mTask.mDisplayContent.getInsetsStateController().getRawInsetsState();
-                displayBound.set(state.getDisplayFrame());
-                displayBound.inset(state.calculateInsets(displayBound,
-                        WindowInsets.Type.systemBars() | WindowInsets.Type.displayCutout(), true));
-            }
-            final Rect boundaryGap = getWindowBoundaryGap();
-            boundaryGap.top = surfaceBounds.top <= displayBound.top + BOUNDARY_GAP ? BOUNDARY_GAP : 0;
-            boundaryGap.bottom = surfaceBounds.bottom >= displayBound.bottom - BOUNDARY_GAP ? BOUNDARY_GAP : 0;
-            final Point pos = new Point();
+            getTaskWindowSurfaceBounds(mTmpSurfaceBounds);
+            mTask.getBounds(mTmpBounds);
+            getStableDisplayBound(mTmpDisplayBound);
+            // Stick to top / bottom edge only for this pass, stored boundary gap is untouched
+            mTmpBoundaryGap.set(mWindowBoundaryGap);
+            mTmpBoundaryGap.top = mTmpSurfaceBounds.top <= mTmpDisplayBound.top + BOUNDARY_GAP
+                    ? BOUNDARY_GAP : 0;
+            mTmpBoundaryGap.bottom = mTmpSurfaceBounds.bottom >= mTmpDisplayBound.bottom - BOUNDARY_GAP
+                    ? BOUNDARY_GAP : 0;
             WindowResizingAlgorithm.getCenterByBoundaryGap(
-                    bounds, displayBound, boundaryGap,
-                    getPinnedWindowVerticalPosRatio(displayBound),
-                    getWindowCenterPosition(), getWindowSurfaceScale(), pos);
-            setWindowCenterPosition(pos);
-            setPinnedWindowVerticalPosRatio(getWindowCenterPosition(), displayBound, false);
+                    mTmpBounds, mTmpDisplayBound, mTmpBoundaryGap,
+                    getPinnedWindowVerticalPosRatio(mTmpDisplayBound),
+                    mWindowCenterPosition, getWindowSurfaceScale(), mTmpPos);
+            setWindowCenterPosition(mTmpPos);
+            setPinnedWindowVerticalPosRatio(mWindowCenterPosition, mTmpDisplayBound, false);
         }
         final boolean hasAnimationLeash = mTask.mSurfaceFreezer.hasLeash() ||
                 mTask.mSurfaceAnimator.hasLeash() ||
@@ -435,22 +462,19 @@ class TaskWindowSurfaceInfo {
                 mTask.mTransitionController.isPlaying();
         if (winConfig.isPopUpWindowMode() && !hasAnimationLeash &&
                 !mService.mTaskPositioningController.isWindowPositioningLocked()) {
-            final Rect displayBound = new Rect();
+            mTmpDisplayBound.setEmpty();
             if (mTask.mDisplayContent != null) {
-                mTask.mDisplayContent.getBounds(displayBound);
+                mTask.mDisplayContent.getBounds(mTmpDisplayBound);
             }
-            final Point pos = new Point();
             final Rect bound = mTask.getBounds();
             mWindowSurfaceScaleFactor = WindowResizingAlgorithm.getPositionAndScaleFactorForTask(
-                    bound, displayBound, mWindowCenterPosition,
-                    mWindowSurfaceScale, winConfig.isPinnedExtWindowMode(), pos);
-            t.setPosition(mTask.mSurfaceControl, pos.x, pos.y)
-                    .setWindowCrop(mTask.mSurfaceControl, bound.width(), bound.height())
-                    .setCornerRadius(mTask.mSurfaceControl, mCornerRadius)
-                    .setScale(mTask.mSurfaceControl, getWindowSurfaceRealScale(), getWindowSurfaceRealScale());
-            if (mTask.mLastSurfaceShowing) {
-                t.show(mTask.mSurfaceControl);
-            }
+                    bound, mTmpDisplayBound, mWindowCenterPosition,
+                    mWindowSurfaceScale, winConfig.isPinnedExtWindowMode(), mTmpPos);
+            applySurfaceStateIfChanged(t, bound, mTmpDisplayBound, mTmpPos,
+                    getWindowSurfaceRealScale(), mTask.mLastSurfaceShowing);
+        } else {
+            // Surface is driven by someone else, write everything on next pass
+            mSurfaceStateDirty = true;
         }
         if (winConfig.isPinnedExtWindowMode() &&
                 PinnedWindowOverlayController.getInstance().isOverlayViewShowing()) {
@@ -458,6 +482,49 @@ class TaskWindowSurfaceInfo {
         }
     }
 
+    /**
+     * Task bounds are part of the key as well, since the base container
+     * updates surface position by itself when they change.
+     */
+    private void applySurfaceStateIfChanged(SurfaceControl.Transaction t, Rect bound,
+            Rect displayBound, Point pos, float scale, boolean showing) {
+        final SurfaceControl sc = mTask.mSurfaceControl;
+        if (!mSurfaceStateDirty && mLastAppliedSurface == sc
+                && mLastAppliedBounds.equals(bound)
+                && mLastAppliedDisplayBound.equals(displayBound)
+                && mLastAppliedPos.equals(pos.x, pos.y)
+                && mLastAppliedScale == scale
+                && mLastAppliedCornerRadius == mCornerRadius
+                && mLastAppliedShowing == showing) {
+            mPrepareSkippedCount++;
+            return;
+        }
+        t.setPosition(sc, pos.x, pos.y)
+                .setWindowCrop(sc, bound.width(), bound.height())
+                .setCornerRadius(sc, mCornerRadius)
+                .setScale(sc, scale, scale);
+        if (showing) {
+            t.show(sc);
+        }
+        mSurfaceStateDirty = false;
+        mLastAppliedSurface = sc;
+        mLastAppliedBounds.set(bound);
+        mLastAppliedDisplayBound.set(displayBound);
+        mLastAppliedPos.set(pos.x, pos.y);
+        mLastAppliedScale = scale;
+        mLastAppliedCornerRadius = mCornerRadius;
+        mLastAppliedShowing = showing;
+        mPrepareAppliedCount++;
+    }
+
+    /**
+     * Called when task surface is written outside of {@link #onPrepareSurfaces},
+     * so that the next pass doesn't skip the transaction writes.
+     */
+    void invalidateSurfaceState() {
+        mSurfaceStateDirty = true;
+    }
+
     void scheduleTransition(TaskWindowSurfaceInfo freezeTaskWindowSurfaceInfo, DisplayInfo displayInfo) {
         mTransitionInfoExt.setupPopUpViewInfo(freezeTaskWindowSurfaceInfo, this, displayInfo);
     }
@@ -530,6 +597,10 @@ class TaskWindowSurfaceInfo {
         sb.append(mCornerRadius);
         sb.append(" mPinnedWindowVerticalPosRatio=");
         sb.append(mPinnedWindowVerticalPosRatio);
+        sb.append(" mPrepareAppliedCount=");
+        sb.append(mPrepareAppliedCount);
+        sb.append(" mPrepareSkippedCount=");
+        sb.append(mPrepareSkippedCount);
         sb.append("}");
         return sb.toString();
     }
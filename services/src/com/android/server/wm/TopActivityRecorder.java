@@ -5,22 +5,32 @@
 
 package com.android.server.wm;
 
+import static android.Manifest.permission.MANAGE_ACTIVITY_TASKS;
 import static android.app.ActivityTaskManager.INVALID_TASK_ID;
 import static android.os.Process.THREAD_PRIORITY_DEFAULT;
 
 import static com.android.server.wm.PopUpWindowController.PACKAGE_NAME_SYSTEM_TOOL;
 
+import static org.sun.content.ContextExt.TOP_TASK_SERVICE;
 import static org.sun.os.DebugConstants.DEBUG_WMS_TOP_APP;
 
 import android.app.WindowConfiguration;
 import android.content.ComponentName;
+import android.content.Context;
 import android.os.Handler;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
 import android.util.Slog;
 
 import com.android.server.ServiceThread;
 
 import java.util.ArrayList;
 
+import org.sun.app.ITopTaskListener;
+import org.sun.app.ITopTaskManagerService;
+import org.sun.app.TopTaskInfo;
+import org.sun.server.SunSystemExService;
+
 public class TopActivityRecorder {
 
     private static final String TAG = "TopActivityRecorder";
@@ -42,8 +52,52 @@ public class TopActivityRecorder {
     private ActivityInfo mTopPinnedWindowActivity = null;
     private ArrayList<ActivityInfo> mTopMiniWindowActivity = new ArrayList<>();
 
+    // Mirrors !mTopMiniWindowActivity.isEmpty() for lock-free reads from input path
+    private volatile boolean mHasMiniWindow = false;
+
+    private final RemoteCallbackList<ITopTaskListener> mTopTaskListeners = new RemoteCallbackList<>();
+
+    private final Runnable mNotifyTopTaskRunnable = this::notifyTopTaskChanged;
+
+    private TopTaskInfo mTopTaskInfo = TopTaskInfo.EMPTY;
+    private long mTopTaskSequence = 0L;
+
+    private Context mContext;
     private WindowManagerService mWms;
 
+    private final class TopTaskManagerService extends ITopTaskManagerService.Stub {
+        @Override
+        public TopTaskInfo getTopTaskInfo() {
+            mContext.enforceCallingOrSelfPermission(MANAGE_ACTIVITY_TASKS, "getTopTaskInfo");
+            synchronized (mFocusLock) {
+                return mTopTaskInfo;
+            }
+        }
+
+        @Override
+        public boolean registerTopTaskListener(ITopTaskListener listener) {
+            mContext.enforceCallingOrSelfPermission(MANAGE_ACTIVITY_TASKS, "registerTopTaskListener");
+            if (!mTopTaskListeners.register(listener)) {
+                return false;
+            }
+            final TopTaskInfo info;
+            synchronized (mFocusLock) {
+                info = mTopTaskInfo;
+            }
+            try {
+                listener.onTopTaskChanged(info);
+            } catch (RemoteException e) {
+                // Client died, RemoteCallbackList will drop it.
+            }
+            return true;
+        }
+
+        @Override
+        public boolean unregisterTopTaskListener(ITopTaskListener listener) {
+            return mTopTaskListeners.unregister(listener);
+        }
+    }
+
     private TopActivityRecorder() {
         mServiceThread = new ServiceThread(TAG, THREAD_PRIORITY_DEFAULT, false);
         mServiceThread.start();
@@ -54,6 +108,11 @@ public class TopActivityRecorder {
         mWms = wms;
     }
 
+    public void initSystemExService(SunSystemExService service) {
+        mContext = service.getContext();
+        service.publishBinderService(TOP_TASK_SERVICE, new TopTaskManagerService());
+    }
+
     void onAppFocusChanged(ActivityRecord focus, Task task) {
         synchronized (mFocusLock) {
             final DisplayContent dc = mWms.getDefaultDisplayContentLocked();
@@ -78,9 +137,12 @@ public class TopActivityRecorder {
                 }
                 if (!hasTask) {
                     mTopMiniWindowActivity.add(new ActivityInfo(newFocus, newTask));
+                    updateHasMiniWindowLocked();
                 }
                 logD("Top mini-window activity changed to " + newFocus + ", addedTaskBefore=" + hasTask);
                 DimmerWindow.getInstance().setTask(newTask);
+                publishTopTaskLocked(newFocus.packageName, newFocus.mActivityComponent,
+                        newTask.mTaskId, windowingMode);
             } else if (windowingMode == WindowConfiguration.WINDOWING_MODE_UNDEFINED
                     || windowingMode == WindowConfiguration.WINDOWING_MODE_FULLSCREEN) {
                 final ComponentName oldComponent = getTopFullscreenComponentLocked();
@@ -95,6 +157,15 @@ public class TopActivityRecorder {
                     }
                     logD("Top fullscreen window activity changed to " + newFocus);
                 }
+                // Focus may come back from a split-screen task with the same component
+                publishTopTaskLocked(mTopFullscreenActivity, windowingMode);
+            } else if (windowingMode != WindowConfiguration.WINDOWING_MODE_FREEFORM
+                    && windowingMode != WindowConfiguration.WINDOWING_MODE_PINNED_WINDOW_EXT) {
+                // Split-screen and other multi-window tasks are not recorded as fullscreen,
+                // but listeners still follow them like they did with the focused root task.
+                logD("Top multi-window activity changed to " + newFocus);
+                publishTopTaskLocked(newFocus.packageName, newFocus.mActivityComponent,
+                        newTask.mTaskId, windowingMode);
             }
         }
     }
@@ -112,6 +183,8 @@ public class TopActivityRecorder {
             if (mTopPinnedWindowActivity.task != null) {
                 PinnedWindowOverlayController.getInstance().setTask(mTopPinnedWindowActivity.task);
                 logD("Top pinned-window activity changed to " + newActivity);
+                publishTopTaskLocked(mTopPinnedWindowActivity,
+                        WindowConfiguration.WINDOWING_MODE_PINNED_WINDOW_EXT);
             } else {
                 PinnedWindowOverlayController.getInstance().setTask(null);
                 logD("Top pinned-window activity changed to null");
@@ -119,6 +192,45 @@ public class TopActivityRecorder {
         }
     }
 
+    private void publishTopTaskLocked(ActivityInfo ai, int windowingMode) {
+        publishTopTaskLocked(ai.packageName, ai.componentName,
+                ai.task != null ? ai.task.mTaskId : INVALID_TASK_ID, windowingMode);
+    }
+
+    private void publishTopTaskLocked(String packageName, ComponentName component,
+            int taskId, int windowingMode) {
+        final String activityName = component != null ? component.getClassName() : "";
+        if (mTopTaskInfo.getTaskId() == taskId
+                && mTopTaskInfo.getWindowingMode() == windowingMode
+                && mTopTaskInfo.getPackageName().equals(packageName)
+                && mTopTaskInfo.getActivityName().equals(activityName)) {
+            return;
+        }
+        mTopTaskInfo = new TopTaskInfo(++mTopTaskSequence, packageName,
+                activityName, taskId, windowingMode);
+        // Listeners only care about the latest snapshot, coalesce pending notifications
+        if (!mHandler.hasCallbacks(mNotifyTopTaskRunnable)) {
+            mHandler.post(mNotifyTopTaskRunnable);
+        }
+    }
+
+    private void notifyTopTaskChanged() {
+        final TopTaskInfo info;
+        synchronized (mFocusLock) {
+            info = mTopTaskInfo;
+        }
+        final int n = mTopTaskListeners.beginBroadcast();
+        for (int i = 0; i < n; ++i) {
+            try {
+                mTopTaskListeners.getBroadcastItem(i).onTopTaskChanged(info);
+            } catch (RemoteException e) {
+                // Client died, RemoteCallbackList will drop it.
+            }
+        }
+        mTopTaskListeners.finishBroadcast();
+        logD("Notified top task changed: " + info);
+    }
+
     private ComponentName getTopFullscreenComponentLocked() {
         if (mTopFullscreenActivity == null) {
             return null;
@@ -209,9 +321,11 @@ public class TopActivityRecorder {
     }
 
     public boolean hasMiniWindow() {
-        synchronized (mFocusLock) {
-            return mTopMiniWindowActivity.size() > 0;
-        }
+        return mHasMiniWindow;
+    }
+
+    private void updateHasMiniWindowLocked() {
+        mHasMiniWindow = mTopMiniWindowActivity.size() > 0;
     }
 
     private String getPackageNameFromTask(Task task) {
@@ -228,6 +342,7 @@ public class TopActivityRecorder {
             for (int i = n - 1; i >= 0; --i) {
                 if (mTopMiniWindowActivity.get(i).task == task) {
                     final ActivityInfo ai = mTopMiniWindowActivity.remove(i);
+                    updateHasMiniWindowLocked();
                     logD("removeMiniWindowTask: " + ai);
                     if (n == 1) {
                         DimmerWindow.getInstance().setTask(null);
@@ -254,6 +369,7 @@ public class TopActivityRecorder {
             mTopPinnedWindowActivity = new ActivityInfo(mTopMiniWindowActivity.get(n - 1));
             logD("moveTopMiniToPinned: " + mTopPinnedWindowActivity);
             mTopMiniWindowActivity.clear();
+            updateHasMiniWindowLocked();
             DimmerWindow.getInstance().setTask(null);
             mHandler.postDelayed(() -> {
                 PinnedWindowOverlayController.getInstance().setTask(task);
@@ -273,6 +389,7 @@ public class TopActivityRecorder {
             final Task prevMiniTask = getTopMiniWindowTaskLocked();
             mTopMiniWindowActivity.clear();
             mTopMiniWindowActivity.add(new ActivityInfo(mTopPinnedWindowActivity));
+            updateHasMiniWindowLocked();
             logD("moveTopPinnedToMini: " + mTopPinnedWindowActivity);
             DimmerWindow.getInstance().setTask(mTopPinnedWindowActivity.task);
             mTopPinnedWindowActivity = null;
@@ -295,8 +412,11 @@ public class TopActivityRecorder {
                 final ComponentName oldComponent = getTopFullscreenComponentLocked();
                 mTopFullscreenActivity = new ActivityInfo(mTopMiniWindowActivity.get(n - 1));
                 logD("Top fullscreen window activity changed to " + mTopFullscreenActivity);
+                publishTopTaskLocked(mTopFullscreenActivity,
+                        WindowConfiguration.WINDOWING_MODE_FULLSCREEN);
             }
             mTopMiniWindowActivity.clear();
+            updateHasMiniWindowLocked();
             DimmerWindow.getInstance().setTask(null);
         }
     }
@@ -308,6 +428,8 @@ public class TopActivityRecorder {
                 final ComponentName oldComponent = getTopFullscreenComponentLocked();
                 mTopFullscreenActivity = new ActivityInfo(mTopPinnedWindowActivity);
                 logD("Top fullscreen window activity changed to " + mTopFullscreenActivity);
+                publishTopTaskLocked(mTopFullscreenActivity,
+                        WindowConfiguration.WINDOWING_MODE_FULLSCREEN);
             }
             mTopPinnedWindowActivity = null;
             PinnedWindowOverlayController.getInstance().setTask(null);
@@ -318,6 +440,7 @@ public class TopActivityRecorder {
         synchronized (mFocusLock) {
             logD("clearMiniWindow");
             mTopMiniWindowActivity.clear();
+            updateHasMiniWindowLocked();
             DimmerWindow.getInstance().setTask(null);
         }
     }
@@ -337,6 +460,7 @@ public class TopActivityRecorder {
                     mTopMiniWindowActivity.remove(i);
                 }
             }
+            updateHasMiniWindowLocked();
         }
     }
 
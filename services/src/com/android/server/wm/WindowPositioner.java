@@ -32,9 +32,11 @@ import android.graphics.Rect;
 import android.os.Binder;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Slog;
 import android.view.BatchedInputEventReceiver;
+import android.view.Choreographer;
 import android.view.InputApplicationHandle;
 import android.view.InputChannel;
 import android.view.InputEvent;
@@ -49,6 +51,7 @@ import android.view.WindowInsets;
 
 import com.android.internal.R;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.concurrent.CompletableFuture;
 
@@ -69,6 +72,15 @@ class WindowPositioner implements IBinder.DeathRecipient {
 
     private static Factory sFactory;
 
+    // Totals of finished drags, for dump
+    private static final Object sStatsLock = new Object();
+    private static long sDragCount;
+    private static long sTotalMoveSampleCount;
+    private static long sTotalCoalescedSampleCount;
+    private static long sTotalAppliedFrameCount;
+    private static long sTotalApplyLatencyNs;
+    private static long sMaxApplyLatencyNs;
+
     private final WindowManagerService mService;
 
     private final Rect mTmpRect = new Rect();
@@ -77,6 +89,9 @@ class WindowPositioner implements IBinder.DeathRecipient {
     private final Rect mWindowDragBounds = new Rect();
     private final Point mWindowOriginalPosition = new Point();
     private final Point mMaxVisibleSize = new Point();
+    private final Point mTmpPosition = new Point();
+
+    private final Runnable mMoveFrameRunnable = this::onMoveFrame;
 
     private PinnedWindowDismissView mDismissView;
     private DisplayContent mDisplayContent;
@@ -102,6 +117,20 @@ class WindowPositioner implements IBinder.DeathRecipient {
     private int mLastMiniWindowDragScaleType = MINI_WINDOW_DRAG_SCALE_TYPE_NONE;
     private int mLastDismissType = DISMISS_TYPE_NONE;
 
+    // Drag samples are only touched on the input receiver looper
+    private Choreographer mChoreographer;
+    private boolean mMoveFrameScheduled;
+    private float mPendingMoveX;
+    private float mPendingMoveY;
+    private int mPendingDismissType = DISMISS_TYPE_NONE;
+    private long mPendingMoveStartNs;
+
+    private long mMoveSampleCount;
+    private long mCoalescedSampleCount;
+    private long mAppliedFrameCount;
+    private long mTotalApplyLatencyNs;
+    private long mMaxApplyLatencyNs;
+
     IBinder mClientCallback;
     InputChannel mClientChannel;
     InputWindowHandle mDragWindowHandle;
@@ -126,70 +155,18 @@ class WindowPositioner implements IBinder.DeathRecipient {
                 mDragEnded = true;
                 break;
             case MotionEvent.ACTION_MOVE:
-                synchronized (mService.mGlobalLock) {
-                    final boolean reversedOrientation = isOrientationReversed();
-                    mDragEnded = notifyMoveLocked(newX, newY, reversedOrientation);
-                    mTask.getDimBounds(mTmpRect);
-                    if (mTmpRect.equals(mWindowDragBounds) && !mResizing) {
-                        break;
-                    }
-                    mDisplayContent.getBounds(mTmpRect2);
-                    final Point pos = new Point();
-                    mTaskWindowSurfaceInfo.setWindowSurfaceScaleFactor(
-                            WindowResizingAlgorithm.getPositionAndScaleFactorForTask(
-                                    mWindowDragBounds, mTmpRect2, mTaskWindowSurfaceInfo.getWindowCenterPosition(),
-                                    mTaskWindowSurfaceInfo.getWindowSurfaceScale(),
-                                    mTask.getWindowConfiguration().isPinnedExtWindowMode(), pos));
-                    final float winScale = mTaskWindowSurfaceInfo.getWindowSurfaceRealScale();
-                    mService.mH.post(() -> {
-                        synchronized (mService.mGlobalLock) {
-                            if (mTask != null && mTask.getWindowConfiguration().isPopUpWindowMode()) {
-                                final SurfaceControl.Transaction t = mTask.getSyncTransaction();
-                                final SurfaceControl leash = mTask.mSurfaceControl;
-                                final float alpha = dismissType == DISMISS_TYPE_HAND_CROSS_OVER ? RESIZING_HINT_ALPHA : 1.0f;
-                                if (mResizing) {
-                                    final float exitScaleMax = reversedOrientation ?
-                                            MINI_WINDOW_SCALE_REVERSE_ORIENTATION_EXIT_MAX : MINI_WINDOW_SCALE_EXIT_MAX;
-                                    final float exitScaleMin = reversedOrientation ?
-                                            MINI_WINDOW_SCALE_REVERSE_ORIENTATION_EXIT_MIN : MINI_WINDOW_SCALE_EXIT_MIN;
-                                    int miniWindowDragScaleType = MINI_WINDOW_DRAG_SCALE_TYPE_NONE;
-                                    if (exitScaleMin < mTaskWindowSurfaceInfo.getWindowSurfaceScale() &&
-                                            mTaskWindowSurfaceInfo.getWindowSurfaceScale() < exitScaleMax) {
-                                        miniWindowDragScaleType = MINI_WINDOW_DRAG_SCALE_TYPE_NONE;
-                                    } else if (mTaskWindowSurfaceInfo.getWindowSurfaceScale() <= exitScaleMin) {
-                                        miniWindowDragScaleType = MINI_WINDOW_DRAG_SCALE_TYPE_TO_PINNED;
-                                    } else if (mTaskWindowSurfaceInfo.getWindowSurfaceScale() > exitScaleMax) {
-                                        miniWindowDragScaleType = MINI_WINDOW_DRAG_SCALE_TYPE_TO_FULL;
-                                    }
-                                    if (mLastMiniWindowDragScaleType != miniWindowDragScaleType) {
-                                        mLastMiniWindowDragScaleType = miniWindowDragScaleType;
-                                        if (miniWindowDragScaleType != MINI_WINDOW_DRAG_SCALE_TYPE_NONE) {
-                                            PopUpWindowController.getInstance().triggerVibrate();
-                                        }
-                                    }
-                                    t.setPosition(leash, pos.x, pos.y);
-                                } else {
-                                    if (mLastDismissType != dismissType) {
-                                        mLastDismissType = dismissType;
-                                        if (dismissType == DISMISS_TYPE_HAND_CROSS_OVER) {
-                                            PopUpWindowController.getInstance().triggerVibrate();
-                                        }
-                                    }
-                                    if (!mTaskWindowSurfaceInfo.isCrossOverAnimating()) {
-                                        t.setPosition(leash, pos.x, pos.y);
-                                    }
-                                }
-                                t.setWindowCrop(leash, mWindowDragBounds.width(), mWindowDragBounds.height())
-                                        .setCornerRadius(leash, mTaskWindowSurfaceInfo.getCornerRadius())
-                                        .setAlpha(leash, alpha)
-                                        .setScale(leash, winScale, winScale)
-                                        .show(leash).apply();
-                                if (DEBUG_POP_UP) {
-                                    Slog.d(TAG, "ACTION_MOVE apply end @ {" + newX + ", " + newY + "}");
-                                }
-                            }
-                        }
-                    });
+                // Keep only the latest sample, it's applied on next frame
+                mPendingMoveX = newX;
+                mPendingMoveY = newY;
+                mPendingDismissType = dismissType;
+                mMoveSampleCount++;
+                if (mMoveFrameScheduled) {
+                    mCoalescedSampleCount++;
+                } else {
+                    mMoveFrameScheduled = true;
+                    mPendingMoveStartNs = SystemClock.uptimeNanos();
+                    mChoreographer.postCallback(Choreographer.CALLBACK_TRAVERSAL,
+                            mMoveFrameRunnable, null);
                 }
                 break;
             case MotionEvent.ACTION_CANCEL:
@@ -204,6 +181,7 @@ class WindowPositioner implements IBinder.DeathRecipient {
         if (!mDragEnded) {
             return true;
         }
+        flushPendingMove();
         synchronized (mService.mGlobalLock) {
             final boolean wasResizing = mResizing;
             endDragLocked();
@@ -302,6 +280,126 @@ class WindowPositioner implements IBinder.DeathRecipient {
         }
     }
 
+    private void onMoveFrame() {
+        if (!mMoveFrameScheduled || mDragEnded) {
+            mMoveFrameScheduled = false;
+            return;
+        }
+        applyPendingMove();
+    }
+
+    private void flushPendingMove() {
+        if (!mMoveFrameScheduled) {
+            return;
+        }
+        mChoreographer.removeCallbacks(Choreographer.CALLBACK_TRAVERSAL, mMoveFrameRunnable, null);
+        applyPendingMove();
+    }
+
+    private void applyPendingMove() {
+        mMoveFrameScheduled = false;
+        synchronized (mService.mGlobalLock) {
+            applyMoveLocked(mPendingMoveX, mPendingMoveY, mPendingDismissType);
+        }
+        final long latency = SystemClock.uptimeNanos() - mPendingMoveStartNs;
+        mAppliedFrameCount++;
+        mTotalApplyLatencyNs += latency;
+        mMaxApplyLatencyNs = Math.max(mMaxApplyLatencyNs, latency);
+    }
+
+    private void applyMoveLocked(float newX, float newY, int dismissType) {
+        if (mTask == null || mDisplayContent == null) {
+            return;
+        }
+        final boolean reversedOrientation = isOrientationReversed();
+        if (notifyMoveLocked(newX, newY, reversedOrientation)) {
+            mDragEnded = true;
+        }
+        mTask.getDimBounds(mTmpRect);
+        if (mTmpRect.equals(mWindowDragBounds) && !mResizing) {
+            return;
+        }
+        if (!mTask.getWindowConfiguration().isPopUpWindowMode()) {
+            return;
+        }
+        mDisplayContent.getBounds(mTmpRect2);
+        final Point pos = mTmpPosition;
+        mTaskWindowSurfaceInfo.setWindowSurfaceScaleFactor(
+                WindowResizingAlgorithm.getPositionAndScaleFactorForTask(
+                        mWindowDragBounds, mTmpRect2, mTaskWindowSurfaceInfo.getWindowCenterPosition(),
+                        mTaskWindowSurfaceInfo.getWindowSurfaceScale(),
+                        mTask.getWindowConfiguration().isPinnedExtWindowMode(), pos));
+        final float winScale = mTaskWindowSurfaceInfo.getWindowSurfaceRealScale();
+        final SurfaceControl.Transaction t = mTask.getSyncTransaction();
+        final SurfaceControl leash = mTask.mSurfaceControl;
+        final float alpha = dismissType == DISMISS_TYPE_HAND_CROSS_OVER ? RESIZING_HINT_ALPHA : 1.0f;
+        if (mResizing) {
+            final float exitScaleMax = reversedOrientation ?
+                    MINI_WINDOW_SCALE_REVERSE_ORIENTATION_EXIT_MAX : MINI_WINDOW_SCALE_EXIT_MAX;
+            final float exitScaleMin = reversedOrientation ?
+                    MINI_WINDOW_SCALE_REVERSE_ORIENTATION_EXIT_MIN : MINI_WINDOW_SCALE_EXIT_MIN;
+            int miniWindowDragScaleType = MINI_WINDOW_DRAG_SCALE_TYPE_NONE;
+            if (exitScaleMin < mTaskWindowSurfaceInfo.getWindowSurfaceScale() &&
+                    mTaskWindowSurfaceInfo.getWindowSurfaceScale() < exitScaleMax) {
+                miniWindowDragScaleType = MINI_WINDOW_DRAG_SCALE_TYPE_NONE;
+            } else if (mTaskWindowSurfaceInfo.getWindowSurfaceScale() <= exitScaleMin) {
+                miniWindowDragScaleType = MINI_WINDOW_DRAG_SCALE_TYPE_TO_PINNED;
+            } else if (mTaskWindowSurfaceInfo.getWindowSurfaceScale() > exitScaleMax) {
+                miniWindowDragScaleType = MINI_WINDOW_DRAG_SCALE_TYPE_TO_FULL;
+            }
+            if (mLastMiniWindowDragScaleType != miniWindowDragScaleType) {
+                mLastMiniWindowDragScaleType = miniWindowDragScaleType;
+                if (miniWindowDragScaleType != MINI_WINDOW_DRAG_SCALE_TYPE_NONE) {
+                    PopUpWindowController.getInstance().triggerVibrate();
+                }
+            }
+            t.setPosition(leash, pos.x, pos.y);
+        } else {
+            if (mLastDismissType != dismissType) {
+                mLastDismissType = dismissType;
+                if (dismissType == DISMISS_TYPE_HAND_CROSS_OVER) {
+                    PopUpWindowController.getInstance().triggerVibrate();
+                }
+            }
+            if (!mTaskWindowSurfaceInfo.isCrossOverAnimating()) {
+                t.setPosition(leash, pos.x, pos.y);
+            }
+        }
+        t.setWindowCrop(leash, mWindowDragBounds.width(), mWindowDragBounds.height())
+                .setCornerRadius(leash, mTaskWindowSurfaceInfo.getCornerRadius())
+                .setAlpha(leash, alpha)
+                .setScale(leash, winScale, winScale)
+                .show(leash).apply();
+        mTaskWindowSurfaceInfo.invalidateSurfaceState();
+        if (DEBUG_POP_UP) {
+            Slog.d(TAG, "ACTION_MOVE apply end @ {" + newX + ", " + newY + "}");
+        }
+    }
+
+    static void dump(PrintWriter pw, String prefix) {
+        synchronized (sStatsLock) {
+            pw.println(prefix + TAG + ":");
+            pw.println(prefix + "  drags=" + sDragCount
+                    + ", moveSamples=" + sTotalMoveSampleCount
+                    + ", coalescedSamples=" + sTotalCoalescedSampleCount
+                    + ", appliedFrames=" + sTotalAppliedFrameCount
+                    + ", avgApplyLatency=" + (sTotalAppliedFrameCount > 0
+                            ? sTotalApplyLatencyNs / sTotalAppliedFrameCount / 1000L : 0) + "us"
+                    + ", maxApplyLatency=" + sMaxApplyLatencyNs / 1000L + "us");
+        }
+    }
+
+    private void recordDragStats() {
+        synchronized (sStatsLock) {
+            sDragCount++;
+            sTotalMoveSampleCount += mMoveSampleCount;
+            sTotalCoalescedSampleCount += mCoalescedSampleCount;
+            sTotalAppliedFrameCount += mAppliedFrameCount;
+            sTotalApplyLatencyNs += mTotalApplyLatencyNs;
+            sMaxApplyLatencyNs = Math.max(sMaxApplyLatencyNs, mMaxApplyLatencyNs);
+        }
+    }
+
     void cancelInputEvent() {
         if (mLastMotionEvent != null) {
             mLastMotionEvent.cancel();
@@ -345,9 +443,10 @@ class WindowPositioner implements IBinder.DeathRecipient {
         mDisplayContent = displayContent;
         mClientChannel = mService.mInputManager.createInputChannel(TAG);
 
+        mChoreographer = mService.mAnimator.getChoreographer();
         mInputEventReceiver = new BatchedInputEventReceiver.SimpleBatchedInputEventReceiver(
                 mClientChannel, mService.mAnimationHandler.getLooper(),
-                mService.mAnimator.getChoreographer(), this::onInputEvent);
+                mChoreographer, this::onInputEvent);
 
         mDragApplicationHandle = new InputApplicationHandle(new Binder(), TAG, DEFAULT_DISPATCHING_TIMEOUT_MILLIS);
 
@@ -411,6 +510,14 @@ class WindowPositioner implements IBinder.DeathRecipient {
         mDragWindowHandle = null;
         mDragApplicationHandle = null;
         mDragEnded = true;
+        mChoreographer.removeCallbacks(Choreographer.CALLBACK_TRAVERSAL, mMoveFrameRunnable, null);
+        recordDragStats();
+        if (DEBUG_POP_UP) {
+            Slog.d(TAG, "Drag finished, moveSamples=" + mMoveSampleCount
+                    + ", coalescedSamples=" + mCoalescedSampleCount
+                    + ", appliedFrames=" + mAppliedFrameCount
+                    + ", maxApplyLatency=" + mMaxApplyLatencyNs / 1000L + "us");
+        }
 
         mDisplayContent.getInputMonitor().updateInputWindowsLw(true);
 
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.server;
+
+import static org.sun.os.DebugConstants.DEBUG_PER_APP_CONFIG;
+
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.Slog;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-package int config backed by a Settings.System string key.
+ *
+ * Lookups and updates only touch the in-memory index, the settings string is
+ * rebuilt and written on the owner's lane once updates settle down. Persisted
+ * format is kept as {@code pkg,value;} ({@code pkg;} for stores without value),
+ * so existing data is loaded as is and backup / restore keeps going through
+ * PerAppConfigValidator.
+ */
+public final class PerAppConfigStore {
+
+    private static final String TAG = "PerAppConfigStore";
+
+    private static final long PERSIST_DELAY_MS = 1000L;
+
+    private static final ArrayList<PerAppConfigStore> sStores = new ArrayList<>();
+
+    /**
+     * Checks a parsed value, invalid entries are dropped on load.
+     */
+    public interface ValueValidator {
+        boolean isValid(int value);
+    }
+
+    private final Object mLock = new Object();
+
+    private final String mSettingsKey;
+    private final boolean mHasValue;
+    private final ValueValidator mValidator;
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    private final HashMap<String, Integer> mConfigs = new HashMap<>();
+
+    private final Runnable mPersistRunnable = this::persist;
+
+    private final ContentObserver mObserver;
+
+    private Runnable mExternalChangeListener;
+
+    private boolean mObserving = false;
+    private boolean mDirty = false;
+
+    private int mUserId = UserHandle.USER_NULL;
+    private String mLastPersisted;
+
+    private long mUpdateCount;
+    private long mPersistCount;
+    private long mReloadCount;
+
+    /**
+     * @param settingsKey Settings.System key the config is stored in.
+     * @param hasValue Whether entries carry a value, sets are stored as {@code pkg;}.
+     * @param validator Checks parsed values, can be null.
+     * @param handler Owner's lane, settings are read and written on it.
+     */
+    public PerAppConfigStore(ContentResolver resolver, String settingsKey,
+            boolean hasValue, ValueValidator validator, Handler handler) {
+        mResolver = resolver;
+        mSettingsKey = settingsKey;
+        mHasValue = hasValue;
+        mValidator = validator;
+        mHandler = handler;
+        mObserver = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri, int userId) {
+                onSettingsChanged(userId);
+            }
+        };
+        synchronized (sStores) {
+            sStores.add(this);
+        }
+    }
+
+    /**
+     * @param listener Run on the owner's lane after config was reloaded because
+     *                 someone else wrote the settings, so the owner can re-apply it.
+     */
+    public void setOnExternalChangeListener(Runnable listener) {
+        mExternalChangeListener = listener;
+    }
+
+    /**
+     * Load config of {@code userId}, pending changes of previous user are written first.
+     */
+    public void load(int userId) {
+        if (!mObserving) {
+            mObserving = true;
+            mResolver.registerContentObserver(Settings.System.getUriFor(mSettingsKey),
+                    false, mObserver, UserHandle.USER_ALL);
+        }
+        persist();
+        if (userId == UserHandle.USER_CURRENT) {
+            userId = ActivityManager.getCurrentUser();
+        }
+        final String settings = Settings.System.getStringForUser(mResolver, mSettingsKey, userId);
+        synchronized (mLock) {
+            mUserId = userId;
+            mLastPersisted = settings;
+            if (parseLocked(settings) > 0) {
+                // Rewrite once without malformed entries
+                logD("load, migrate " + mSettingsKey + " for user " + userId);
+                schedulePersistLocked();
+            }
+        }
+    }
+
+    public int get(String packageName, int defaultValue) {
+        synchronized (mLock) {
+            final Integer value = mConfigs.get(packageName);
+            return value != null ? value : defaultValue;
+        }
+    }
+
+    public boolean contains(String packageName) {
+        synchronized (mLock) {
+            return mConfigs.containsKey(packageName);
+        }
+    }
+
+    /**
+     * @return Whether the config changed, always false before the first {@link #load}.
+     */
+    public boolean put(String packageName, int value) {
+        synchronized (mLock) {
+            if (!checkLoadedLocked(packageName)) {
+                return false;
+            }
+            final Integer old = mConfigs.put(packageName, value);
+            if (old != null && old == value) {
+                return false;
+            }
+            mUpdateCount++;
+            schedulePersistLocked();
+            return true;
+        }
+    }
+
+    /**
+     * Add a package to a store without value.
+     *
+     * @return Whether the package was not in the store.
+     */
+    public boolean add(String packageName) {
+        return put(packageName, 0);
+    }
+
+    /**
+     * @return Whether the package was in the store, always false before the first {@link #load}.
+     */
+    public boolean remove(String packageName) {
+        synchronized (mLock) {
+            if (!checkLoadedLocked(packageName)) {
+                return false;
+            }
+            if (mConfigs.remove(packageName) == null) {
+                return false;
+            }
+            mUpdateCount++;
+            schedulePersistLocked();
+            return true;
+        }
+    }
+
+    public int size() {
+        synchronized (mLock) {
+            return mConfigs.size();
+        }
+    }
+
+    /**
+     * Write pending changes now.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mPersistRunnable);
+        persist();
+    }
+
+    /**
+     * Nothing is known about the stored config before it was loaded, writing
+     * the index then would replace it with the single change.
+     */
+    private boolean checkLoadedLocked(String packageName) {
+        if (mUserId != UserHandle.USER_NULL) {
+            return true;
+        }
+        Slog.w(TAG, "Ignoring change of " + packageName + " in " + mSettingsKey
+                + ", config not loaded yet");
+        return false;
+    }
+
+    private void schedulePersistLocked() {
+        mDirty = true;
+        if (!mHandler.hasCallbacks(mPersistRunnable)) {
+            mHandler.postDelayed(mPersistRunnable, PERSIST_DELAY_MS);
+        }
+    }
+
+    private void persist() {
+        final String settings;
+        final int userId;
+        synchronized (mLock) {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            settings = serializeLocked();
+            userId = mUserId;
+            mLastPersisted = settings;
+            mPersistCount++;
+        }
+        Settings.System.putStringForUser(mResolver, mSettingsKey, settings, userId);
+        logD("persist, " + mSettingsKey + "=" + settings + ", user=" + userId);
+    }
+
+    private void onSettingsChanged(int userId) {
+        final String settings = Settings.System.getStringForUser(mResolver, mSettingsKey, userId);
+        synchronized (mLock) {
+            if (mUserId != userId) {
+                return;
+            }
+            if (TextUtils.equals(settings, mLastPersisted)) {
+                // Our own write
+                return;
+            }
+            // Changed by someone else, e.g. restored from backup
+            logD("onSettingsChanged, reload " + mSettingsKey + "=" + settings);
+            mHandler.removeCallbacks(mPersistRunnable);
+            mDirty = false;
+            mLastPersisted = settings;
+            parseLocked(settings);
+            mReloadCount++;
+        }
+        if (mExternalChangeListener != null) {
+            mExternalChangeListener.run();
+        }
+    }
+
+    /**
+     * @return Count of dropped entries.
+     */
+    private int parseLocked(String settings) {
+        mConfigs.clear();
+        if (TextUtils.isEmpty(settings)) {
+            return 0;
+        }
+        int dropped = 0;
+        for (String config : settings.split(";")) {
+            if (config.isEmpty()) {
+                continue;
+            }
+            if (!mHasValue) {
+                if (mConfigs.put(config, 0) != null) {
+                    dropped++;
+                }
+                continue;
+            }
+            final String[] splited = config.split(",");
+            int value = 0;
+            boolean valid = splited.length == 2;
+            if (valid) {
+                try {
+                    value = Integer.parseInt(splited[1]);
+                } catch (NumberFormatException e) {
+                    valid = false;
+                }
+            }
+            if (valid && mValidator != null) {
+                valid = mValidator.isValid(value);
+            }
+            if (!valid || mConfigs.put(splited[0], value) != null) {
+                dropped++;
+            }
+        }
+        logD("parse, " + mSettingsKey + ": " + mConfigs + ", dropped: " + dropped);
+        return dropped;
+    }
+
+    private String serializeLocked() {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : mConfigs.entrySet()) {
+            sb.append(entry.getKey());
+            if (mHasValue) {
+                sb.append(",").append(entry.getValue());
+            }
+            sb.append(";");
+        }
+        return sb.toString();
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + mSettingsKey + ": user=" + mUserId
+                    + ", size=" + mConfigs.size()
+                    + ", updates=" + mUpdateCount
+                    + ", persists=" + mPersistCount
+                    + ", reloads=" + mReloadCount
+                    + ", dirty=" + mDirty);
+        }
+    }
+
+    public static void flushAll() {
+        synchronized (sStores) {
+            for (PerAppConfigStore store : sStores) {
+                store.flush();
+            }
+        }
+    }
+
+    public static void dumpAll(PrintWriter pw, String prefix) {
+        pw.println(prefix + TAG + ":");
+        synchronized (sStores) {
+            for (PerAppConfigStore store : sStores) {
+                store.dump(pw, prefix + "  ");
+            }
+        }
+    }
+
+    private static void logD(String msg) {
+        if (DEBUG_PER_APP_CONFIG) {
+            Slog.d(TAG, msg);
+        }
+    }
+}
@@ -8,7 +8,6 @@ package org.sun.server;
 import static android.content.Intent.ACTION_BATTERY_CHANGED;
 import static android.content.Intent.ACTION_SHUTDOWN;
 import static android.os.PowerManager.ACTION_POWER_SAVE_MODE_CHANGED;
-import static android.os.Process.THREAD_PRIORITY_DEFAULT;
 import static android.os.UserManager.USER_TYPE_PROFILE_CLONE;
 
 import android.app.PendingIntent;
@@ -28,16 +27,21 @@ import android.os.Handler;
 import android.os.PowerManager;
 import android.os.UserHandle;
 
+import com.android.internal.util.DumpUtils;
 import com.android.internal.util.sun.CustomUtils;
 import com.android.internal.util.sun.DeviceConfigUtils;
 import com.android.internal.util.sun.FullscreenTaskStackChangeListener;
 import com.android.internal.util.sun.ScreenStateListener;
 
 import com.android.server.LocalServices;
-import com.android.server.ServiceThread;
 import com.android.server.SystemService;
 import com.android.server.pm.UserManagerInternal;
+import com.android.server.vibrator.RichTapVibratorService;
+import com.android.server.wm.PopUpWindowController;
+import com.android.server.wm.TopActivityRecorder;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.List;
 
 import org.sun.display.DisplayFeatureManager;
@@ -51,7 +55,9 @@ import org.sun.server.display.DisplayRefreshRateController;
 import org.sun.server.policy.DozeController;
 import org.sun.server.policy.PocketModeController;
 import org.sun.server.sensors.SensorBlockController;
+import org.sun.server.sensors.SensorHub;
 import org.sun.server.vibrator.LinearmotorVibratorController;
+import org.sun.server.vibrator.VibrationEffectAdapter;
 import org.sun.server.wm.DisplayResolutionController;
 import org.sun.server.wm.DisplayRotationController;
 
@@ -61,6 +67,8 @@ public class SunSystemExService extends SystemService {
 
     private static final String ACTION_REBOOT = "org.sun.intent.REBOOT_NOW";
 
+    private static final String DUMP_SERVICE = "sun_system_ex";
+
     private final ContentResolver mResolver;
 
     private final boolean mBatteryFeatureSupported =
@@ -69,8 +77,9 @@ public class SunSystemExService extends SystemService {
             DisplayFeatureManager.getInstance().isSupported();
     private final boolean mPocketModeSupported;
 
+    private final SystemExEventBus mEventBus;
+
     private Handler mHandler;
-    private ServiceThread mWorker;
 
     private BatteryManagerInternal mBatteryManagerInternal;
     private PackageManagerInternal mPackageManagerInternal;
@@ -90,6 +99,7 @@ public class SunSystemExService extends SystemService {
     public SunSystemExService(Context context) {
         super(context);
         mResolver = context.getContentResolver();
+        mEventBus = new SystemExEventBus();
         mPocketModeSupported = context.getResources().getBoolean(
                 com.android.internal.R.bool.config_pocketModeSupported);
     }
@@ -103,7 +113,7 @@ public class SunSystemExService extends SystemService {
             mFullscreenTaskStackChangeListener = new FullscreenTaskStackChangeListener(getContext()) {
                 @Override
                 public void onFullscreenTaskChanged(String packageName, String activityName, int taskId) {
-                    onTopFullscreenPackageChanged(packageName, taskId);
+                    mEventBus.publishTopAppChanged(packageName, taskId, System.nanoTime());
                 }
             };
             mPackageRemovedListener = new PackageRemovedListener();
@@ -174,9 +184,8 @@ public class SunSystemExService extends SystemService {
 
     @Override
     public void onStart() {
-        mWorker = new ServiceThread(TAG, THREAD_PRIORITY_DEFAULT, false);
-        mWorker.start();
-        mHandler = new Handler(mWorker.getLooper());
+        mHandler = SystemExScheduler.getInstance().createLane(TAG);
+        publishBinderService(DUMP_SERVICE, new DumpService());
 
         AppPropsController.getInstance().initSystemExService(this);
         if (mBatteryFeatureSupported) {
@@ -196,58 +205,34 @@ public class SunSystemExService extends SystemService {
         LinearmotorVibratorController.getInstance().initSystemExService(this);
         OnlineConfigController.getInstance().initSystemExService(this);
         SensorBlockController.getInstance().initSystemExService(this);
+        SensorHub.getInstance().initSystemExService(this);
+        TopActivityRecorder.getInstance().initSystemExService(this);
     }
 
     @Override
     public void onUserSwitching(TargetUser from, TargetUser to) {
-        final int newUserId = to.getUserIdentifier();
-        DisplayRefreshRateController.getInstance().onUserSwitching(newUserId);
-        DisplayRotationController.getInstance().onUserSwitching(newUserId);
-        DozeController.getInstance().onUserSwitching(newUserId);
-        GameModeController.getInstance().onUserSwitching(newUserId);
-        PocketModeController.getInstance().onUserSwitching(newUserId);
-        SensorBlockController.getInstance().onUserSwitching(newUserId);
+        mEventBus.publishUserSwitching(to.getUserIdentifier());
     }
 
     private void onPackageRemoved(String packageName) {
-        DisplayRefreshRateController.getInstance().onPackageRemoved(packageName);
-        DisplayRotationController.getInstance().onPackageRemoved(packageName);
-        GameModeController.getInstance().onPackageRemoved(packageName);
-        SensorBlockController.getInstance().onPackageRemoved(packageName);
+        mEventBus.publishPackageRemoved(packageName);
     }
 
     private void onScreenOff() {
-        DisplayRefreshRateController.getInstance().onScreenOff();
-        DisplayRotationController.getInstance().onScreenOff();
-        DozeController.getInstance().onScreenOff();
-        GameModeController.getInstance().onScreenOff();
-        PocketModeController.getInstance().onScreenOff();
+        mEventBus.publishScreenOff();
     }
 
     private void onScreenOn() {
-        if (mDisplayFeatureSupported) {
-            DisplayFeatureController.getInstance().onScreenOn();
-        }
-        DisplayRefreshRateController.getInstance().onScreenOn();
-        DozeController.getInstance().onScreenOn();
-        PocketModeController.getInstance().onScreenOn();
+        mEventBus.publishScreenOn();
     }
 
     private void onScreenUnlocked() {
-        onTopFullscreenPackageChanged(
+        mEventBus.publishTopAppChanged(
             mFullscreenTaskStackChangeListener.getTopPackageName(),
-            mFullscreenTaskStackChangeListener.getTopTaskId()
+            mFullscreenTaskStackChangeListener.getTopTaskId(),
+            System.nanoTime()
         );
-        PocketModeController.getInstance().onScreenUnlocked();
-    }
-
-    public void onTopFullscreenPackageChanged(String packageName, int taskId) {
-        mHandler.post(() -> {
-            DisplayRefreshRateController.getInstance().onTopFullscreenPackageChanged(packageName);
-            DisplayRotationController.getInstance().onTopFullscreenPackageChanged(packageName);
-            GameModeController.getInstance().onTopFullscreenPackageChanged(packageName, taskId);
-            SensorBlockController.getInstance().onTopFullscreenPackageChanged(packageName);
-        });
+        mEventBus.publishScreenUnlocked();
     }
 
     private void onBatteryStateChanged() {
@@ -264,6 +249,18 @@ public class SunSystemExService extends SystemService {
 
     private void onShutdown() {
         DisplayRotationController.getInstance().onShutdown();
+        PerAppConfigStore.flushAll();
+    }
+
+    public SystemExEventBus getEventBus() {
+        return mEventBus;
+    }
+
+    /**
+     * @return Lane of the service, for light work that doesn't need a lane of its own.
+     */
+    public Handler getHandler() {
+        return mHandler;
     }
 
     public ContentResolver getContentResolver() {
@@ -322,6 +319,24 @@ public class SunSystemExService extends SystemService {
         }
     }
 
+    private final class DumpService extends Binder {
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            if (!DumpUtils.checkDumpPermission(getContext(), TAG, pw)) {
+                return;
+            }
+            pw.println(TAG + ":");
+            SystemExScheduler.getInstance().dump(pw, "  ");
+            mEventBus.dump(pw, "  ");
+            SystemExListenerRegistry.dumpAll(pw, "  ");
+            PerAppConfigStore.dumpAll(pw, "  ");
+            VibrationEffectAdapter.dump(pw, "  ");
+            RichTapVibratorService.dump(pw, "  ");
+            SensorHub.getInstance().dump(pw, "  ");
+            PopUpWindowController.getInstance().dump(pw, "  ");
+        }
+    }
+
     private final class PackageRemovedListener extends LauncherApps.Callback {
 
         private final LauncherApps mLauncherApps;
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.server;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process event bus for controllers owned by {@link SunSystemExService}.
+ *
+ * An event is delivered to all subscribers within one message on the shared
+ * {@link SystemExScheduler} looper. Subscribers living on the shared looper are
+ * called inline, only subscribers on a dedicated lane cost an extra hop.
+ */
+public final class SystemExEventBus {
+
+    private static final String TAG = "SystemExEventBus";
+
+    public static final int EVENT_TOP_APP_CHANGED = 0;
+    public static final int EVENT_SCREEN_OFF = 1;
+    public static final int EVENT_SCREEN_ON = 2;
+    public static final int EVENT_SCREEN_UNLOCKED = 3;
+    public static final int EVENT_USER_SWITCHING = 4;
+    public static final int EVENT_PACKAGE_REMOVED = 5;
+    private static final int EVENT_TYPE_SIZE = EVENT_PACKAGE_REMOVED + 1;
+
+    // Upper bounds (exclusive) of latency histogram buckets, in microseconds
+    private static final long[] LATENCY_BUCKETS_US = {
+        500L, 1000L, 2000L, 4000L, 8000L, 16000L, 32000L, 64000L
+    };
+
+    /**
+     * Callbacks are invoked on the looper of the handler passed to {@link #subscribe}.
+     */
+    public interface Subscriber {
+        default void onTopFullscreenPackageChanged(String packageName, int taskId) {}
+        default void onScreenOff() {}
+        default void onScreenOn() {}
+        default void onScreenUnlocked() {}
+        default void onUserSwitching(int newUserId) {}
+        default void onPackageRemoved(String packageName) {}
+    }
+
+    private static final class Event {
+        final int type;
+        final String packageName;
+        final int intArg;
+        final long startTimeNs;
+
+        final AtomicInteger pending = new AtomicInteger();
+
+        Event(int type, String packageName, int intArg, long startTimeNs) {
+            this.type = type;
+            this.packageName = packageName;
+            this.intArg = intArg;
+            this.startTimeNs = startTimeNs;
+        }
+    }
+
+    private final class SubscriberRecord {
+        final String mName;
+        final Handler mHandler;
+        final Subscriber mSubscriber;
+
+        long mHandledCount;
+        long mTotalTimeNs;
+        long mMaxTimeNs;
+
+        SubscriberRecord(String name, Handler handler, Subscriber subscriber) {
+            mName = name;
+            mHandler = handler;
+            mSubscriber = subscriber;
+        }
+
+        void deliver(Event event) {
+            final long start = System.nanoTime();
+            switch (event.type) {
+                case EVENT_TOP_APP_CHANGED:
+                    mSubscriber.onTopFullscreenPackageChanged(event.packageName, event.intArg);
+                    break;
+                case EVENT_SCREEN_OFF:
+                    mSubscriber.onScreenOff();
+                    break;
+                case EVENT_SCREEN_ON:
+                    mSubscriber.onScreenOn();
+                    break;
+                case EVENT_SCREEN_UNLOCKED:
+                    mSubscriber.onScreenUnlocked();
+                    break;
+                case EVENT_USER_SWITCHING:
+                    mSubscriber.onUserSwitching(event.intArg);
+                    break;
+                case EVENT_PACKAGE_REMOVED:
+                    mSubscriber.onPackageRemoved(event.packageName);
+                    break;
+            }
+            final long end = System.nanoTime();
+            synchronized (mLock) {
+                mHandledCount++;
+                mTotalTimeNs += end - start;
+                mMaxTimeNs = Math.max(mMaxTimeNs, end - start);
+            }
+            if (event.pending.decrementAndGet() == 0) {
+                onEventFinished(event, end);
+            }
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    private final Handler mHandler;
+
+    private final ArrayList<SubscriberRecord> mSubscribers = new ArrayList<>();
+
+    private final long[][] mLatencyHistogram = new long[EVENT_TYPE_SIZE][LATENCY_BUCKETS_US.length + 1];
+    private final long[] mMaxLatencyUs = new long[EVENT_TYPE_SIZE];
+
+    SystemExEventBus() {
+        mHandler = SystemExScheduler.getInstance().createLane(TAG);
+    }
+
+    public void subscribe(String name, Handler handler, Subscriber subscriber) {
+        synchronized (mLock) {
+            mSubscribers.add(new SubscriberRecord(name, handler, subscriber));
+        }
+    }
+
+    public void publishTopAppChanged(String packageName, int taskId, long startTimeNs) {
+        publish(new Event(EVENT_TOP_APP_CHANGED, packageName, taskId, startTimeNs));
+    }
+
+    public void publishScreenOff() {
+        publish(new Event(EVENT_SCREEN_OFF, null, 0, System.nanoTime()));
+    }
+
+    public void publishScreenOn() {
+        publish(new Event(EVENT_SCREEN_ON, null, 0, System.nanoTime()));
+    }
+
+    public void publishScreenUnlocked() {
+        publish(new Event(EVENT_SCREEN_UNLOCKED, null, 0, System.nanoTime()));
+    }
+
+    public void publishUserSwitching(int newUserId) {
+        publish(new Event(EVENT_USER_SWITCHING, null, newUserId, System.nanoTime()));
+    }
+
+    public void publishPackageRemoved(String packageName) {
+        publish(new Event(EVENT_PACKAGE_REMOVED, packageName, 0, System.nanoTime()));
+    }
+
+    private void publish(Event event) {
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            dispatch(event);
+        } else {
+            mHandler.post(() -> dispatch(event));
+        }
+    }
+
+    private void dispatch(Event event) {
+        final ArrayList<SubscriberRecord> subscribers;
+        synchronized (mLock) {
+            subscribers = new ArrayList<>(mSubscribers);
+        }
+        if (subscribers.isEmpty()) {
+            onEventFinished(event, System.nanoTime());
+            return;
+        }
+        event.pending.set(subscribers.size());
+        final Looper looper = mHandler.getLooper();
+        for (SubscriberRecord record : subscribers) {
+            if (record.mHandler.getLooper() == looper) {
+                record.deliver(event);
+            } else {
+                record.mHandler.post(() -> record.deliver(event));
+            }
+        }
+    }
+
+    private void onEventFinished(Event event, long endTimeNs) {
+        final long latencyUs = (endTimeNs - event.startTimeNs) / 1000L;
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS_US.length && latencyUs >= LATENCY_BUCKETS_US[bucket]) {
+            bucket++;
+        }
+        synchronized (mLock) {
+            mLatencyHistogram[event.type][bucket]++;
+            mMaxLatencyUs[event.type] = Math.max(mMaxLatencyUs[event.type], latencyUs);
+        }
+    }
+
+    private static String eventTypeToString(int type) {
+        switch (type) {
+            case EVENT_TOP_APP_CHANGED:
+                return "TOP_APP_CHANGED";
+            case EVENT_SCREEN_OFF:
+                return "SCREEN_OFF";
+            case EVENT_SCREEN_ON:
+                return "SCREEN_ON";
+            case EVENT_SCREEN_UNLOCKED:
+                return "SCREEN_UNLOCKED";
+            case EVENT_USER_SWITCHING:
+                return "USER_SWITCHING";
+            case EVENT_PACKAGE_REMOVED:
+                return "PACKAGE_REMOVED";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + TAG + ":");
+        final String innerPrefix = prefix + "  ";
+        synchronized (mLock) {
+            pw.println(innerPrefix + "End-to-end latency (us):");
+            for (int type = 0; type < EVENT_TYPE_SIZE; type++) {
+                final StringBuilder sb = new StringBuilder();
+                sb.append(innerPrefix).append("  ").append(eventTypeToString(type)).append(":");
+                for (int i = 0; i <= LATENCY_BUCKETS_US.length; i++) {
+                    sb.append(i < LATENCY_BUCKETS_US.length ? " <" + LATENCY_BUCKETS_US[i] : " >="
+                            + LATENCY_BUCKETS_US[LATENCY_BUCKETS_US.length - 1]);
+                    sb.append("=").append(mLatencyHistogram[type][i]);
+                }
+                sb.append(", max=").append(mMaxLatencyUs[type]);
+                pw.println(sb.toString());
+            }
+            pw.println(innerPrefix + "Subscribers:");
+            for (SubscriberRecord record : mSubscribers) {
+                pw.println(innerPrefix + "  " + record.mName
+                        + ": handled=" + record.mHandledCount
+                        + ", avgTime=" + (record.mHandledCount > 0
+                                ? record.mTotalTimeNs / record.mHandledCount / 1000L : 0) + "us"
+                        + ", maxTime=" + record.mMaxTimeNs / 1000L + "us");
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.server;
+
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IInterface;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Binder listener registry shared by manager services of {@link SunSystemExService}.
+ *
+ * Registration and death cleanup are handled by {@link RemoteCallbackList}.
+ * Notifications are published per channel and delivered on the owner's lane,
+ * outside of any controller lock. If a channel is published again before the
+ * previous value is delivered, only the latest value is sent.
+ */
+public final class SystemExListenerRegistry<E extends IInterface> {
+
+    private static final String TAG = "SystemExListenerRegistry";
+
+    private static final ArrayList<SystemExListenerRegistry<?>> sRegistries = new ArrayList<>();
+
+    /**
+     * Delivers one notification to a listener.
+     */
+    public interface Notifier<E> {
+        void notify(E listener) throws RemoteException;
+    }
+
+    private static final class Pending<E> {
+        final Notifier<E> mNotifier;
+        final long mPublishTimeNs;
+        final int mSuperseded;
+
+        Pending(Notifier<E> notifier, long publishTimeNs, int superseded) {
+            mNotifier = notifier;
+            mPublishTimeNs = publishTimeNs;
+            mSuperseded = superseded;
+        }
+    }
+
+    private static final class Client {
+        final int mPid;
+        final int mUid;
+
+        long mDelivered;
+        long mDropped;
+        long mFailed;
+        long mTotalLatencyNs;
+        long mMaxLatencyNs;
+
+        Client(int pid, int uid) {
+            mPid = pid;
+            mUid = uid;
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    private final String mName;
+    private final Handler mHandler;
+
+    private final RemoteCallbackList<E> mCallbacks = new RemoteCallbackList<E>() {
+        @Override
+        public void onCallbackDied(E callback, Object cookie) {
+            // Called with RemoteCallbackList lock held, don't take mLock here
+            mDiedCount.incrementAndGet();
+        }
+    };
+
+    private final SparseArray<Pending<E>> mPending = new SparseArray<>();
+
+    private final Runnable mDispatchRunnable = this::dispatchPending;
+
+    private long mPublishedCount;
+    private long mCoalescedCount;
+
+    private final AtomicLong mDiedCount = new AtomicLong();
+
+    /**
+     * @param name Name shown in dumpsys.
+     * @param handler Lane that notifications are delivered on.
+     */
+    public SystemExListenerRegistry(String name, Handler handler) {
+        mName = name;
+        mHandler = handler;
+        synchronized (sRegistries) {
+            sRegistries.add(this);
+        }
+    }
+
+    public boolean register(E listener) {
+        return register(listener, null);
+    }
+
+    /**
+     * Register a listener, {@code initial} is delivered to this listener only
+     * once registered. It's invoked on the lane so it should read the latest state.
+     */
+    public boolean register(E listener, Notifier<E> initial) {
+        final Client client = new Client(Binder.getCallingPid(), Binder.getCallingUid());
+        if (!mCallbacks.register(listener, client)) {
+            // Client died
+            return false;
+        }
+        if (initial != null) {
+            final long publishTime = SystemClock.elapsedRealtimeNanos();
+            mHandler.post(() -> deliver(listener, client, initial, publishTime, 0));
+        }
+        return true;
+    }
+
+    public boolean unregister(E listener) {
+        return mCallbacks.unregister(listener);
+    }
+
+    public int getRegisteredCount() {
+        return mCallbacks.getRegisteredCallbackCount();
+    }
+
+    public List<E> getRegisteredListeners() {
+        final ArrayList<E> ret = new ArrayList<>();
+        for (int i = 0; i < mCallbacks.getRegisteredCallbackCount(); ++i) {
+            final E listener = mCallbacks.getRegisteredCallbackItem(i);
+            if (listener != null) {
+                ret.add(listener);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Publish a notification on {@code channel} to all registered listeners.
+     * A pending notification on the same channel is replaced.
+     */
+    public void publish(int channel, Notifier<E> notifier) {
+        synchronized (mLock) {
+            final Pending<E> old = mPending.get(channel);
+            if (old != null) {
+                mCoalescedCount++;
+            }
+            mPending.put(channel, new Pending<>(notifier, SystemClock.elapsedRealtimeNanos(),
+                    old != null ? old.mSuperseded + 1 : 0));
+            mPublishedCount++;
+            if (!mHandler.hasCallbacks(mDispatchRunnable)) {
+                mHandler.post(mDispatchRunnable);
+            }
+        }
+    }
+
+    private void dispatchPending() {
+        final ArrayList<Pending<E>> pending;
+        synchronized (mLock) {
+            final int size = mPending.size();
+            if (size == 0) {
+                return;
+            }
+            pending = new ArrayList<>(size);
+            for (int i = 0; i < size; ++i) {
+                pending.add(mPending.valueAt(i));
+            }
+            mPending.clear();
+        }
+        final int n = mCallbacks.beginBroadcast();
+        try {
+            for (int i = 0; i < n; ++i) {
+                final E listener = mCallbacks.getBroadcastItem(i);
+                final Client client = (Client) mCallbacks.getBroadcastCookie(i);
+                for (Pending<E> p : pending) {
+                    deliver(listener, client, p.mNotifier, p.mPublishTimeNs, p.mSuperseded);
+                }
+            }
+        } finally {
+            mCallbacks.finishBroadcast();
+        }
+    }
+
+    private void deliver(E listener, Client client, Notifier<E> notifier,
+            long publishTimeNs, int superseded) {
+        boolean failed = false;
+        try {
+            notifier.notify(listener);
+        } catch (RemoteException | RuntimeException e) {
+            Slog.e(TAG, mName + ": failed to notify pid=" + client.mPid, e);
+            failed = true;
+        }
+        final long latency = SystemClock.elapsedRealtimeNanos() - publishTimeNs;
+        synchronized (mLock) {
+            client.mDropped += superseded;
+            if (failed) {
+                client.mFailed++;
+                return;
+            }
+            client.mDelivered++;
+            client.mTotalLatencyNs += latency;
+            client.mMaxLatencyNs = Math.max(client.mMaxLatencyNs, latency);
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        final String innerPrefix = prefix + "  ";
+        synchronized (mLock) {
+            pw.println(prefix + mName + ": published=" + mPublishedCount
+                    + ", coalesced=" + mCoalescedCount
+                    + ", died=" + mDiedCount.get());
+            for (int i = 0; i < mCallbacks.getRegisteredCallbackCount(); ++i) {
+                final Client client = (Client) mCallbacks.getRegisteredCallbackCookie(i);
+                if (client == null) {
+                    continue;
+                }
+                pw.println(innerPrefix + "pid=" + client.mPid + ", uid=" + client.mUid
+                        + ": delivered=" + client.mDelivered
+                        + ", dropped=" + client.mDropped
+                        + ", failed=" + client.mFailed
+                        + ", avgLatency=" + (client.mDelivered > 0
+                                ? client.mTotalLatencyNs / client.mDelivered / 1000L : 0) + "us"
+                        + ", maxLatency=" + client.mMaxLatencyNs / 1000L + "us");
+            }
+        }
+    }
+
+    public static void dumpAll(PrintWriter pw, String prefix) {
+        pw.println(prefix + TAG + ":");
+        synchronized (sRegistries) {
+            for (SystemExListenerRegistry<?> registry : sRegistries) {
+                registry.dump(pw, prefix + "  ");
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.server;
+
+import static android.os.Process.THREAD_PRIORITY_DEFAULT;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import com.android.server.ServiceThread;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Shared event loop for controllers owned by {@link SunSystemExService}.
+ *
+ * Every controller gets its own serial lane, which is a {@link Handler} bound to
+ * one shared {@link ServiceThread}. Messages of a lane keep their ordering while
+ * all lanes share a single looper. Controllers that must not be delayed by others
+ * can ask for a dedicated lane, which is backed by its own thread.
+ *
+ * Lanes sharing the looper have no priority among each other, the looper only
+ * orders by time. Latency sensitive work gets a dedicated lane with its own
+ * thread priority instead.
+ */
+public final class SystemExScheduler {
+
+    private static final String TAG = "SystemExScheduler";
+
+    private static class InstanceHolder {
+        private static SystemExScheduler INSTANCE = new SystemExScheduler();
+    }
+
+    public static SystemExScheduler getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    private final Object mLock = new Object();
+
+    private final ServiceThread mSharedThread;
+
+    private final ArrayList<Lane> mLanes = new ArrayList<>();
+
+    private SystemExScheduler() {
+        mSharedThread = new ServiceThread(TAG, THREAD_PRIORITY_DEFAULT, false);
+        mSharedThread.start();
+    }
+
+    /**
+     * Create a serial lane running on the shared looper.
+     */
+    public Handler createLane(String name) {
+        return createLane(name, null);
+    }
+
+    /**
+     * Create a serial lane running on the shared looper,
+     * messages without callback are dispatched to {@code callback}.
+     */
+    public Handler createLane(String name, Handler.Callback callback) {
+        return addLane(new Lane(name, mSharedThread.getLooper(), callback, false));
+    }
+
+    /**
+     * Create a lane backed by its own thread.
+     * Only use this when the work can't tolerate being queued behind other controllers.
+     */
+    public Handler createDedicatedLane(String name, int priority, Handler.Callback callback) {
+        final ServiceThread thread = new ServiceThread(name, priority, false);
+        thread.start();
+        return addLane(new Lane(name, thread.getLooper(), callback, true));
+    }
+
+    private Lane addLane(Lane lane) {
+        synchronized (mLock) {
+            mLanes.add(lane);
+        }
+        return lane;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + TAG + ":");
+        final String innerPrefix = prefix + "  ";
+        synchronized (mLock) {
+            for (Lane lane : mLanes) {
+                lane.dump(pw, innerPrefix);
+            }
+        }
+    }
+
+    private static final class Lane extends Handler {
+
+        private final String mName;
+        private final boolean mDedicated;
+
+        private final Object mStatsLock = new Object();
+
+        private long mEnqueuedCount;
+        private long mDispatchedCount;
+        private long mTotalLatencyMs;
+        private long mMaxLatencyMs;
+        private long mTotalRunTimeMs;
+        private long mMaxRunTimeMs;
+
+        Lane(String name, Looper looper, Handler.Callback callback, boolean dedicated) {
+            super(looper, callback);
+            mName = name;
+            mDedicated = dedicated;
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            final boolean queued = super.sendMessageAtTime(msg, uptimeMillis);
+            if (queued) {
+                synchronized (mStatsLock) {
+                    mEnqueuedCount++;
+                }
+            }
+            return queued;
+        }
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            final long start = SystemClock.uptimeMillis();
+            // Messages sent to front of queue have no target time
+            final long latency = msg.getWhen() > 0 ? Math.max(0L, start - msg.getWhen()) : 0L;
+            super.dispatchMessage(msg);
+            final long runTime = SystemClock.uptimeMillis() - start;
+            synchronized (mStatsLock) {
+                mDispatchedCount++;
+                mTotalLatencyMs += latency;
+                mMaxLatencyMs = Math.max(mMaxLatencyMs, latency);
+                mTotalRunTimeMs += runTime;
+                mMaxRunTimeMs = Math.max(mMaxRunTimeMs, runTime);
+            }
+        }
+
+        void dump(PrintWriter pw, String prefix) {
+            synchronized (mStatsLock) {
+                pw.println(prefix + mName + (mDedicated ? " (dedicated)" : "") + ":"
+                        + " enqueued=" + mEnqueuedCount
+                        + ", dispatched=" + mDispatchedCount
+                        + ", avgLatency=" + (mDispatchedCount > 0 ? mTotalLatencyMs / mDispatchedCount : 0) + "ms"
+                        + ", maxLatency=" + mMaxLatencyMs + "ms"
+                        + ", avgRunTime=" + (mDispatchedCount > 0 ? mTotalRunTimeMs / mDispatchedCount : 0) + "ms"
+                        + ", maxRunTime=" + mMaxRunTimeMs + "ms");
+            }
+        }
+    }
+}
@@ -6,7 +6,6 @@
 package org.sun.server.app;
 
 import static android.app.ActivityTaskManager.INVALID_TASK_ID;
-import static android.os.Process.THREAD_PRIORITY_DEFAULT;
 
 import static org.sun.app.GameModeManager.IN_GAME_CALL_NO_ACTION;
 import static org.sun.content.ContextExt.GAME_MODE_SERVICE;
@@ -26,20 +25,15 @@ import android.app.ActivityThread;
 import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.IBinder;
-import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.SystemClock;
 import android.provider.Settings;
-import android.text.TextUtils;
-import android.util.ArraySet;
 import android.util.Slog;
 import android.widget.Toast;
 
 import com.android.internal.R;
 import com.android.internal.util.sun.MutablePair;
 
-import com.android.server.ServiceThread;
 import com.android.server.UiThread;
 import com.android.server.wm.TopActivityRecorder;
 
@@ -48,10 +42,14 @@ import java.util.ArrayList;
 import org.sun.app.GameModeInfo;
 import org.sun.app.IGameModeInfoListener;
 import org.sun.app.IGameModeManagerService;
+import org.sun.server.PerAppConfigStore;
 import org.sun.server.SunSystemExService;
+import org.sun.server.SystemExEventBus;
+import org.sun.server.SystemExListenerRegistry;
+import org.sun.server.SystemExScheduler;
 import org.sun.server.display.DisplayFeatureController;
 
-public class GameModeController {
+public class GameModeController implements SystemExEventBus.Subscriber {
 
     private static class InstanceHolder {
         private static GameModeController INSTANCE = new GameModeController();
@@ -71,34 +69,23 @@ public class GameModeController {
     public static final int GESTURE_TYPE_STATUS_BAR = 2;
     private static final int GESTURE_TYPE_SIZE = GESTURE_TYPE_STATUS_BAR + 1;
 
-    private final class GameModeInfoListener {
-        final IGameModeInfoListener mListener;
-        final IBinder.DeathRecipient mDeathRecipient;
+    private static final int CHANNEL_GAME_MODE_INFO = 0;
 
-        GameModeInfoListener(IGameModeInfoListener listener,
-                IBinder.DeathRecipient deathRecipient) {
-            mListener = listener;
-            mDeathRecipient = deathRecipient;
-        }
-    }
-
-    private final Object mListenerLock = new Object();
     private final Object mPackageLock = new Object();
     private final Object mStateLock = new Object();
 
     private final Handler mHandler;
-    private final ServiceThread mServiceThread;
 
     private final Handler mUiHandler = new Handler(UiThread.getHandler().getLooper());
 
-    private final ArraySet<String> mGamePackages = new ArraySet<>();
-
     private final ArrayList<MutablePair<Boolean, Long>> mGestureLockedList = new ArrayList<>();
-    private final ArrayList<GameModeInfoListener> mListeners = new ArrayList<>();
+    private final SystemExListenerRegistry<IGameModeInfoListener> mListeners;
 
     private SunSystemExService mSystemExService;
     private SettingsObserver mSettingsObserver;
 
+    private PerAppConfigStore mGamePackages;
+
     private boolean mInGame;
     private String mGamePackage;
     private int mGameTaskId;
@@ -114,6 +101,10 @@ public class GameModeController {
 
     private long mLastGestureUnlockTime = -1L;
 
+    // Immutable snapshot for lock-free reads, replaced under mStateLock on every state change
+    private volatile GameModeInfo mGameModeInfo = new GameModeInfo.Builder().build();
+    private long mGameModeInfoSequence = 0L;
+
     private Toast mGestureLockedToast;
 
     private final class GameModeManagerService extends IGameModeManagerService.Stub {
@@ -126,7 +117,6 @@ public class GameModeController {
                 if (!mGamePackages.add(packageName)) {
                     return false;
                 }
-                saveGameListIntoSettingsLocked();
                 updateGameModeState(mSystemExService.getTopFullscreenPackage(),
                         mSystemExService.getTopFullscreenTaskId());
                 return true;
@@ -142,7 +132,6 @@ public class GameModeController {
                 if (!mGamePackages.remove(packageName)) {
                     return false;
                 }
-                saveGameListIntoSettingsLocked();
                 updateGameModeState(mSystemExService.getTopFullscreenPackage(),
                         mSystemExService.getTopFullscreenTaskId());
                 return true;
@@ -158,63 +147,17 @@ public class GameModeController {
 
         @Override
         public GameModeInfo getGameModeInfo() {
-            synchronized (mStateLock) {
-                return buildGameModeInfoLocked();
-            }
+            return mGameModeInfo;
         }
 
         @Override
         public boolean registerGameModeInfoListener(IGameModeInfoListener listener) {
-            final IBinder listenerBinder = listener.asBinder();
-            IBinder.DeathRecipient dr = new IBinder.DeathRecipient() {
-                @Override
-                public void binderDied() {
-                    synchronized (mListenerLock) {
-                        for (int i = 0; i < mListeners.size(); i++) {
-                            if (listenerBinder == mListeners.get(i).mListener.asBinder()) {
-                                GameModeInfoListener removed = mListeners.remove(i);
-                                IBinder binder = removed.mListener.asBinder();
-                                if (binder != null) {
-                                    binder.unlinkToDeath(this, 0);
-                                }
-                                i--;
-                            }
-                        }
-                    }
-                }
-            };
-
-            synchronized (mListenerLock) {
-                try {
-                    listener.asBinder().linkToDeath(dr, 0);
-                    mListeners.add(new GameModeInfoListener(listener, dr));
-                } catch (RemoteException e) {
-                    // Client died, no cleanup needed.
-                    return false;
-                }
-                return true;
-            }
+            return mListeners.register(listener, l -> l.onGameModeInfoChanged(mGameModeInfo));
         }
 
         @Override
         public boolean unregisterGameModeInfoListener(IGameModeInfoListener listener) {
-            boolean found = false;
-            final IBinder listenerBinder = listener.asBinder();
-            synchronized (mListenerLock) {
-                for (int i = 0; i < mListeners.size(); i++) {
-                    found = true;
-                    GameModeInfoListener gameModeInfoListener = mListeners.get(i);
-                    if (listenerBinder == gameModeInfoListener.mListener.asBinder()) {
-                        GameModeInfoListener removed = mListeners.remove(i);
-                        IBinder binder = removed.mListener.asBinder();
-                        if (binder != null) {
-                            binder.unlinkToDeath(removed.mDeathRecipient, 0);
-                        }
-                        i--;
-                    }
-                }
-            }
-            return found;
+            return mListeners.unregister(listener);
         }
     }
 
@@ -324,9 +267,8 @@ public class GameModeController {
     }
 
     private GameModeController() {
-        mServiceThread = new ServiceThread(TAG, THREAD_PRIORITY_DEFAULT, false);
-        mServiceThread.start();
-        mHandler = new Handler(mServiceThread.getLooper());
+        mHandler = SystemExScheduler.getInstance().createLane(TAG);
+        mListeners = new SystemExListenerRegistry<>(TAG, mHandler);
 
         for (int i = 0; i < GESTURE_TYPE_SIZE; i++) {
             mGestureLockedList.add(new MutablePair<Boolean, Long>(false, -1L));
@@ -335,7 +277,16 @@ public class GameModeController {
 
     public void initSystemExService(SunSystemExService service) {
         mSystemExService = service;
+        mGamePackages = new PerAppConfigStore(service.getContentResolver(),
+                GAME_MODE_APP_LIST, false, null, mHandler);
+        mGamePackages.setOnExternalChangeListener(() -> {
+            synchronized (mPackageLock) {
+                updateGameModeState(mSystemExService.getTopFullscreenPackage(),
+                        mSystemExService.getTopFullscreenTaskId());
+            }
+        });
         mSystemExService.publishBinderService(GAME_MODE_SERVICE, new GameModeManagerService());
+        mSystemExService.getEventBus().subscribe(TAG, mHandler, this);
     }
 
     public void onSystemServicesReady() {
@@ -347,58 +298,52 @@ public class GameModeController {
         mHandler.post(() -> {
             updateSettings(UserHandle.USER_CURRENT);
             synchronized (mPackageLock) {
-                initGameAppsListLocked(UserHandle.USER_CURRENT);
+                mGamePackages.load(UserHandle.USER_CURRENT);
             }
         });
     }
 
+    @Override
     public void onUserSwitching(int newUserId) {
         if (DEBUG_GAME) {
             Slog.d(TAG, "onUserSwitching, newUserId: " + newUserId);
         }
-        mHandler.post(() -> {
-            updateSettings(newUserId);
-            synchronized (mPackageLock) {
-                initGameAppsListLocked(newUserId);
-                updateGameModeState(mSystemExService.getTopFullscreenPackage(),
-                        mSystemExService.getTopFullscreenTaskId());
-            }
-        });
+        updateSettings(newUserId);
+        synchronized (mPackageLock) {
+            mGamePackages.load(newUserId);
+            updateGameModeState(mSystemExService.getTopFullscreenPackage(),
+                    mSystemExService.getTopFullscreenTaskId());
+        }
     }
 
+    @Override
     public void onPackageRemoved(String packageName) {
         if (DEBUG_GAME) {
             Slog.d(TAG, "onPackageRemoved, packageName: " + packageName);
         }
-        mHandler.post(() -> {
-            synchronized (mPackageLock) {
-                if (mGamePackages.contains(packageName)) {
-                    if (DEBUG_GAME) {
-                        Slog.d(TAG, "removeGame: " + packageName);
-                    }
-                    mGamePackages.remove(packageName);
-                    saveGameListIntoSettingsLocked();
-                    updateGameModeState(mSystemExService.getTopFullscreenPackage(),
-                            mSystemExService.getTopFullscreenTaskId());
+        synchronized (mPackageLock) {
+            if (mGamePackages.remove(packageName)) {
+                if (DEBUG_GAME) {
+                    Slog.d(TAG, "removeGame: " + packageName);
                 }
+                updateGameModeState(mSystemExService.getTopFullscreenPackage(),
+                        mSystemExService.getTopFullscreenTaskId());
             }
-        });
+        }
     }
 
+    @Override
     public void onScreenOff() {
-        mHandler.post(() -> {
-            synchronized (mPackageLock) {
-                updateGameModeState("", INVALID_TASK_ID);
-            }
-        });
+        synchronized (mPackageLock) {
+            updateGameModeState("", INVALID_TASK_ID);
+        }
     }
 
+    @Override
     public void onTopFullscreenPackageChanged(String packageName, int taskId) {
-        mHandler.post(() -> {
-            synchronized (mPackageLock) {
-                updateGameModeState(packageName, taskId);
-            }
-        });
+        synchronized (mPackageLock) {
+            updateGameModeState(packageName, taskId);
+        }
     }
 
     private void updateGameModeState(String packageName, int taskId) {
@@ -463,6 +408,7 @@ public class GameModeController {
             mGestureLockedList.get(GESTURE_TYPE_NAVIGATION_BAR).first = gestureLocked;
             mGestureLockedList.get(GESTURE_TYPE_STATUS_BAR).first = statusBarLocked;
             resetGestureLockedTime();
+            notifyGameStateChanged();
         }
     }
 
@@ -475,6 +421,7 @@ public class GameModeController {
 
     private GameModeInfo buildGameModeInfoLocked() {
         return new GameModeInfo.Builder()
+                .setSequence(++mGameModeInfoSequence)
                 .setInGame(mInGame)
                 .setGamePackage(mGamePackage)
                 .setGameTaskId(mGameTaskId)
@@ -491,74 +438,34 @@ public class GameModeController {
     }
 
     private void notifyGameStateChanged() {
+        // Build once per state change, the snapshot is shared by all clients
+        final GameModeInfo info = buildGameModeInfoLocked();
+        mGameModeInfo = info;
         if (DEBUG_GAME) {
-            Slog.d(TAG, "notifyGameStateChanged, info: " + buildGameModeInfoLocked());
-        }
-        synchronized (mListenerLock) {
-            for (GameModeInfoListener listener : mListeners) {
-                try {
-                    listener.mListener.onGameModeInfoChanged();
-                } catch (RemoteException | RuntimeException e) {
-                    Slog.e(TAG, "Failed to notify game state changed");
-                }
-            }
-        }
-    }
-
-    private void initGameAppsListLocked(int userId) {
-        mGamePackages.clear();
-        final String settings = Settings.System.getStringForUser(
-                mSystemExService.getContentResolver(),
-                GAME_MODE_APP_LIST, userId);
-        if (TextUtils.isEmpty(settings)) {
-            return;
+            Slog.d(TAG, "notifyGameStateChanged, info: " + info);
         }
-        final String[] apps = settings.split(";");
-        for (String app : apps) {
-            mGamePackages.add(app);
-            if (DEBUG_GAME) {
-                Slog.d(TAG, "initGameAppsListLocked, added packageName: " + app);
-            }
-        }
-    }
-
-    private void saveGameListIntoSettingsLocked() {
-        StringBuilder sb = new StringBuilder();
-        for (String app : mGamePackages) {
-            sb.append(app).append(";");
-        }
-        Settings.System.putStringForUser(mSystemExService.getContentResolver(),
-                GAME_MODE_APP_LIST, sb.toString(), UserHandle.USER_CURRENT);
-        if (DEBUG_GAME) {
-                Slog.d(TAG, "saveGameListIntoSettingsLocked, list: " + sb.toString());
-            }
+        mListeners.publish(CHANNEL_GAME_MODE_INFO, l -> l.onGameModeInfoChanged(info));
     }
 
     public boolean isInGame() {
-        synchronized (mStateLock) {
-            return mInGame;
-        }
+        return mGameModeInfo.isInGame();
     }
 
     public boolean shouldDisableThreeFingerGestures() {
-        synchronized (mStateLock) {
-            return mInGame && mDisableThreeFingerGestures;
-        }
+        return mGameModeInfo.shouldDisableThreeFingerGesture();
     }
 
     public boolean shouldSilentNotification() {
-        synchronized (mStateLock) {
-            return mInGame && mSilentNotification;
-        }
+        return mGameModeInfo.shouldMuteNotification();
     }
 
     private boolean shouldLockGestures(int gestureType) {
         if (TopActivityRecorder.getInstance().hasMiniWindow()) {
             return false;
         }
-        synchronized (mStateLock) {
-            return mInGame && mGestureLockedList.get(gestureType).first;
-        }
+        final GameModeInfo info = mGameModeInfo;
+        return gestureType == GESTURE_TYPE_STATUS_BAR
+                ? info.shouldLockStatusbar() : info.shouldLockGesture();
     }
 
     public boolean isGestureLocked(int gestureType) {
@@ -14,7 +14,6 @@ import static android.media.AudioSystem.DEVICE_OUT_EARPIECE;
 import static android.media.AudioSystem.DEVICE_OUT_SPEAKER;
 import static android.media.AudioSystem.DEVICE_OUT_SPEAKER_SAFE;
 import static android.media.AudioSystem.STREAM_MUSIC;
-import static android.os.Process.THREAD_PRIORITY_DEFAULT;
 
 import static org.sun.audio.AlertSliderManager.STATE_BOTTOM;
 import static org.sun.audio.AlertSliderManager.STATE_MIDDLE;
@@ -33,7 +32,6 @@ import android.database.ContentObserver;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
 import android.os.UserHandle;
 import android.os.VibrationAttributes;
@@ -42,11 +40,11 @@ import android.os.Vibrator;
 import android.provider.Settings;
 import android.util.Slog;
 
-import com.android.server.ServiceThread;
 import com.android.server.audio.AudioService;
 
 import org.sun.audio.AlertSliderManager;
 import org.sun.provider.SettingsExt;
+import org.sun.server.SystemExScheduler;
 
 public class AlertSliderController {
 
@@ -76,7 +74,6 @@ public class AlertSliderController {
     private final Vibrator mVibrator;
 
     private final Handler mHandler;
-    private final ServiceThread mServiceThread;
 
     private final SettingsObserver mSettingsObserver;
 
@@ -100,9 +97,7 @@ public class AlertSliderController {
         mResolver = context.getContentResolver();
         mVibrator = vibrator;
 
-        mServiceThread = new ServiceThread(TAG, THREAD_PRIORITY_DEFAULT, false);
-        mServiceThread.start();
-        mHandler = new AlertSliderHandler(mServiceThread.getLooper());
+        mHandler = SystemExScheduler.getInstance().createLane(TAG, new AlertSliderCallback());
 
         mSettingsObserver = new SettingsObserver(mHandler);
     }
@@ -339,19 +334,16 @@ public class AlertSliderController {
         }
     }
 
-    private final class AlertSliderHandler extends Handler {
-        AlertSliderHandler(Looper looper) {
-            super(looper);
-        }
-
+    private final class AlertSliderCallback implements Handler.Callback {
         @Override
-        public void handleMessage(Message message) {
+        public boolean handleMessage(Message message) {
             switch (message.what) {
                 case MSG_DO_VIBRATE:
                     final VibrationExtInfo info = (VibrationExtInfo) message.obj;
                     mVibrator.vibrateExt(info);
-                    break;
+                    return true;
             }
+            return false;
         }
     }
 }
@@ -5,8 +5,6 @@
 
 package org.sun.server.battery;
 
-import static android.os.Process.THREAD_PRIORITY_DEFAULT;
-
 import static org.sun.os.DebugConstants.DEBUG_BATTERY_FEATURE;
 import static org.sun.provider.SettingsExt.System.OPTIMIZED_CHARGE_CEILING;
 import static org.sun.provider.SettingsExt.System.OPTIMIZED_CHARGE_ENABLED;
@@ -34,17 +32,15 @@ import android.util.Slog;
 
 import com.android.internal.R;
 
-import com.android.server.ServiceThread;
-
 import org.sun.os.BatteryFeatureManager;
 import org.sun.server.SunSystemExService;
+import org.sun.server.SystemExScheduler;
 
 public class BatteryFeatureController {
 
     private static final String TAG = "BatteryFeatureController";
 
     private final Handler mHandler;
-    private final ServiceThread mServiceThread;
 
     private BatteryFeatureManager mBatteryFeatureManager;
     private SunSystemExService mSystemExService;
@@ -140,9 +136,7 @@ public class BatteryFeatureController {
     }
 
     private BatteryFeatureController() {
-        mServiceThread = new ServiceThread(TAG, THREAD_PRIORITY_DEFAULT, false);
-        mServiceThread.start();
-        mHandler = new Handler(mServiceThread.getLooper());
+        mHandler = SystemExScheduler.getInstance().createLane(TAG);
     }
 
     public void initSystemExService(SunSystemExService service) {
@@ -7,15 +7,12 @@ package org.sun.server.content;
 
 import static org.sun.content.ContextExt.ONLINE_CONFIG_MANAGER_SERVICE;
 
-import android.os.IBinder;
-import android.os.RemoteException;
-
-import java.util.ArrayList;
 import java.util.List;
 
 import org.sun.content.IOnlineConfigManagerService;
 import org.sun.content.IOnlineConfigurable;
 import org.sun.server.SunSystemExService;
+import org.sun.server.SystemExListenerRegistry;
 
 public class OnlineConfigController {
 
@@ -29,89 +26,30 @@ public class OnlineConfigController {
         return InstanceHolder.INSTANCE;
     }
 
-    private final Object mLock = new Object();
-
-    private final ArrayList<OnlineConfigurable> mClients = new ArrayList<>();
-
-    private final class OnlineConfigurable {
-        final IOnlineConfigurable mConfigurable;
-        final IBinder.DeathRecipient mDeathRecipient;
-
-        OnlineConfigurable(IOnlineConfigurable configurable,
-                IBinder.DeathRecipient deathRecipient) {
-            mConfigurable = configurable;
-            mDeathRecipient = deathRecipient;
-        }
-    }
+    private SystemExListenerRegistry<IOnlineConfigurable> mClients;
 
     private final class OnlineConfigManagerService extends IOnlineConfigManagerService.Stub {
         @Override
         public List<IOnlineConfigurable> getRegisteredClients() {
-            synchronized (mLock) {
-                List<IOnlineConfigurable> ret = new ArrayList<>();
-                for (OnlineConfigurable client : mClients) {
-                    ret.add(client.mConfigurable);
-                }
-                return ret;
-            }
+            return mClients.getRegisteredListeners();
         }
 
         @Override
         public boolean registerOnlineConfigurable(IOnlineConfigurable configurable) {
-            final IBinder configurableBinder = configurable.asBinder();
-            IBinder.DeathRecipient dr = new IBinder.DeathRecipient() {
-                @Override
-                public void binderDied() {
-                    synchronized (mLock) {
-                        for (int i = 0; i < mClients.size(); i++) {
-                            if (configurableBinder == mClients.get(i).mConfigurable.asBinder()) {
-                                OnlineConfigurable removed = mClients.remove(i);
-                                IBinder binder = removed.mConfigurable.asBinder();
-                                if (binder != null) {
-                                    binder.unlinkToDeath(this, 0);
-                                }
-                                i--;
-                            }
-                        }
-                    }
-                }
-            };
-
-            synchronized (mLock) {
-                try {
-                    configurable.asBinder().linkToDeath(dr, 0);
-                    mClients.add(new OnlineConfigurable(configurable, dr));
-                } catch (RemoteException e) {
-                    // Client died, no cleanup needed.
-                    return false;
-                }
-                return true;
-            }
+            return mClients.register(configurable);
         }
 
         @Override
         public boolean unregisterOnlineConfigurable(IOnlineConfigurable configurable) {
-            boolean found = false;
-            final IBinder configurableBinder = configurable.asBinder();
-            synchronized (mLock) {
-                for (int i = 0; i < mClients.size(); i++) {
-                    found = true;
-                    OnlineConfigurable onlineConfigurable = mClients.get(i);
-                    if (configurableBinder == onlineConfigurable.mConfigurable.asBinder()) {
-                        OnlineConfigurable removed = mClients.remove(i);
-                        IBinder binder = removed.mConfigurable.asBinder();
-                        if (binder != null) {
-                            binder.unlinkToDeath(removed.mDeathRecipient, 0);
-                        }
-                        i--;
-                    }
-                }
-            }
-            return found;
+            return mClients.unregister(configurable);
         }
     }
 
+    private OnlineConfigController() {}
+
     public void initSystemExService(SunSystemExService service) {
+        // Only registry callbacks run here, share the service lane
+        mClients = new SystemExListenerRegistry<>(TAG, service.getHandler());
         service.publishBinderService(ONLINE_CONFIG_MANAGER_SERVICE, new OnlineConfigManagerService());
     }
 }
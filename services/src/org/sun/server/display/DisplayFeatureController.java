@@ -5,8 +5,6 @@
 
 package org.sun.server.display;
 
-import static android.os.Process.THREAD_PRIORITY_DEFAULT;
-
 import static org.sun.os.DebugConstants.DEBUG_DISPLAY_FEATURE;
 import static org.sun.provider.SettingsExt.System.DC_DIMMING_STATE;
 import static org.sun.provider.SettingsExt.System.HIGH_TOUCH_SAMPLE_MODE;
@@ -25,19 +23,19 @@ import android.os.UserHandle;
 import android.provider.Settings;
 import android.util.Slog;
 
-import com.android.server.ServiceThread;
 import com.android.server.policy.PhoneWindowManagerExt;
 
 import org.sun.display.DisplayFeatureManager;
 import org.sun.server.SunSystemExService;
+import org.sun.server.SystemExEventBus;
+import org.sun.server.SystemExScheduler;
 import org.sun.server.app.GameModeController;
 
-public class DisplayFeatureController {
+public class DisplayFeatureController implements SystemExEventBus.Subscriber {
 
     private static final String TAG = "DisplayFeatureController";
 
     private final Handler mHandler;
-    private final ServiceThread mServiceThread;
 
     private DisplayFeatureManager mDisplayFeatureManager;
     private SunSystemExService mSystemExService;
@@ -108,14 +106,13 @@ public class DisplayFeatureController {
     }
 
     private DisplayFeatureController() {
-        mServiceThread = new ServiceThread(TAG, THREAD_PRIORITY_DEFAULT, false);
-        mServiceThread.start();
-        mHandler = new Handler(mServiceThread.getLooper());
+        mHandler = SystemExScheduler.getInstance().createLane(TAG);
     }
 
     public void initSystemExService(SunSystemExService service) {
         mSystemExService = service;
         mDisplayFeatureManager = DisplayFeatureManager.getInstance();
+        mSystemExService.getEventBus().subscribe(TAG, mHandler, this);
     }
 
     public void onSystemServicesReady() {
@@ -215,12 +212,11 @@ public class DisplayFeatureController {
         }
     }
 
+    @Override
     public void onScreenOn() {
-        mHandler.post(() -> {
-            if (mLtpoController != null) {
-                mLtpoController.onScreenOn();
-            }
-        });
+        if (mLtpoController != null) {
+            mLtpoController.onScreenOn();
+        }
     }
 
     private static void logD(String msg) {
@@ -5,8 +5,6 @@
 
 package org.sun.server.display;
 
-import static android.os.Process.THREAD_PRIORITY_DEFAULT;
-
 import static org.sun.content.ContextExt.REFRESH_RATE_MANAGER_SERVICE;
 import static org.sun.os.DebugConstants.DEBUG_DISPLAY_RR;
 import static org.sun.provider.SettingsExt.System.EXTREME_REFRESH_RATE;
@@ -14,33 +12,32 @@ import static org.sun.provider.SettingsExt.System.REFRESH_RATE_CONFIG_CUSTOM;
 
 import android.content.Context;
 import android.os.Handler;
-import android.os.IBinder;
-import android.os.RemoteException;
 import android.os.UserHandle;
 import android.provider.Settings;
-import android.text.TextUtils;
-import android.util.ArrayMap;
 import android.util.Slog;
 
 import com.android.internal.util.sun.DisplayRefreshRateHelper;
 
-import com.android.server.ServiceThread;
-
 import java.util.ArrayList;
 
 import org.sun.display.IRefreshRateListener;
 import org.sun.display.IRefreshRateManagerService;
+import org.sun.server.PerAppConfigStore;
 import org.sun.server.SunSystemExService;
+import org.sun.server.SystemExEventBus;
+import org.sun.server.SystemExListenerRegistry;
+import org.sun.server.SystemExScheduler;
 
-public final class DisplayRefreshRateController {
+public final class DisplayRefreshRateController implements SystemExEventBus.Subscriber {
 
     private static final String TAG = "DisplayRefreshRateController";
 
+    private static final int CHANNEL_REFRESH_RATE = 0;
+    private static final int CHANNEL_MEMC_REFRESH_RATE = 1;
+
     private final Handler mHandler;
-    private final ServiceThread mServiceThread;
 
     private final Object mConfigLock = new Object();
-    private final Object mListenerLock = new Object();
 
     private SunSystemExService mSystemExService;
 
@@ -52,19 +49,9 @@ public final class DisplayRefreshRateController {
         return InstanceHolder.INSTANCE;
     }
 
-    private final class RefreshRateListener {
-        final IRefreshRateListener mListener;
-        final IBinder.DeathRecipient mDeathRecipient;
-
-        RefreshRateListener(IRefreshRateListener listener,
-                IBinder.DeathRecipient deathRecipient) {
-            mListener = listener;
-            mDeathRecipient = deathRecipient;
-        }
-    }
+    private final SystemExListenerRegistry<IRefreshRateListener> mListeners;
 
-    private final ArrayList<RefreshRateListener> mListeners = new ArrayList<>();
-    private final ArrayMap<String, Integer> mAppRefreshRateConfigMap = new ArrayMap<>();
+    private PerAppConfigStore mAppRefreshRateConfigs;
 
     private int mRequestedRefreshRate = -1;
     private int mRequestedMemcRefreshRate = -1;
@@ -80,7 +67,7 @@ public final class DisplayRefreshRateController {
                 if (mRequestedMemcRefreshRate != refreshRate) {
                     logD("requestMemcRefreshRate, refreshRate: " + refreshRate);
                     mRequestedMemcRefreshRate = refreshRate;
-                    mHandler.post(() -> notifyMemcRefreshRateChanged());
+                    notifyMemcRefreshRateChanged();
                 }
             }
         }
@@ -91,7 +78,7 @@ public final class DisplayRefreshRateController {
                 if (mRequestedMemcRefreshRate > 0) {
                     logD("clearRequestedMemcRefreshRate");
                     mRequestedMemcRefreshRate = -1;
-                    mHandler.post(() -> notifyMemcRefreshRateChanged());
+                    notifyMemcRefreshRateChanged();
                 }
             }
         }
@@ -99,7 +86,7 @@ public final class DisplayRefreshRateController {
         @Override
         public int getRefreshRateForPackage(String packageName) {
             synchronized (mConfigLock) {
-                return mAppRefreshRateConfigMap.getOrDefault(packageName, -1);
+                return mAppRefreshRateConfigs.get(packageName, -1);
             }
         }
 
@@ -109,14 +96,14 @@ public final class DisplayRefreshRateController {
                 if (refreshRate > 0) {
                     logD("setRefreshRateForPackage, packageName: "
                             + packageName + ", refreshRate: " + refreshRate);
-                    mAppRefreshRateConfigMap.put(packageName, refreshRate);
-                } else if (mAppRefreshRateConfigMap.containsKey(packageName)) {
+                    mAppRefreshRateConfigs.put(packageName, refreshRate);
+                } else if (mAppRefreshRateConfigs.remove(packageName)) {
                     logD("unsetRefreshRateForPackage, packageName: " + packageName);
-                    mAppRefreshRateConfigMap.remove(packageName);
                 }
                 mHandler.post(() -> {
-                    saveConfigIntoSettingsLocked();
-                    updateRefreshRateLocked(mSystemExService.getTopFullscreenPackage());
+                    synchronized (mConfigLock) {
+                        updateRefreshRateLocked(mSystemExService.getTopFullscreenPackage());
+                    }
                 });
             }
         }
@@ -124,12 +111,12 @@ public final class DisplayRefreshRateController {
         @Override
         public void unsetRefreshRateForPackage(String packageName) {
             synchronized (mConfigLock) {
-                if (mAppRefreshRateConfigMap.containsKey(packageName)) {
+                if (mAppRefreshRateConfigs.remove(packageName)) {
                     logD("unsetRefreshRateForPackage, packageName: " + packageName);
-                    mAppRefreshRateConfigMap.remove(packageName);
                     mHandler.post(() -> {
-                        saveConfigIntoSettingsLocked();
-                        updateRefreshRateLocked(mSystemExService.getTopFullscreenPackage());
+                        synchronized (mConfigLock) {
+                            updateRefreshRateLocked(mSystemExService.getTopFullscreenPackage());
+                        }
                     });
                 }
             }
@@ -173,74 +160,40 @@ public final class DisplayRefreshRateController {
 
         @Override
         public boolean registerRefreshRateListener(IRefreshRateListener listener) {
-            final IBinder listenerBinder = listener.asBinder();
-            IBinder.DeathRecipient dr = new IBinder.DeathRecipient() {
-                @Override
-                public void binderDied() {
-                    synchronized (mListenerLock) {
-                        for (int i = 0; i < mListeners.size(); i++) {
-                            if (listenerBinder == mListeners.get(i).mListener.asBinder()) {
-                                RefreshRateListener removed = mListeners.remove(i);
-                                IBinder binder = removed.mListener.asBinder();
-                                if (binder != null) {
-                                    binder.unlinkToDeath(this, 0);
-                                }
-                                i--;
-                            }
-                        }
-                    }
+            return mListeners.register(listener, l -> {
+                final int refreshRate, memcRefreshRate;
+                synchronized (mConfigLock) {
+                    refreshRate = mRequestedRefreshRate;
+                    memcRefreshRate = mRequestedMemcRefreshRate;
                 }
-            };
-
-            synchronized (mListenerLock) {
-                try {
-                    listener.asBinder().linkToDeath(dr, 0);
-                    mListeners.add(new RefreshRateListener(listener, dr));
-                    mHandler.post(() -> {
-                        synchronized (mConfigLock) {
-                            notifyRefreshRateChanged(listener);
-                            notifyMemcRefreshRateChanged(listener);
-                        }
-                    });
-                } catch (RemoteException e) {
-                    // Client died, no cleanup needed.
-                    return false;
-                }
-                return true;
-            }
+                l.onRequestedRefreshRate(refreshRate);
+                l.onRequestedMemcRefreshRate(memcRefreshRate);
+            });
         }
 
         @Override
         public boolean unregisterRefreshRateListener(IRefreshRateListener listener) {
-            boolean found = false;
-            final IBinder listenerBinder = listener.asBinder();
-            synchronized (mListenerLock) {
-                for (int i = 0; i < mListeners.size(); i++) {
-                    found = true;
-                    RefreshRateListener refreshRateListener = mListeners.get(i);
-                    if (listenerBinder == refreshRateListener.mListener.asBinder()) {
-                        RefreshRateListener removed = mListeners.remove(i);
-                        IBinder binder = removed.mListener.asBinder();
-                        if (binder != null) {
-                            binder.unlinkToDeath(removed.mDeathRecipient, 0);
-                        }
-                        i--;
-                    }
-                }
-            }
-            return found;
+            return mListeners.unregister(listener);
         }
     }
 
     private DisplayRefreshRateController() {
-        mServiceThread = new ServiceThread(TAG, THREAD_PRIORITY_DEFAULT, false);
-        mServiceThread.start();
-        mHandler = new Handler(mServiceThread.getLooper());
+        mHandler = SystemExScheduler.getInstance().createLane(TAG);
+        mListeners = new SystemExListenerRegistry<>(TAG, mHandler);
     }
 
     public void initSystemExService(SunSystemExService service) {
         mSystemExService = service;
+        mAppRefreshRateConfigs = new PerAppConfigStore(service.getContentResolver(),
+                REFRESH_RATE_CONFIG_CUSTOM, true,
+                refreshRate -> mHelper.isRefreshRateValid(refreshRate), mHandler);
+        mAppRefreshRateConfigs.setOnExternalChangeListener(() -> {
+            synchronized (mConfigLock) {
+                updateRefreshRateLocked(mSystemExService.getTopFullscreenPackage());
+            }
+        });
         mSystemExService.publishBinderService(REFRESH_RATE_MANAGER_SERVICE, new RefreshRateManagerService());
+        mSystemExService.getEventBus().subscribe(TAG, mHandler, this);
     }
 
     public void onBootCompleted() {
@@ -248,7 +201,7 @@ public final class DisplayRefreshRateController {
             synchronized (mConfigLock) {
                 logD("onBootCompleted");
                 mHelper = DisplayRefreshRateHelper.getInstance(mSystemExService.getContext());
-                parseSettingsIntoMapLocked(UserHandle.USER_CURRENT);
+                mAppRefreshRateConfigs.load(UserHandle.USER_CURRENT);
                 mExtremeMode = Settings.System.getIntForUser(mSystemExService.getContentResolver(),
                         EXTREME_REFRESH_RATE, 0, UserHandle.USER_CURRENT) != 0;
                 if (mExtremeMode) {
@@ -259,75 +212,71 @@ public final class DisplayRefreshRateController {
         });
     }
 
+    @Override
     public void onUserSwitching(int newUserId) {
-        mHandler.post(() -> {
-            synchronized (mConfigLock) {
-                logD("onUserSwitching, newUserId: " + newUserId);
-                parseSettingsIntoMapLocked(newUserId);
-
-                mExtremeMode = Settings.System.getIntForUser(mSystemExService.getContentResolver(),
-                        EXTREME_REFRESH_RATE, 0, newUserId) != 0;
-                if (mExtremeMode) {
-                    mRequestedRefreshRate = getMaxAllowedRefreshRate();
-                    notifyRefreshRateChanged();
-                } else {
-                    updateRefreshRateLocked(mSystemExService.getTopFullscreenPackage());
-                }
+        synchronized (mConfigLock) {
+            logD("onUserSwitching, newUserId: " + newUserId);
+            mAppRefreshRateConfigs.load(newUserId);
+
+            mExtremeMode = Settings.System.getIntForUser(mSystemExService.getContentResolver(),
+                    EXTREME_REFRESH_RATE, 0, newUserId) != 0;
+            if (mExtremeMode) {
+                mRequestedRefreshRate = getMaxAllowedRefreshRate();
+                notifyRefreshRateChanged();
+            } else {
+                updateRefreshRateLocked(mSystemExService.getTopFullscreenPackage());
             }
-        });
+        }
     }
 
+    @Override
     public void onPackageRemoved(String packageName) {
-        mHandler.post(() -> {
-            synchronized (mConfigLock) {
-                logD("onPackageRemoved, packageName: " + packageName);
-                if (mAppRefreshRateConfigMap.containsKey(packageName)) {
-                    logD("unsetRefreshRateForPackage, packageName: " + packageName);
-                    mAppRefreshRateConfigMap.remove(packageName);
-                    saveConfigIntoSettingsLocked();
-                    updateRefreshRateLocked(mSystemExService.getTopFullscreenPackage());
-                }
+        synchronized (mConfigLock) {
+            logD("onPackageRemoved, packageName: " + packageName);
+            if (mAppRefreshRateConfigs.remove(packageName)) {
+                logD("unsetRefreshRateForPackage, packageName: " + packageName);
+                updateRefreshRateLocked(mSystemExService.getTopFullscreenPackage());
             }
-        });
+        }
     }
 
+    @Override
     public void onScreenOff() {
-        mHandler.post(() -> {
-            synchronized (mConfigLock) {
-                if (mRequestedRefreshRate != -1) {
-                    logD("onScreenOff, restore refresh rate");
-                    mRequestedRefreshRate = -1;
-                    notifyRefreshRateChanged();
-                }
+        synchronized (mConfigLock) {
+            if (mRequestedRefreshRate != -1) {
+                logD("onScreenOff, restore refresh rate");
+                mRequestedRefreshRate = -1;
+                notifyRefreshRateChanged();
             }
-        });
+        }
     }
 
+    @Override
     public void onScreenOn() {
-        mHandler.post(() -> {
-            synchronized (mConfigLock) {
-                if (mExtremeMode) {
-                    logD("onScreenOn, set refresh rate to highest");
-                    mRequestedRefreshRate = getMaxAllowedRefreshRate();
-                    notifyRefreshRateChanged();
-                }
+        synchronized (mConfigLock) {
+            if (mExtremeMode) {
+                logD("onScreenOn, set refresh rate to highest");
+                mRequestedRefreshRate = getMaxAllowedRefreshRate();
+                notifyRefreshRateChanged();
             }
-        });
+        }
     }
 
-    public void onTopFullscreenPackageChanged(String packageName) {
-        mHandler.post(() -> {
-            synchronized (mConfigLock) {
-                updateRefreshRateLocked(packageName);
-            }
-        });
+    @Override
+    public void onTopFullscreenPackageChanged(String packageName, int taskId) {
+        synchronized (mConfigLock) {
+            updateRefreshRateLocked(packageName);
+        }
     }
 
     private void updateRefreshRateLocked(String packageName) {
         if (mExtremeMode) {
             logD("Skip update refresh rate due to in extreme mode");
-        } else if (mAppRefreshRateConfigMap.containsKey(packageName)) {
-            mRequestedRefreshRate = mAppRefreshRateConfigMap.get(packageName);
+            return;
+        }
+        final int appRefreshRate = mAppRefreshRateConfigs.get(packageName, -1);
+        if (appRefreshRate != -1) {
+            mRequestedRefreshRate = appRefreshRate;
             notifyRefreshRateChanged();
             logD("Requested refresh rate " + mRequestedRefreshRate + " for package: " + packageName);
         } else if (mRequestedRefreshRate > 0) {
@@ -338,37 +287,15 @@ public final class DisplayRefreshRateController {
     }
 
     private void notifyRefreshRateChanged() {
-        synchronized (mListenerLock) {
-            logD("notifyRefreshRateChanged, refreshRate: " + mRequestedRefreshRate);
-            for (RefreshRateListener listener : mListeners) {
-                notifyRefreshRateChanged(listener.mListener);
-            }
-        }
-    }
-
-    private void notifyRefreshRateChanged(IRefreshRateListener listener) {
-        try {
-            listener.onRequestedRefreshRate(mRequestedRefreshRate);
-        } catch (RemoteException | RuntimeException e) {
-            logE("Failed to notify refresh rate changed");
-        }
+        final int refreshRate = mRequestedRefreshRate;
+        logD("notifyRefreshRateChanged, refreshRate: " + refreshRate);
+        mListeners.publish(CHANNEL_REFRESH_RATE, l -> l.onRequestedRefreshRate(refreshRate));
     }
 
     private void notifyMemcRefreshRateChanged() {
-        synchronized (mListenerLock) {
-            logD("notifyMemcRefreshRateChanged, refreshRate: " + mRequestedMemcRefreshRate);
-            for (RefreshRateListener listener : mListeners) {
-                notifyMemcRefreshRateChanged(listener.mListener);
-            }
-        }
-    }
-
-    private void notifyMemcRefreshRateChanged(IRefreshRateListener listener) {
-        try {
-            listener.onRequestedMemcRefreshRate(mRequestedMemcRefreshRate);
-        } catch (RemoteException | RuntimeException e) {
-            logE("Failed to notify memc refresh rate changed");
-        }
+        final int refreshRate = mRequestedMemcRefreshRate;
+        logD("notifyMemcRefreshRateChanged, refreshRate: " + refreshRate);
+        mListeners.publish(CHANNEL_MEMC_REFRESH_RATE, l -> l.onRequestedMemcRefreshRate(refreshRate));
     }
 
     private int getMaxAllowedRefreshRate() {
@@ -379,42 +306,6 @@ public final class DisplayRefreshRateController {
         return -1;
     }
 
-    private void parseSettingsIntoMapLocked(int userId) {
-        mAppRefreshRateConfigMap.clear();
-        final String settings = Settings.System.getStringForUser(mSystemExService.getContentResolver(),
-                REFRESH_RATE_CONFIG_CUSTOM, userId);
-        if (TextUtils.isEmpty(settings)) {
-            return;
-        }
-        final String[] configs = settings.split(";");
-        for (String config : configs) {
-            final String[] splited = config.split(",");
-            if (splited.length != 2) {
-                continue;
-            }
-            int refreshRate = -1;
-            try {
-                refreshRate = Integer.parseInt(splited[1]);
-            } catch (NumberFormatException e) {}
-            if (mHelper.isRefreshRateValid(refreshRate)) {
-                mAppRefreshRateConfigMap.put(splited[0], refreshRate);
-                logD("parseSettingsIntoMapLocked, added packageName: "
-                        + splited[0] + ", refreshRate: " + refreshRate);
-            }
-        }
-    }
-
-    private void saveConfigIntoSettingsLocked() {
-        StringBuilder sb = new StringBuilder();
-        for (String app : mAppRefreshRateConfigMap.keySet()) {
-            sb.append(app).append(",");
-            sb.append(String.valueOf(mAppRefreshRateConfigMap.get(app))).append(";");
-        }
-        Settings.System.putStringForUser(mSystemExService.getContentResolver(),
-                REFRESH_RATE_CONFIG_CUSTOM, sb.toString(), UserHandle.USER_CURRENT);
-        logD("saveConfigIntoSettingsLocked, config: " + sb.toString());
-    }
-
     private static void logD(String msg) {
         if (DEBUG_DISPLAY_RR) {
             Slog.d(TAG, msg);
@@ -5,8 +5,6 @@
 
 package org.sun.server.policy;
 
-import static android.os.Process.THREAD_PRIORITY_DEFAULT;
-
 import static org.sun.os.DebugConstants.DEBUG_DOZE;
 import static org.sun.provider.SettingsExt.System.DOZE_PICK_UP_ACTION;
 
@@ -24,12 +22,12 @@ import android.util.Slog;
 
 import com.android.internal.util.sun.DozeHelper;
 
-import com.android.server.ServiceThread;
-
 import org.sun.server.SunSystemExService;
+import org.sun.server.SystemExEventBus;
+import org.sun.server.SystemExScheduler;
 import org.sun.server.policy.sensor.PickUpSensor;
 
-public class DozeController {
+public class DozeController implements SystemExEventBus.Subscriber {
 
     private static final String TAG = "DozeController";
 
@@ -40,7 +38,6 @@ public class DozeController {
     private final Object mLock = new Object();
 
     private final Handler mHandler;
-    private final ServiceThread mServiceThread;
 
     private PickUpSensor mPickUpSensor;
 
@@ -82,13 +79,12 @@ public class DozeController {
     }
 
     private DozeController() {
-        mServiceThread = new ServiceThread(TAG, THREAD_PRIORITY_DEFAULT, false);
-        mServiceThread.start();
-        mHandler = new Handler(mServiceThread.getLooper());
+        mHandler = SystemExScheduler.getInstance().createLane(TAG);
     }
 
     public void initSystemExService(SunSystemExService service) {
         mSystemExService = service;
+        mSystemExService.getEventBus().subscribe(TAG, mHandler, this);
     }
 
     public void onSystemServicesReady() {
@@ -115,34 +111,31 @@ public class DozeController {
         });
     }
 
+    @Override
     public void onUserSwitching(int newUserId) {
-        mHandler.post(() -> {
-            logD("onUserSwitching, newUserId: " + newUserId);
+        logD("onUserSwitching, newUserId: " + newUserId);
 
-            if (mPickUpSensor != null && mPickUpSensor.isSupported()) {
-                mPickUpSensor.onUserSwitching(newUserId);
-            }
-        });
+        if (mPickUpSensor != null && mPickUpSensor.isSupported()) {
+            mPickUpSensor.onUserSwitching(newUserId);
+        }
     }
 
+    @Override
     public void onScreenOff() {
-        mHandler.post(() -> {
-            logD("onScreenOff");
+        logD("onScreenOff");
 
-            if (mPickUpSensor != null && mPickUpSensor.isSupported()) {
-                mPickUpSensor.onScreenOff();
-            }
-        });
+        if (mPickUpSensor != null && mPickUpSensor.isSupported()) {
+            mPickUpSensor.onScreenOff();
+        }
     }
 
+    @Override
     public void onScreenOn() {
-        mHandler.post(() -> {
-            logD("onScreenOn");
+        logD("onScreenOn");
 
-            if (mPickUpSensor != null && mPickUpSensor.isSupported()) {
-                mPickUpSensor.onScreenOn();
-            }
-        });
+        if (mPickUpSensor != null && mPickUpSensor.isSupported()) {
+            mPickUpSensor.onScreenOn();
+        }
     }
 
     public void launchDozePulse() {
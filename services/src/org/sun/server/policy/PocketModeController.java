@@ -6,15 +6,11 @@
 
 package org.sun.server.policy;
 
-import static android.os.Process.THREAD_PRIORITY_DEFAULT;
-
 import static org.sun.os.DebugConstants.DEBUG_POCKET;
 import static org.sun.provider.SettingsExt.System.POCKET_JUDGE;
 
 import android.database.ContentObserver;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.net.Uri;
 import android.os.Handler;
@@ -31,11 +27,13 @@ import android.util.Slog;
 import com.android.internal.R;
 
 import com.android.server.FgThread;
-import com.android.server.ServiceThread;
 
 import org.sun.server.SunSystemExService;
+import org.sun.server.SystemExEventBus;
+import org.sun.server.SystemExScheduler;
+import org.sun.server.sensors.SensorHub;
 
-public class PocketModeController {
+public class PocketModeController implements SystemExEventBus.Subscriber {
 
     private static final String TAG = "PocketModeController";
 
@@ -44,8 +42,10 @@ public class PocketModeController {
     private static final long REGISTER_SENSORS_DELAY = 50L;
     private static final long SCREEN_OFF_TIMEOUT = 10000L;
 
+    // Light is only checked together with proximity, let it be batched
+    private static final int LIGHT_MAX_REPORT_LATENCY_US = 200000;
+
     private final Handler mHandler;
-    private final ServiceThread mServiceThread;
 
     private SunSystemExService mSystemExService;
     private PowerManager mPowerManager;
@@ -53,24 +53,17 @@ public class PocketModeController {
     private SettingsObserver mSettingsObserver;
     private TelephonyManager mTelephonyManager;
 
-    private final SensorEventListener mProximityListener = new SensorEventListener() {
-
-        @Override
-        public void onSensorChanged(SensorEvent event) {
-            final boolean wasInPocket = mProximityInPocket;
-            if (event == null || event.values == null || event.values.length == 0) {
-                mProximityInPocket = false;
-            } else {
-                mProximityInPocket = event.values[0] < mProximityMaxRange;
-            }
-            if (wasInPocket != mProximityInPocket) {
-                logD("mProximityInPocket changed to: " + mProximityInPocket);
-                updatePocketState();
-            }
+    private final SensorHub.Listener mProximityListener = (sensor, values, timestampNs) -> {
+        final boolean wasInPocket = mProximityInPocket;
+        if (values == null || values.length == 0) {
+            mProximityInPocket = false;
+        } else {
+            mProximityInPocket = values[0] < mProximityMaxRange;
+        }
+        if (wasInPocket != mProximityInPocket) {
+            logD("mProximityInPocket changed to: " + mProximityInPocket);
+            updatePocketState();
         }
-
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
     };
     private Sensor mProximitySensor;
     private float mProximityMaxRange;
@@ -79,47 +72,33 @@ public class PocketModeController {
 
     private PocketLock mPocketLockView;
 
-    private final SensorEventListener mVendorListener = new SensorEventListener() {
-
-        @Override
-        public void onSensorChanged(SensorEvent event) {
-            final boolean wasInPocket = mVendorInPocket;
-            if (event == null || event.values == null || event.values.length == 0) {
-                mVendorInPocket = false;
-            } else {
-                mVendorInPocket = event.values[0] == 1.0;
-            }
-            if (wasInPocket != mVendorInPocket) {
-                logD("mVendorInPocket changed to: " + mVendorInPocket);
-                updatePocketState();
-            }
+    private final SensorHub.Listener mVendorListener = (sensor, values, timestampNs) -> {
+        final boolean wasInPocket = mVendorInPocket;
+        if (values == null || values.length == 0) {
+            mVendorInPocket = false;
+        } else {
+            mVendorInPocket = values[0] == 1.0;
+        }
+        if (wasInPocket != mVendorInPocket) {
+            logD("mVendorInPocket changed to: " + mVendorInPocket);
+            updatePocketState();
         }
-
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
     };
     private Sensor mVendorSensor;
     private boolean mVendorRegistered;
     private boolean mVendorInPocket;
 
-    private final SensorEventListener mLightListener = new SensorEventListener() {
-
-        @Override
-        public void onSensorChanged(SensorEvent event) {
-            final boolean wasInPocket = mLightPoor;
-            if (event == null || event.values == null || event.values.length == 0) {
-                mLightPoor = false;
-            } else {
-                mLightPoor = event.values[0] >= 0 && event.values[0] < POCKET_LIGHT_MAX_THRESHOLD;
-            }
-            if (wasInPocket != mLightPoor) {
-                logD("mLightPoor changed to: " + mLightPoor);
-                updatePocketState();
-            }
+    private final SensorHub.Listener mLightListener = (sensor, values, timestampNs) -> {
+        final boolean wasInPocket = mLightPoor;
+        if (values == null || values.length == 0) {
+            mLightPoor = false;
+        } else {
+            mLightPoor = values[0] >= 0 && values[0] < POCKET_LIGHT_MAX_THRESHOLD;
+        }
+        if (wasInPocket != mLightPoor) {
+            logD("mLightPoor changed to: " + mLightPoor);
+            updatePocketState();
         }
-
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
     };
     private Sensor mLightSensor;
     private float mLightMaxRange;
@@ -178,13 +157,12 @@ public class PocketModeController {
     }
 
     private PocketModeController() {
-        mServiceThread = new ServiceThread(TAG, THREAD_PRIORITY_DEFAULT, false);
-        mServiceThread.start();
-        mHandler = new Handler(mServiceThread.getLooper());
+        mHandler = SystemExScheduler.getInstance().createLane(TAG);
     }
 
     public void initSystemExService(SunSystemExService service) {
         mSystemExService = service;
+        mSystemExService.getEventBus().subscribe(TAG, mHandler, this);
     }
 
     public void onSystemServicesReady() {
@@ -233,30 +211,28 @@ public class PocketModeController {
         });
     }
 
+    @Override
     public void onUserSwitching(int newUserId) {
-        mHandler.post(() -> {
-            logD("onUserSwitching, newUserId: " + newUserId);
-            updateSettings(newUserId);
-        });
+        logD("onUserSwitching, newUserId: " + newUserId);
+        updateSettings(newUserId);
     }
 
+    @Override
     public void onScreenOff() {
-        mHandler.post(() -> {
-            unregisterAll();
-        });
+        unregisterAll();
     }
 
+    @Override
     public void onScreenOn() {
         mHandler.postDelayed(mRegisterAllRunnable, REGISTER_SENSORS_DELAY);
     }
 
+    @Override
     public void onScreenUnlocked() {
         if (mHandler.hasCallbacks(mRegisterAllRunnable)) {
             mHandler.removeCallbacks(mRegisterAllRunnable);
         }
-        mHandler.post(() -> {
-            unregisterAll();
-        });
+        unregisterAll();
     }
 
     private Sensor getSensor(String type) {
@@ -302,23 +278,24 @@ public class PocketModeController {
                     FgThread.getExecutor(), mCallStateCallback);
             mCallCallbackRegistered = true;
         }
+        final SensorHub hub = SensorHub.getInstance();
         if (mVendorSensor != null) {
             if (!mVendorRegistered) {
-                mSensorManager.registerListener(mVendorListener, mVendorSensor,
-                        SensorManager.SENSOR_DELAY_NORMAL, mHandler);
-                mSensorManager.flush(mVendorListener);
+                hub.subscribe(TAG + "/vendor", mVendorSensor, SensorManager.SENSOR_DELAY_NORMAL,
+                        SensorHub.LATENCY_REALTIME, mVendorListener, mHandler);
+                hub.flush(mVendorSensor);
                 mVendorRegistered = true;
             }
         } else if (mProximitySensor != null && !mProximityRegistered) {
-            mSensorManager.registerListener(mProximityListener, mProximitySensor,
-                    SensorManager.SENSOR_DELAY_NORMAL, mHandler);
-            mSensorManager.flush(mProximityListener);
+            hub.subscribe(TAG + "/proximity", mProximitySensor, SensorManager.SENSOR_DELAY_NORMAL,
+                    SensorHub.LATENCY_REALTIME, mProximityListener, mHandler);
+            hub.flush(mProximitySensor);
             mProximityRegistered = true;
         }
         if (mLightSensor != null && !mLightRegistered) {
-            mSensorManager.registerListener(mLightListener, mLightSensor,
-                    SensorManager.SENSOR_DELAY_NORMAL, mHandler);
-            mSensorManager.flush(mLightListener);
+            hub.subscribe(TAG + "/light", mLightSensor, SensorManager.SENSOR_DELAY_NORMAL,
+                    LIGHT_MAX_REPORT_LATENCY_US, mLightListener, mHandler);
+            hub.flush(mLightSensor);
             mLightRegistered = true;
         }
     }
@@ -329,17 +306,17 @@ public class PocketModeController {
             mHandler.removeCallbacks(mScreenOffRunnable);
         }
         if (mProximityRegistered) {
-            mSensorManager.unregisterListener(mProximityListener);
+            SensorHub.getInstance().unsubscribe(mProximitySensor, mProximityListener);
             mProximityRegistered = false;
             mProximityInPocket = false;
         }
         if (mVendorRegistered) {
-            mSensorManager.unregisterListener(mVendorListener);
+            SensorHub.getInstance().unsubscribe(mVendorSensor, mVendorListener);
             mVendorRegistered = false;
             mVendorInPocket = false;
         }
         if (mLightRegistered) {
-            mSensorManager.unregisterListener(mLightListener);
+            SensorHub.getInstance().unsubscribe(mLightSensor, mLightListener);
             mLightRegistered = false;
             mLightPoor = false;
         }
@@ -15,8 +15,6 @@ import static org.sun.server.policy.DozeController.logD;
 
 import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.hardware.TriggerEvent;
 import android.hardware.TriggerEventListener;
@@ -25,13 +23,17 @@ import android.os.SystemClock;
 import com.android.internal.util.sun.DozeHelper;
 
 import org.sun.server.policy.DozeController;
+import org.sun.server.sensors.SensorHub;
 
-public class PickUpSensor extends TriggerEventListener implements SensorEventListener {
+public class PickUpSensor extends TriggerEventListener implements SensorHub.Listener {
 
     private static final String TAG = "PickUpSensor";
 
     private static final long MIN_EVENT_INTERVAL_MS = 2500L;
 
+    // Screen is off while listening, a short delay is fine and saves wakeups
+    private static final int MAX_REPORT_LATENCY_US = 100000;
+
     private final Context mContext;
     private final String mSensorType;
     private final float mSensorValue;
@@ -73,12 +75,8 @@ public class PickUpSensor extends TriggerEventListener implements SensorEventLis
     }
 
     @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-    }
-
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-        handleSensorEvent(event.values[0]);
+    public void onSensorChanged(Sensor sensor, float[] values, long timestampNs) {
+        handleSensorEvent(values[0]);
     }
 
     @Override
@@ -131,7 +129,8 @@ public class PickUpSensor extends TriggerEventListener implements SensorEventLis
             if (mUseNativePickUpSensor) {
                 mSensorManager.requestTriggerSensor(this, mSensor);
             } else {
-                mSensorManager.registerListener(this, mSensor, SensorManager.SENSOR_DELAY_NORMAL);
+                SensorHub.getInstance().subscribe(TAG, mSensor, SensorManager.SENSOR_DELAY_NORMAL,
+                        MAX_REPORT_LATENCY_US, this, null);
             }
             mListening = true;
         }
@@ -143,7 +142,7 @@ public class PickUpSensor extends TriggerEventListener implements SensorEventLis
             if (mUseNativePickUpSensor) {
                 mSensorManager.cancelTriggerSensor(this, mSensor);
             } else {
-                mSensorManager.unregisterListener(this, mSensor);
+                SensorHub.getInstance().unsubscribe(mSensor, this);
             }
             mListening = false;
         }
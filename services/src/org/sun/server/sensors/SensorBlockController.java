@@ -5,8 +5,6 @@
 
 package org.sun.server.sensors;
 
-import static android.os.Process.THREAD_PRIORITY_DEFAULT;
-
 import static org.sun.content.ContextExt.SENSOR_BLOCK_MANAGER_SERVICE;
 import static org.sun.hardware.SensorBlockManager.APP_FIRST_SCREEN_MS;
 import static org.sun.hardware.SensorBlockManager.SHAKE_SENSORS_ALLOW;
@@ -18,21 +16,19 @@ import static org.sun.os.DebugConstants.DEBUG_SENSOR;
 import static org.sun.provider.SettingsExt.System.SHAKE_SENSORS_BLACKLIST_CONFIG;
 
 import android.os.Handler;
-import android.os.Looper;
 import android.os.Message;
 import android.os.UserHandle;
-import android.provider.Settings;
-import android.text.TextUtils;
-import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Slog;
 
-import com.android.server.ServiceThread;
-
 import org.sun.hardware.ISensorBlockService;
+import org.sun.hardware.SensorBlockManager;
+import org.sun.server.PerAppConfigStore;
 import org.sun.server.SunSystemExService;
+import org.sun.server.SystemExEventBus;
+import org.sun.server.SystemExScheduler;
 
-public final class SensorBlockController {
+public final class SensorBlockController implements SystemExEventBus.Subscriber {
 
     private static final String TAG = "SensorBlockController";
 
@@ -46,23 +42,19 @@ public final class SensorBlockController {
 
     private static final int MSG_UNBLOCK_SHAKE_SENSOR = 1;
 
-    private final ArrayMap<String, Integer> mShakeSensorsConfig = new ArrayMap<>();
     private final ArraySet<String> mShakeSensorsBlockingPackages = new ArraySet<>();
 
     private final Handler mHandler;
-    private final ServiceThread mServiceThread;
 
     private final Object mLock = new Object();
 
     private SunSystemExService mSystemExService;
 
-    private final class H extends Handler {
-        H(Looper looper) {
-            super(looper);
-        }
+    private PerAppConfigStore mShakeSensorsConfig;
 
+    private final class H implements Handler.Callback {
         @Override
-        public void handleMessage(Message msg) {
+        public boolean handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_UNBLOCK_SHAKE_SENSOR:
                     String packageName = (String) msg.obj;
@@ -70,10 +62,11 @@ public final class SensorBlockController {
                         if (DEBUG_SENSOR) {
                             Slog.d(TAG, "package=" + packageName + ", app first screen ended, unblock shake sensors");
                         }
-                        mShakeSensorsBlockingPackages.remove(packageName);
+                        removeBlockingPackageLocked(packageName);
                     }
-                    break;
+                    return true;
             }
+            return false;
         }
     }
 
@@ -81,7 +74,7 @@ public final class SensorBlockController {
         @Override
         public int getShakeSensorsConfigForPackage(String packageName) {
             synchronized (mLock) {
-                return mShakeSensorsConfig.getOrDefault(packageName, SHAKE_SENSORS_ALLOW);
+                return mShakeSensorsConfig.get(packageName, SHAKE_SENSORS_ALLOW);
             }
         }
 
@@ -94,17 +87,16 @@ public final class SensorBlockController {
                 }
                 mShakeSensorsConfig.put(packageName, config);
                 if (config == SHAKE_SENSORS_ALLOW) {
-                    mShakeSensorsBlockingPackages.remove(packageName);
+                    removeBlockingPackageLocked(packageName);
                 } else if (config == SHAKE_SENSORS_BLOCK_FIRST_SCREEN) {
                     if (mSystemExService.getTopFullscreenPackage().equals(packageName)) {
-                        mShakeSensorsBlockingPackages.add(packageName);
+                        addBlockingPackageLocked(packageName);
                         mHandler.sendMessageDelayed(mHandler.obtainMessage(
                                 MSG_UNBLOCK_SHAKE_SENSOR, packageName), APP_FIRST_SCREEN_MS);
                     }
                 } else if (config == SHAKE_SENSORS_BLOCK_ALWAYS) {
-                    mShakeSensorsBlockingPackages.add(packageName);
+                    addBlockingPackageLocked(packageName);
                 }
-                mHandler.post(() -> saveConfigIntoSettingsLocked());
             }
         }
 
@@ -121,14 +113,17 @@ public final class SensorBlockController {
     }
 
     private SensorBlockController() {
-        mServiceThread = new ServiceThread(TAG, THREAD_PRIORITY_DEFAULT, false);
-        mServiceThread.start();
-        mHandler = new H(mServiceThread.getLooper());
+        mHandler = SystemExScheduler.getInstance().createLane(TAG, new H());
     }
 
     public void initSystemExService(SunSystemExService service) {
         mSystemExService = service;
+        mShakeSensorsConfig = new PerAppConfigStore(service.getContentResolver(),
+                SHAKE_SENSORS_BLACKLIST_CONFIG, true,
+                config -> isShakeSensorsConfigValid(config), mHandler);
+        mShakeSensorsConfig.setOnExternalChangeListener(this::onShakeSensorsConfigChanged);
         mSystemExService.publishBinderService(SENSOR_BLOCK_MANAGER_SERVICE, new SensorBlockManagerService());
+        mSystemExService.getEventBus().subscribe(TAG, mHandler, this);
     }
 
     public void onSystemServicesReady() {
@@ -137,99 +132,88 @@ public final class SensorBlockController {
                 if (DEBUG_SENSOR) {
                     Slog.d(TAG, "onSystemServicesReady");
                 }
-                parseSettingsIntoMapLocked(UserHandle.USER_CURRENT);
+                mShakeSensorsConfig.load(UserHandle.USER_CURRENT);
+                // Enable client caches
+                SensorBlockManager.invalidateShakeSensorsBlockCache();
             }
         });
     }
 
+    @Override
     public void onUserSwitching(int newUserId) {
-        mHandler.post(() -> {
-            synchronized (mLock) {
-                if (DEBUG_SENSOR) {
-                    Slog.d(TAG, "onUserSwitching, newUserId: " + newUserId);
-                }
-                parseSettingsIntoMapLocked(newUserId);
+        synchronized (mLock) {
+            if (DEBUG_SENSOR) {
+                Slog.d(TAG, "onUserSwitching, newUserId: " + newUserId);
             }
-        });
+            mShakeSensorsConfig.load(newUserId);
+        }
     }
 
+    @Override
     public void onPackageRemoved(String packageName) {
-        mHandler.post(() -> {
-            synchronized (mLock) {
-                if (DEBUG_SENSOR) {
-                    Slog.d(TAG, "onPackageRemoved, packageName: " + packageName);
-                }
-                if (mShakeSensorsConfig.containsKey(packageName)) {
-                    mShakeSensorsConfig.remove(packageName);
-                    mShakeSensorsBlockingPackages.remove(packageName);
-                    saveConfigIntoSettingsLocked();
-                }
+        synchronized (mLock) {
+            if (DEBUG_SENSOR) {
+                Slog.d(TAG, "onPackageRemoved, packageName: " + packageName);
             }
-        });
+            if (mShakeSensorsConfig.remove(packageName)) {
+                removeBlockingPackageLocked(packageName);
+            }
+        }
     }
 
-    public void onTopFullscreenPackageChanged(String packageName) {
-        mHandler.post(() -> {
-            synchronized (mLock) {
-                if (DEBUG_SENSOR) {
-                    Slog.d(TAG, "onTopFullscreenPackageChanged: " + packageName);
-                }
-                if (mHandler.hasMessages(MSG_UNBLOCK_SHAKE_SENSOR)) {
-                    mHandler.removeMessages(MSG_UNBLOCK_SHAKE_SENSOR);
-                }
-                final int config = mShakeSensorsConfig.getOrDefault(packageName, SHAKE_SENSORS_ALLOW);
-                if (DEBUG_SENSOR) {
-                    Slog.d(TAG, "onTopFullscreenPackageChanged, newConfig=" +
-                            shakeSensorsConfigToString(config));
-                }
-                if (config != SHAKE_SENSORS_ALLOW) {
-                    mShakeSensorsBlockingPackages.add(packageName);
-                    if (config == SHAKE_SENSORS_BLOCK_FIRST_SCREEN) {
-                        mHandler.sendMessageDelayed(mHandler.obtainMessage(
-                                MSG_UNBLOCK_SHAKE_SENSOR, packageName), APP_FIRST_SCREEN_MS);
-                    }
+    @Override
+    public void onTopFullscreenPackageChanged(String packageName, int taskId) {
+        synchronized (mLock) {
+            if (DEBUG_SENSOR) {
+                Slog.d(TAG, "onTopFullscreenPackageChanged: " + packageName);
+            }
+            if (mHandler.hasMessages(MSG_UNBLOCK_SHAKE_SENSOR)) {
+                mHandler.removeMessages(MSG_UNBLOCK_SHAKE_SENSOR);
+            }
+            final int config = mShakeSensorsConfig.get(packageName, SHAKE_SENSORS_ALLOW);
+            if (DEBUG_SENSOR) {
+                Slog.d(TAG, "onTopFullscreenPackageChanged, newConfig=" +
+                        shakeSensorsConfigToString(config));
+            }
+            if (config != SHAKE_SENSORS_ALLOW) {
+                addBlockingPackageLocked(packageName);
+                if (config == SHAKE_SENSORS_BLOCK_FIRST_SCREEN) {
+                    mHandler.sendMessageDelayed(mHandler.obtainMessage(
+                            MSG_UNBLOCK_SHAKE_SENSOR, packageName), APP_FIRST_SCREEN_MS);
                 }
             }
-        });
+        }
     }
 
-    private void parseSettingsIntoMapLocked(int userId) {
-        mShakeSensorsConfig.clear();
-        final String settings = Settings.System.getStringForUser(mSystemExService.getContentResolver(),
-                SHAKE_SENSORS_BLACKLIST_CONFIG, userId);
-        if (TextUtils.isEmpty(settings)) {
-            return;
-        }
-        final String[] configs = settings.split(";");
-        for (String config : configs) {
-            final String[] splited = config.split(",");
-            if (splited.length != 2) {
-                continue;
+    private void onShakeSensorsConfigChanged() {
+        synchronized (mLock) {
+            if (DEBUG_SENSOR) {
+                Slog.d(TAG, "onShakeSensorsConfigChanged");
             }
-            int blockConfig = SHAKE_SENSORS_ALLOW;
-            try {
-                blockConfig = Integer.parseInt(splited[1]);
-            } catch (NumberFormatException e) {}
-            if (isShakeSensorsConfigValid(blockConfig)) {
-                mShakeSensorsConfig.put(splited[0], blockConfig);
-                if (DEBUG_SENSOR) {
-                    Slog.d(TAG, "parseSettingsIntoMapLocked, added packageName: "
-                            + splited[0] + ", config: " + shakeSensorsConfigToString(blockConfig));
+            for (int i = mShakeSensorsBlockingPackages.size() - 1; i >= 0; i--) {
+                final String packageName = mShakeSensorsBlockingPackages.valueAt(i);
+                if (mShakeSensorsConfig.get(packageName, SHAKE_SENSORS_ALLOW) == SHAKE_SENSORS_ALLOW) {
+                    mHandler.removeMessages(MSG_UNBLOCK_SHAKE_SENSOR, packageName);
+                    removeBlockingPackageLocked(packageName);
                 }
             }
+            // First screen of the top app has passed, only always block applies now
+            final String topPackage = mSystemExService.getTopFullscreenPackage();
+            if (mShakeSensorsConfig.get(topPackage, SHAKE_SENSORS_ALLOW) == SHAKE_SENSORS_BLOCK_ALWAYS) {
+                addBlockingPackageLocked(topPackage);
+            }
         }
     }
 
-    private void saveConfigIntoSettingsLocked() {
-        StringBuilder sb = new StringBuilder();
-        for (String app : mShakeSensorsConfig.keySet()) {
-            sb.append(app).append(",");
-            sb.append(String.valueOf(mShakeSensorsConfig.get(app))).append(";");
+    private void addBlockingPackageLocked(String packageName) {
+        if (mShakeSensorsBlockingPackages.add(packageName)) {
+            SensorBlockManager.invalidateShakeSensorsBlockCache();
         }
-        Settings.System.putStringForUser(mSystemExService.getContentResolver(),
-                SHAKE_SENSORS_BLACKLIST_CONFIG, sb.toString(), UserHandle.USER_CURRENT);
-        if (DEBUG_SENSOR) {
-            Slog.d(TAG, "saveConfigIntoSettingsLocked, config: " + sb.toString());
+    }
+
+    private void removeBlockingPackageLocked(String packageName) {
+        if (mShakeSensorsBlockingPackages.remove(packageName)) {
+            SensorBlockManager.invalidateShakeSensorsBlockCache();
         }
     }
 }
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.sun.server.sensors;
+
+import static org.sun.os.DebugConstants.DEBUG_SENSOR;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+import org.sun.server.SunSystemExService;
+import org.sun.server.SystemExScheduler;
+
+/**
+ * Sensor multiplexer for controllers of {@link SunSystemExService}.
+ *
+ * Subscribers of the same sensor share one registration with {@link SensorManager},
+ * which uses the fastest sampling period requested. Events are batched in the sensor
+ * FIFO up to the smallest report latency requested, so batching is only used when
+ * none of the subscribers needs real-time delivery.
+ */
+public final class SensorHub {
+
+    private static final String TAG = "SensorHub";
+
+    // Events closer than this are counted as one wakeup,
+    // events of one FIFO flush are delivered back to back
+    private static final long WAKEUP_GAP_NS = 20_000_000L;
+
+    /**
+     * Real-time delivery, no batching.
+     */
+    public static final int LATENCY_REALTIME = 0;
+
+    private static class InstanceHolder {
+        private static SensorHub INSTANCE = new SensorHub();
+    }
+
+    public static SensorHub getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Receives events of a subscribed sensor. {@code values} can't be kept after
+     * returning if the event is delivered on the hub lane.
+     */
+    public interface Listener {
+        void onSensorChanged(Sensor sensor, float[] values, long timestampNs);
+    }
+
+    private static final class Subscriber {
+        final String mName;
+        final Listener mListener;
+        final Handler mHandler;
+        final int mSamplingPeriodUs;
+        final int mMaxReportLatencyUs;
+        final long mSubscribeTime;
+
+        long mEventCount;
+        long mWakeupCount;
+        long mLastEventTimeNs;
+
+        Subscriber(String name, Listener listener, Handler handler,
+                int samplingPeriodUs, int maxReportLatencyUs) {
+            mName = name;
+            mListener = listener;
+            mHandler = handler;
+            mSamplingPeriodUs = samplingPeriodUs;
+            mMaxReportLatencyUs = maxReportLatencyUs;
+            mSubscribeTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final class Mux implements SensorEventListener {
+        final Sensor mSensor;
+        final ArrayList<Subscriber> mSubscribers = new ArrayList<>();
+
+        // Read on the hub lane without lock
+        volatile Subscriber[] mSnapshot = new Subscriber[0];
+
+        boolean mRegistered;
+        int mSamplingPeriodUs;
+        int mMaxReportLatencyUs;
+
+        long mEventCount;
+        long mWakeupCount;
+        long mLastEventTimeNs;
+
+        Mux(Sensor sensor) {
+            mSensor = sensor;
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            final long now = SystemClock.elapsedRealtimeNanos();
+            final boolean wakeup = now - mLastEventTimeNs > WAKEUP_GAP_NS;
+            mLastEventTimeNs = now;
+            mEventCount++;
+            if (wakeup) {
+                mWakeupCount++;
+            }
+            for (Subscriber subscriber : mSnapshot) {
+                subscriber.mEventCount++;
+                if (now - subscriber.mLastEventTimeNs > WAKEUP_GAP_NS) {
+                    subscriber.mWakeupCount++;
+                }
+                subscriber.mLastEventTimeNs = now;
+                if (subscriber.mHandler.getLooper() == mHandler.getLooper()) {
+                    subscriber.mListener.onSensorChanged(mSensor, event.values, event.timestamp);
+                } else {
+                    // Event is recycled by SensorManager once we return
+                    final float[] values = event.values.clone();
+                    final long timestamp = event.timestamp;
+                    subscriber.mHandler.post(() ->
+                            subscriber.mListener.onSensorChanged(mSensor, values, timestamp));
+                }
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+    }
+
+    private final Object mLock = new Object();
+
+    private final Handler mHandler;
+
+    private final ArrayMap<Sensor, Mux> mMuxes = new ArrayMap<>();
+
+    private SunSystemExService mSystemExService;
+    private SensorManager mSensorManager;
+
+    private SensorHub() {
+        mHandler = SystemExScheduler.getInstance().createLane(TAG);
+    }
+
+    public void initSystemExService(SunSystemExService service) {
+        mSystemExService = service;
+    }
+
+    /**
+     * Subscribe {@code listener} to {@code sensor}.
+     *
+     * @param name Name shown in dumpsys.
+     * @param samplingPeriodUs Sampling period, or one of SensorManager.SENSOR_DELAY_*.
+     * @param maxReportLatencyUs How long events may be held in FIFO,
+     *        {@link #LATENCY_REALTIME} for real-time delivery.
+     * @param handler Handler to deliver events on, null to deliver on the hub lane.
+     * @return Whether the sensor is registered.
+     */
+    public boolean subscribe(String name, Sensor sensor, int samplingPeriodUs,
+            int maxReportLatencyUs, Listener listener, Handler handler) {
+        if (sensor == null || listener == null) {
+            return false;
+        }
+        synchronized (mLock) {
+            Mux mux = mMuxes.get(sensor);
+            if (mux == null) {
+                mux = new Mux(sensor);
+                mMuxes.put(sensor, mux);
+            }
+            for (Subscriber subscriber : mux.mSubscribers) {
+                if (subscriber.mListener == listener) {
+                    return true;
+                }
+            }
+            mux.mSubscribers.add(new Subscriber(name, listener,
+                    handler != null ? handler : mHandler,
+                    toPeriodUs(samplingPeriodUs), maxReportLatencyUs));
+            logD("subscribe, " + name + " -> " + sensor.getStringType());
+            return updateMuxLocked(mux);
+        }
+    }
+
+    public void unsubscribe(Sensor sensor, Listener listener) {
+        if (sensor == null) {
+            return;
+        }
+        synchronized (mLock) {
+            final Mux mux = mMuxes.get(sensor);
+            if (mux == null) {
+                return;
+            }
+            for (int i = mux.mSubscribers.size() - 1; i >= 0; --i) {
+                final Subscriber subscriber = mux.mSubscribers.get(i);
+                if (subscriber.mListener == listener) {
+                    logD("unsubscribe, " + subscriber.mName + " -> " + sensor.getStringType());
+                    mux.mSubscribers.remove(i);
+                    updateMuxLocked(mux);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush FIFO of {@code sensor}, pending events are delivered to all subscribers.
+     */
+    public void flush(Sensor sensor) {
+        synchronized (mLock) {
+            final Mux mux = mMuxes.get(sensor);
+            if (mux != null && mux.mRegistered) {
+                mSensorManager.flush(mux);
+            }
+        }
+    }
+
+    private boolean updateMuxLocked(Mux mux) {
+        mux.mSnapshot = mux.mSubscribers.toArray(new Subscriber[0]);
+        if (mux.mSubscribers.isEmpty()) {
+            if (mux.mRegistered) {
+                getSensorManagerLocked().unregisterListener(mux);
+                mux.mRegistered = false;
+                logD("unregister " + mux.mSensor.getStringType());
+            }
+            return true;
+        }
+
+        int samplingPeriodUs = Integer.MAX_VALUE;
+        int maxReportLatencyUs = Integer.MAX_VALUE;
+        for (Subscriber subscriber : mux.mSubscribers) {
+            samplingPeriodUs = Math.min(samplingPeriodUs, subscriber.mSamplingPeriodUs);
+            maxReportLatencyUs = Math.min(maxReportLatencyUs, subscriber.mMaxReportLatencyUs);
+        }
+        if (mux.mSensor.getFifoMaxEventCount() == 0) {
+            // No FIFO, batching is not supported
+            maxReportLatencyUs = LATENCY_REALTIME;
+        }
+        if (mux.mRegistered && mux.mSamplingPeriodUs == samplingPeriodUs
+                && mux.mMaxReportLatencyUs == maxReportLatencyUs) {
+            return true;
+        }
+
+        final SensorManager sensorManager = getSensorManagerLocked();
+        if (mux.mRegistered) {
+            sensorManager.unregisterListener(mux);
+        }
+        mux.mRegistered = sensorManager.registerListener(mux, mux.mSensor,
+                samplingPeriodUs, maxReportLatencyUs, mHandler);
+        mux.mSamplingPeriodUs = samplingPeriodUs;
+        mux.mMaxReportLatencyUs = maxReportLatencyUs;
+        logD("register " + mux.mSensor.getStringType() + ", period=" + samplingPeriodUs
+                + "us, latency=" + maxReportLatencyUs + "us, registered=" + mux.mRegistered);
+        return mux.mRegistered;
+    }
+
+    private SensorManager getSensorManagerLocked() {
+        if (mSensorManager == null) {
+            mSensorManager = mSystemExService.getContext().getSystemService(SensorManager.class);
+        }
+        return mSensorManager;
+    }
+
+    private static int toPeriodUs(int rate) {
+        switch (rate) {
+            case SensorManager.SENSOR_DELAY_FASTEST:
+                return 0;
+            case SensorManager.SENSOR_DELAY_GAME:
+                return 20000;
+            case SensorManager.SENSOR_DELAY_UI:
+                return 66667;
+            case SensorManager.SENSOR_DELAY_NORMAL:
+                return 200000;
+            default:
+                return rate;
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        final String innerPrefix = prefix + "    ";
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (mLock) {
+            pw.println(prefix + TAG + ":");
+            for (Mux mux : mMuxes.values()) {
+                pw.println(prefix + "  " + mux.mSensor.getStringType()
+                        + (mux.mSensor.isWakeUpSensor() ? " (wakeup)" : "")
+                        + ": registered=" + mux.mRegistered
+                        + ", period=" + mux.mSamplingPeriodUs + "us"
+                        + ", latency=" + mux.mMaxReportLatencyUs + "us"
+                        + ", events=" + mux.mEventCount
+                        + ", wakeups=" + mux.mWakeupCount);
+                for (Subscriber subscriber : mux.mSubscribers) {
+                    final long duration = Math.max(now - subscriber.mSubscribeTime, 1L);
+                    pw.println(innerPrefix + subscriber.mName
+                            + ": period=" + subscriber.mSamplingPeriodUs + "us"
+                            + ", latency=" + subscriber.mMaxReportLatencyUs + "us"
+                            + ", events=" + subscriber.mEventCount
+                            + ", rate=" + String.format("%.2f", subscriber.mEventCount * 1000f / duration) + "/s"
+                            + ", wakeups=" + subscriber.mWakeupCount
+                            + ", subscribed=" + duration / 1000L + "s");
+                }
+            }
+        }
+    }
+
+    private static void logD(String msg) {
+        if (DEBUG_SENSOR) {
+            Slog.d(TAG, msg);
+        }
+    }
+}
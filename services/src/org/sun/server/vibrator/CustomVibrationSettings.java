@@ -76,7 +76,7 @@ public final class CustomVibrationSettings extends IOnlineConfigurable.Stub {
 
     private int mSettings;
     private boolean mForceEnableIMEHaptic;
-    private boolean mUseKeyboardEffect;
+    private volatile boolean mUseKeyboardEffect;
     private boolean mLowPowerDisableVibration;
 
     private static class InstanceHolder {
@@ -24,6 +24,7 @@ import static vendor.sun.hardware.vibratorExt.Effect.DURATION_STRENGTH_LEVEL10;
 import static vendor.sun.hardware.vibratorExt.Effect.KEYBOARD_PRESS;
 
 import android.os.CombinedVibration;
+import android.os.SystemClock;
 import android.os.VibrationAttributes;
 import android.os.VibrationEffect;
 import android.util.ArrayMap;
@@ -38,6 +39,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.sun.os.VibratorExtManager;
 import org.xmlpull.v1.XmlPullParser;
@@ -63,33 +68,28 @@ public class VibrationEffectAdapter {
     private static final String KEY_PACKAGE_NAME = "package";
     private static final String KEY_RINGTONE_DURATION = "ringtoneDuration";
 
+    private static final int DECISION_CACHE_SIZE = 64;
+
     // Convert all vibration with specific attribution to required effect
     private static final ArrayMap<VibrationAttributes, Integer> attributeToEffect;
 
     // Convert all vibration with specific usage to required effect
     private static final ArrayMap<Integer, Integer> usageToEffect;
 
-    // Convert specific duration vibration to prebaked vibration effect with specific id
-    private static final ArrayMap<String, ArrayMap<Long, Integer>> durationToEffectMap;
-
-    // Inputmethod apps that need to calculate level according to vibration duration
-    private static final ArrayMap<String, Long> inputmethodEnhanceMap;
-
-    // Duration for each ringtone effects
-    private static final ArrayMap<Integer, Long> ringtoneDurationMap;
-
-    // Calculator apps that will convert to keyboard press effect if enabled
-    private static final ArraySet<String> calculatorEnhanceSet;
-
     private static final VibratorExtManager sVibratorExtManager = VibratorExtManager.getInstance();
     private static final boolean sVibratorExtSupported = sVibratorExtManager.isSupported();
 
-    private static String sCachedIMEPackageName = "";
-    private static long sCachedIMEDuration = -1;
-    private static int sCachedIMEStrengthLevel = DURATION_STRENGTH_LEVEL1;
-
+    // Serializes config reloads only, getCustomEffect reads sConfig without lock
     private static final Object sLock = new Object();
 
+    private static volatile Config sConfig = new Config(new ArrayMap<>(),
+            new ArrayMap<>(), new ArrayMap<>(), new ArraySet<>());
+
+    private static final AtomicLong sCacheHitCount = new AtomicLong();
+    private static final AtomicLong sCacheMissCount = new AtomicLong();
+    private static final AtomicLong sTotalResolveTimeNs = new AtomicLong();
+    private static final AtomicLong sMaxResolveTimeNs = new AtomicLong();
+
     static {
         attributeToEffect = new ArrayMap<>();
         attributeToEffect.put(VIBRATION_ATTRIBUTES_PREVIEW_ALARM_CALL, DURATION_ALARM_CALL);
@@ -99,11 +99,67 @@ public class VibrationEffectAdapter {
         usageToEffect.put(USAGE_ALARM, DURATION_ALARM_CALL);
         usageToEffect.put(USAGE_NOTIFICATION, DURATION_NOTIFICATION);
         usageToEffect.put(USAGE_RINGTONE, DURATION_ALARM_CALL);
+    }
 
-        durationToEffectMap = new ArrayMap<>();
-        inputmethodEnhanceMap = new ArrayMap<>();
-        ringtoneDurationMap = new ArrayMap<>();
-        calculatorEnhanceSet = new ArraySet<>();
+    /**
+     * Effect maps loaded from config file. Never modified once published,
+     * a new instance is swapped in on every reload.
+     */
+    private static final class Config {
+        // Convert specific duration vibration to prebaked vibration effect with specific id
+        final ArrayMap<String, ArrayMap<Long, Integer>> durationToEffectMap;
+
+        // Inputmethod apps that need to calculate level according to vibration duration
+        final ArrayMap<String, Long> inputmethodEnhanceMap;
+
+        // Duration for each ringtone effects
+        final ArrayMap<Integer, Long> ringtoneDurationMap;
+
+        // Calculator apps that will convert to keyboard press effect if enabled
+        final ArraySet<String> calculatorEnhanceSet;
+
+        // Decisions resolved against this config, indexed by key hash
+        final AtomicReferenceArray<Decision> decisions =
+                new AtomicReferenceArray<>(DECISION_CACHE_SIZE);
+
+        Config(ArrayMap<String, ArrayMap<Long, Integer>> durationToEffectMap,
+                ArrayMap<String, Long> inputmethodEnhanceMap,
+                ArrayMap<Integer, Long> ringtoneDurationMap,
+                ArraySet<String> calculatorEnhanceSet) {
+            this.durationToEffectMap = durationToEffectMap;
+            this.inputmethodEnhanceMap = inputmethodEnhanceMap;
+            this.ringtoneDurationMap = ringtoneDurationMap;
+            this.calculatorEnhanceSet = calculatorEnhanceSet;
+        }
+    }
+
+    private static final class Decision {
+        final String packageName;
+        final VibrationAttributes attributes;
+        final long duration;
+        final boolean keyboardEffect;
+
+        final int effectId;
+        // Null to keep the requested effect
+        final CombinedVibration combinedEffect;
+
+        Decision(String packageName, VibrationAttributes attributes, long duration,
+                boolean keyboardEffect, int effectId, CombinedVibration combinedEffect) {
+            this.packageName = packageName;
+            this.attributes = attributes;
+            this.duration = duration;
+            this.keyboardEffect = keyboardEffect;
+            this.effectId = effectId;
+            this.combinedEffect = combinedEffect;
+        }
+
+        boolean matches(String packageName, VibrationAttributes attributes,
+                long duration, boolean keyboardEffect) {
+            return this.duration == duration
+                    && this.keyboardEffect == keyboardEffect
+                    && Objects.equals(this.packageName, packageName)
+                    && Objects.equals(this.attributes, attributes);
+        }
     }
 
     private static Pair<Integer, Long> getConfigInfo(String path) {
@@ -149,10 +205,10 @@ public class VibrationEffectAdapter {
                 return;
             }
 
-            durationToEffectMap.clear();
-            inputmethodEnhanceMap.clear();
-            ringtoneDurationMap.clear();
-            calculatorEnhanceSet.clear();
+            final ArrayMap<String, ArrayMap<Long, Integer>> durationToEffectMap = new ArrayMap<>();
+            final ArrayMap<String, Long> inputmethodEnhanceMap = new ArrayMap<>();
+            final ArrayMap<Integer, Long> ringtoneDurationMap = new ArrayMap<>();
+            final ArraySet<String> calculatorEnhanceSet = new ArraySet<>();
 
             String packageName;
             long maxDuration;
@@ -214,95 +270,107 @@ public class VibrationEffectAdapter {
             } catch (Exception e) {
                 e.printStackTrace();
             }
+
+            // Publish at once, decision cache of the old config is dropped with it
+            sConfig = new Config(durationToEffectMap, inputmethodEnhanceMap,
+                    ringtoneDurationMap, calculatorEnhanceSet);
         }
     }
 
     public static CustomEffect getCustomEffect(VibrationAttributes attributes, String opPkg,
             CombinedVibration effect, String reason) {
-        synchronized (sLock) {
-            CustomEffect ret = new CustomEffect(effect, -1, inputmethodEnhanceMap.containsKey(opPkg));
-            if (!sVibratorExtSupported) {
-                return ret;
-            }
-
-            if (isRichTapEffect(effect, reason)) {
-                return ret;
-            }
-
-            final long duration = effect.getDuration();
+        final Config config = sConfig;
+        final boolean isIME = config.inputmethodEnhanceMap.containsKey(opPkg);
+        if (!sVibratorExtSupported) {
+            return new CustomEffect(effect, -1, isIME);
+        }
 
-            if (DEBUG_VIBRATION_ADAPTER) {
-                StringBuilder sb = new StringBuilder();
-                sb.append("packageName: ").append(opPkg)
-                        .append(", effect: ").append(effect.toString())
-                        .append(", attributes: ").append(attributes.toString())
-                        .append(", duration: ").append("" + duration);
-                if (reason != null) {
-                    sb.append(", reason: ").append(reason);
-                }
-                Log.d(TAG, sb.toString());
-            }
+        if (isRichTapEffect(effect, reason)) {
+            return new CustomEffect(effect, -1, isIME);
+        }
 
-            if (duration >= RTP_START_DURATION_RINGTONE &&
-                    duration <= RTP_END_DURATION_RINGTONE &&
-                    isRingtone(attributes)) {
-                ret.customEffectId = (int) (duration - RTP_START_DURATION_RINGTONE);
-                if (ringtoneDurationMap.containsKey(ret.customEffectId)) {
-                    ret.combinedEffect = obtainRtpRingtoneVibration(ret.customEffectId, isPreviewRingtone(attributes));
-                }
-                return ret;
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+        final long duration = effect.getDuration();
+
+        if (DEBUG_VIBRATION_ADAPTER) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("packageName: ").append(opPkg)
+                    .append(", effect: ").append(effect.toString())
+                    .append(", attributes: ").append(attributes.toString())
+                    .append(", duration: ").append("" + duration);
+            if (reason != null) {
+                sb.append(", reason: ").append(reason);
             }
+            Log.d(TAG, sb.toString());
+        }
 
-            if (attributeToEffect.containsKey(attributes)) {
-                ret.customEffectId = attributeToEffect.get(attributes);
-                return ret;
-            }
+        final boolean keyboardEffect = CustomVibrationSettings.getInstance().isKeyboardEffectEnabled();
+        final int slot = getDecisionSlot(opPkg, attributes, duration, keyboardEffect);
+        Decision decision = config.decisions.get(slot);
+        if (decision != null && decision.matches(opPkg, attributes, duration, keyboardEffect)) {
+            sCacheHitCount.incrementAndGet();
+        } else {
+            sCacheMissCount.incrementAndGet();
+            decision = resolve(config, attributes, opPkg, duration, keyboardEffect, isIME);
+            config.decisions.set(slot, decision);
+        }
 
-            if (ret.isIME) {
-                if (CustomVibrationSettings.getInstance().isKeyboardEffectEnabled()) {
-                    ret.combinedEffect = MOCK_EFFECT_CLICK;
-                    ret.customEffectId = KEYBOARD_PRESS;
-                    return ret;
-                } else if (duration > 0) {
-                    ret.combinedEffect = obtainDurationVibration(duration);
-                    ret.customEffectId = calculateIMEHapticLevel(opPkg, duration);
-                    return ret;
-                }
-            }
+        final long resolveTime = SystemClock.elapsedRealtimeNanos() - startTime;
+        sTotalResolveTimeNs.addAndGet(resolveTime);
+        sMaxResolveTimeNs.accumulateAndGet(resolveTime, Math::max);
 
-            if (calculatorEnhanceSet.contains(opPkg)) {
-                if (CustomVibrationSettings.getInstance().isKeyboardEffectEnabled()) {
-                    ret.combinedEffect = MOCK_EFFECT_CLICK;
-                    ret.customEffectId = KEYBOARD_PRESS;
-                    return ret;
-                }
-            }
+        return new CustomEffect(decision.combinedEffect != null ? decision.combinedEffect : effect,
+                decision.effectId, isIME);
+    }
 
-            if (duration <= 0) {
-                return ret;
+    private static Decision resolve(Config config, VibrationAttributes attributes, String opPkg,
+            long duration, boolean keyboardEffect, boolean isIME) {
+        int effectId = -1;
+        CombinedVibration combinedEffect = null;
+
+        if (duration >= RTP_START_DURATION_RINGTONE &&
+                duration <= RTP_END_DURATION_RINGTONE &&
+                isRingtone(attributes)) {
+            effectId = (int) (duration - RTP_START_DURATION_RINGTONE);
+            if (config.ringtoneDurationMap.containsKey(effectId)) {
+                combinedEffect = obtainRtpRingtoneVibration(config, effectId, isPreviewRingtone(attributes));
             }
-
-            if (usageToEffect.containsKey(attributes.getUsage())) {
-                ret.customEffectId = usageToEffect.get(attributes.getUsage());
-                return ret;
+        } else if (attributeToEffect.containsKey(attributes)) {
+            effectId = attributeToEffect.get(attributes);
+        } else if (isIME && keyboardEffect) {
+            combinedEffect = MOCK_EFFECT_CLICK;
+            effectId = KEYBOARD_PRESS;
+        } else if (isIME && duration > 0) {
+            combinedEffect = obtainDurationVibration(duration);
+            effectId = calculateIMEHapticLevel(config, opPkg, duration);
+        } else if (config.calculatorEnhanceSet.contains(opPkg) && keyboardEffect) {
+            combinedEffect = MOCK_EFFECT_CLICK;
+            effectId = KEYBOARD_PRESS;
+        } else if (duration <= 0) {
+            // Keep requested effect
+        } else if (usageToEffect.containsKey(attributes.getUsage())) {
+            effectId = usageToEffect.get(attributes.getUsage());
+        } else if (config.durationToEffectMap.containsKey(opPkg)) {
+            effectId = config.durationToEffectMap.get(opPkg).getOrDefault(duration, -1);
+            if (effectId != -1) {
+                combinedEffect = MOCK_EFFECT_CLICK;
             }
+        }
 
-            if (durationToEffectMap.containsKey(opPkg)) {
-                ret.customEffectId = durationToEffectMap.get(opPkg).getOrDefault(duration, -1);
-                if (ret.customEffectId != -1) {
-                    ret.combinedEffect = MOCK_EFFECT_CLICK;
-                    return ret;
-                }
-            }
+        return new Decision(opPkg, attributes, duration, keyboardEffect, effectId, combinedEffect);
+    }
 
-            return ret;
-        }
+    private static int getDecisionSlot(String opPkg, VibrationAttributes attributes,
+            long duration, boolean keyboardEffect) {
+        int hash = Objects.hashCode(opPkg);
+        hash = 31 * hash + Objects.hashCode(attributes);
+        hash = 31 * hash + Long.hashCode(duration);
+        hash = 31 * hash + (keyboardEffect ? 1 : 0);
+        return (hash & 0x7fffffff) % DECISION_CACHE_SIZE;
     }
 
     public static boolean isIMEPackage(String opPkg) {
-        synchronized (sLock) {
-            return inputmethodEnhanceMap.containsKey(opPkg);
-        }
+        return sConfig.inputmethodEnhanceMap.containsKey(opPkg);
     }
 
     private static boolean isPreviewRingtone(VibrationAttributes attributes) {
@@ -322,18 +390,11 @@ public class VibrationEffectAdapter {
         return RichTapVibratorService.checkIfRichTapEffect(vibrEffect, reason);
     }
 
-    private static int calculateIMEHapticLevel(String opPkg, long duration) {
-        if (sCachedIMEPackageName.equals(opPkg) && sCachedIMEDuration == duration) {
-            return sCachedIMEStrengthLevel;
-        }
-        final long maxDuration = inputmethodEnhanceMap.get(opPkg);
+    private static int calculateIMEHapticLevel(Config config, String opPkg, long duration) {
+        final long maxDuration = config.inputmethodEnhanceMap.get(opPkg);
         final float interval = (float) maxDuration / 10;
         final int level = (int) (duration / interval);
-        final int ret = Math.min(DURATION_STRENGTH_LEVEL1 + level, DURATION_STRENGTH_LEVEL10);
-        sCachedIMEPackageName = opPkg;
-        sCachedIMEDuration = duration;
-        sCachedIMEStrengthLevel = ret;
-        return ret;
+        return Math.min(DURATION_STRENGTH_LEVEL1 + level, DURATION_STRENGTH_LEVEL10);
     }
 
     private static CombinedVibration obtainDurationVibration(long duration) {
@@ -341,15 +402,28 @@ public class VibrationEffectAdapter {
                 VibrationEffect.createOneShot(duration, VibrationEffect.DEFAULT_AMPLITUDE));
     }
 
-    private static CombinedVibration obtainRtpRingtoneVibration(int effectId, boolean preview) {
+    private static CombinedVibration obtainRtpRingtoneVibration(Config config, int effectId,
+            boolean preview) {
+        final long duration = config.ringtoneDurationMap.get(effectId);
         if (preview) {
-            return obtainDurationVibration(ringtoneDurationMap.get(effectId));
+            return obtainDurationVibration(duration);
         }
         return CombinedVibration.createParallel(
-                VibrationEffect.createWaveform(new long[] {0, ringtoneDurationMap.get(effectId), RTP_RINGTONE_INTERVAL},
+                VibrationEffect.createWaveform(new long[] {0, duration, RTP_RINGTONE_INTERVAL},
                 new int[] {0, 255, 0}, 0));
     }
 
+    public static void dump(PrintWriter pw, String prefix) {
+        final long hit = sCacheHitCount.get();
+        final long miss = sCacheMissCount.get();
+        final long total = hit + miss;
+        pw.println(prefix + TAG + ":");
+        pw.println(prefix + "  decisionCache: hit=" + hit + ", miss=" + miss
+                + ", hitRate=" + (total > 0 ? hit * 100 / total : 0) + "%");
+        pw.println(prefix + "  resolveTime: avg=" + (total > 0 ? sTotalResolveTimeNs.get() / total : 0)
+                + "ns, max=" + sMaxResolveTimeNs.get() + "ns");
+    }
+
     public static class CustomEffect {
         public CombinedVibration combinedEffect;
         public int customEffectId;
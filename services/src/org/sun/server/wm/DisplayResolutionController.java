@@ -5,7 +5,6 @@
 
 package org.sun.server.wm;
 
-import static android.os.Process.THREAD_PRIORITY_DEFAULT;
 import static android.view.Display.DEFAULT_DISPLAY;
 
 import static org.sun.content.ContextExt.DISPLAY_RESOLUTION_MANAGER_SERVICE;
@@ -25,7 +24,6 @@ import android.content.om.IOverlayManager;
 import android.graphics.Point;
 import android.hardware.display.DisplayManager;
 import android.os.Handler;
-import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
@@ -39,13 +37,14 @@ import android.view.Display;
 import com.android.internal.R;
 import com.android.internal.util.sun.CustomUtils;
 
-import com.android.server.ServiceThread;
 import com.android.server.wm.WindowManagerService;
 
 import java.util.ArrayList;
 import java.util.Set;
 
 import org.sun.server.SunSystemExService;
+import org.sun.server.SystemExListenerRegistry;
+import org.sun.server.SystemExScheduler;
 import org.sun.view.DisplayResolutionManager;
 import org.sun.view.IDisplayResolutionListener;
 import org.sun.view.IDisplayResolutionManagerService;
@@ -57,8 +56,9 @@ public class DisplayResolutionController {
     private static final String PROP_SCALE_BOOTANIMATION =
             "persist.sys.sun.bootanimation.scale";
 
+    private static final int CHANNEL_RESOLUTION = 0;
+
     private final Handler mHandler;
-    private final ServiceThread mServiceThread;
 
     private ContentResolver mContentResolver;
     private Context mContext;
@@ -66,8 +66,6 @@ public class DisplayResolutionController {
 
     private final ArrayList<String> mFhdOverlays = new ArrayList<>();
 
-    private final Object mListenerLock = new Object();
-
     private static class InstanceHolder {
         private static DisplayResolutionController INSTANCE = new DisplayResolutionController();
     }
@@ -76,18 +74,7 @@ public class DisplayResolutionController {
         return InstanceHolder.INSTANCE;
     }
 
-    private final class DisplayResolutionListener {
-        final IDisplayResolutionListener mListener;
-        final IBinder.DeathRecipient mDeathRecipient;
-
-        DisplayResolutionListener(IDisplayResolutionListener listener,
-                IBinder.DeathRecipient deathRecipient) {
-            mListener = listener;
-            mDeathRecipient = deathRecipient;
-        }
-    }
-
-    private final ArrayList<DisplayResolutionListener> mListeners = new ArrayList<>();
+    private final SystemExListenerRegistry<IDisplayResolutionListener> mListeners;
 
     private final class DisplayResolutionManagerService extends IDisplayResolutionManagerService.Stub {
         @Override
@@ -105,58 +92,14 @@ public class DisplayResolutionController {
 
         @Override
         public boolean registerDisplayResolutionListener(IDisplayResolutionListener listener) {
-            final IBinder listenerBinder = listener.asBinder();
-            IBinder.DeathRecipient dr = new IBinder.DeathRecipient() {
-                @Override
-                public void binderDied() {
-                    synchronized (mListenerLock) {
-                        for (int i = 0; i < mListeners.size(); i++) {
-                            if (listenerBinder == mListeners.get(i).mListener.asBinder()) {
-                                DisplayResolutionListener removed = mListeners.remove(i);
-                                IBinder binder = removed.mListener.asBinder();
-                                if (binder != null) {
-                                    binder.unlinkToDeath(this, 0);
-                                }
-                                i--;
-                            }
-                        }
-                    }
-                }
-            };
-
-            synchronized (mListenerLock) {
-                try {
-                    listener.asBinder().linkToDeath(dr, 0);
-                    mListeners.add(new DisplayResolutionListener(listener, dr));
-                    updateHeightIfNeeded();
-                    mHandler.post(() -> notifyDisplayResolutionChanged(listener));
-                } catch (RemoteException e) {
-                    // Client died, no cleanup needed.
-                    return false;
-                }
-                return true;
-            }
+            updateHeightIfNeeded();
+            return mListeners.register(listener,
+                    l -> l.onDisplayResolutionChanged(mWidth, mHeight));
         }
 
         @Override
         public boolean unregisterDisplayResolutionListener(IDisplayResolutionListener listener) {
-            boolean found = false;
-            final IBinder listenerBinder = listener.asBinder();
-            synchronized (mListenerLock) {
-                for (int i = 0; i < mListeners.size(); i++) {
-                    found = true;
-                    DisplayResolutionListener drListener = mListeners.get(i);
-                    if (listenerBinder == drListener.mListener.asBinder()) {
-                        DisplayResolutionListener removed = mListeners.remove(i);
-                        IBinder binder = removed.mListener.asBinder();
-                        if (binder != null) {
-                            binder.unlinkToDeath(removed.mDeathRecipient, 0);
-                        }
-                        i--;
-                    }
-                }
-            }
-            return found;
+            return mListeners.unregister(listener);
         }
     }
 
@@ -169,9 +112,8 @@ public class DisplayResolutionController {
     private int mHeight = -1;
 
     private DisplayResolutionController() {
-        mServiceThread = new ServiceThread(TAG, THREAD_PRIORITY_DEFAULT, false);
-        mServiceThread.start();
-        mHandler = new Handler(mServiceThread.getLooper());
+        mHandler = SystemExScheduler.getInstance().createLane(TAG);
+        mListeners = new SystemExListenerRegistry<>(TAG, mHandler);
     }
 
     public void init(Context context, WindowManagerService wms) {
@@ -257,22 +199,10 @@ public class DisplayResolutionController {
 
     private void notifyDisplayResolutionChanged() {
         updateHeightIfNeeded();
-        logD("notifyDisplayResolutionChanged, resolution=" + mWidth + "x" + mHeight);
-        mHandler.post(() -> {
-            synchronized (mListenerLock) {
-                for (DisplayResolutionListener listener : mListeners) {
-                    notifyDisplayResolutionChanged(listener.mListener);
-                }
-            }
-        });
-    }
-
-    private void notifyDisplayResolutionChanged(IDisplayResolutionListener listener) {
-        try {
-            listener.onDisplayResolutionChanged(mWidth, mHeight);
-        } catch (RemoteException | RuntimeException e) {
-            logE("Failed to notify display resolution changed");
-        }
+        final int width = mWidth;
+        final int height = mHeight;
+        logD("notifyDisplayResolutionChanged, resolution=" + width + "x" + height);
+        mListeners.publish(CHANNEL_RESOLUTION, l -> l.onDisplayResolutionChanged(width, height));
     }
 
     private void applyOverlay(boolean enabled) {
@@ -5,8 +5,6 @@
 
 package org.sun.server.wm;
 
-import static android.os.Process.THREAD_PRIORITY_DEFAULT;
-
 import static org.sun.content.ContextExt.ROTATE_MANAGER_SERVICE;
 import static org.sun.os.DebugConstants.DEBUG_DISPLAY_ROTATE;
 import static org.sun.os.RotateManager.ROTATE_FOLLOW_SYSTEM;
@@ -18,35 +16,30 @@ import static org.sun.provider.SettingsExt.System.AUTO_ROTATE_CONFIG_CUSTOM;
 
 import android.content.Context;
 import android.os.Handler;
-import android.os.IBinder;
-import android.os.RemoteException;
 import android.os.UserHandle;
-import android.provider.Settings;
-import android.text.TextUtils;
-import android.util.ArrayMap;
 import android.util.Slog;
 import android.view.Surface;
 
 import com.android.internal.view.RotationPolicy;
 
-import com.android.server.ServiceThread;
-
-import java.util.ArrayList;
-
 import org.sun.display.DisplayFeatureManager;
 import org.sun.os.IRotateConfigListener;
 import org.sun.os.IRotateManagerService;
+import org.sun.server.PerAppConfigStore;
 import org.sun.server.SunSystemExService;
+import org.sun.server.SystemExEventBus;
+import org.sun.server.SystemExListenerRegistry;
+import org.sun.server.SystemExScheduler;
 
-public class DisplayRotationController {
+public class DisplayRotationController implements SystemExEventBus.Subscriber {
 
     private static final String TAG = "DisplayRotationController";
 
+    private static final int CHANNEL_ROTATE_CONFIG = 0;
+
     private final Handler mHandler;
-    private final ServiceThread mServiceThread;
 
     private final Object mConfigLock = new Object();
-    private final Object mListenerLock = new Object();
 
     private final DisplayFeatureManager mDisplayFeatureManager =
             DisplayFeatureManager.getInstance();
@@ -61,19 +54,9 @@ public class DisplayRotationController {
         return InstanceHolder.INSTANCE;
     }
 
-    private final class RotateConfigListener {
-        final IRotateConfigListener mListener;
-        final IBinder.DeathRecipient mDeathRecipient;
+    private final SystemExListenerRegistry<IRotateConfigListener> mListeners;
 
-        RotateConfigListener(IRotateConfigListener listener,
-                IBinder.DeathRecipient deathRecipient) {
-            mListener = listener;
-            mDeathRecipient = deathRecipient;
-        }
-    }
-
-    private final ArrayList<RotateConfigListener> mListeners = new ArrayList<>();
-    private final ArrayMap<String, Integer> mAppRotateConfigMap = new ArrayMap<>();
+    private PerAppConfigStore mAppRotateConfigs;
 
     private boolean mRotateLockedSystem = false;
     private int mRotateConfig = ROTATE_FOLLOW_SYSTEM;
@@ -82,7 +65,7 @@ public class DisplayRotationController {
         @Override
         public int getRotateConfigForPackage(String packageName) {
             synchronized (mConfigLock) {
-                return mAppRotateConfigMap.getOrDefault(packageName, ROTATE_FOLLOW_SYSTEM);
+                return mAppRotateConfigs.get(packageName, ROTATE_FOLLOW_SYSTEM);
             }
         }
 
@@ -92,14 +75,14 @@ public class DisplayRotationController {
                 if (config != ROTATE_FOLLOW_SYSTEM) {
                     logD("setRotateConfigForPackage, packageName: "
                             + packageName + ", config: " + configToString(config));
-                    mAppRotateConfigMap.put(packageName, config);
-                } else if (mAppRotateConfigMap.containsKey(packageName)) {
+                    mAppRotateConfigs.put(packageName, config);
+                } else if (mAppRotateConfigs.remove(packageName)) {
                     logD("unsetRotateConfigForPackage, packageName: " + packageName);
-                    mAppRotateConfigMap.remove(packageName);
                 }
                 mHandler.post(() -> {
-                    saveConfigIntoSettingsLocked();
-                    updateAutoRotateLocked(mSystemExService.getTopFullscreenPackage());
+                    synchronized (mConfigLock) {
+                        updateAutoRotateLocked(mSystemExService.getTopFullscreenPackage());
+                    }
                 });
             }
         }
@@ -114,119 +97,78 @@ public class DisplayRotationController {
 
         @Override
         public boolean registerRotateConfigListener(IRotateConfigListener listener) {
-            final IBinder listenerBinder = listener.asBinder();
-            IBinder.DeathRecipient dr = new IBinder.DeathRecipient() {
-                @Override
-                public void binderDied() {
-                    synchronized (mListenerLock) {
-                        for (int i = 0; i < mListeners.size(); i++) {
-                            if (listenerBinder == mListeners.get(i).mListener.asBinder()) {
-                                RotateConfigListener removed = mListeners.remove(i);
-                                IBinder binder = removed.mListener.asBinder();
-                                if (binder != null) {
-                                    binder.unlinkToDeath(this, 0);
-                                }
-                                i--;
-                            }
-                        }
-                    }
-                }
-            };
-
-            synchronized (mListenerLock) {
-                try {
-                    listener.asBinder().linkToDeath(dr, 0);
-                    mListeners.add(new RotateConfigListener(listener, dr));
-                    mHandler.post(() -> {
-                        synchronized (mConfigLock) {
-                            notifyRotateConfigChanged(listener);
-                        }
-                    });
-                } catch (RemoteException e) {
-                    // Client died, no cleanup needed.
-                    return false;
+            return mListeners.register(listener, l -> {
+                final int config;
+                synchronized (mConfigLock) {
+                    config = mRotateConfig;
                 }
-                return true;
-            }
+                l.onRotateConfigChanged(config);
+            });
         }
 
         @Override
         public boolean unregisterRotateConfigListener(IRotateConfigListener listener) {
-            boolean found = false;
-            final IBinder listenerBinder = listener.asBinder();
-            synchronized (mListenerLock) {
-                for (int i = 0; i < mListeners.size(); i++) {
-                    found = true;
-                    RotateConfigListener rotateConfigListener = mListeners.get(i);
-                    if (listenerBinder == rotateConfigListener.mListener.asBinder()) {
-                        RotateConfigListener removed = mListeners.remove(i);
-                        IBinder binder = removed.mListener.asBinder();
-                        if (binder != null) {
-                            binder.unlinkToDeath(removed.mDeathRecipient, 0);
-                        }
-                        i--;
-                    }
-                }
-            }
-            return found;
+            return mListeners.unregister(listener);
         }
     }
 
     private DisplayRotationController() {
-        mServiceThread = new ServiceThread(TAG, THREAD_PRIORITY_DEFAULT, false);
-        mServiceThread.start();
-        mHandler = new Handler(mServiceThread.getLooper());
+        mHandler = SystemExScheduler.getInstance().createLane(TAG);
+        mListeners = new SystemExListenerRegistry<>(TAG, mHandler);
     }
 
     public void initSystemExService(SunSystemExService service) {
         mSystemExService = service;
+        mAppRotateConfigs = new PerAppConfigStore(service.getContentResolver(),
+                AUTO_ROTATE_CONFIG_CUSTOM, true, config -> isConfigValid(config), mHandler);
+        mAppRotateConfigs.setOnExternalChangeListener(() -> {
+            synchronized (mConfigLock) {
+                updateAutoRotateLocked(mSystemExService.getTopFullscreenPackage());
+            }
+        });
         mSystemExService.publishBinderService(ROTATE_MANAGER_SERVICE, new RotateManagerService());
+        mSystemExService.getEventBus().subscribe(TAG, mHandler, this);
     }
 
     public void onSystemServicesReady() {
         mHandler.post(() -> {
             synchronized (mConfigLock) {
                 logD("onSystemServicesReady");
-                parseSettingsIntoMapLocked(UserHandle.USER_CURRENT);
+                mAppRotateConfigs.load(UserHandle.USER_CURRENT);
                 mRotateLockedSystem = RotationPolicy.isRotationLocked(mSystemExService.getContext());
             }
         });
     }
 
+    @Override
     public void onUserSwitching(int newUserId) {
-        mHandler.post(() -> {
-            synchronized (mConfigLock) {
-                logD("onUserSwitching, newUserId: " + newUserId);
-                parseSettingsIntoMapLocked(newUserId);
-                updateAutoRotateLocked(mSystemExService.getTopFullscreenPackage());
-            }
-        });
+        synchronized (mConfigLock) {
+            logD("onUserSwitching, newUserId: " + newUserId);
+            mAppRotateConfigs.load(newUserId);
+            updateAutoRotateLocked(mSystemExService.getTopFullscreenPackage());
+        }
     }
 
+    @Override
     public void onPackageRemoved(String packageName) {
-        mHandler.post(() -> {
-            synchronized (mConfigLock) {
-                logD("onPackageRemoved, packageName: " + packageName);
-                if (mAppRotateConfigMap.containsKey(packageName)) {
-                    logD("unsetRotateConfigForPackage, packageName: " + packageName);
-                    mAppRotateConfigMap.remove(packageName);
-                    saveConfigIntoSettingsLocked();
-                    updateAutoRotateLocked(mSystemExService.getTopFullscreenPackage());
-                }
+        synchronized (mConfigLock) {
+            logD("onPackageRemoved, packageName: " + packageName);
+            if (mAppRotateConfigs.remove(packageName)) {
+                logD("unsetRotateConfigForPackage, packageName: " + packageName);
+                updateAutoRotateLocked(mSystemExService.getTopFullscreenPackage());
             }
-        });
+        }
     }
 
+    @Override
     public void onScreenOff() {
-        mHandler.post(() -> {
-            synchronized (mConfigLock) {
-                if (mRotateConfig != ROTATE_FOLLOW_SYSTEM) {
-                    logD("onScreenOff, restore auto rotate");
-                    mRotateConfig = ROTATE_FOLLOW_SYSTEM;
-                    setAutoRotateLocked(false);
-                }
+        synchronized (mConfigLock) {
+            if (mRotateConfig != ROTATE_FOLLOW_SYSTEM) {
+                logD("onScreenOff, restore auto rotate");
+                mRotateConfig = ROTATE_FOLLOW_SYSTEM;
+                setAutoRotateLocked(false);
             }
-        });
+        }
     }
 
     public void onShutdown() {
@@ -258,18 +200,18 @@ public class DisplayRotationController {
         });
     }
 
-    public void onTopFullscreenPackageChanged(String packageName) {
-        mHandler.post(() -> {
-            synchronized (mConfigLock) {
-                updateAutoRotateLocked(packageName);
-            }
-        });
+    @Override
+    public void onTopFullscreenPackageChanged(String packageName, int taskId) {
+        synchronized (mConfigLock) {
+            updateAutoRotateLocked(packageName);
+        }
     }
 
     public void updateAutoRotateLocked(String packageName) {
-        if (mAppRotateConfigMap.containsKey(packageName)) {
+        final int appConfig = mAppRotateConfigs.get(packageName, -1);
+        if (appConfig != -1) {
             final boolean updateSystem = mRotateConfig == ROTATE_FOLLOW_SYSTEM;
-            mRotateConfig = mAppRotateConfigMap.get(packageName);
+            mRotateConfig = appConfig;
             setAutoRotateLocked(updateSystem);
             logD("updateAutoRotateLocked, config: " + configToString(mRotateConfig) + ", package: " + packageName);
         } else if (mRotateConfig != ROTATE_FOLLOW_SYSTEM) {
@@ -292,56 +234,9 @@ public class DisplayRotationController {
     }
 
     private void notifyRotateConfigChanged() {
-        synchronized (mListenerLock) {
-            logD("notifyRotateConfigChanged, config: " + configToString(mRotateConfig));
-            for (RotateConfigListener listener : mListeners) {
-                notifyRotateConfigChanged(listener.mListener);
-            }
-        }
-    }
-
-    private void notifyRotateConfigChanged(IRotateConfigListener listener) {
-        try {
-            listener.onRotateConfigChanged(mRotateConfig);
-        } catch (RemoteException | RuntimeException e) {
-            logE("Failed to notify rotate config changed");
-        }
-    }
-
-    private void parseSettingsIntoMapLocked(int userId) {
-        mAppRotateConfigMap.clear();
-        final String settings = Settings.System.getStringForUser(mSystemExService.getContentResolver(),
-                AUTO_ROTATE_CONFIG_CUSTOM, userId);
-        if (TextUtils.isEmpty(settings)) {
-            return;
-        }
-        final String[] configs = settings.split(";");
-        for (String config : configs) {
-            final String[] splited = config.split(",");
-            if (splited.length != 2) {
-                continue;
-            }
-            int mode = -1;
-            try {
-                mode = Integer.parseInt(splited[1]);
-            } catch (NumberFormatException e) {}
-            if (isConfigValid(mode)) {
-                mAppRotateConfigMap.put(splited[0], mode);
-                logD("parseSettingsIntoMapLocked, added packageName: "
-                        + splited[0] + ", config: " + configToString(mode));
-            }
-        }
-    }
-
-    private void saveConfigIntoSettingsLocked() {
-        StringBuilder sb = new StringBuilder();
-        for (String app : mAppRotateConfigMap.keySet()) {
-            sb.append(app).append(",");
-            sb.append(String.valueOf(mAppRotateConfigMap.get(app))).append(";");
-        }
-        Settings.System.putStringForUser(mSystemExService.getContentResolver(),
-                AUTO_ROTATE_CONFIG_CUSTOM, sb.toString(), UserHandle.USER_CURRENT);
-        logD("saveConfigIntoSettingsLocked, config: " + sb.toString());
+        final int config = mRotateConfig;
+        logD("notifyRotateConfigChanged, config: " + configToString(config));
+        mListeners.publish(CHANNEL_ROTATE_CONFIG, l -> l.onRotateConfigChanged(config));
     }
 
     private static void logD(String msg) {
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2024 The Nameless-AOSP Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.android.server.vibrator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.test.TestLooper;
+
+import androidx.test.filters.SmallTest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.InOrder;
+
+import vendor.aac.hardware.richtap.vibrator.IRichtapCallback;
+import vendor.aac.hardware.richtap.vibrator.IRichtapVibrator;
+
+@SmallTest
+@RunWith(JUnit4.class)
+public class RichTapDispatcherTest {
+
+    private final IRichtapVibrator mService = mock(IRichtapVibrator.class);
+    private final IRichtapCallback mCallback = mock(IRichtapCallback.class);
+
+    private TestLooper mTestLooper;
+    private RichTapDispatcher mDispatcher;
+
+    private HandlerThread mThread;
+
+    @Before
+    public void setUp() {
+        mTestLooper = new TestLooper();
+        mDispatcher = new RichTapDispatcher(() -> mService, new Handler(mTestLooper.getLooper()));
+    }
+
+    @After
+    public void tearDown() {
+        if (mThread != null) {
+            mThread.quitSafely();
+        }
+    }
+
+    @Test
+    public void heParamUpdates_mergedIntoPendingUpdate() throws Exception {
+        mDispatcher.enqueueHeParam(10, -1, -1, mCallback);
+        mDispatcher.enqueueHeParam(-1, 200, -1, mCallback);
+        mDispatcher.enqueueHeParam(20, -1, 30, mCallback);
+        mTestLooper.dispatchAll();
+
+        verify(mService, times(1)).performHeParam(anyInt(), anyInt(), anyInt(), any());
+        verify(mService).performHeParam(20, 200, 30, mCallback);
+    }
+
+    @Test
+    public void heParamUpdates_notMergedAcrossOtherCalls() throws Exception {
+        mDispatcher.enqueueHeParam(10, -1, -1, mCallback);
+        mDispatcher.enqueueEffect("on", service -> service.on(100, mCallback));
+        mDispatcher.enqueueHeParam(20, -1, -1, mCallback);
+        mTestLooper.dispatchAll();
+
+        final InOrder inOrder = inOrder(mService);
+        inOrder.verify(mService).performHeParam(10, -1, -1, mCallback);
+        inOrder.verify(mService).on(100, mCallback);
+        inOrder.verify(mService).performHeParam(20, -1, -1, mCallback);
+    }
+
+    @Test
+    public void amplitudeUpdates_latestReplacesPending() throws Exception {
+        mDispatcher.enqueueAmplitude(service -> service.setAmplitude(1, mCallback));
+        mDispatcher.enqueueAmplitude(service -> service.setAmplitude(2, mCallback));
+        mTestLooper.dispatchAll();
+
+        verify(mService, never()).setAmplitude(eq(1), any());
+        verify(mService).setAmplitude(2, mCallback);
+    }
+
+    @Test
+    public void stop_cancelsQueuedCalls() throws Exception {
+        mDispatcher.enqueueEffect("on", service -> service.on(100, mCallback));
+        mDispatcher.enqueueHeParam(10, -1, -1, mCallback);
+        mDispatcher.enqueueStop("off", service -> service.off(mCallback));
+        mTestLooper.dispatchAll();
+
+        verify(mService, never()).on(anyInt(), any());
+        verify(mService, never()).performHeParam(anyInt(), anyInt(), anyInt(), any());
+        verify(mService).off(mCallback);
+    }
+
+    @Test
+    public void fullQueue_dropsOldestCall() throws Exception {
+        for (int i = 0; i <= 32; i++) {
+            final int millis = i;
+            mDispatcher.enqueueEffect("on", service -> service.on(millis, mCallback));
+        }
+        mTestLooper.dispatchAll();
+
+        verify(mService, never()).on(eq(0), any());
+        verify(mService).on(1, mCallback);
+        verify(mService).on(32, mCallback);
+    }
+
+    @Test
+    public void configCall_survivesStopAndFullQueue() throws Exception {
+        final int[] param = new int[] { 0x01, 1 };
+        mDispatcher.enqueueConfig("setHapticParam",
+                service -> service.setHapticParam(param, param.length, mCallback));
+        mDispatcher.enqueueEffect("on", service -> service.on(100, mCallback));
+        mDispatcher.enqueueStop("off", service -> service.off(mCallback));
+        for (int i = 0; i < 32; i++) {
+            final int millis = i;
+            mDispatcher.enqueueEffect("on", service -> service.on(millis, mCallback));
+        }
+        mTestLooper.dispatchAll();
+
+        final InOrder inOrder = inOrder(mService);
+        inOrder.verify(mService).setHapticParam(param, param.length, mCallback);
+        inOrder.verify(mService).off(mCallback);
+        verify(mService, never()).on(eq(100), any());
+    }
+
+    @Test
+    public void call_runsAfterQueuedCalls() throws Exception {
+        useThreadLane();
+        when(mService.perform(anyInt(), anyInt(), any())).thenReturn(42);
+
+        mDispatcher.enqueueEffect("on", service -> service.on(100, mCallback));
+        final int result = mDispatcher.call("perform",
+                service -> service.perform(1, 2, mCallback), 0);
+
+        assertEquals(42, result);
+        final InOrder inOrder = inOrder(mService);
+        inOrder.verify(mService).on(100, mCallback);
+        inOrder.verify(mService).perform(1, 2, mCallback);
+    }
+
+    @Test
+    public void call_timedOut_neverReachesHal() throws Exception {
+        final Handler handler = useThreadLane();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        handler.post(() -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                // Let the lane go
+            }
+        });
+
+        final int result = mDispatcher.call("perform",
+                service -> service.perform(1, 2, mCallback), -1);
+        assertEquals(-1, result);
+
+        blocked.countDown();
+        final CountDownLatch idle = new CountDownLatch(1);
+        handler.post(idle::countDown);
+        assertTrue(idle.await(1, TimeUnit.SECONDS));
+        verify(mService, never()).perform(anyInt(), anyInt(), any());
+    }
+
+    private Handler useThreadLane() {
+        mThread = new HandlerThread("RichTapDispatcherTest");
+        mThread.start();
+        final Handler handler = new Handler(mThread.getLooper());
+        mDispatcher = new RichTapDispatcher(() -> mService, handler);
+        return handler;
+    }
+}